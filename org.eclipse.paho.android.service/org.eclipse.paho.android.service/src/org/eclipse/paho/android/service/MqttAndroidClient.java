@@ -31,6 +31,7 @@ import javax.net.ssl.TrustManagerFactory;
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
 import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
 import org.eclipse.paho.client.mqttv3.IMqttToken;
 import org.eclipse.paho.client.mqttv3.MqttCallback;
 import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
@@ -40,6 +41,8 @@ import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
 import org.eclipse.paho.client.mqttv3.MqttSecurityException;
 import org.eclipse.paho.client.mqttv3.MqttToken;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+import org.eclipse.paho.client.mqttv3.util.SubscriptionTrie;
 
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
@@ -142,6 +145,8 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 	// The MqttCallback provided by the application
 	private MqttCallback callback;
 	private MqttTraceHandler traceCallback;
+	// The IMqttMessageListeners provided by the application, by topic filter
+	private SubscriptionTrie messageListeners = new SubscriptionTrie();
 
 	//The acknowledgment that a message has been processed by the application
 	private Ack messageAck;
@@ -1047,6 +1052,97 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 		return token;
 	}
 
+	/**
+	 * Subscribe to a topic, which may include wildcards, delivering the
+	 * messages that arrive on it to a listener.
+	 * 
+	 * @see #subscribe(String[], int[], Object, IMqttActionListener, IMqttMessageListener[])
+	 */
+	@Override
+	public IMqttToken subscribe(String topicFilter, int qos,
+			IMqttMessageListener messageListener) throws MqttException {
+		return subscribe(new String[] { topicFilter }, new int[] { qos }, null,
+				null, new IMqttMessageListener[] { messageListener });
+	}
+
+	/**
+	 * Subscribe to a topic, which may include wildcards, delivering the
+	 * messages that arrive on it to a listener.
+	 * 
+	 * @see #subscribe(String[], int[], Object, IMqttActionListener, IMqttMessageListener[])
+	 */
+	@Override
+	public IMqttToken subscribe(String topicFilter, int qos,
+			Object userContext, IMqttActionListener callback,
+			IMqttMessageListener messageListener) throws MqttException {
+		return subscribe(new String[] { topicFilter }, new int[] { qos },
+				userContext, callback,
+				new IMqttMessageListener[] { messageListener });
+	}
+
+	/**
+	 * Subscribe to multiple topics, each of which may include wildcards,
+	 * delivering the messages that arrive on each to its own listener.
+	 * 
+	 * @see #subscribe(String[], int[], Object, IMqttActionListener, IMqttMessageListener[])
+	 */
+	@Override
+	public IMqttToken subscribe(String[] topicFilters, int[] qos,
+			IMqttMessageListener[] messageListeners) throws MqttException {
+		return subscribe(topicFilters, qos, null, null, messageListeners);
+	}
+
+	/**
+	 * Subscribe to multiple topics, each of which may include wildcards,
+	 * delivering the messages that arrive on each to its own listener.
+	 * <p>
+	 * A message is passed to every listener whose topic filter matches it,
+	 * and a message that matches no listener's filter is passed to the
+	 * callback set by {@link #setCallback(MqttCallback)}. Unsubscribing from
+	 * a topic filter removes its listener.
+	 * </p>
+	 * 
+	 * @param topicFilters
+	 *            one or more topics to subscribe to, which can include
+	 *            wildcards
+	 * @param qos
+	 *            the maximum quality of service at which to subscribe each
+	 *            topic
+	 * @param userContext
+	 *            optional object used to pass context to the callback. Use
+	 *            null if not required.
+	 * @param callback
+	 *            optional listener that will be notified when subscribe has
+	 *            completed
+	 * @param messageListeners
+	 *            one listener for each topic filter
+	 * @return token used to track and wait for the subscribe to complete.
+	 * @throws MqttException
+	 *             if there was an error registering the subscription.
+	 * @throws IllegalArgumentException
+	 *             if the supplied arrays are not the same size.
+	 */
+	@Override
+	public IMqttToken subscribe(String[] topicFilters, int[] qos,
+			Object userContext, IMqttActionListener callback,
+			IMqttMessageListener[] messageListeners) throws MqttException {
+		if (messageListeners.length != topicFilters.length) {
+			throw new IllegalArgumentException();
+		}
+		for (int i = 0; i < topicFilters.length; i++) {
+			MqttTopic.validate(topicFilters[i], true);
+		}
+		for (int i = 0; i < topicFilters.length; i++) {
+			if (messageListeners[i] == null) {
+				this.messageListeners.remove(topicFilters[i]);
+			}
+			else {
+				this.messageListeners.put(topicFilters[i], messageListeners[i]);
+			}
+		}
+		return subscribe(topicFilters, qos, userContext, callback);
+	}
+
 	/**
 	 * Requests the server unsubscribe the client from a topic.
 	 * 
@@ -1105,6 +1201,7 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 	@Override
 	public IMqttToken unsubscribe(String topic, Object userContext,
 			IMqttActionListener callback) throws MqttException {
+		messageListeners.remove(topic);
 		IMqttToken token = new MqttTokenAndroid(this, userContext,
 				callback);
 		String activityToken = storeToken(token);
@@ -1152,6 +1249,9 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 	@Override
 	public IMqttToken unsubscribe(String[] topic, Object userContext,
 			IMqttActionListener callback) throws MqttException {
+		for (int i = 0; i < topic.length; i++) {
+			messageListeners.remove(topic[i]);
+		}
 		IMqttToken token = new MqttTokenAndroid(this, userContext,
 				callback);
 		String activityToken = storeToken(token);
@@ -1433,22 +1533,23 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 	 * @param data
 	 */
 	private void messageArrivedAction(Bundle data) {
-		if (callback != null) {
+		String destinationName = data
+				.getString(MqttServiceConstants.CALLBACK_DESTINATION_NAME);
+		Object[] listeners = messageListeners.match(destinationName);
+		if (callback != null || listeners.length > 0) {
 			String messageId = data
 					.getString(MqttServiceConstants.CALLBACK_MESSAGE_ID);
-			String destinationName = data
-					.getString(MqttServiceConstants.CALLBACK_DESTINATION_NAME);
 
 			ParcelableMqttMessage message = (ParcelableMqttMessage) data
 					.getParcelable(MqttServiceConstants.CALLBACK_MESSAGE_PARCEL);
 			try {
 				if (messageAck == Ack.AUTO_ACK) {
-					callback.messageArrived(destinationName, message);
+					deliver(destinationName, message, listeners);
 					mqttService.acknowledgeMessageArrival(clientHandle, messageId);
 				}
 				else {
 					message.messageId = messageId;
-					callback.messageArrived(destinationName, message);
+					deliver(destinationName, message, listeners);
 				}
 
 				// let the service discard the saved message details
@@ -1459,6 +1560,21 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 		}
 	}
 	
+	/**
+	 * Pass a message to the listeners whose topic filters match it, or to
+	 * the callback if there are none
+	 */
+	private void deliver(String destinationName, MqttMessage message,
+			Object[] listeners) throws Exception {
+		for (int i = 0; i < listeners.length; i++) {
+			((IMqttMessageListener) listeners[i]).messageArrived(
+					destinationName, message);
+		}
+		if (listeners.length == 0) {
+			callback.messageArrived(destinationName, message);
+		}
+	}
+
 	/**
 	 * Process trace action - pass trace data back to the callback
 	 * 
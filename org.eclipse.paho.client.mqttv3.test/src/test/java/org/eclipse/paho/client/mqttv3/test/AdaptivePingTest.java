@@ -0,0 +1,324 @@
+/** Copyright (c)  2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.AdaptivePingSender;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
+import org.eclipse.paho.client.mqttv3.test.utilities.FakeMqttServer;
+import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Simulates a network whose NAT silently drops connections that have been
+ * idle for a while, and checks that the adaptive ping sender learns to
+ * ping just often enough to keep the connection open. The server is a
+ * minimal fake, so no broker is needed.
+ */
+public class AdaptivePingTest {
+
+  static final Class<?> cclass = AdaptivePingTest.class;
+  private static final String className = cclass.getName();
+  private static final Logger log = Logger.getLogger(className);
+
+  private static final int KEEP_ALIVE = 3;
+  private static final long NAT_TIMEOUT = 900;
+  private static final long MINIMUM_INTERVAL = 200;
+
+  /**
+   * A fake server that accepts any number of connections, and answers
+   * pings.
+   */
+  private static class FakeServer extends FakeMqttServer {
+    volatile int pings = 0;
+
+    FakeServer() throws Exception {
+    }
+
+    int getPort() {
+      return serverSocket.getLocalPort();
+    }
+
+    protected void serve() throws Exception {
+      try {
+        while (true) {
+          final Socket socket = serverSocket.accept();
+          Thread connection = new Thread() {
+            public void run() {
+              try {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                connect(in, out);
+                while (true) {
+                  int type = skipPacket(in);
+                  if (type == 12) {
+                    pings++;
+                    out.write(new byte[] {(byte) 0xD0, 0x00});
+                    out.flush();
+                  }
+                  else if (type == 14) {
+                    break;
+                  }
+                }
+              }
+              catch (Exception e) {
+                // the connection has gone
+              }
+              finally {
+                try {
+                  socket.close();
+                }
+                catch (Exception e) {
+                  // ignore
+                }
+              }
+            }
+          };
+          connection.setDaemon(true);
+          connection.start();
+        }
+      }
+      catch (Exception e) {
+        // closed
+      }
+    }
+  }
+
+  /**
+   * A NAT that forwards connections to the server, and silently drops a
+   * connection that has been idle for longer than its timeout: nothing
+   * more is passed on in either direction, and neither end is told.
+   */
+  private static class FakeNat extends Thread {
+    private final ServerSocket serverSocket;
+    private final int serverPort;
+    volatile int dropped = 0;
+
+    FakeNat(int serverPort) throws Exception {
+      this.serverSocket = new ServerSocket(0);
+      this.serverPort = serverPort;
+      setDaemon(true);
+    }
+
+    String getServerURI() {
+      return "tcp://localhost:" + serverSocket.getLocalPort();
+    }
+
+    /**
+     * The state of the mapping of one connection
+     */
+    private class Mapping {
+      long lastActivity = System.currentTimeMillis();
+      boolean isDropped = false;
+
+      synchronized boolean pass() {
+        long now = System.currentTimeMillis();
+        if (!isDropped && now - lastActivity > NAT_TIMEOUT) {
+          isDropped = true;
+          dropped++;
+          log.info("NAT dropped a connection idle for " + (now - lastActivity) + "ms");
+        }
+        lastActivity = now;
+        return !isDropped;
+      }
+    }
+
+    private void pump(final InputStream in, final OutputStream out, final Mapping mapping, final Socket a, final Socket b) {
+      Thread pump = new Thread() {
+        public void run() {
+          byte[] buffer = new byte[1024];
+          try {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+              if (mapping.pass()) {
+                out.write(buffer, 0, read);
+                out.flush();
+              }
+            }
+          }
+          catch (Exception e) {
+            // the connection has gone
+          }
+          try {
+            a.close();
+            b.close();
+          }
+          catch (Exception e) {
+            // ignore
+          }
+        }
+      };
+      pump.setDaemon(true);
+      pump.start();
+    }
+
+    public void run() {
+      try {
+        while (true) {
+          Socket client = serverSocket.accept();
+          Socket server = new Socket("localhost", serverPort);
+          Mapping mapping = new Mapping();
+          pump(client.getInputStream(), server.getOutputStream(), mapping, client, server);
+          pump(server.getInputStream(), client.getOutputStream(), mapping, server, client);
+        }
+      }
+      catch (Exception e) {
+        // closed
+      }
+    }
+  }
+
+  /**
+   * Counts the connections lost
+   */
+  private static class LostCallback implements MqttCallback {
+    int lost = 0;
+
+    public synchronized void connectionLost(Throwable cause) {
+      lost++;
+      notifyAll();
+    }
+
+    public void messageArrived(String topic, MqttMessage message) {
+    }
+
+    public void deliveryComplete(IMqttDeliveryToken token) {
+    }
+
+    synchronized boolean waitForLost(int count, long timeout) throws InterruptedException {
+      long end = System.currentTimeMillis() + timeout;
+      while (lost < count && System.currentTimeMillis() < end) {
+        wait(Math.max(1, end - System.currentTimeMillis()));
+      }
+      return lost >= count;
+    }
+  }
+
+  private static MqttConnectOptions options() {
+    MqttConnectOptions options = new MqttConnectOptions();
+    options.setKeepAliveInterval(KEEP_ALIVE);
+    return options;
+  }
+
+  /**
+   * The sender lengthens the interval until the NAT drops the connection,
+   * then settles below the NAT timeout, and a new client starts from the
+   * interval it learned
+   */
+  @Test
+  public void testLearnNatTimeout() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    FakeServer server = new FakeServer();
+    server.start();
+    FakeNat nat = new FakeNat(server.getPort());
+    nat.start();
+    File store = File.createTempFile("mqtt-ping", ".properties");
+    store.delete();
+
+    AdaptivePingSender sender = new AdaptivePingSender(store);
+    sender.setNetwork("test");
+    sender.setMinimumInterval(MINIMUM_INTERVAL);
+    MqttAsyncClient client = new MqttAsyncClient(nat.getServerURI(), methodName, new MemoryPersistence(), sender);
+    LostCallback callback = new LostCallback();
+    client.setCallback(callback);
+    client.connect(options()).waitForCompletion(10000);
+    Assert.assertEquals(MINIMUM_INTERVAL, sender.getInterval());
+
+    // Reconnect each time the NAT drops the connection, until it stays open
+    boolean stable = false;
+    long end = System.currentTimeMillis() + 60000;
+    while (System.currentTimeMillis() < end) {
+      if (!callback.waitForLost(callback.lost + 1, 8000)) {
+        stable = true;
+        break;
+      }
+      log.info("connection lost, ping interval " + sender.getInterval() + "ms");
+      client.connect(options()).waitForCompletion(10000);
+    }
+    long interval = sender.getInterval();
+    log.info(callback.lost + " connections lost, ping interval " + interval + "ms, " + server.pings + " pings");
+    // The loop ended because the connection stayed open, not on the deadline
+    Assert.assertTrue(stable);
+    Assert.assertTrue(callback.lost >= 1);
+    Assert.assertTrue(client.isConnected());
+    Assert.assertTrue(interval > MINIMUM_INTERVAL * 2);
+    Assert.assertTrue(interval < NAT_TIMEOUT);
+    client.disconnect().waitForCompletion(10000);
+    client.close();
+
+    // The interval is kept for the network and server
+    AdaptivePingSender newSender = new AdaptivePingSender(store);
+    newSender.setNetwork("test");
+    newSender.setMinimumInterval(MINIMUM_INTERVAL);
+    client = new MqttAsyncClient(nat.getServerURI(), methodName, new MemoryPersistence(), newSender);
+    client.connect(options()).waitForCompletion(10000);
+    Assert.assertTrue(newSender.getInterval() > MINIMUM_INTERVAL * 2);
+    Assert.assertTrue(newSender.getInterval() < NAT_TIMEOUT);
+    client.disconnect().waitForCompletion(10000);
+    client.close();
+
+    // But not for another network
+    newSender = new AdaptivePingSender(store);
+    newSender.setNetwork("other");
+    newSender.setMinimumInterval(MINIMUM_INTERVAL);
+    client = new MqttAsyncClient(nat.getServerURI(), methodName, new MemoryPersistence(), newSender);
+    client.connect(options()).waitForCompletion(10000);
+    Assert.assertEquals(MINIMUM_INTERVAL, newSender.getInterval());
+    client.disconnect().waitForCompletion(10000);
+    client.close();
+    store.delete();
+  }
+
+  /**
+   * No pings are sent while messages are being sent
+   */
+  @Test
+  public void testNoPingsWithTraffic() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    FakeServer server = new FakeServer();
+    server.start();
+    AdaptivePingSender sender = new AdaptivePingSender();
+    sender.setMinimumInterval(MINIMUM_INTERVAL);
+    MqttAsyncClient client = new MqttAsyncClient("tcp://localhost:" + server.getPort(), methodName,
+        new MemoryPersistence(), sender);
+    client.connect(options()).waitForCompletion(10000);
+
+    for (int i = 0; i < 20; i++) {
+      client.publish("traffic", new byte[8], 0, false);
+      Thread.sleep(MINIMUM_INTERVAL / 2);
+    }
+    Assert.assertEquals(0, server.pings);
+    Thread.sleep(MINIMUM_INTERVAL * 3);
+    Assert.assertTrue(server.pings > 0);
+    client.disconnect().waitForCompletion(10000);
+    client.close();
+  }
+}
@@ -0,0 +1,223 @@
+/** Copyright (c)  2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttBatchCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
+import org.eclipse.paho.client.mqttv3.test.utilities.FakeMqttServer;
+import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that a batch callback is passed the messages that are waiting in
+ * batches, and that they are all acknowledged. The server is a minimal
+ * fake, so no broker is needed.
+ */
+public class BatchCallbackTest {
+
+  static final Class<?> cclass = BatchCallbackTest.class;
+  private static final String className = cclass.getName();
+  private static final Logger log = Logger.getLogger(className);
+
+  private static final int MESSAGES = 30;
+  private static final int BATCH_SIZE = 8;
+
+  /**
+   * A fake server that sends QoS 1 publishes as soon as the client
+   * subscribes, one on a topic with a listener, and reads their
+   * acknowledgments.
+   */
+  private static class FakeServer extends FakeMqttServer {
+    final List<Integer> acked = new ArrayList<Integer>();
+
+    FakeServer() throws Exception {
+    }
+
+    private static void writePublish(DataOutputStream out, String topic, int msgId) throws Exception {
+      byte[] payload = String.valueOf(msgId).getBytes("UTF-8");
+      byte[] name = topic.getBytes("UTF-8");
+      out.write(0x32); // PUBLISH QoS 1
+      out.write(2 + name.length + 2 + payload.length);
+      out.writeShort(name.length);
+      out.write(name);
+      out.writeShort(msgId);
+      out.write(payload);
+    }
+
+    protected void serve() throws Exception {
+      Socket socket = serverSocket.accept();
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      connect(in, out);
+      in.readUnsignedByte(); // SUBSCRIBE
+      int remLength = readRemainingLength(in);
+      int subscribeId = in.readUnsignedShort();
+      in.skipBytes(remLength - 2);
+      out.write(new byte[] {(byte) 0x90, 0x03, (byte) (subscribeId >> 8), (byte) subscribeId, 0x01});
+      out.flush();
+
+      ByteArrayOutputStream publishes = new ByteArrayOutputStream();
+      DataOutputStream data = new DataOutputStream(publishes);
+      for (int i = 1; i <= MESSAGES; i++) {
+        writePublish(data, (i == MESSAGES / 2) ? "listened" : "batch", i);
+      }
+      out.write(publishes.toByteArray());
+      out.flush();
+
+      while (true) {
+        int type = in.readUnsignedByte() >> 4;
+        int remLen = readRemainingLength(in);
+        if (type == 4) {
+          synchronized (acked) {
+            acked.add(new Integer(in.readUnsignedShort()));
+          }
+        }
+        else {
+          in.skipBytes(remLen);
+          break; // DISCONNECT
+        }
+      }
+      socket.close();
+    }
+  }
+
+  /**
+   * Collects the batches it is passed, and is slow on the first so that
+   * the messages behind it wait
+   */
+  private static class Collector implements MqttBatchCallback, IMqttMessageListener {
+    final List<Integer> batchSizes = new ArrayList<Integer>();
+    final List<String> payloads = new ArrayList<String>();
+    volatile int single = 0;
+
+    public synchronized void messagesArrived(String[] topics, MqttMessage[] messages) throws Exception {
+      Assert.assertEquals(topics.length, messages.length);
+      if (batchSizes.isEmpty()) {
+        Thread.sleep(500);
+      }
+      batchSizes.add(new Integer(messages.length));
+      for (int i = 0; i < messages.length; i++) {
+        Assert.assertEquals("batch", topics[i]);
+        payloads.add(new String(messages[i].getPayload(), "UTF-8"));
+      }
+      notifyAll();
+    }
+
+    public synchronized void messageArrived(String topic, MqttMessage message) throws Exception {
+      single++;
+      payloads.add(new String(message.getPayload(), "UTF-8"));
+      notifyAll();
+    }
+
+    public void connectionLost(Throwable cause) {
+    }
+
+    public void deliveryComplete(IMqttDeliveryToken token) {
+    }
+
+    synchronized boolean waitForMessages(int count, long timeout) throws InterruptedException {
+      long end = System.currentTimeMillis() + timeout;
+      while (payloads.size() < count && System.currentTimeMillis() < end) {
+        wait(Math.max(1, end - System.currentTimeMillis()));
+      }
+      return payloads.size() >= count;
+    }
+  }
+
+  /**
+   * Messages waiting are passed together, up to the batch size, in the
+   * order they arrived, and each is acknowledged
+   */
+  @Test
+  public void testBatches() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    FakeServer server = new FakeServer();
+    server.start();
+    MqttAsyncClient client = new MqttAsyncClient(server.getServerURI(), methodName, new MemoryPersistence());
+    Collector collector = new Collector();
+    client.setCallback(collector);
+    MqttConnectOptions options = new MqttConnectOptions();
+    options.setCallbackBatchSize(BATCH_SIZE);
+    client.connect(options).waitForCompletion(10000);
+    client.subscribe("listened", 1, collector).waitForCompletion(10000);
+
+    Assert.assertTrue(collector.waitForMessages(MESSAGES, 10000));
+    log.info("batch sizes " + collector.batchSizes);
+    for (int i = 0; i < MESSAGES; i++) {
+      Assert.assertEquals(String.valueOf(i + 1), collector.payloads.get(i));
+    }
+    Assert.assertEquals(1, collector.single);
+    int largest = 0;
+    for (int i = 0; i < collector.batchSizes.size(); i++) {
+      largest = Math.max(largest, collector.batchSizes.get(i).intValue());
+    }
+    Assert.assertTrue(largest > 1);
+    Assert.assertTrue(largest <= BATCH_SIZE);
+
+    // Wait for the acknowledgments to be sent
+    long end = System.currentTimeMillis() + 10000;
+    while (System.currentTimeMillis() < end) {
+      synchronized (server.acked) {
+        if (server.acked.size() >= MESSAGES) {
+          break;
+        }
+      }
+      Thread.sleep(50);
+    }
+    client.disconnect().waitForCompletion(10000);
+    client.close();
+    server.join(10000);
+    Assert.assertNull(String.valueOf(server.getFailure()), server.getFailure());
+    synchronized (server.acked) {
+      Assert.assertEquals(MESSAGES, server.acked.size());
+      for (int i = 0; i < MESSAGES; i++) {
+        Assert.assertEquals(new Integer(i + 1), server.acked.get(i));
+      }
+    }
+  }
+
+  /**
+   * The batch size must be at least 1
+   */
+  @Test
+  public void testBatchSizeOption() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    MqttConnectOptions options = new MqttConnectOptions();
+    Assert.assertEquals(MqttConnectOptions.CALLBACK_BATCH_SIZE_DEFAULT, options.getCallbackBatchSize());
+    try {
+      options.setCallbackBatchSize(0);
+      Assert.fail("IllegalArgumentException expected");
+    }
+    catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,174 @@
+/** Copyright (c)  2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
+import org.eclipse.paho.client.mqttv3.test.utilities.FakeMqttServer;
+import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that messages waiting to be sent on a conflated topic are replaced
+ * by newer ones. The server is a minimal fake that does not read until told
+ * to, so that the messages back up in the client.
+ */
+public class ConflationTest {
+
+  static final Class<?> cclass = ConflationTest.class;
+  private static final String className = cclass.getName();
+  private static final Logger log = Logger.getLogger(className);
+
+  private static final int PAYLOAD_SIZE = 1024 * 1024;
+  private static final int COUNT = 30;
+
+  /**
+   * A fake server that reads nothing after the CONNACK until it is drained,
+   * then acknowledges every QoS 1 publish and records the number of
+   * publishes and the last sequence number received on each topic.
+   */
+  private static class FakeServer extends FakeMqttServer {
+    private boolean drain = false;
+    final Map<String, Integer> counts = new HashMap<String, Integer>();
+    final Map<String, Integer> last = new HashMap<String, Integer>();
+
+    FakeServer() throws Exception {
+    }
+
+    synchronized void drain() {
+      drain = true;
+      notifyAll();
+    }
+
+    private synchronized void waitForDrain() throws InterruptedException {
+      while (!drain) {
+        wait();
+      }
+    }
+
+    protected void serve() throws Exception {
+      Socket socket = serverSocket.accept();
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      connect(in, out);
+
+      waitForDrain();
+      while (true) {
+        int first = in.readUnsignedByte();
+        int remLen = readRemainingLength(in);
+        if ((first >> 4) != 3) {
+          in.skipBytes(remLen); // DISCONNECT
+          break;
+        }
+        int qos = (first >> 1) & 0x03;
+        byte[] topicBytes = new byte[in.readUnsignedShort()];
+        in.readFully(topicBytes);
+        String topic = new String(topicBytes, "UTF-8");
+        int msgId = (qos > 0) ? in.readUnsignedShort() : 0;
+        int sequence = in.readInt();
+        in.skipBytes(remLen - 2 - topicBytes.length - (qos > 0 ? 2 : 0) - 4);
+        synchronized (this) {
+          Integer count = counts.get(topic);
+          counts.put(topic, Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+          last.put(topic, Integer.valueOf(sequence));
+        }
+        if (qos == 1) {
+          out.write(new byte[] {0x40, 0x02, (byte) (msgId >> 8), (byte) msgId});
+          out.flush();
+        }
+      }
+      socket.close();
+    }
+  }
+
+  private static byte[] payload(int sequence) {
+    byte[] payload = new byte[PAYLOAD_SIZE];
+    payload[0] = (byte) (sequence >> 24);
+    payload[1] = (byte) (sequence >> 16);
+    payload[2] = (byte) (sequence >> 8);
+    payload[3] = (byte) sequence;
+    return payload;
+  }
+
+  /**
+   * Only the latest waiting message on a conflated topic is sent, and the
+   * tokens of the replaced messages report that they were conflated
+   */
+  @Test
+  public void testConflation() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    FakeServer server = new FakeServer();
+    server.start();
+
+    MqttConnectOptions options = new MqttConnectOptions();
+    options.setConflatedTopics(new String[] {"telemetry/#"});
+    MemoryPersistence persistence = new MemoryPersistence();
+    MqttAsyncClient client = new MqttAsyncClient(server.getServerURI(), methodName, persistence);
+    client.connect(options).waitForCompletion(10000);
+
+    String[] topics = {"telemetry/a", "telemetry/b", "bulk/c"};
+    int[] qos = {0, 1, 0};
+    IMqttDeliveryToken[][] tokens = new IMqttDeliveryToken[topics.length][COUNT];
+    for (int i = 0; i < COUNT; i++) {
+      for (int t = 0; t < topics.length; t++) {
+        int bulk = (t == 2) ? 1 : COUNT;
+        if (i < bulk) {
+          tokens[t][i] = client.publish(topics[t], payload(i), qos[t], false);
+        }
+      }
+    }
+    server.drain();
+    tokens[0][COUNT - 1].waitForCompletion(30000);
+    tokens[1][COUNT - 1].waitForCompletion(30000);
+    tokens[2][0].waitForCompletion(30000);
+    client.disconnect().waitForCompletion(10000);
+    client.close();
+    server.join(10000);
+    Assert.assertNull(String.valueOf(server.getFailure()), server.getFailure());
+
+    for (int t = 0; t < 2; t++) {
+      int conflated = 0;
+      for (int i = 0; i < COUNT; i++) {
+        MqttException ex = tokens[t][i].getException();
+        if (ex != null) {
+          Assert.assertEquals(MqttException.REASON_CODE_MESSAGE_CONFLATED, ex.getReasonCode());
+          conflated++;
+        }
+        else {
+          Assert.assertTrue(tokens[t][i].isComplete());
+        }
+      }
+      int received = server.counts.get(topics[t]).intValue();
+      log.info(topics[t] + ": " + received + " sent, " + conflated + " conflated");
+      Assert.assertTrue(conflated > 0);
+      Assert.assertEquals(COUNT, received + conflated);
+      Assert.assertEquals(COUNT - 1, server.last.get(topics[t]).intValue());
+    }
+    Assert.assertEquals(1, server.counts.get("bulk/c").intValue());
+    Assert.assertNull(tokens[2][0].getException());
+  }
+}
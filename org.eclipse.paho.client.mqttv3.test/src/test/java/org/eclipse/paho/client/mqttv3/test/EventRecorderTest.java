@@ -0,0 +1,182 @@
+/** Copyright (c)  2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttEventRecorder;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
+import org.eclipse.paho.client.mqttv3.test.utilities.FakeMqttServer;
+import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that the steps of publishing, acknowledging and delivering
+ * messages are recorded with an event recorder. The server is a minimal
+ * fake, so no broker is needed.
+ */
+public class EventRecorderTest {
+
+  static final Class<?> cclass = EventRecorderTest.class;
+  private static final String className = cclass.getName();
+  private static final Logger log = Logger.getLogger(className);
+
+  private static final int PAYLOAD_SIZE = 100;
+
+  /**
+   * A fake server that acknowledges QoS 1 publishes, and sends a QoS 0
+   * publish of its own when a subscription is made.
+   */
+  private static class FakeServer extends FakeMqttServer {
+
+    FakeServer() throws Exception {
+    }
+
+    protected void serve() throws Exception {
+      Socket socket = serverSocket.accept();
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      connect(in, out);
+
+      while (true) {
+        int type = in.readUnsignedByte() >> 4;
+        int remLen = readRemainingLength(in);
+        if (type == 8) {
+          int msgId = in.readUnsignedShort();
+          in.skipBytes(remLen - 2);
+          out.write(new byte[] {(byte) 0x90, 0x03, (byte) (msgId >> 8), (byte) msgId, 0x00});
+          out.write(new byte[] {0x30, 0x03 + PAYLOAD_SIZE, 0x00, 0x01, 'e'});
+          out.write(new byte[PAYLOAD_SIZE]);
+        }
+        else if (type == 3) {
+          int topicLength = in.readUnsignedShort();
+          in.skipBytes(topicLength);
+          int msgId = in.readUnsignedShort();
+          in.skipBytes(remLen - 4 - topicLength);
+          out.write(new byte[] {0x40, 0x02, (byte) (msgId >> 8), (byte) msgId});
+        }
+        else {
+          in.skipBytes(remLen);
+          break; // DISCONNECT
+        }
+        out.flush();
+      }
+      socket.close();
+    }
+  }
+
+  /**
+   * An event recorder that keeps the events it is passed.
+   */
+  private static class ListRecorder implements MqttEventRecorder {
+    List<long[]> events = new ArrayList<long[]>();
+    int invalid = 0;
+
+    public synchronized void record(int event, String clientId, int packetType, int messageId, long size, long duration) {
+      if (!"events".equals(clientId) || duration < 0) {
+        invalid++;
+      }
+      events.add(new long[] {event, packetType, messageId, size});
+    }
+
+    /**
+     * Returns the first event of a kind for a packet type, or null
+     */
+    synchronized long[] find(int event, int packetType) {
+      for (long[] e : events) {
+        if (e[0] == event && e[1] == packetType) {
+          return e;
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Each step of a QoS 1 publish and of an inbound publish is recorded
+   */
+  @Test
+  public void testPublishEvents() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    FakeServer server = new FakeServer();
+    server.start();
+    MqttAsyncClient client = new MqttAsyncClient(server.getServerURI(), "events", new MemoryPersistence());
+    MqttConnectOptions options = new MqttConnectOptions();
+    ListRecorder recorder = new ListRecorder();
+    options.setEventRecorder(recorder);
+    client.connect(options).waitForCompletion(10000);
+
+    final Object delivered = new Object();
+    final boolean[] arrived = new boolean[1];
+    client.subscribe("e", 0, new IMqttMessageListener() {
+      public void messageArrived(String topic, MqttMessage message) {
+        synchronized (delivered) {
+          arrived[0] = true;
+          delivered.notifyAll();
+        }
+      }
+    }).waitForCompletion(10000);
+    synchronized (delivered) {
+      if (!arrived[0]) {
+        delivered.wait(10000);
+      }
+    }
+    int msgId = client.publish("p", new byte[PAYLOAD_SIZE], 1, false).getMessageId();
+    client.disconnect().waitForCompletion(10000);
+    client.close();
+    server.join(10000);
+    Assert.assertNull(String.valueOf(server.getFailure()), server.getFailure());
+    log.info(recorder.events.size() + " events recorded");
+    Assert.assertEquals(0, recorder.invalid);
+
+    long[] queued = recorder.find(MqttEventRecorder.EVENT_QUEUED, 3);
+    Assert.assertNotNull(queued);
+    Assert.assertEquals(msgId, queued[2]);
+    Assert.assertEquals(PAYLOAD_SIZE, queued[3]);
+    long[] persisted = recorder.find(MqttEventRecorder.EVENT_PERSISTED, 3);
+    Assert.assertNotNull(persisted);
+    Assert.assertEquals(msgId, persisted[2]);
+    Assert.assertTrue(persisted[3] > PAYLOAD_SIZE);
+    long[] written = recorder.find(MqttEventRecorder.EVENT_WRITTEN, 3);
+    Assert.assertNotNull(written);
+    Assert.assertEquals(2 + 2 + 1 + 2 + PAYLOAD_SIZE, written[3]);
+    long[] acked = recorder.find(MqttEventRecorder.EVENT_ACKED, 4);
+    Assert.assertNotNull(acked);
+    Assert.assertEquals(msgId, acked[2]);
+    Assert.assertEquals(4, acked[3]);
+    long[] unpersisted = recorder.find(MqttEventRecorder.EVENT_UNPERSISTED, 0);
+    Assert.assertNotNull(unpersisted);
+    Assert.assertEquals(msgId, unpersisted[2]);
+
+    Assert.assertNotNull(recorder.find(MqttEventRecorder.EVENT_ACKED, 2));
+    Assert.assertNotNull(recorder.find(MqttEventRecorder.EVENT_ACKED, 9));
+    long[] deliveredEvent = recorder.find(MqttEventRecorder.EVENT_DELIVERED, 3);
+    Assert.assertNotNull(deliveredEvent);
+    Assert.assertEquals(PAYLOAD_SIZE, deliveredEvent[3]);
+    Assert.assertNotNull(recorder.find(MqttEventRecorder.EVENT_WRITTEN, 14));
+    Assert.assertNotNull(recorder.find(MqttEventRecorder.EVENT_SHUTDOWN, 0));
+  }
+}
@@ -0,0 +1,360 @@
+/** Copyright (c)  2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPubRec;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
+import org.eclipse.paho.client.mqttv3.test.utilities.FakeMqttServer;
+import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that a client persisting only the state of inbound QoS 2 messages
+ * answers a server that resends a message it delivered before a restart,
+ * without delivering it again, and delivers a message again whose delivery
+ * did not complete before the connection was lost. The server is a minimal fake, so no broker
+ * is needed.
+ */
+public class InboundQoS2StateTest {
+
+  static final Class<?> cclass = InboundQoS2StateTest.class;
+  private static final String className = cclass.getName();
+  private static final Logger log = Logger.getLogger(className);
+
+  /**
+   * A fake server that resends a QoS 2 publish the client has already
+   * delivered, then sends a new one, and releases each once it is received.
+   * It records the type and message ID of each acknowledgement the client
+   * sends.
+   */
+  private static class FakeServer extends FakeMqttServer {
+    final List<String> acks = new ArrayList<String>();
+
+    FakeServer() throws Exception {
+    }
+
+    /**
+     * Reads the next packet and records it if it is an acknowledgement.
+     * Returns its type.
+     */
+    int read(DataInputStream in) throws Exception {
+      int type = in.readUnsignedByte() >> 4;
+      int remLen = readRemainingLength(in);
+      if (type == 5 || type == 7) {
+        int msgId = in.readUnsignedShort();
+        synchronized (this) {
+          acks.add(type + ":" + msgId);
+        }
+        in.skipBytes(remLen - 2);
+      }
+      else {
+        in.skipBytes(remLen);
+      }
+      return type;
+    }
+
+    static void publish(DataOutputStream out, String topic, int msgId, boolean dup) throws Exception {
+      ByteArrayOutputStream variable = new ByteArrayOutputStream();
+      byte[] topicBytes = topic.getBytes("UTF-8");
+      variable.write(topicBytes.length >> 8);
+      variable.write(topicBytes.length);
+      variable.write(topicBytes);
+      variable.write(msgId >> 8);
+      variable.write(msgId);
+      variable.write("payload".getBytes("UTF-8"));
+      out.write(0x34 | (dup ? 0x08 : 0));
+      out.write(variable.size());
+      variable.writeTo(out);
+      out.flush();
+    }
+
+    static void release(DataOutputStream out, int msgId) throws Exception {
+      out.write(new byte[] {0x62, 0x02, (byte) (msgId >> 8), (byte) msgId});
+      out.flush();
+    }
+
+    protected void serve() throws Exception {
+      Socket socket = serverSocket.accept();
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      connect(in, out);
+
+      // The PUBREC for message 7 was lost before the client stopped
+      publish(out, "redelivered", 7, true);
+      read(in);
+      release(out, 7);
+      read(in);
+      publish(out, "new", 8, false);
+      read(in);
+      release(out, 8);
+      read(in);
+      while (read(in) != 14) {
+        // until DISCONNECT
+      }
+      socket.close();
+    }
+  }
+
+  /**
+   * A fake server whose client loses the connection before it has
+   * acknowledged a QoS 2 publish, and that sends the publish again when the
+   * client reconnects
+   */
+  private static class ReconnectServer extends FakeServer {
+
+    ReconnectServer() throws Exception {
+    }
+
+    protected void serve() throws Exception {
+      Socket socket = serverSocket.accept();
+      socket.setSoTimeout(10000);
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      connect(in, out);
+      publish(out, "resent", 9, false);
+      try {
+        while (true) {
+          read(in);
+        }
+      }
+      catch (IOException e) {
+        // the client dropped the connection
+      }
+      socket.close();
+
+      socket = serverSocket.accept();
+      socket.setSoTimeout(10000);
+      in = new DataInputStream(socket.getInputStream());
+      out = new DataOutputStream(socket.getOutputStream());
+      connect(in, out);
+      publish(out, "resent", 9, true);
+      read(in);
+      release(out, 9);
+      read(in);
+      while (read(in) != 14) {
+        // until DISCONNECT
+      }
+      socket.close();
+    }
+  }
+
+  /**
+   * Collects the topics of the messages that arrive, after failing the
+   * number of deliveries it is told to
+   */
+  private static class Collector implements MqttCallback {
+    final List<String> topics = new ArrayList<String>();
+    int failures = 0;
+    int lost = 0;
+
+    public synchronized void connectionLost(Throwable cause) {
+      lost++;
+      notifyAll();
+    }
+
+    public synchronized void messageArrived(String topic, MqttMessage message) throws Exception {
+      if (failures > 0) {
+        failures--;
+        throw new Exception("delivery failed");
+      }
+      topics.add(topic);
+    }
+
+    synchronized void waitForLost(long timeout) throws InterruptedException {
+      long end = System.currentTimeMillis() + timeout;
+      while (lost == 0 && System.currentTimeMillis() < end) {
+        wait(Math.max(1, end - System.currentTimeMillis()));
+      }
+    }
+
+    public void deliveryComplete(IMqttDeliveryToken token) {
+    }
+  }
+
+  /**
+   * Gives the test access to the client state
+   */
+  private static class Client extends MqttAsyncClient {
+    Client(String serverURI, String clientId, MqttDefaultFilePersistence persistence) throws MqttException {
+      super(serverURI, clientId, persistence);
+    }
+
+    Hashtable getInbound() {
+      return (Hashtable) comms.getClientState().getDebug().get("inboundQoS2");
+    }
+  }
+
+  private static File createTempDir(String methodName) throws Exception {
+    File dir = File.createTempFile(className + "." + methodName, "");
+    dir.delete();
+    dir.mkdirs();
+    return dir;
+  }
+
+  private static void deleteDir(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (int i = 0; i < files.length; i++) {
+        if (files[i].isDirectory()) {
+          deleteDir(files[i]);
+        }
+        else {
+          files[i].delete();
+        }
+      }
+    }
+    dir.delete();
+  }
+
+  /**
+   * A resent publish whose state was persisted before a restart gets a
+   * PUBREC without being delivered again, and its PUBREL gets a PUBCOMP
+   * that clears the state
+   */
+  @Test
+  public void testRestoredState() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    File dir = createTempDir(methodName);
+    FakeServer server = new FakeServer();
+    server.start();
+    try {
+      // The state a client leaves once it has delivered message 7
+      MqttDefaultFilePersistence persistence = new MqttDefaultFilePersistence(dir.getAbsolutePath());
+      persistence.open(methodName, server.getServerURI());
+      MqttMessage message = new MqttMessage("payload".getBytes("UTF-8"));
+      message.setQos(2);
+      MqttPublish delivered = new MqttPublish("redelivered", message);
+      delivered.setMessageId(7);
+      byte[] header = new MqttPubRec(delivered).getHeader();
+      persistence.put("r-7", new MqttPersistentData("r-7", header, 0, header.length, null, 0, 0));
+      persistence.close();
+
+      persistence = new MqttDefaultFilePersistence(dir.getAbsolutePath());
+      Client client = new Client(server.getServerURI(), methodName, persistence);
+      Hashtable inbound = client.getInbound();
+      Assert.assertTrue(String.valueOf(inbound.get(Integer.valueOf(7))), inbound.get(Integer.valueOf(7)) instanceof MqttPubRec);
+      Collector collector = new Collector();
+      client.setCallback(collector);
+      MqttConnectOptions options = new MqttConnectOptions();
+      options.setCleanSession(false);
+      options.setKeepAliveInterval(0);
+      options.setInboundQoS2StateOnly(true);
+      client.connect(options).waitForCompletion(10000);
+
+      long end = System.currentTimeMillis() + 10000;
+      while (server.isAlive() && System.currentTimeMillis() < end) {
+        synchronized (server) {
+          if (server.acks.size() == 4) {
+            break;
+          }
+        }
+        Thread.sleep(20);
+      }
+      synchronized (server) {
+        Assert.assertEquals(Arrays.asList(new String[] {"5:7", "7:7", "5:8", "7:8"}), server.acks);
+      }
+      synchronized (collector) {
+        Assert.assertEquals(Arrays.asList(new String[] {"new"}), collector.topics);
+      }
+      client.disconnect().waitForCompletion(10000);
+      client.close();
+      server.join(10000);
+      Assert.assertNull(String.valueOf(server.getFailure()), server.getFailure());
+      Assert.assertEquals(String.valueOf(inbound), 0, inbound.size());
+
+      // No state is left in persistence
+      persistence = new MqttDefaultFilePersistence(dir.getAbsolutePath());
+      persistence.open(methodName, server.getServerURI());
+      List<Object> keys = new ArrayList<Object>();
+      for (Enumeration e = persistence.keys(); e.hasMoreElements();) {
+        keys.add(e.nextElement());
+      }
+      Assert.assertEquals(String.valueOf(keys), 0, keys.size());
+      persistence.close();
+    }
+    finally {
+      deleteDir(dir);
+    }
+  }
+
+  /**
+   * A message delivered as it arrived, whose delivery failed and lost the
+   * connection before its state was persisted, is delivered again when the
+   * server resends it on the next connection, and is then acknowledged
+   */
+  @Test
+  public void testReconnect() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    ReconnectServer server = new ReconnectServer();
+    server.start();
+    MqttAsyncClient client = new MqttAsyncClient(server.getServerURI(), methodName, new MemoryPersistence());
+    Collector collector = new Collector();
+    collector.failures = 1;
+    client.setCallback(collector);
+    MqttConnectOptions options = new MqttConnectOptions();
+    options.setCleanSession(false);
+    options.setKeepAliveInterval(0);
+    options.setInboundQoS2StateOnly(true);
+    client.connect(options).waitForCompletion(10000);
+    collector.waitForLost(10000);
+    Assert.assertEquals(1, collector.lost);
+
+    client.connect(options).waitForCompletion(10000);
+    long end = System.currentTimeMillis() + 10000;
+    while (server.isAlive() && System.currentTimeMillis() < end) {
+      synchronized (server) {
+        if (server.acks.size() == 2) {
+          break;
+        }
+      }
+      Thread.sleep(20);
+    }
+    synchronized (server) {
+      Assert.assertEquals(Arrays.asList(new String[] {"5:9", "7:9"}), server.acks);
+    }
+    synchronized (collector) {
+      Assert.assertEquals(Arrays.asList(new String[] {"resent"}), collector.topics);
+    }
+    client.disconnect().waitForCompletion(10000);
+    client.close();
+    server.join(10000);
+    Assert.assertNull(String.valueOf(server.getFailure()), server.getFailure());
+  }
+}
@@ -0,0 +1,192 @@
+/** Copyright (c)  2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttStreamedMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
+import org.eclipse.paho.client.mqttv3.test.utilities.FakeMqttServer;
+import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Checks that large inbound payloads are streamed to the callback. The server
+ * is a minimal fake that sends a single PUBLISH, so no broker is needed.
+ */
+public class InboundStreamingTest {
+
+  static final Class<?> cclass = InboundStreamingTest.class;
+  private static final String className = cclass.getName();
+  private static final Logger log = Logger.getLogger(className);
+
+  private static final String topic = "streamed/inbound";
+  private static final int THRESHOLD = 1024 * 1024;
+  private static final int MSG_ID = 1;
+
+  private static byte payloadByte(long i) {
+    return (byte) (i * 31 + (i >>> 9));
+  }
+
+  /**
+   * A fake server that accepts one connection, sends one QoS 1 PUBLISH and
+   * records when the PUBACK arrives.
+   */
+  private static class FakeServer extends FakeMqttServer {
+    private final int payloadLength;
+    volatile long pubAckTime = 0;
+
+    FakeServer(int payloadLength) throws Exception {
+      this.payloadLength = payloadLength;
+    }
+
+    protected void serve() throws Exception {
+      Socket socket = serverSocket.accept();
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 65536));
+      connect(in, out);
+
+      byte[] topicBytes = topic.getBytes("UTF-8");
+      out.writeByte(0x32); // PUBLISH QoS 1
+      writeRemainingLength(out, 2 + topicBytes.length + 2 + payloadLength);
+      out.writeShort(topicBytes.length);
+      out.write(topicBytes);
+      out.writeShort(MSG_ID);
+      byte[] chunk = new byte[65536];
+      long sent = 0;
+      while (sent < payloadLength) {
+        int count = (int) Math.min(chunk.length, payloadLength - sent);
+        for (int i = 0; i < count; i++) {
+          chunk[i] = payloadByte(sent + i);
+        }
+        out.write(chunk, 0, count);
+        sent += count;
+      }
+      out.flush();
+
+      int type = in.readUnsignedByte();
+      in.readUnsignedByte();
+      int msgId = in.readUnsignedShort();
+      pubAckTime = System.currentTimeMillis();
+      Assert.assertEquals(0x40, type);
+      Assert.assertEquals(MSG_ID, msgId);
+      skipPacket(in); // DISCONNECT
+      socket.close();
+    }
+  }
+
+  /**
+   * Reads the payload from the stream as it arrives, checking every byte
+   */
+  private static class StreamReader implements MqttCallback {
+    volatile boolean streamed = false;
+    volatile long received = 0;
+    volatile long mismatches = 0;
+    volatile long finishedTime = 0;
+
+    public synchronized void messageArrived(String topicName, MqttMessage message) throws Exception {
+      streamed = message instanceof MqttStreamedMessage;
+      if (streamed) {
+        InputStream in = ((MqttStreamedMessage) message).getPayloadStream();
+        byte[] buffer = new byte[65536];
+        long position = 0;
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+          for (int i = 0; i < count; i++) {
+            if (buffer[i] != payloadByte(position + i)) {
+              mismatches++;
+            }
+          }
+          position += count;
+        }
+        received = position;
+      }
+      finishedTime = System.currentTimeMillis();
+      notifyAll();
+    }
+
+    public synchronized void waitForMessage(long timeout) throws InterruptedException {
+      long end = System.currentTimeMillis() + timeout;
+      while (finishedTime == 0 && System.currentTimeMillis() < end) {
+        wait(1000);
+      }
+    }
+
+    public void connectionLost(Throwable cause) {
+      log.info("Connection lost: " + cause);
+    }
+
+    public void deliveryComplete(IMqttDeliveryToken token) {
+    }
+  }
+
+  private void receive(String methodName, int payloadLength, long timeout) throws Exception {
+    FakeServer server = new FakeServer(payloadLength);
+    server.start();
+
+    MqttConnectOptions options = new MqttConnectOptions();
+    options.setInboundStreamingThreshold(THRESHOLD);
+    MqttClient client = new MqttClient(server.getServerURI(), methodName, new MemoryPersistence());
+    StreamReader reader = new StreamReader();
+    client.setCallback(reader);
+    client.connect(options);
+
+    reader.waitForMessage(timeout);
+    server.join(10000);
+    Utility.disconnectAndCloseClient(client);
+
+    Assert.assertNull(String.valueOf(server.getFailure()), server.getFailure());
+    Assert.assertTrue(reader.streamed);
+    Assert.assertEquals(payloadLength, reader.received);
+    Assert.assertEquals(0, reader.mismatches);
+    Assert.assertTrue("acknowledged before the payload was read", server.pubAckTime >= reader.finishedTime);
+  }
+
+  /**
+   * A payload above the threshold is read from the stream and acknowledged afterwards
+   */
+  @Test
+  public void testStreamedPayload() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    receive(methodName, 8 * 1024 * 1024, 60 * 1000);
+  }
+
+  /**
+   * The largest payload MQTT allows (256 MB) is received with a 64 MB heap.
+   * Run with -Xmx64m.
+   */
+  @Test
+  @Category(ManualTest.class)
+  public void testMaximumPayloadWithSmallHeap() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    int payloadLength = MqttStreamedMessage.MAX_PAYLOAD_LENGTH - (2 + topic.length() + 2);
+    Assert.assertTrue("must be run with -Xmx64m", Runtime.getRuntime().maxMemory() <= 80L * 1024 * 1024);
+    receive(methodName, payloadLength, 10 * 60 * 1000);
+  }
+}
@@ -0,0 +1,168 @@
+/** Copyright (c)  2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttLatencyHistogram;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
+import org.eclipse.paho.client.mqttv3.test.utilities.FakeMqttServer;
+import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that the stages of delivery of sampled publishes are timed, and
+ * the times counted in histograms. The server is a minimal fake, so no
+ * broker is needed.
+ */
+public class LatencyTracingTest {
+
+  static final Class<?> cclass = LatencyTracingTest.class;
+  private static final String className = cclass.getName();
+  private static final Logger log = Logger.getLogger(className);
+
+  private static final int PUBLISHES = 40;
+  private static final int ACK_DELAY = 20;
+  // The default in-flight window
+  private static final int WINDOW = 10;
+
+  /**
+   * A fake server that acknowledges QoS 1 publishes after a delay.
+   */
+  private static class FakeServer extends FakeMqttServer {
+
+    FakeServer() throws Exception {
+    }
+
+    protected void serve() throws Exception {
+      Socket socket = serverSocket.accept();
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      connect(in, out);
+
+      while (true) {
+        int type = in.readUnsignedByte() >> 4;
+        int remLen = readRemainingLength(in);
+        if (type == 3) {
+          int topicLength = in.readUnsignedShort();
+          in.skipBytes(topicLength);
+          int msgId = in.readUnsignedShort();
+          in.skipBytes(remLen - 4 - topicLength);
+          Thread.sleep(ACK_DELAY);
+          out.write(new byte[] {0x40, 0x02, (byte) (msgId >> 8), (byte) msgId});
+          out.flush();
+        }
+        else {
+          in.skipBytes(remLen);
+          break; // DISCONNECT
+        }
+      }
+      socket.close();
+    }
+  }
+
+  /**
+   * Percentiles are read to within the precision of the buckets
+   */
+  @Test
+  public void testHistogram() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    MqttLatencyHistogram histogram = new MqttLatencyHistogram();
+    for (long i = 1; i <= 10000; i++) {
+      histogram.record(i * 1000);
+    }
+    Assert.assertEquals(10000, histogram.getCount());
+    Assert.assertEquals(10000000, histogram.getMax());
+    Assert.assertEquals(5000500, histogram.getMean());
+    long p50 = histogram.getValueAtPercentile(50);
+    long p99 = histogram.getValueAtPercentile(99);
+    Assert.assertTrue(String.valueOf(p50), p50 >= 5000000 && p50 <= 5000000 * 1.02);
+    Assert.assertTrue(String.valueOf(p99), p99 >= 9900000 && p99 <= 9900000 * 1.02);
+    Assert.assertEquals(10000000, histogram.getValueAtPercentile(100));
+    long p0 = histogram.getValueAtPercentile(0);
+    Assert.assertTrue(String.valueOf(p0), p0 >= 1000 && p0 <= 1000 * 1.02);
+
+    MqttLatencyHistogram copy = histogram.copy();
+    histogram.reset();
+    Assert.assertEquals(0, histogram.getCount());
+    Assert.assertEquals(10000, copy.getCount());
+    histogram.record(Long.MAX_VALUE);
+    Assert.assertTrue(histogram.getMax() > 3600L * 1000000000L);
+  }
+
+  /**
+   * Each sampled publish has the time it reached each stage, and the time
+   * waited for the server counts in the stage it was waited in
+   */
+  @Test
+  public void testStageTimes() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    FakeServer server = new FakeServer();
+    server.start();
+    MqttAsyncClient client = new MqttAsyncClient(server.getServerURI(), methodName, new MemoryPersistence());
+    MqttConnectOptions options = new MqttConnectOptions();
+    options.setLatencySampling(4);
+    client.connect(options).waitForCompletion(10000);
+
+    IMqttDeliveryToken[] tokens = new IMqttDeliveryToken[PUBLISHES];
+    for (int i = 0; i < PUBLISHES; i += WINDOW) {
+      for (int j = i; j < i + WINDOW; j++) {
+        tokens[j] = client.publish("latency", new byte[16], 1, false);
+      }
+      for (int j = i; j < i + WINDOW; j++) {
+        tokens[j].waitForCompletion(10000);
+      }
+    }
+    int sampled = 0;
+    for (int i = 0; i < PUBLISHES; i++) {
+      MqttDeliveryToken token = (MqttDeliveryToken) tokens[i];
+      if (token.getStageTime(MqttDeliveryToken.STAGE_SUBMITTED) == 0) {
+        Assert.assertEquals(0, token.getStageTime(MqttDeliveryToken.STAGE_ACKED));
+        continue;
+      }
+      sampled++;
+      for (int stage = MqttDeliveryToken.STAGE_QUEUED; stage <= MqttDeliveryToken.STAGE_ACKED; stage++) {
+        Assert.assertTrue(token.getStageTime(stage) >= token.getStageTime(stage - 1));
+      }
+      Assert.assertTrue(token.getStageTime(MqttDeliveryToken.STAGE_ACKED)
+          - token.getStageTime(MqttDeliveryToken.STAGE_WRITTEN) >= ACK_DELAY * 1000000L);
+    }
+    Assert.assertEquals(PUBLISHES / 4, sampled);
+
+    for (int stage = MqttDeliveryToken.STAGE_SUBMITTED; stage <= MqttDeliveryToken.STAGE_ACKED; stage++) {
+      MqttLatencyHistogram histogram = client.getLatencyHistogram(stage);
+      log.info("stage " + stage + ": " + histogram);
+      Assert.assertEquals(sampled, histogram.getCount());
+    }
+    // The server acknowledges the publishes of a window one after another
+    Assert.assertTrue(client.getLatencyHistogram(MqttDeliveryToken.STAGE_ACKED).getValueAtPercentile(50) >= ACK_DELAY * 1000000L);
+    Assert.assertTrue(client.getLatencyHistogram(MqttDeliveryToken.STAGE_SUBMITTED).getMax() >= 2 * ACK_DELAY * 1000000L);
+
+    client.disconnect().waitForCompletion(10000);
+    client.close();
+    server.join(10000);
+    Assert.assertNull(String.valueOf(server.getFailure()), server.getFailure());
+  }
+}
@@ -0,0 +1,386 @@
+/** Copyright (c)  2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDemand;
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.IMqttMessageSubscriber;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttPublishSubscriber;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
+import org.eclipse.paho.client.mqttv3.test.utilities.FakeMqttServer;
+import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that inbound messages are read from the network only as a
+ * subscriber asks for them, and that a stream is published no faster than
+ * the in-flight window allows. The server is a minimal fake, so no broker
+ * is needed.
+ */
+public class MessageDemandTest {
+
+  static final Class<?> cclass = MessageDemandTest.class;
+  private static final String className = cclass.getName();
+  private static final Logger log = Logger.getLogger(className);
+
+  private static final int INBOUND_COUNT = 2000;
+  private static final int INBOUND_SIZE = 32 * 1024;
+  private static final int OUTBOUND_COUNT = 200;
+
+  /**
+   * A fake server that floods a subscriber with QoS 0 publishes, and
+   * acknowledges QoS 1 publishes after a short delay.
+   */
+  private static class FakeServer extends FakeMqttServer {
+    private DataOutputStream out;
+    private final int floodCount;
+    volatile int written = 0;
+    volatile int received = 0;
+
+    FakeServer(int floodCount) throws Exception {
+      this.floodCount = floodCount;
+    }
+
+    private synchronized void write(byte[] packet) throws Exception {
+      out.write(packet);
+      out.flush();
+    }
+
+    /**
+     * Writes the publishes on another thread, as the writes block when the
+     * client stops reading
+     */
+    private void flood() {
+      Thread flood = new Thread() {
+        public void run() {
+          try {
+            byte[] packet = new byte[5 + 2 + 1 + INBOUND_SIZE];
+            int remLen = packet.length - 5;
+            packet[0] = 0x30;
+            for (int i = 1; i < 5; i++) {
+              packet[i] = (byte) ((remLen & 0x7F) | (i < 4 ? 0x80 : 0));
+              remLen >>= 7;
+            }
+            packet[6] = 1;
+            packet[7] = 'd';
+            for (int i = 0; i < floodCount; i++) {
+              write(packet);
+              written++;
+            }
+          }
+          catch (Throwable t) {
+            // the client has gone
+          }
+        }
+      };
+      flood.setDaemon(true);
+      flood.start();
+    }
+
+    protected void serve() throws Exception {
+      Socket socket = serverSocket.accept();
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      out = new DataOutputStream(socket.getOutputStream());
+      skipPacket(in); // CONNECT
+      write(CONNACK);
+
+      while (true) {
+        int type = in.readUnsignedByte() >> 4;
+        int remLen = readRemainingLength(in);
+        if (type == 8) {
+          int msgId = in.readUnsignedShort();
+          in.skipBytes(remLen - 2);
+          write(new byte[] {(byte) 0x90, 0x03, (byte) (msgId >> 8), (byte) msgId, 0x00});
+          flood();
+        }
+        else if (type == 10) {
+          int msgId = in.readUnsignedShort();
+          in.skipBytes(remLen - 2);
+          write(new byte[] {(byte) 0xB0, 0x02, (byte) (msgId >> 8), (byte) msgId});
+        }
+        else if (type == 3) {
+          int topicLength = in.readUnsignedShort();
+          in.skipBytes(topicLength);
+          int msgId = in.readUnsignedShort();
+          in.skipBytes(remLen - 4 - topicLength);
+          received++;
+          Thread.sleep(1);
+          write(new byte[] {0x40, 0x02, (byte) (msgId >> 8), (byte) msgId});
+        }
+        else {
+          in.skipBytes(remLen);
+          break; // DISCONNECT
+        }
+      }
+      socket.close();
+    }
+  }
+
+  /**
+   * A subscriber that counts the messages it is passed.
+   */
+  private static class CountingSubscriber implements IMqttMessageSubscriber {
+    private final int initial;
+    IMqttDemand demand;
+    int count = 0;
+    boolean completed = false;
+    Throwable error = null;
+
+    CountingSubscriber(int initial) {
+      this.initial = initial;
+    }
+
+    public void onSubscribe(IMqttDemand demand) {
+      this.demand = demand;
+      if (initial > 0) {
+        demand.request(initial);
+      }
+    }
+
+    public synchronized void onNext(String topic, MqttMessage message) {
+      count++;
+      notifyAll();
+    }
+
+    public synchronized void onError(Throwable cause) {
+      error = cause;
+      notifyAll();
+    }
+
+    public synchronized void onComplete() {
+      completed = true;
+      notifyAll();
+    }
+
+    synchronized void waitFor(int messages, long timeout) throws InterruptedException {
+      long end = System.currentTimeMillis() + timeout;
+      while (count < messages && System.currentTimeMillis() < end) {
+        wait(100);
+      }
+    }
+  }
+
+  /**
+   * While the subscriber asks for no more messages, the client stops
+   * reading from the network and the server cannot write
+   */
+  @Test
+  public void testInboundDemand() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    FakeServer server = new FakeServer(INBOUND_COUNT);
+    server.start();
+    MqttAsyncClient client = new MqttAsyncClient(server.getServerURI(), methodName, new MemoryPersistence());
+    client.connect().waitForCompletion(10000);
+
+    CountingSubscriber subscriber = new CountingSubscriber(5);
+    client.subscribe("d", 0, subscriber).waitForCompletion(10000);
+    subscriber.waitFor(5, 10000);
+    Thread.sleep(1000);
+    int written = server.written;
+    log.info("server wrote " + written + " of " + INBOUND_COUNT + " publishes with a demand of 5");
+    Assert.assertEquals(5, subscriber.count);
+    Assert.assertTrue(written < INBOUND_COUNT / 2);
+
+    subscriber.demand.request(Long.MAX_VALUE);
+    subscriber.waitFor(INBOUND_COUNT, 60000);
+    Assert.assertEquals(INBOUND_COUNT, subscriber.count);
+
+    client.unsubscribe("d").waitForCompletion(10000);
+    Assert.assertTrue(subscriber.completed);
+    Assert.assertNull(subscriber.error);
+    client.disconnect().waitForCompletion(10000);
+    client.close();
+    server.join(10000);
+    Assert.assertNull(String.valueOf(server.getFailure()), server.getFailure());
+  }
+
+  /**
+   * A message that a subscriber has not asked for is not passed to a
+   * listener whose filter also matches it either, so no listener has it
+   * twice if the callback stops before the subscriber asks
+   */
+  @Test
+  public void testListenerWaitsForDemand() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    // Three publishes are written after each subscribe
+    FakeServer server = new FakeServer(3);
+    server.start();
+    MqttAsyncClient client = new MqttAsyncClient(server.getServerURI(), methodName, new MemoryPersistence());
+    client.connect().waitForCompletion(10000);
+
+    final int[] heard = new int[1];
+    client.subscribe("#", 0, new IMqttMessageListener() {
+      public void messageArrived(String topic, MqttMessage message) {
+        synchronized (heard) {
+          heard[0]++;
+          heard.notifyAll();
+        }
+      }
+    }).waitForCompletion(10000);
+    synchronized (heard) {
+      long end = System.currentTimeMillis() + 10000;
+      while (heard[0] < 3 && System.currentTimeMillis() < end) {
+        heard.wait(100);
+      }
+      Assert.assertEquals(3, heard[0]);
+    }
+
+    CountingSubscriber subscriber = new CountingSubscriber(0);
+    client.subscribe("d", 0, subscriber).waitForCompletion(10000);
+    long end = System.currentTimeMillis() + 10000;
+    while (server.written < 6 && System.currentTimeMillis() < end) {
+      Thread.sleep(50);
+    }
+    Thread.sleep(500);
+    synchronized (heard) {
+      Assert.assertEquals(3, heard[0]);
+    }
+    Assert.assertEquals(0, subscriber.count);
+
+    subscriber.demand.request(3);
+    subscriber.waitFor(3, 10000);
+    Assert.assertEquals(3, subscriber.count);
+    synchronized (heard) {
+      Assert.assertEquals(6, heard[0]);
+    }
+
+    subscriber.demand.cancel();
+    client.disconnect().waitForCompletion(10000);
+    client.close();
+  }
+
+  /**
+   * While a subscriber has asked for no messages, a publish still completes
+   * and its listener is called, so the subscriber can ask for more from it
+   */
+  @Test
+  public void testPublishWithoutDemand() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    // Fewer than the inbound queue holds, so the client reads the PUBACK
+    FakeServer server = new FakeServer(3);
+    server.start();
+    MqttAsyncClient client = new MqttAsyncClient(server.getServerURI(), methodName, new MemoryPersistence());
+    client.connect().waitForCompletion(10000);
+
+    final CountingSubscriber subscriber = new CountingSubscriber(0);
+    client.subscribe("d", 0, subscriber).waitForCompletion(10000);
+    // Let the callback thread wait for demand with messages queued
+    long end = System.currentTimeMillis() + 10000;
+    while (server.written < 3 && System.currentTimeMillis() < end) {
+      Thread.sleep(50);
+    }
+    Thread.sleep(500);
+    Assert.assertEquals(0, subscriber.count);
+
+    MqttMessage message = new MqttMessage(new byte[64]);
+    message.setQos(1);
+    IMqttToken token = client.publish("bridge", message, null, new IMqttActionListener() {
+      public void onSuccess(IMqttToken asyncActionToken) {
+        subscriber.demand.request(1);
+      }
+
+      public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+      }
+    });
+    token.waitForCompletion(10000);
+    Assert.assertTrue(token.isComplete());
+    Assert.assertNull(token.getException());
+    subscriber.waitFor(1, 10000);
+    Assert.assertEquals(1, subscriber.count);
+
+    subscriber.demand.cancel();
+    client.disconnect().waitForCompletion(10000);
+    client.close();
+  }
+
+  /**
+   * A stream is asked for no faster than the in-flight window allows
+   */
+  @Test
+  public void testPublishSubscriber() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    FakeServer server = new FakeServer(INBOUND_COUNT);
+    server.start();
+    MqttAsyncClient client = new MqttAsyncClient(server.getServerURI(), methodName, new MemoryPersistence());
+    client.connect().waitForCompletion(10000);
+
+    final MqttPublishSubscriber subscriber = new MqttPublishSubscriber(client);
+    final int[] sent = new int[1];
+    final int[] maxOutstanding = new int[1];
+    // A stream that emits its messages as they are asked for
+    IMqttDemand source = new IMqttDemand() {
+      private long requested = 0;
+      private boolean emitting = false;
+
+      public void request(long n) {
+        synchronized (this) {
+          requested += n;
+          if (emitting) {
+            return;
+          }
+          emitting = true;
+        }
+        while (true) {
+          synchronized (this) {
+            if (requested == 0 || sent[0] == OUTBOUND_COUNT) {
+              emitting = false;
+              break;
+            }
+            requested--;
+            sent[0]++;
+          }
+          MqttMessage message = new MqttMessage(new byte[64]);
+          message.setQos(1);
+          subscriber.onNext("stream", message);
+          maxOutstanding[0] = Math.max(maxOutstanding[0], subscriber.getOutstanding());
+          if (sent[0] == OUTBOUND_COUNT) {
+            subscriber.onComplete();
+          }
+        }
+      }
+
+      public void cancel() {
+        synchronized (this) {
+          requested = 0;
+        }
+      }
+    };
+    subscriber.onSubscribe(source);
+    Assert.assertTrue(subscriber.waitForCompletion(60000));
+    log.info(OUTBOUND_COUNT + " published, at most " + maxOutstanding[0] + " outstanding");
+    Assert.assertEquals(OUTBOUND_COUNT, sent[0]);
+    Assert.assertTrue(maxOutstanding[0] < 10);
+
+    client.disconnect().waitForCompletion(10000);
+    client.close();
+    server.join(10000);
+    Assert.assertNull(String.valueOf(server.getFailure()), server.getFailure());
+    Assert.assertEquals(OUTBOUND_COUNT, server.received);
+  }
+}
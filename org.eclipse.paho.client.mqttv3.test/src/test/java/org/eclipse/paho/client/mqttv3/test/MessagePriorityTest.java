@@ -0,0 +1,215 @@
+/** Copyright (c)  2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.internal.PendingMessageLanes;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
+import org.eclipse.paho.client.mqttv3.test.utilities.FakeMqttServer;
+import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Checks that publishes are sent by priority, and that a high priority
+ * message does not wait behind a backlog of bulk messages. The server is a
+ * minimal fake that reads slowly, so no broker is needed.
+ */
+public class MessagePriorityTest {
+
+  static final Class<?> cclass = MessagePriorityTest.class;
+  private static final String className = cclass.getName();
+  private static final Logger log = Logger.getLogger(className);
+
+  private static final int BULK_COUNT = 4000;
+  private static final int BULK_SIZE = 16 * 1024;
+  private static final int ALARM_COUNT = 100;
+
+  /**
+   * A fake server that reads about 32MB a second and records the time each
+   * alarm arrived after it was published.
+   */
+  private static class SlowServer extends FakeMqttServer {
+    final long[] latencies = new long[ALARM_COUNT];
+    private int alarms = 0;
+
+    SlowServer() throws Exception {
+      super(createServerSocket());
+    }
+
+    private static ServerSocket createServerSocket() throws Exception {
+      ServerSocket serverSocket = new ServerSocket();
+      serverSocket.setReceiveBufferSize(16 * 1024);
+      serverSocket.bind(new InetSocketAddress("localhost", 0));
+      return serverSocket;
+    }
+
+    protected void serve() throws Exception {
+      Socket socket = serverSocket.accept();
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      connect(in, out);
+
+      long unthrottled = 0;
+      while (true) {
+        int first = in.readUnsignedByte();
+        int remLen = readRemainingLength(in);
+        if ((first >> 4) != 3) {
+          in.skipBytes(remLen); // DISCONNECT
+          break;
+        }
+        byte[] topic = new byte[in.readUnsignedShort()];
+        in.readFully(topic);
+        byte[] payload = new byte[remLen - 2 - topic.length];
+        in.readFully(payload);
+        if (topic[0] == 'a') {
+          long published = new DataInputStream(new ByteArrayInputStream(payload)).readLong();
+          synchronized (this) {
+            latencies[alarms++] = System.nanoTime() - published;
+            notifyAll();
+          }
+        }
+        unthrottled += remLen;
+        if (unthrottled >= 64 * 1024) {
+          unthrottled = 0;
+          Thread.sleep(2);
+        }
+      }
+      socket.close();
+    }
+
+    synchronized void waitForAlarms(long timeout) throws InterruptedException {
+      long end = System.currentTimeMillis() + timeout;
+      while (alarms < ALARM_COUNT && System.currentTimeMillis() < end) {
+        wait(1000);
+      }
+      Assert.assertEquals(ALARM_COUNT, alarms);
+    }
+  }
+
+  private static MqttPublish publish(String topic, int priority) {
+    MqttMessage message = new MqttMessage(new byte[0]);
+    message.setPriority(priority);
+    return new MqttPublish(topic, message);
+  }
+
+  /**
+   * Messages are taken by priority, and a lower priority lane is served
+   * after the starvation limit is reached
+   */
+  @Test
+  public void testLaneOrder() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    PendingMessageLanes lanes = new PendingMessageLanes(10);
+    int limit = PendingMessageLanes.STARVATION_LIMIT;
+    for (int i = 0; i < 3; i++) {
+      lanes.addElement(publish("low/" + i, MqttMessage.PRIORITY_LOW));
+    }
+    for (int i = 0; i < limit * 2; i++) {
+      lanes.addElement(publish("high/" + i, MqttMessage.PRIORITY_HIGH));
+    }
+    lanes.addElement(publish("normal/0", MqttMessage.PRIORITY_NORMAL));
+    Assert.assertEquals(3 + limit * 2 + 1, lanes.size());
+    Assert.assertEquals(1, lanes.size(MqttMessage.PRIORITY_NORMAL));
+
+    StringBuffer order = new StringBuffer();
+    while (!lanes.isEmpty()) {
+      order.append(((MqttPublish) lanes.next()).getTopicName().charAt(0));
+    }
+    StringBuffer expected = new StringBuffer();
+    for (int i = 0; i < limit; i++) {
+      expected.append('h');
+    }
+    // Both lower lanes have waited the limit, the lowest is served first,
+    // and serving the normal lane counts as a wait for the low lane
+    expected.append("ln");
+    for (int i = 0; i < limit - 1; i++) {
+      expected.append('h');
+    }
+    expected.append("lhl");
+    Assert.assertEquals(expected.toString(), order.toString());
+    Assert.assertNull(lanes.next());
+  }
+
+  /**
+   * Publishes alarms while a bulk backlog is waiting, and returns the 99th
+   * percentile of the time the alarms took to reach the server, in
+   * milliseconds.
+   */
+  private static long alarmLatency(String clientId, int bulkPriority, int alarmPriority) throws Exception {
+    SlowServer server = new SlowServer();
+    server.start();
+    MqttAsyncClient client = new MqttAsyncClient(server.getServerURI(), clientId, new MemoryPersistence());
+    client.connect().waitForCompletion(10000);
+
+    for (int i = 0; i < BULK_COUNT; i++) {
+      MqttMessage message = new MqttMessage(new byte[BULK_SIZE]);
+      message.setQos(0);
+      message.setPriority(bulkPriority);
+      client.publish("bulk", message);
+    }
+    for (int i = 0; i < ALARM_COUNT; i++) {
+      Thread.sleep(5);
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      new DataOutputStream(bytes).writeLong(System.nanoTime());
+      MqttMessage message = new MqttMessage(bytes.toByteArray());
+      message.setQos(0);
+      message.setPriority(alarmPriority);
+      client.publish("alarm", message);
+    }
+    server.waitForAlarms(60000);
+    client.disconnect().waitForCompletion(60000);
+    client.close();
+    server.join(10000);
+    Assert.assertNull(String.valueOf(server.getFailure()), server.getFailure());
+
+    long[] latencies = (long[]) server.latencies.clone();
+    Arrays.sort(latencies);
+    long p50 = latencies[ALARM_COUNT / 2] / 1000000;
+    long p99 = latencies[ALARM_COUNT * 99 / 100] / 1000000;
+    log.info("bulk priority " + bulkPriority + ", alarm priority " + alarmPriority
+        + ": alarm p50=" + p50 + "ms p99=" + p99 + "ms");
+    return p99;
+  }
+
+  /**
+   * High priority alarms overtake a saturated bulk backlog, where alarms of
+   * the same priority as the bulk messages wait behind it. The latencies
+   * depend on the speed and load of the machine, so this is run manually.
+   */
+  @Test
+  @Category(ManualTest.class)
+  public void testHighPriorityLatency() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    long fifo = alarmLatency(methodName + "-fifo", MqttMessage.PRIORITY_NORMAL, MqttMessage.PRIORITY_NORMAL);
+    long prioritised = alarmLatency(methodName + "-lanes", MqttMessage.PRIORITY_LOW, MqttMessage.PRIORITY_HIGH);
+    Assert.assertTrue("p99 " + prioritised + "ms, without priority " + fifo + "ms", prioritised * 3 < fifo);
+  }
+}
@@ -0,0 +1,334 @@
+/** Copyright (c)  2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.Channels;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.MqttBufferAllocator;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.PooledBufferAllocator;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttReceivedMessage;
+import org.eclipse.paho.client.mqttv3.internal.wire.PayloadLeakDetector;
+import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
+import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that payloads held in heap and direct buffers are encoded, persisted
+ * and released without change
+ */
+public class MqttBufferPayloadTest {
+
+  static final Class<?> cclass = MqttBufferPayloadTest.class;
+  private static final String className = cclass.getName();
+  private static final Logger log = Logger.getLogger(className);
+
+  private static final String topic = "buffer/topic";
+
+  private static byte[] payload(int length) {
+    byte[] payload = new byte[length];
+    for (int i = 0; i < length; i++) {
+      payload[i] = (byte) (i * 17);
+    }
+    return payload;
+  }
+
+  private static byte[] written(MqttMessage message) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    message.writePayload(out);
+    return out.toByteArray();
+  }
+
+  private static byte[] persisted(MqttPublish publish) throws Exception {
+    byte[] persisted = new byte[publish.getPayloadLength()];
+    System.arraycopy(publish.getPayloadBytes(), publish.getPayloadOffset(), persisted, 0, persisted.length);
+    return persisted;
+  }
+
+  private static MqttPublish publish(MqttMessage message) {
+    MqttPublish publish = new MqttPublish(topic, message);
+    publish.setMessageId(3);
+    return publish;
+  }
+
+  /**
+   * An allocator of direct buffers that counts the buffers released to it
+   */
+  private static class CountingAllocator implements MqttBufferAllocator {
+    volatile int released = 0;
+    volatile ByteBuffer last = null;
+
+    public ByteBuffer allocate(int size) {
+      return ByteBuffer.allocateDirect(size);
+    }
+
+    public void release(ByteBuffer buffer) {
+      released++;
+      last = buffer;
+    }
+  }
+
+  /**
+   * Returns an inbound QoS 1 publish whose payload was read into a buffer
+   * from the allocator
+   */
+  private static MqttPublish received(byte[] payload, MqttBufferAllocator allocator) throws Exception {
+    byte[] topicBytes = topic.getBytes("UTF-8");
+    byte[] variableHeader = new byte[2 + topicBytes.length + 2];
+    variableHeader[1] = (byte) topicBytes.length;
+    System.arraycopy(topicBytes, 0, variableHeader, 2, topicBytes.length);
+    variableHeader[variableHeader.length - 1] = 9;
+    ByteBuffer buffer = allocator.allocate(payload.length);
+    buffer.put(payload).flip();
+    return new MqttPublish((byte) 0x02, variableHeader, buffer, allocator, null);
+  }
+
+  /**
+   * A region of a heap buffer is sent and persisted from its backing array
+   */
+  @Test
+  public void testHeapBuffer() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    byte[] payload = payload(3000);
+    byte[] backing = new byte[payload.length + 200];
+    System.arraycopy(payload, 0, backing, 100, payload.length);
+    ByteBuffer buffer = ByteBuffer.wrap(backing, 100, payload.length);
+
+    MqttMessage message = new MqttMessage(buffer);
+    Assert.assertTrue(message.isPayloadBuffer());
+    Assert.assertEquals(100, buffer.position());
+    Assert.assertEquals(payload.length, message.getPayloadLength());
+    Assert.assertArrayEquals(payload, message.getPayload());
+    Assert.assertArrayEquals(payload, written(message));
+
+    ByteBuffer view = message.getPayloadBuffer();
+    Assert.assertTrue(view.isReadOnly());
+    try {
+      view.put(0, (byte) 0);
+      Assert.fail("view should be read only");
+    }
+    catch (ReadOnlyBufferException e) {
+      // expected
+    }
+    view.get(new byte[10]);
+    Assert.assertEquals(payload.length, message.getPayloadBuffer().remaining());
+
+    MqttPublish publish = publish(message);
+    Assert.assertArrayEquals(publish(new MqttMessage(payload)).getHeader(), publish.getHeader());
+    Assert.assertSame(backing, publish.getPayloadBytes());
+    Assert.assertEquals(100, publish.getPayloadOffset());
+    Assert.assertArrayEquals(payload, persisted(publish));
+
+    // A buffer wrapping a whole array hands out that array
+    Assert.assertSame(payload, new MqttMessage(ByteBuffer.wrap(payload)).getPayload());
+  }
+
+  /**
+   * A direct buffer is written, transferred and persisted as the same bytes
+   */
+  @Test
+  public void testDirectBuffer() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    byte[] payload = payload(20000);
+    ByteBuffer buffer = ByteBuffer.allocateDirect(payload.length);
+    buffer.put(payload).flip();
+
+    MqttMessage message = new MqttMessage(buffer);
+    Assert.assertTrue(message.getPayloadBuffer().isDirect());
+    Assert.assertArrayEquals(payload, written(message));
+    Assert.assertArrayEquals(payload, written(message));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Assert.assertTrue(message.transferPayload(Channels.newChannel(out)));
+    Assert.assertArrayEquals(payload, out.toByteArray());
+    Assert.assertEquals(0, buffer.position());
+
+    MqttPublish publish = publish(message);
+    Assert.assertArrayEquals(publish(new MqttMessage(payload)).getHeader(), publish.getHeader());
+    Assert.assertArrayEquals(payload, persisted(publish));
+
+    message.setPayload(payload);
+    Assert.assertFalse(message.isPayloadBuffer());
+    Assert.assertFalse(message.transferPayload(Channels.newChannel(out)));
+  }
+
+  /**
+   * Released buffers are reused for payloads of the same size class
+   */
+  @Test
+  public void testPooledAllocator() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    PooledBufferAllocator allocator = new PooledBufferAllocator(4096, 2);
+
+    ByteBuffer first = allocator.allocate(1000);
+    Assert.assertTrue(first.isDirect());
+    Assert.assertEquals(1024, first.capacity());
+    Assert.assertEquals(1000, first.remaining());
+    allocator.release(first);
+    allocator.release(first);
+
+    ByteBuffer second = allocator.allocate(600);
+    Assert.assertSame(first, second);
+    Assert.assertEquals(600, second.remaining());
+    Assert.assertNotSame(first, allocator.allocate(600));
+
+    ByteBuffer large = allocator.allocate(10000);
+    Assert.assertEquals(10000, large.capacity());
+    allocator.release(large);
+    Assert.assertNotSame(large, allocator.allocate(10000));
+  }
+
+  /**
+   * Heap buffers are pooled the same way, and direct buffers are not taken
+   * into a heap pool
+   */
+  @Test
+  public void testHeapPool() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    PooledBufferAllocator allocator = new PooledBufferAllocator(4096, 2, false);
+
+    ByteBuffer first = allocator.allocate(300);
+    Assert.assertFalse(first.isDirect());
+    Assert.assertTrue(first.hasArray());
+    Assert.assertEquals(512, first.capacity());
+    allocator.release(first);
+    Assert.assertSame(first, allocator.allocate(400));
+
+    ByteBuffer direct = ByteBuffer.allocateDirect(512);
+    allocator.release(direct);
+    Assert.assertNotSame(direct, allocator.allocate(400));
+  }
+
+  /**
+   * A message released by the application gives its buffer back once, and
+   * a copy keeps the payload
+   */
+  @Test
+  public void testExplicitRelease() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    byte[] payload = payload(500);
+    CountingAllocator allocator = new CountingAllocator();
+    MqttPublish publish = received(payload, allocator);
+
+    Assert.assertTrue(publish.detachPayload());
+    Assert.assertFalse(publish.detachPayload());
+    publish.releasePayload();
+    Assert.assertEquals(0, allocator.released);
+    MqttMessage message = publish.getMessage();
+    Assert.assertArrayEquals(payload, message.getPayload());
+
+    MqttMessage copy = message.copy();
+    Assert.assertFalse(copy.isPayloadBuffer());
+    Assert.assertEquals(1, copy.getQos());
+    message.release();
+    Assert.assertEquals(1, allocator.released);
+    Assert.assertEquals(0, message.getPayloadLength());
+    message.release();
+    Assert.assertEquals(1, allocator.released);
+    Assert.assertArrayEquals(payload, copy.getPayload());
+
+    // Messages that were not received into a buffer have nothing to release
+    MqttMessage sent = new MqttMessage(payload);
+    sent.release();
+    Assert.assertArrayEquals(payload, sent.getPayload());
+  }
+
+  /**
+   * A message collected without being released is counted, but its buffer
+   * is not given back to the allocator, as the application may still hold
+   * it, while one that was released is not counted
+   */
+  @Test
+  public void testLeakDetection() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    CountingAllocator allocator = new CountingAllocator();
+    PayloadLeakDetector detector = new PayloadLeakDetector();
+
+    MqttPublish kept = received(payload(100), allocator);
+    kept.detachPayload();
+    detector.track((MqttReceivedMessage) kept.getMessage());
+    kept.getMessage().release();
+    Assert.assertEquals(1, allocator.released);
+
+    trackLeak(detector, allocator);
+    long end = System.currentTimeMillis() + 10000;
+    while (detector.getLeakCount() == 0 && System.currentTimeMillis() < end) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    Assert.assertEquals(1, detector.getLeakCount());
+    Assert.assertEquals(1, allocator.released);
+    Assert.assertEquals(100, allocator.last.limit());
+  }
+
+  /**
+   * Tracks a message that is then dropped without being released
+   */
+  private static void trackLeak(PayloadLeakDetector detector, MqttBufferAllocator allocator) throws Exception {
+    MqttPublish leaked = received(payload(200), allocator);
+    leaked.detachPayload();
+    detector.track((MqttReceivedMessage) leaked.getMessage());
+  }
+
+  /**
+   * An inbound payload read into an allocated buffer is released once delivered
+   */
+  @Test
+  public void testReleaseInbound() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    byte[] payload = payload(500);
+    byte[] topicBytes = topic.getBytes("UTF-8");
+    byte[] variableHeader = new byte[2 + topicBytes.length + 2];
+    variableHeader[1] = (byte) topicBytes.length;
+    System.arraycopy(topicBytes, 0, variableHeader, 2, topicBytes.length);
+    variableHeader[variableHeader.length - 1] = 9;
+
+    final ByteBuffer[] released = new ByteBuffer[1];
+    MqttBufferAllocator allocator = new MqttBufferAllocator() {
+      public ByteBuffer allocate(int size) {
+        return ByteBuffer.allocateDirect(size);
+      }
+
+      public void release(ByteBuffer buffer) {
+        released[0] = buffer;
+      }
+    };
+    ByteBuffer buffer = allocator.allocate(payload.length);
+    buffer.put(payload).flip();
+
+    MqttPublish publish = new MqttPublish((byte) 0x02, variableHeader, buffer, allocator, null);
+    Assert.assertEquals(topic, publish.getTopicName());
+    Assert.assertEquals(9, publish.getMessageId());
+    Assert.assertEquals(1, publish.getMessage().getQos());
+    Assert.assertArrayEquals(payload, publish.getMessage().getPayload());
+    Assert.assertArrayEquals(payload, persisted(publish));
+
+    publish.releasePayload();
+    Assert.assertSame(buffer, released[0]);
+    Assert.assertEquals(0, publish.getMessage().getPayloadLength());
+  }
+}
@@ -0,0 +1,388 @@
+/** Copyright (c)  2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+import org.eclipse.paho.client.mqttv3.persist.MqttMappedFilePersistence;
+import org.eclipse.paho.client.mqttv3.persist.MqttSharedFilePersistence;
+import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
+import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks that the persistence implementations behave in the same way
+ */
+public class MqttClientPersistenceTest {
+
+  static final Class<?> cclass = MqttClientPersistenceTest.class;
+  private static final String className = cclass.getName();
+  private static final Logger log = Logger.getLogger(className);
+
+  private static final String serverURI = "tcp://localhost:1883";
+
+  @BeforeClass
+  public static void setUpBeforeClass() throws Exception {
+      String methodName = Utility.getMethodName();
+      LoggingUtilities.banner(log, cclass, methodName);
+  }
+
+  @AfterClass
+  public static void tearDownAfterClass() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+  }
+
+  private static File createTempDir(String methodName) throws Exception {
+    File dir = File.createTempFile(className + "." + methodName, "");
+    dir.delete();
+    dir.mkdirs();
+    return dir;
+  }
+
+  private static void deleteDir(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.isDirectory()) {
+          deleteDir(file);
+        }
+        else {
+          file.delete();
+        }
+      }
+    }
+    dir.delete();
+  }
+
+  private static MqttPersistable data(String header, String payload) {
+    byte[] h = header.getBytes();
+    byte[] p = payload == null ? null : payload.getBytes();
+    return new MqttPersistentData(null, h, 0, h.length, p, 0, p == null ? 0 : p.length);
+  }
+
+  private static String read(MqttPersistable persistable) throws MqttPersistenceException {
+    StringBuffer sb = new StringBuffer();
+    sb.append(new String(persistable.getHeaderBytes(), persistable.getHeaderOffset(), persistable.getHeaderLength()));
+    if (persistable.getPayloadBytes() != null) {
+      sb.append(new String(persistable.getPayloadBytes(), persistable.getPayloadOffset(), persistable.getPayloadLength()));
+    }
+    return sb.toString();
+  }
+
+  private static Set<String> keys(MqttClientPersistence persistence) throws MqttPersistenceException {
+    Set<String> keys = new HashSet<String>();
+    Enumeration<?> e = persistence.keys();
+    while (e.hasMoreElements()) {
+      keys.add((String) e.nextElement());
+    }
+    return keys;
+  }
+
+  /**
+   * The sequence of operations every persistence must handle in the same way
+   */
+  private void checkConformance(MqttClientPersistence persistence) throws Exception {
+    persistence.open("client1", serverURI);
+    Assert.assertTrue(keys(persistence).isEmpty());
+    Assert.assertFalse(persistence.containsKey("s-1"));
+
+    persistence.put("s-1", data("header1", "payload1"));
+    persistence.put("s-2", data("header2", null));
+    persistence.put("r-3", data("header3", "payload3"));
+    Assert.assertTrue(persistence.containsKey("s-1"));
+    Assert.assertEquals("header1payload1", read(persistence.get("s-1")));
+    Assert.assertEquals("header2", read(persistence.get("s-2")));
+
+    // overwrite
+    persistence.put("s-1", data("header1", "updated"));
+    Assert.assertEquals("header1updated", read(persistence.get("s-1")));
+
+    persistence.remove("s-2");
+    persistence.remove("s-99");
+    Assert.assertFalse(persistence.containsKey("s-2"));
+
+    Set<String> expected = new HashSet<String>();
+    expected.add("s-1");
+    expected.add("r-3");
+    Assert.assertEquals(expected, keys(persistence));
+
+    // data survives close and re-open
+    persistence.close();
+    persistence.open("client1", serverURI);
+    Assert.assertEquals(expected, keys(persistence));
+    Assert.assertEquals("header3payload3", read(persistence.get("r-3")));
+
+    persistence.clear();
+    Assert.assertTrue(keys(persistence).isEmpty());
+    persistence.close();
+  }
+
+  @Test
+  public void testDefaultFilePersistence() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    File dir = createTempDir(methodName);
+    try {
+      checkConformance(new MqttDefaultFilePersistence(dir.getAbsolutePath()));
+    }
+    finally {
+      deleteDir(dir);
+    }
+  }
+
+  @Test
+  public void testSharedFilePersistence() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    File dir = createTempDir(methodName);
+    MqttSharedFilePersistence store = new MqttSharedFilePersistence(dir.getAbsolutePath());
+    try {
+      checkConformance(store.createClientPersistence());
+    }
+    finally {
+      store.close();
+      deleteDir(dir);
+    }
+  }
+
+  @Test
+  public void testMappedFilePersistence() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    File dir = createTempDir(methodName);
+    try {
+      checkConformance(new MqttMappedFilePersistence(dir.getAbsolutePath(), 256, true));
+    }
+    finally {
+      deleteDir(dir);
+    }
+  }
+
+  /**
+   * Messages must fit in a slot, and a store must be re-opened with the slot size it was created with
+   */
+  @Test
+  public void testMappedFilePersistenceSlots() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    File dir = createTempDir(methodName);
+    try {
+      MqttClientPersistence persistence = new MqttMappedFilePersistence(dir.getAbsolutePath(), 64, false);
+      persistence.open("client1", serverURI);
+      persistence.put("s-65535", data("header", "payload"));
+      persistence.put("sc-65535", data("pubrel", null));
+      try {
+        persistence.put("r-1", data("header", new String(new char[64])));
+        Assert.fail("message larger than a slot");
+      }
+      catch (MqttPersistenceException ex) {
+        Assert.assertEquals(MqttPersistenceException.REASON_CODE_PERSISTENCE_DATA_TOO_LARGE, ex.getReasonCode());
+      }
+      Assert.assertFalse(persistence.containsKey("r-1"));
+      persistence.close();
+
+      persistence = new MqttMappedFilePersistence(dir.getAbsolutePath(), 64, false);
+      persistence.open("client1", serverURI);
+      Assert.assertEquals("headerpayload", read(persistence.get("s-65535")));
+      Assert.assertEquals("pubrel", read(persistence.get("sc-65535")));
+      Assert.assertEquals(2, keys(persistence).size());
+      persistence.close();
+
+      try {
+        new MqttMappedFilePersistence(dir.getAbsolutePath(), 128, false).open("client1", serverURI);
+        Assert.fail("slot size changed");
+      }
+      catch (MqttPersistenceException ex) {
+        Assert.assertEquals(MqttPersistenceException.REASON_CODE_PERSISTENCE_INCOMPATIBLE, ex.getReasonCode());
+      }
+    }
+    finally {
+      deleteDir(dir);
+    }
+  }
+
+  /**
+   * Messages are kept across chunks that are mapped and let go of as they
+   * fill and empty, and a file in the earlier format, with no version, is
+   * rejected as incompatible
+   */
+  @Test
+  public void testMappedFilePersistenceChunks() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    File dir = createTempDir(methodName);
+    try {
+      MqttMappedFilePersistence persistence = new MqttMappedFilePersistence(dir.getAbsolutePath(), 64, 16, false);
+      Assert.assertEquals(56, persistence.getMaxMessageLength());
+      persistence.open("client1", serverURI);
+      for (int i = 1; i <= 100; i++) {
+        persistence.put("s-" + i, data("message" + i, null));
+      }
+      for (int i = 1; i <= 90; i++) {
+        persistence.remove("s-" + i);
+      }
+      persistence.put("r-65535", data("last", null));
+      persistence.close();
+
+      persistence = new MqttMappedFilePersistence(dir.getAbsolutePath(), 64, 16, false);
+      persistence.open("client1", serverURI);
+      Assert.assertEquals(11, keys(persistence).size());
+      for (int i = 91; i <= 100; i++) {
+        Assert.assertEquals("message" + i, read(persistence.get("s-" + i)));
+      }
+      Assert.assertEquals("last", read(persistence.get("r-65535")));
+      persistence.clear();
+      persistence.close();
+
+      persistence = new MqttMappedFilePersistence(dir.getAbsolutePath(), 64, 16, false);
+      persistence.open("client1", serverURI);
+      Assert.assertEquals(0, keys(persistence).size());
+      persistence.put("s-1", data("first", null));
+      persistence.close();
+
+      try {
+        new MqttMappedFilePersistence(dir.getAbsolutePath(), 64, 32, false).open("client1", serverURI);
+        Assert.fail("chunk size changed");
+      }
+      catch (MqttPersistenceException ex) {
+        Assert.assertEquals(MqttPersistenceException.REASON_CODE_PERSISTENCE_INCOMPATIBLE, ex.getReasonCode());
+      }
+
+      // The earlier format had the slot size where the version now is
+      File[] files = dir.listFiles();
+      for (int i = 0; i < files.length; i++) {
+        if (files[i].getName().endsWith(".map")) {
+          RandomAccessFile file = new RandomAccessFile(files[i], "rw");
+          file.seek(4);
+          file.writeInt(64);
+          file.close();
+        }
+      }
+      try {
+        new MqttMappedFilePersistence(dir.getAbsolutePath(), 64, 16, false).open("client1", serverURI);
+        Assert.fail("earlier format");
+      }
+      catch (MqttPersistenceException ex) {
+        Assert.assertEquals(MqttPersistenceException.REASON_CODE_PERSISTENCE_INCOMPATIBLE, ex.getReasonCode());
+      }
+    }
+    finally {
+      deleteDir(dir);
+    }
+  }
+
+  /**
+   * Clients sharing a store only see their own data, and cannot open a namespace already in use
+   */
+  @Test
+  public void testSharedFilePersistenceNamespaces() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    File dir = createTempDir(methodName);
+    MqttSharedFilePersistence store = new MqttSharedFilePersistence(dir.getAbsolutePath());
+    try {
+      MqttClientPersistence client1 = store.createClientPersistence();
+      MqttClientPersistence client2 = store.createClientPersistence();
+      client1.open("client1", serverURI);
+      client2.open("client2", serverURI);
+      client1.put("s-1", data("client1", null));
+      client2.put("s-1", data("client2", null));
+      client2.put("s-2", data("client2", null));
+
+      Assert.assertEquals("client1", read(client1.get("s-1")));
+      Assert.assertEquals("client2", read(client2.get("s-1")));
+      Assert.assertEquals(1, keys(client1).size());
+      Assert.assertEquals(2, keys(client2).size());
+
+      client2.clear();
+      Assert.assertTrue(client1.containsKey("s-1"));
+
+      MqttClientPersistence duplicate = store.createClientPersistence();
+      try {
+        duplicate.open("client1", serverURI);
+        Assert.fail("namespace in use");
+      }
+      catch (MqttPersistenceException ex) {
+        Assert.assertEquals(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE, ex.getReasonCode());
+      }
+      client1.close();
+      duplicate.open("client1", serverURI);
+      Assert.assertTrue(duplicate.containsKey("s-1"));
+      duplicate.close();
+      client2.close();
+    }
+    finally {
+      store.close();
+      deleteDir(dir);
+    }
+  }
+
+  /**
+   * Data is recovered from the log when the store is re-opened, both before and after compaction
+   */
+  @Test
+  public void testSharedFilePersistenceRecovery() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    File dir = createTempDir(methodName);
+    try {
+      MqttSharedFilePersistence store = new MqttSharedFilePersistence(dir.getAbsolutePath());
+      MqttClientPersistence persistence = store.createClientPersistence();
+      persistence.open("client1", serverURI);
+      for (int i = 0; i < 100; i++) {
+        persistence.put("s-" + i, data("header" + i, "payload" + i));
+      }
+      for (int i = 0; i < 100; i += 2) {
+        persistence.remove("s-" + i);
+      }
+      store.close();
+
+      store = new MqttSharedFilePersistence(dir.getAbsolutePath());
+      persistence = store.createClientPersistence();
+      persistence.open("client1", serverURI);
+      Assert.assertEquals(50, keys(persistence).size());
+      Assert.assertEquals("header1payload1", read(persistence.get("s-1")));
+
+      store.compact();
+      Assert.assertEquals(50, keys(persistence).size());
+      Assert.assertEquals("header99payload99", read(persistence.get("s-99")));
+      store.close();
+
+      store = new MqttSharedFilePersistence(dir.getAbsolutePath());
+      persistence = store.createClientPersistence();
+      persistence.open("client1", serverURI);
+      Assert.assertEquals(50, keys(persistence).size());
+      Assert.assertFalse(persistence.containsKey("s-0"));
+      Assert.assertEquals("header51payload51", read(persistence.get("s-51")));
+      store.close();
+    }
+    finally {
+      deleteDir(dir);
+    }
+  }
+}
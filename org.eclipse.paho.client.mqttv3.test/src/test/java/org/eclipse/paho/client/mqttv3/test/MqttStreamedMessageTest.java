@@ -0,0 +1,199 @@
+/** Copyright (c)  2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttStreamedMessage;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
+import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
+import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that streamed payloads are written, spooled and restored without change
+ */
+public class MqttStreamedMessageTest {
+
+  static final Class<?> cclass = MqttStreamedMessageTest.class;
+  private static final String className = cclass.getName();
+  private static final Logger log = Logger.getLogger(className);
+
+  private static final String topic = "streamed/topic";
+
+  private static byte[] payload(int length) {
+    byte[] payload = new byte[length];
+    for (int i = 0; i < length; i++) {
+      payload[i] = (byte) (i * 31);
+    }
+    return payload;
+  }
+
+  private static File createTempFile(String methodName, byte[] contents) throws Exception {
+    File file = File.createTempFile(className + "." + methodName, ".bin");
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(contents);
+    out.close();
+    return file;
+  }
+
+  private static byte[] written(MqttStreamedMessage message) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    message.writePayload(out);
+    return out.toByteArray();
+  }
+
+  private static byte[] header(MqttMessage message) throws Exception {
+    MqttPublish publish = new MqttPublish(topic, message);
+    publish.setMessageId(7);
+    return publish.getHeader();
+  }
+
+  /**
+   * Each kind of source writes the same payload, and gives the same header as a byte array
+   */
+  @Test
+  public void testSources() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    byte[] payload = payload(20000);
+    byte[] expectedHeader = header(new MqttMessage(payload));
+
+    MqttStreamedMessage stream = new MqttStreamedMessage(new ByteArrayInputStream(payload), payload.length);
+    Assert.assertArrayEquals(expectedHeader, header(stream));
+    Assert.assertArrayEquals(payload, written(stream));
+    Assert.assertFalse(stream.isRepeatable());
+
+    ByteBuffer heap = ByteBuffer.wrap(payload);
+    MqttStreamedMessage heapBuffer = new MqttStreamedMessage(heap);
+    Assert.assertArrayEquals(payload, written(heapBuffer));
+    Assert.assertArrayEquals(payload, written(heapBuffer));
+    Assert.assertEquals(0, heap.position());
+
+    ByteBuffer direct = ByteBuffer.allocateDirect(payload.length);
+    direct.put(payload).flip();
+    Assert.assertArrayEquals(payload, written(new MqttStreamedMessage(direct)));
+
+    File file = createTempFile(methodName, payload);
+    try {
+      byte[] region = new byte[1000];
+      System.arraycopy(payload, 500, region, 0, region.length);
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      MqttStreamedMessage channel = new MqttStreamedMessage(raf.getChannel(), 500, region.length);
+      Assert.assertArrayEquals(region, written(channel));
+      Assert.assertEquals(0, raf.getChannel().position());
+      raf.close();
+
+      MqttStreamedMessage whole = new MqttStreamedMessage(file);
+      Assert.assertEquals(payload.length, whole.getPayloadLength());
+      Assert.assertArrayEquals(payload, written(whole));
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      Assert.assertTrue(whole.transferPayload(Channels.newChannel(out)));
+      Assert.assertArrayEquals(payload, out.toByteArray());
+    }
+    finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * A streamed payload spooled to a file is restored from the persisted reference
+   */
+  @Test
+  public void testSpoolReference() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    byte[] payload = payload(5000);
+
+    MqttStreamedMessage message = new MqttStreamedMessage(new ByteArrayInputStream(payload), payload.length);
+    message.setQos(2);
+    message.setRetained(true);
+    MqttPublish publish = new MqttPublish(topic, message);
+    publish.setMessageId(42);
+
+    File spoolFile = File.createTempFile(className + "." + methodName, ".spool");
+    try {
+      publish.spool(spoolFile);
+      Assert.assertEquals(spoolFile, publish.getSpoolFile());
+      Assert.assertEquals(payload.length, spoolFile.length());
+
+      byte[] header = publish.getHeader();
+      byte[] path = spoolFile.getAbsolutePath().getBytes("UTF-8");
+      byte[] reference = new byte[header.length + path.length];
+      System.arraycopy(header, 0, reference, 0, header.length);
+      System.arraycopy(path, 0, reference, header.length, path.length);
+
+      MqttPublish restored = new MqttPublish(reference);
+      Assert.assertEquals(topic, restored.getTopicName());
+      Assert.assertEquals(42, restored.getMessageId());
+      Assert.assertEquals(2, restored.getMessage().getQos());
+      Assert.assertTrue(restored.getMessage().isRetained());
+      Assert.assertEquals(spoolFile.getAbsoluteFile(), restored.getSpoolFile().getAbsoluteFile());
+      Assert.assertEquals(payload.length, restored.getPayloadLength());
+      Assert.assertArrayEquals(header, restored.getHeader());
+      Assert.assertArrayEquals(payload, restored.getMessage().getPayload());
+    }
+    finally {
+      spoolFile.delete();
+    }
+  }
+
+  /**
+   * A payload that cannot be read is reported by getPayload, rather than
+   * returned as an empty array
+   */
+  @Test
+  public void testUnreadablePayload() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    byte[] payload = payload(100);
+
+    // The stream ends before the length given
+    MqttStreamedMessage shortStream = new MqttStreamedMessage(new ByteArrayInputStream(payload), payload.length + 1);
+    try {
+      shortStream.getPayload();
+      Assert.fail("stream ended early");
+    }
+    catch (IllegalStateException e) {
+      Assert.assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof EOFException);
+    }
+
+    // A stream can only be read once
+    MqttStreamedMessage once = new MqttStreamedMessage(new ByteArrayInputStream(payload), payload.length);
+    once.getPayloadStream();
+    try {
+      once.getPayload();
+      Assert.fail("stream read twice");
+    }
+    catch (IllegalStateException e) {
+      Assert.assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof IOException);
+    }
+
+    MqttStreamedMessage stream = new MqttStreamedMessage(new ByteArrayInputStream(payload), payload.length);
+    Assert.assertArrayEquals(payload, stream.getPayload());
+    Assert.assertArrayEquals(payload, stream.getPayload());
+  }
+}
@@ -0,0 +1,124 @@
+/** Copyright (c)  2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test;
+
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttTopicCache;
+import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
+import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that inbound topic names are shared, replaced and counted by the topic cache
+ */
+public class MqttTopicCacheTest {
+
+  static final Class<?> cclass = MqttTopicCacheTest.class;
+  private static final String className = cclass.getName();
+  private static final Logger log = Logger.getLogger(className);
+
+  private static byte[] framed(String name, int offset) throws Exception {
+    byte[] utf8 = name.getBytes("UTF-8");
+    byte[] framed = new byte[offset + utf8.length + 3];
+    System.arraycopy(utf8, 0, framed, offset, utf8.length);
+    return framed;
+  }
+
+  private static String lookup(MqttTopicCache cache, String name, int offset) throws Exception {
+    byte[] framed = framed(name, offset);
+    return cache.lookup(framed, offset, name.getBytes("UTF-8").length);
+  }
+
+  /**
+   * A name received again is the same instance, wherever it lies in the packet
+   */
+  @Test
+  public void testSameInstance() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    MqttTopicCache cache = new MqttTopicCache(16);
+
+    String first = lookup(cache, "sensors/\u00e9t\u00e9/1", 0);
+    Assert.assertEquals("sensors/\u00e9t\u00e9/1", first);
+    Assert.assertSame(first, lookup(cache, "sensors/\u00e9t\u00e9/1", 7));
+    Assert.assertNotSame(first, lookup(cache, "sensors/\u00e9t\u00e9/2", 0));
+    Assert.assertEquals(1, cache.getHitCount());
+    Assert.assertEquals(2, cache.getMissCount());
+    Assert.assertEquals(1.0 / 3, cache.getHitRate(), 0.0001);
+
+    StringBuffer longName = new StringBuffer();
+    while (longName.length() <= MqttTopicCache.MAX_KEY_LENGTH) {
+      longName.append("long/");
+    }
+    String notCached = lookup(cache, longName.toString(), 0);
+    Assert.assertEquals(longName.toString(), notCached);
+    Assert.assertNotSame(notCached, lookup(cache, longName.toString(), 0));
+  }
+
+  /**
+   * The cache stays within its capacity, and keeps names that are hit
+   */
+  @Test
+  public void testEviction() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    MqttTopicCache cache = new MqttTopicCache(64);
+    Assert.assertEquals(64, cache.getCapacity());
+
+    String hot = lookup(cache, "hot/topic", 0);
+    for (int i = 0; i < 10000; i++) {
+      lookup(cache, "cold/" + i, 0);
+      Assert.assertSame(hot, lookup(cache, "hot/topic", 0));
+    }
+    Assert.assertEquals(10000, cache.getHitCount());
+    Assert.assertEquals(10001, cache.getMissCount());
+    Assert.assertTrue(cache.getEvictionCount() >= 10001 - 64);
+
+    cache.clear();
+    Assert.assertNotSame(hot, lookup(cache, "hot/topic", 0));
+  }
+
+  /**
+   * Publishes decoded through the cache share their topic name
+   */
+  @Test
+  public void testDecodePublish() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    MqttTopicCache cache = new MqttTopicCache(16);
+    byte[] payload = "payload".getBytes("UTF-8");
+
+    MqttPublish sent = new MqttPublish("a/b/c", new MqttMessage(payload));
+    sent.setMessageId(12);
+    byte[] header = sent.getHeader();
+    // The variable header follows the one byte remaining length
+    byte[] data = new byte[header.length - 2 + payload.length];
+    System.arraycopy(header, 2, data, 0, header.length - 2);
+    System.arraycopy(payload, 0, data, header.length - 2, payload.length);
+    byte info = (byte) (header[0] & 0x0f);
+
+    MqttPublish first = new MqttPublish(info, data, cache);
+    MqttPublish second = new MqttPublish(info, data, cache);
+    Assert.assertEquals("a/b/c", first.getTopicName());
+    Assert.assertSame(first.getTopicName(), second.getTopicName());
+    Assert.assertEquals(12, second.getMessageId());
+    Assert.assertEquals(1, second.getMessage().getQos());
+    Assert.assertArrayEquals(payload, second.getMessage().getPayload());
+    Assert.assertArrayEquals(payload, new MqttPublish(info, data).getMessage().getPayload());
+  }
+}
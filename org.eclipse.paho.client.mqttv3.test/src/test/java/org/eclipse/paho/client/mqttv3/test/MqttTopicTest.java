@@ -15,10 +15,13 @@ package org.eclipse.paho.client.mqttv3.test;
 
 import java.util.logging.Logger;
 
+import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.MqttTopic;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
 import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
 import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
 import org.junit.AfterClass;
+import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -100,4 +103,37 @@ public class MqttTopicTest {
     MqttTopic.validate("sport/#/ball/+/aa", true);
   }
   
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidPreparedTopic() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    new MqttTopic("sport/+/player1", null);
+  }
+
+  /**
+   * A publish on a topic encoded in advance has the same header as one
+   * encoded when it is written
+   */
+  @Test
+  public void testPreparedTopicHeader() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    String[] names = {"a", "sport/tennis/player1", "caf\u00e9/\u00fcber"};
+    for (int i = 0; i < names.length; i++) {
+      byte[] utf8 = names[i].getBytes("UTF-8");
+      byte[] encoded = new byte[utf8.length + 2];
+      encoded[1] = (byte) utf8.length;
+      System.arraycopy(utf8, 0, encoded, 2, utf8.length);
+      for (int qos = 0; qos < 3; qos++) {
+        MqttMessage message = new MqttMessage(new byte[200]);
+        message.setQos(qos);
+        MqttPublish prepared = new MqttPublish(names[i], encoded, message);
+        MqttPublish plain = new MqttPublish(names[i], message);
+        prepared.setMessageId(300);
+        plain.setMessageId(300);
+        Assert.assertArrayEquals(plain.getHeader(), prepared.getHeader());
+      }
+    }
+  }
+
 }
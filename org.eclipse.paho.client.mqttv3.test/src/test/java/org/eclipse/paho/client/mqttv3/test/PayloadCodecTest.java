@@ -0,0 +1,284 @@
+/** Copyright (c)  2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.DeflatePayloadCodec;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
+import org.eclipse.paho.client.mqttv3.test.utilities.FakeMqttServer;
+import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that payloads are compressed and decompressed by the deflate
+ * codec, and only on the topics it is chosen for. The server is a minimal
+ * fake that sends every publish back, so no broker is needed.
+ */
+public class PayloadCodecTest {
+
+  static final Class<?> cclass = PayloadCodecTest.class;
+  private static final String className = cclass.getName();
+  private static final Logger log = Logger.getLogger(className);
+
+  /**
+   * A fake server that records the payload of each QoS 0 publish it is
+   * sent on each topic and sends the publish back, and first sends one
+   * uncompressed publish of its own, as a client that does not compress
+   * would.
+   */
+  private static class EchoServer extends FakeMqttServer {
+    private final String plainTopic;
+    private final byte[] plainPayload;
+    final Map<String, byte[]> received = new HashMap<String, byte[]>();
+
+    EchoServer(String plainTopic, byte[] plainPayload) throws Exception {
+      this.plainTopic = plainTopic;
+      this.plainPayload = plainPayload;
+    }
+
+    private static void writePublish(DataOutputStream out, String topic, byte[] payload) throws Exception {
+      byte[] name = topic.getBytes("UTF-8");
+      out.write(0x30); // PUBLISH QoS 0
+      int remLen = 2 + name.length + payload.length;
+      do {
+        int digit = remLen % 128;
+        remLen = remLen / 128;
+        out.write((remLen > 0) ? (digit | 0x80) : digit);
+      } while (remLen > 0);
+      out.writeShort(name.length);
+      out.write(name);
+      out.write(payload);
+      out.flush();
+    }
+
+    protected void serve() throws Exception {
+      Socket socket = serverSocket.accept();
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      connect(in, out);
+      writePublish(out, plainTopic, plainPayload);
+
+      while (true) {
+        int type = in.readUnsignedByte() >> 4;
+        int remLen = readRemainingLength(in);
+        if (type != 3) {
+          in.skipBytes(remLen);
+          break; // DISCONNECT
+        }
+        byte[] name = new byte[in.readUnsignedShort()];
+        in.readFully(name);
+        byte[] payload = new byte[remLen - 2 - name.length];
+        in.readFully(payload);
+        String topic = new String(name, "UTF-8");
+        synchronized (received) {
+          received.put(topic, payload);
+        }
+        writePublish(out, topic, payload);
+      }
+      socket.close();
+    }
+  }
+
+  /**
+   * Collects the payload delivered on each topic
+   */
+  private static class Collector implements MqttCallback {
+    final Map<String, byte[]> payloads = new HashMap<String, byte[]>();
+
+    public synchronized void messageArrived(String topic, MqttMessage message) throws Exception {
+      payloads.put(topic, message.getPayload());
+      notifyAll();
+    }
+
+    public void connectionLost(Throwable cause) {
+    }
+
+    public void deliveryComplete(IMqttDeliveryToken token) {
+    }
+
+    synchronized boolean waitForMessages(int count, long timeout) throws InterruptedException {
+      long end = System.currentTimeMillis() + timeout;
+      while (payloads.size() < count && System.currentTimeMillis() < end) {
+        wait(Math.max(1, end - System.currentTimeMillis()));
+      }
+      return payloads.size() >= count;
+    }
+  }
+
+  /**
+   * Returns a verbose JSON payload of about the given length
+   */
+  private static byte[] json(int length) throws Exception {
+    StringBuffer sb = new StringBuffer("[");
+    for (int i = 0; sb.length() < length; i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append("{\"sensor\":\"temperature\",\"unit\":\"celsius\",\"sequence\":").append(i)
+          .append(",\"value\":").append(20 + i % 7).append('}');
+    }
+    return sb.append(']').toString().getBytes("UTF-8");
+  }
+
+  /**
+   * A payload at or above the threshold is compressed behind the marker
+   * and decompressed to the same bytes
+   */
+  @Test
+  public void testRoundTrip() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    DeflatePayloadCodec codec = new DeflatePayloadCodec();
+    byte[] payload = json(4000);
+
+    byte[] padded = new byte[payload.length + 10];
+    System.arraycopy(payload, 0, padded, 5, payload.length);
+    byte[] encoded = codec.encode(padded, 5, payload.length);
+    Assert.assertNotNull(encoded);
+    Assert.assertEquals(DeflatePayloadCodec.MARKER, encoded[0]);
+    Assert.assertTrue(encoded.length < payload.length / 4);
+    log.info(payload.length + " bytes compressed to " + encoded.length);
+
+    Assert.assertArrayEquals(payload, codec.decode(encoded, 0, encoded.length));
+    // The deflater and inflater of the thread are reused
+    Assert.assertArrayEquals(encoded, codec.encode(payload, 0, payload.length));
+    Assert.assertArrayEquals(payload, codec.decode(encoded, 0, encoded.length));
+  }
+
+  /**
+   * Short and incompressible payloads are sent unchanged, and payloads
+   * that were not compressed are delivered unchanged
+   */
+  @Test
+  public void testUnchanged() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    DeflatePayloadCodec codec = new DeflatePayloadCodec(100, 6);
+
+    byte[] small = json(50);
+    Assert.assertTrue(small.length < 100);
+    Assert.assertNull(codec.encode(small, 0, small.length));
+
+    byte[] random = new byte[1000];
+    new Random(1).nextBytes(random);
+    Assert.assertNull(codec.encode(random, 0, random.length));
+
+    byte[] plain = json(1000);
+    Assert.assertNull(codec.decode(plain, 0, plain.length));
+    // A payload that starts with the marker but is not compressed
+    random[0] = DeflatePayloadCodec.MARKER;
+    Assert.assertNull(codec.decode(random, 0, random.length));
+    byte[] encoded = codec.encode(plain, 0, plain.length);
+    Assert.assertNull(codec.decode(encoded, 0, encoded.length - 1));
+
+    try {
+      new DeflatePayloadCodec(10, 10);
+      Assert.fail("level 10 accepted");
+    }
+    catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  /**
+   * A payload that would inflate to more than the maximum decoded length
+   * is delivered unchanged, while one of exactly that length is inflated
+   */
+  @Test
+  public void testMaxDecodedLength() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    byte[] payload = json(4000);
+    DeflatePayloadCodec codec = new DeflatePayloadCodec(100, 6, payload.length);
+    Assert.assertEquals(payload.length, codec.getMaxDecodedLength());
+    byte[] encoded = codec.encode(payload, 0, payload.length);
+    Assert.assertArrayEquals(payload, codec.decode(encoded, 0, encoded.length));
+
+    DeflatePayloadCodec smaller = new DeflatePayloadCodec(100, 6, payload.length - 1);
+    Assert.assertNull(smaller.decode(encoded, 0, encoded.length));
+    // A payload of zeros inflates far beyond the length it was sent in
+    byte[] zeros = new byte[1000000];
+    byte[] bomb = codec.encode(zeros, 0, zeros.length);
+    Assert.assertTrue(bomb.length < 2000);
+    Assert.assertNull(smaller.decode(bomb, 0, bomb.length));
+    Assert.assertEquals(DeflatePayloadCodec.MAX_DECODED_LENGTH_DEFAULT, new DeflatePayloadCodec().getMaxDecodedLength());
+
+    try {
+      new DeflatePayloadCodec(100, 6, 0);
+      Assert.fail("maximum decoded length of 0 accepted");
+    }
+    catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Payloads on the topics the codec is chosen for are sent compressed and
+   * delivered decompressed, while other topics are not touched, and an
+   * uncompressed payload on a compressed topic is delivered as it is
+   */
+  @Test
+  public void testCodecPerTopic() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    byte[] payload = json(2000);
+    byte[] uncompressed = json(500);
+    EchoServer server = new EchoServer("telemetry/legacy", uncompressed);
+    server.start();
+    MqttAsyncClient client = new MqttAsyncClient(server.getServerURI(), methodName, new MemoryPersistence());
+    Collector collector = new Collector();
+    client.setCallback(collector);
+    MqttConnectOptions options = new MqttConnectOptions();
+    options.setKeepAliveInterval(0);
+    options.setPayloadCodec("telemetry/#", new DeflatePayloadCodec());
+    client.connect(options).waitForCompletion(10000);
+
+    MqttMessage message = new MqttMessage(payload);
+    message.setQos(0);
+    IMqttDeliveryToken token = client.publish("telemetry/site-1", message);
+    token.waitForCompletion(10000);
+    Assert.assertSame(message, token.getMessage());
+    Assert.assertArrayEquals(payload, token.getMessage().getPayload());
+    client.publish("status/site-1", payload, 0, false).waitForCompletion(10000);
+
+    Assert.assertTrue(collector.waitForMessages(3, 10000));
+    client.disconnect().waitForCompletion(10000);
+    client.close();
+    server.join(10000);
+    Assert.assertNull(server.getFailure());
+
+    byte[] sent = server.received.get("telemetry/site-1");
+    Assert.assertEquals(DeflatePayloadCodec.MARKER, sent[0]);
+    Assert.assertTrue(sent.length < payload.length / 4);
+    Assert.assertArrayEquals(payload, server.received.get("status/site-1"));
+
+    Assert.assertArrayEquals(payload, collector.payloads.get("telemetry/site-1"));
+    Assert.assertArrayEquals(payload, collector.payloads.get("status/site-1"));
+    Assert.assertArrayEquals(uncompressed, collector.payloads.get("telemetry/legacy"));
+  }
+}
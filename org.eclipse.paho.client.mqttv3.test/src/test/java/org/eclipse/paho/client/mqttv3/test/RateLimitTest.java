@@ -0,0 +1,163 @@
+/** Copyright (c)  2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.internal.RateLimiter;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
+import org.eclipse.paho.client.mqttv3.test.utilities.FakeMqttServer;
+import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that publishes are paced to the rate limits set in the connect
+ * options. The server is a minimal fake, so no broker is needed.
+ */
+public class RateLimitTest {
+
+  static final Class<?> cclass = RateLimitTest.class;
+  private static final String className = cclass.getName();
+  private static final Logger log = Logger.getLogger(className);
+
+  private static final int COUNT = 40;
+  private static final int RATE = 50;
+  private static final int BURST = 5;
+
+  /**
+   * A fake server that records the time each publish arrived.
+   */
+  private static class FakeServer extends FakeMqttServer {
+    final List<Long> arrivals = new ArrayList<Long>();
+
+    FakeServer() throws Exception {
+    }
+
+    protected void serve() throws Exception {
+      Socket socket = serverSocket.accept();
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      connect(in, out);
+
+      while (true) {
+        int first = in.readUnsignedByte();
+        in.skipBytes(readRemainingLength(in));
+        if ((first >> 4) != 3) {
+          break; // DISCONNECT
+        }
+        synchronized (this) {
+          arrivals.add(Long.valueOf(System.currentTimeMillis()));
+        }
+      }
+      socket.close();
+    }
+  }
+
+  /**
+   * Gives the test access to the client state
+   */
+  private static class Client extends MqttAsyncClient {
+    Client(String serverURI, String clientId) throws MqttException {
+      super(serverURI, clientId, new MemoryPersistence());
+    }
+
+    long getRateLimitWaitTime() {
+      return comms.getClientState().getRateLimitWaitTime();
+    }
+  }
+
+  /**
+   * A burst is allowed at once, then messages wait for tokens, and bytes
+   * taken beyond the bucket delay the next message
+   */
+  @Test
+  public void testTokenBuckets() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    RateLimiter messages = new RateLimiter(10, 3, 0, 0);
+    for (int i = 0; i < 3; i++) {
+      Assert.assertEquals(0, messages.acquire());
+    }
+    long delay = messages.acquire();
+    Assert.assertTrue(String.valueOf(delay), delay > 0 && delay <= 100);
+
+    RateLimiter bytes = new RateLimiter(0, 0, 1000, 100);
+    Assert.assertEquals(0, bytes.acquire());
+    bytes.consume(600);
+    delay = bytes.acquire();
+    Assert.assertTrue(String.valueOf(delay), delay > 400 && delay <= 500);
+    Thread.sleep(delay + 10);
+    Assert.assertEquals(0, bytes.acquire());
+    Assert.assertTrue(bytes.getWaitTime() >= delay);
+  }
+
+  /**
+   * A backlog is sent at the message rate without blocking the publisher
+   */
+  @Test
+  public void testPacedBacklog() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    FakeServer server = new FakeServer();
+    server.start();
+
+    MqttConnectOptions options = new MqttConnectOptions();
+    options.setMessageRateLimit(RATE, BURST);
+    Client client = new Client(server.getServerURI(), methodName);
+    client.connect(options).waitForCompletion(10000);
+
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < COUNT; i++) {
+      client.publish("paced", new byte[16], 0, false);
+    }
+    long publishTime = System.currentTimeMillis() - start;
+    // The publisher only queues the messages
+    Assert.assertTrue("publishing took " + publishTime + "ms", publishTime < 250);
+
+    long end = System.currentTimeMillis() + 10000;
+    while (server.arrivals.size() < COUNT && System.currentTimeMillis() < end) {
+      Thread.sleep(50);
+    }
+    long waitTime = client.getRateLimitWaitTime();
+    client.disconnect().waitForCompletion(10000);
+    client.close();
+    server.join(10000);
+    Assert.assertNull(String.valueOf(server.getFailure()), server.getFailure());
+    Assert.assertEquals(COUNT, server.arrivals.size());
+
+    long span = server.arrivals.get(COUNT - 1).longValue() - start;
+    long minimum = (COUNT - BURST) * 1000 / RATE;
+    log.info(COUNT + " publishes took " + span + "ms, waited " + waitTime + "ms for the rate limit");
+    Assert.assertTrue(span >= minimum - 50);
+    Assert.assertTrue(span < minimum * 3);
+    Assert.assertTrue(waitTime > 0);
+    // No more than the burst and a fifth of a second's worth arrive in any
+    // fifth of a second
+    int perWindow = BURST + RATE / 5;
+    for (int i = 0; i + perWindow < COUNT; i++) {
+      long window = server.arrivals.get(i + perWindow).longValue() - server.arrivals.get(i).longValue();
+      Assert.assertTrue(String.valueOf(window), window >= 190);
+    }
+  }
+}
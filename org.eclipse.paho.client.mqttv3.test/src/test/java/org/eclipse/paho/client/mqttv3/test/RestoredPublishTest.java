@@ -0,0 +1,228 @@
+/** Copyright (c)  2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPersistedPublish;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
+import org.eclipse.paho.client.mqttv3.test.utilities.FakeMqttServer;
+import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that publishes restored from persistence when a client is created
+ * are held as index entries, and are read back and sent again in order,
+ * marked as duplicates, once the client connects. The server is a minimal
+ * fake, so no broker is needed.
+ */
+public class RestoredPublishTest {
+
+  static final Class<?> cclass = RestoredPublishTest.class;
+  private static final String className = cclass.getName();
+  private static final Logger log = Logger.getLogger(className);
+
+  /**
+   * A fake server that records the message ID, QoS and duplicate flag of
+   * each PUBLISH it receives, and acknowledges it
+   */
+  private static class FakeServer extends FakeMqttServer {
+    final List<String> publishes = new ArrayList<String>();
+    volatile int completed = 0;
+
+    FakeServer() throws Exception {
+    }
+
+    protected void serve() throws Exception {
+      Socket socket = serverSocket.accept();
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      connect(in, out);
+
+      while (true) {
+        int header = in.readUnsignedByte();
+        int type = header >> 4;
+        int remLen = readRemainingLength(in);
+        if (type == 3) {
+          int qos = (header >> 1) & 0x03;
+          int topicLength = in.readUnsignedShort();
+          in.skipBytes(topicLength);
+          int msgId = in.readUnsignedShort();
+          in.skipBytes(remLen - 2 - topicLength - 2);
+          synchronized (this) {
+            publishes.add(msgId + ":" + qos + ((header & 0x08) != 0 ? ":dup" : ""));
+          }
+          out.write(new byte[] {(byte) (qos == 1 ? 0x40 : 0x50), 0x02, (byte) (msgId >> 8), (byte) msgId});
+          out.flush();
+          if (qos == 1) {
+            completed++;
+          }
+        }
+        else if (type == 6) {
+          int msgId = in.readUnsignedShort();
+          out.write(new byte[] {0x70, 0x02, (byte) (msgId >> 8), (byte) msgId});
+          out.flush();
+          completed++;
+        }
+        else {
+          in.skipBytes(remLen);
+          if (type == 14) {
+            break; // DISCONNECT
+          }
+        }
+      }
+      socket.close();
+    }
+  }
+
+  /**
+   * Gives the test access to the client state
+   */
+  private static class Client extends MqttAsyncClient {
+    Client(String serverURI, String clientId, MqttDefaultFilePersistence persistence) throws MqttException {
+      super(serverURI, clientId, persistence);
+    }
+
+    Hashtable getOutbound(int qos) {
+      return (Hashtable) comms.getClientState().getDebug().get(qos == 2 ? "outboundQoS2" : "outboundQoS1");
+    }
+  }
+
+  private static File createTempDir(String methodName) throws Exception {
+    File dir = File.createTempFile(className + "." + methodName, "");
+    dir.delete();
+    dir.mkdirs();
+    return dir;
+  }
+
+  private static void deleteDir(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (int i = 0; i < files.length; i++) {
+        if (files[i].isDirectory()) {
+          deleteDir(files[i]);
+        }
+        else {
+          files[i].delete();
+        }
+      }
+    }
+    dir.delete();
+  }
+
+  /**
+   * QoS 1 and QoS 2 publishes left in persistence are restored as index
+   * entries and sent in message ID order with the duplicate flag set, while
+   * one whose key was deleted from persistence before it was sent is
+   * dropped and its token fails
+   */
+  @Test
+  public void testRestoredPublishes() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    File dir = createTempDir(methodName);
+    FakeServer server = new FakeServer();
+    server.start();
+    int[] qos = new int[] {1, 2, 1, 1, 2};
+    try {
+      // Publishes that a client had not had acknowledged when it stopped
+      MqttDefaultFilePersistence persistence = new MqttDefaultFilePersistence(dir.getAbsolutePath());
+      persistence.open(methodName, server.getServerURI());
+      for (int i = 0; i < qos.length; i++) {
+        MqttMessage message = new MqttMessage(("payload " + (i + 1)).getBytes("UTF-8"));
+        message.setQos(qos[i]);
+        MqttPublish publish = new MqttPublish("restored/" + (i + 1), message);
+        publish.setMessageId(i + 1);
+        persistence.put("s-" + (i + 1), publish);
+      }
+      persistence.close();
+
+      persistence = new MqttDefaultFilePersistence(dir.getAbsolutePath());
+      Client client = new Client(server.getServerURI(), methodName, persistence);
+      Hashtable qos1 = client.getOutbound(1);
+      Hashtable qos2 = client.getOutbound(2);
+      Assert.assertEquals(3, qos1.size());
+      Assert.assertEquals(2, qos2.size());
+      for (int i = 0; i < qos.length; i++) {
+        Object entry = (qos[i] == 2 ? qos2 : qos1).get(Integer.valueOf(i + 1));
+        Assert.assertTrue(String.valueOf(entry), entry instanceof MqttPersistedPublish);
+      }
+      IMqttDeliveryToken[] tokens = client.getPendingDeliveryTokens();
+      Assert.assertEquals(qos.length, tokens.length);
+      IMqttDeliveryToken deleted = null;
+      for (int i = 0; i < tokens.length; i++) {
+        if (tokens[i].getMessageId() == 4) {
+          deleted = tokens[i];
+        }
+      }
+      Assert.assertNotNull(deleted);
+      // The client only holds the persistence open while it is connected
+      MqttDefaultFilePersistence store = new MqttDefaultFilePersistence(dir.getAbsolutePath());
+      store.open(methodName, server.getServerURI());
+      store.remove("s-4");
+      store.close();
+
+      MqttConnectOptions options = new MqttConnectOptions();
+      options.setCleanSession(false);
+      options.setKeepAliveInterval(0);
+      client.connect(options).waitForCompletion(10000);
+      try {
+        deleted.waitForCompletion(10000);
+        Assert.fail("deleted publish was completed");
+      }
+      catch (MqttPersistenceException e) {
+        // expected
+      }
+      long end = System.currentTimeMillis() + 10000;
+      while (server.completed < 4 && System.currentTimeMillis() < end) {
+        Thread.sleep(20);
+      }
+      Assert.assertEquals(4, server.completed);
+      synchronized (server) {
+        Assert.assertEquals(Arrays.asList(new String[] {"1:1:dup", "2:2:dup", "3:1:dup", "5:2:dup"}),
+            server.publishes);
+      }
+      // The last acknowledgement may still be on its way to the client
+      while (!(qos1.isEmpty() && qos2.isEmpty()) && System.currentTimeMillis() < end) {
+        Thread.sleep(20);
+      }
+      Assert.assertEquals(String.valueOf(qos1), 0, qos1.size());
+      Assert.assertEquals(String.valueOf(qos2), 0, qos2.size());
+      client.disconnect().waitForCompletion(10000);
+      client.close();
+      server.join(10000);
+      Assert.assertNull(String.valueOf(server.getFailure()), server.getFailure());
+    }
+    finally {
+      deleteDir(dir);
+    }
+  }
+}
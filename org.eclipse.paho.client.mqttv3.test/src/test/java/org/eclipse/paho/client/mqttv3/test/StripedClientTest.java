@@ -0,0 +1,389 @@
+/** Copyright (c)  2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttStripedClient;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
+import org.eclipse.paho.client.mqttv3.test.utilities.FakeMqttServer;
+import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that a striped client sends the messages on each topic in order
+ * over one of its connections, and reports a lost connection once. The
+ * server is a minimal fake that accepts any number of connections, so no
+ * broker is needed.
+ */
+public class StripedClientTest {
+
+  static final Class<?> cclass = StripedClientTest.class;
+  private static final String className = cclass.getName();
+  private static final Logger log = Logger.getLogger(className);
+
+  private static final int STRIPES = 4;
+  private static final int TOPICS = 20;
+  private static final int MESSAGES = 400;
+
+  /**
+   * A fake server that acknowledges the QoS 1 publishes of every
+   * connection, recording the client id each topic was sent by and the
+   * sequence numbers sent on it.
+   */
+  private static class FakeServer extends FakeMqttServer {
+    final Map<String, Set<String>> clientsByTopic = new HashMap<String, Set<String>>();
+    final Map<String, List<Integer>> sequences = new HashMap<String, List<Integer>>();
+    final Map<String, Socket> sockets = new HashMap<String, Socket>();
+
+    FakeServer() throws Exception {
+    }
+
+    void shutdown() throws Exception {
+      serverSocket.close();
+    }
+
+    /**
+     * Drops the connection of a client, as a network failure would
+     */
+    void drop(String clientId) throws Exception {
+      Socket socket;
+      synchronized (this) {
+        socket = sockets.get(clientId);
+      }
+      socket.close();
+    }
+
+    protected void serve() throws Exception {
+      try {
+        while (true) {
+          final Socket socket = serverSocket.accept();
+          Thread connection = new Thread() {
+            public void run() {
+              serveConnection(socket);
+            }
+          };
+          connection.setDaemon(true);
+          connection.start();
+        }
+      }
+      catch (Exception e) {
+        // closed
+      }
+    }
+
+    private void serveConnection(Socket socket) {
+      try {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        in.readUnsignedByte(); // CONNECT
+        int remLen = readRemainingLength(in);
+        byte[] protocolName = new byte[in.readUnsignedShort()];
+        in.readFully(protocolName);
+        in.skipBytes(4); // level, flags and keep alive
+        byte[] id = new byte[in.readUnsignedShort()];
+        in.readFully(id);
+        in.skipBytes(remLen - 2 - protocolName.length - 4 - 2 - id.length);
+        String clientId = new String(id, "UTF-8");
+        synchronized (this) {
+          sockets.put(clientId, socket);
+        }
+        out.write(CONNACK);
+        out.flush();
+
+        while (true) {
+          int type = in.readUnsignedByte() >> 4;
+          remLen = readRemainingLength(in);
+          if (type != 3) {
+            in.skipBytes(remLen);
+            break; // DISCONNECT
+          }
+          byte[] topicBytes = new byte[in.readUnsignedShort()];
+          in.readFully(topicBytes);
+          String topic = new String(topicBytes, "UTF-8");
+          int msgId = in.readUnsignedShort();
+          int sequence = in.readInt();
+          in.skipBytes(remLen - 2 - topicBytes.length - 2 - 4);
+          synchronized (this) {
+            Set<String> clients = clientsByTopic.get(topic);
+            if (clients == null) {
+              clients = new HashSet<String>();
+              clientsByTopic.put(topic, clients);
+              sequences.put(topic, new ArrayList<Integer>());
+            }
+            clients.add(clientId);
+            sequences.get(topic).add(Integer.valueOf(sequence));
+          }
+          out.write(new byte[] {0x40, 0x02, (byte) (msgId >> 8), (byte) msgId});
+          out.flush();
+        }
+        socket.close();
+      }
+      catch (Throwable t) {
+        if (!socket.isClosed()) {
+          setFailure(t);
+        }
+      }
+    }
+  }
+
+  /**
+   * Counts the lost connections it is told of
+   */
+  private static class LossCounter implements MqttCallback {
+    int lost = 0;
+
+    public synchronized void connectionLost(Throwable cause) {
+      lost++;
+      notifyAll();
+    }
+
+    public void messageArrived(String topic, MqttMessage message) throws Exception {
+    }
+
+    public void deliveryComplete(IMqttDeliveryToken token) {
+    }
+
+    synchronized int waitForLoss(long timeout) throws InterruptedException {
+      long end = System.currentTimeMillis() + timeout;
+      while (lost == 0 && System.currentTimeMillis() < end) {
+        wait(Math.max(1, end - System.currentTimeMillis()));
+      }
+      return lost;
+    }
+  }
+
+  private static MqttStripedClient createClient(FakeServer server, String clientId) throws Exception {
+    MqttClientPersistence[] persistence = new MqttClientPersistence[STRIPES];
+    for (int i = 0; i < STRIPES; i++) {
+      persistence[i] = new MemoryPersistence();
+    }
+    return new MqttStripedClient(server.getServerURI(), clientId, persistence);
+  }
+
+  private static MqttMessage sequenced(int sequence) {
+    byte[] payload = new byte[] {(byte) (sequence >> 24), (byte) (sequence >> 16), (byte) (sequence >> 8), (byte) sequence};
+    return new MqttMessage(payload);
+  }
+
+  /**
+   * Every stripe connects with its own client id, each topic is sent over
+   * a single stripe in order, and the topics are spread over the stripes
+   */
+  @Test
+  public void testStripedPublish() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    FakeServer server = new FakeServer();
+    server.start();
+    MqttStripedClient client = createClient(server, methodName);
+    MqttConnectOptions options = new MqttConnectOptions();
+    options.setKeepAliveInterval(0);
+    client.connect(options).waitForCompletion(10000);
+    Assert.assertTrue(client.isConnected());
+    Assert.assertEquals(STRIPES, client.getConnectedCount());
+
+    for (int i = 0; i < MESSAGES; i++) {
+      String topic = "device/" + (i % TOPICS);
+      IMqttDeliveryToken token = client.publish(topic, sequenced(i));
+      Assert.assertSame(client.getStripe(client.getStripeIndex(topic)), token.getClient());
+      token.waitForCompletion(10000);
+    }
+    // A token is removed from its client only after its waiters are woken
+    long end = System.currentTimeMillis() + 10000;
+    while (client.getPendingDeliveryTokens().length > 0 && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(0, client.getPendingDeliveryTokens().length);
+    client.disconnect().waitForCompletion(10000);
+    Assert.assertEquals(0, client.getConnectedCount());
+    client.close();
+    server.shutdown();
+    Assert.assertNull(server.getFailure());
+
+    Set<String> used = new HashSet<String>();
+    synchronized (server) {
+      Assert.assertEquals(STRIPES, server.sockets.size());
+      for (int i = 0; i < STRIPES; i++) {
+        Assert.assertTrue(server.sockets.containsKey(methodName + "-" + i));
+      }
+      Assert.assertEquals(TOPICS, server.clientsByTopic.size());
+      for (int t = 0; t < TOPICS; t++) {
+        String topic = "device/" + t;
+        Set<String> clients = server.clientsByTopic.get(topic);
+        Assert.assertEquals(1, clients.size());
+        Assert.assertEquals(methodName + "-" + client.getStripeIndex(topic), clients.iterator().next());
+        used.addAll(clients);
+        List<Integer> sequence = server.sequences.get(topic);
+        Assert.assertEquals(MESSAGES / TOPICS, sequence.size());
+        for (int i = 0; i < sequence.size(); i++) {
+          Assert.assertEquals(t + i * TOPICS, sequence.get(i).intValue());
+        }
+      }
+    }
+    log.info(TOPICS + " topics were sent over " + used.size() + " stripes");
+    Assert.assertTrue(used.size() > 1);
+  }
+
+  /**
+   * Messages with the same key are sent over the same stripe whatever
+   * their topic
+   */
+  @Test
+  public void testKeyedPublish() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    FakeServer server = new FakeServer();
+    server.start();
+    MqttStripedClient client = createClient(server, methodName);
+    MqttConnectOptions options = new MqttConnectOptions();
+    options.setKeepAliveInterval(0);
+    client.connect(options).waitForCompletion(10000);
+
+    String key = "order-1042";
+    for (int i = 0; i < TOPICS; i++) {
+      client.publish(key, "orders/" + i, sequenced(i), null, null).waitForCompletion(10000);
+    }
+    client.disconnect().waitForCompletion(10000);
+    client.close();
+    server.shutdown();
+
+    synchronized (server) {
+      for (int i = 0; i < TOPICS; i++) {
+        Set<String> clients = server.clientsByTopic.get("orders/" + i);
+        Assert.assertEquals(1, clients.size());
+        Assert.assertEquals(methodName + "-" + client.getStripeIndex(key), clients.iterator().next());
+      }
+    }
+  }
+
+  /**
+   * Losing two stripes is reported once, connecting again connects only
+   * those stripes, and a loss after that is reported again
+   */
+  @Test
+  public void testConnectionLoss() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    FakeServer server = new FakeServer();
+    server.start();
+    MqttStripedClient client = createClient(server, methodName);
+    LossCounter counter = new LossCounter();
+    client.setCallback(counter);
+    MqttConnectOptions options = new MqttConnectOptions();
+    options.setKeepAliveInterval(0);
+    client.connect(options).waitForCompletion(10000);
+
+    server.drop(methodName + "-1");
+    server.drop(methodName + "-2");
+    Assert.assertEquals(1, counter.waitForLoss(10000));
+    long end = System.currentTimeMillis() + 10000;
+    while (client.getConnectedCount() > STRIPES - 2 && System.currentTimeMillis() < end) {
+      Thread.sleep(50);
+    }
+    Assert.assertEquals(STRIPES - 2, client.getConnectedCount());
+    Assert.assertFalse(client.isConnected());
+    Thread.sleep(200);
+    Assert.assertEquals(1, counter.lost);
+
+    IMqttToken reconnect = client.connect(options);
+    reconnect.waitForCompletion(10000);
+    Assert.assertTrue(reconnect.isComplete());
+    Assert.assertNull(reconnect.getException());
+    Assert.assertTrue(client.isConnected());
+
+    server.drop(methodName + "-0");
+    end = System.currentTimeMillis() + 10000;
+    while (counter.lost < 2 && System.currentTimeMillis() < end) {
+      Thread.sleep(50);
+    }
+    Assert.assertEquals(2, counter.lost);
+
+    client.disconnect().waitForCompletion(10000);
+    client.close();
+    server.shutdown();
+    Assert.assertEquals(2, counter.lost);
+  }
+
+  /**
+   * A stripe that cannot start to connect fails the token once the other
+   * stripes have connected, rather than leaving them with no token
+   */
+  @Test
+  public void testConnectFailure() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    FakeServer server = new FakeServer();
+    server.start();
+    MqttStripedClient client = createClient(server, methodName);
+    client.getStripe(1).close();
+    final List<Throwable> failures = new ArrayList<Throwable>();
+    MqttConnectOptions options = new MqttConnectOptions();
+    options.setKeepAliveInterval(0);
+    IMqttToken token = client.connect(options, null, new IMqttActionListener() {
+      public void onSuccess(IMqttToken asyncActionToken) {
+      }
+
+      public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+        synchronized (failures) {
+          failures.add(exception);
+          failures.notifyAll();
+        }
+      }
+    });
+    try {
+      token.waitForCompletion(10000);
+      Assert.fail("a stripe was closed");
+    }
+    catch (MqttException e) {
+      Assert.assertEquals(MqttException.REASON_CODE_CLIENT_CLOSED, e.getReasonCode());
+    }
+    Assert.assertTrue(token.isComplete());
+    Assert.assertEquals(STRIPES - 1, client.getConnectedCount());
+    synchronized (failures) {
+      // The listener is told after the waiters are woken
+      long end = System.currentTimeMillis() + 10000;
+      while (failures.isEmpty() && System.currentTimeMillis() < end) {
+        failures.wait(Math.max(1, end - System.currentTimeMillis()));
+      }
+      Assert.assertEquals(1, failures.size());
+      Assert.assertSame(token.getException(), failures.get(0));
+    }
+
+    client.disconnect().waitForCompletion(10000);
+    Assert.assertEquals(0, client.getConnectedCount());
+    client.close();
+    server.shutdown();
+    Assert.assertNull(server.getFailure());
+  }
+}
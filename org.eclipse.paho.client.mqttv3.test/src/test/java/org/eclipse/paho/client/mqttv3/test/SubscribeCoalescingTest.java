@@ -0,0 +1,250 @@
+/** Copyright (c)  2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttThreadFactory;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
+import org.eclipse.paho.client.mqttv3.test.utilities.FakeMqttServer;
+import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that subscribe and unsubscribe requests are coalesced into few
+ * packets, that each token completes with its own granted QoS, and that
+ * the subscriptions of a client can be sent again. The server is a minimal
+ * fake, so no broker is needed.
+ */
+public class SubscribeCoalescingTest {
+
+  static final Class<?> cclass = SubscribeCoalescingTest.class;
+  private static final String className = cclass.getName();
+  private static final Logger log = Logger.getLogger(className);
+
+  /**
+   * A fake server that records the topic filters of each SUBSCRIBE and
+   * UNSUBSCRIBE it receives. It grants QoS 1 at most, and refuses topic
+   * filters that start with "deny".
+   */
+  private static class FakeServer extends FakeMqttServer {
+    final List<String> packets = new ArrayList<String>();
+    final List<Integer> requestedQos = new ArrayList<Integer>();
+
+    FakeServer() throws Exception {
+    }
+
+    private static void write(DataOutputStream out, int type, byte[] body) throws Exception {
+      out.writeByte(type);
+      int length = body.length;
+      do {
+        int digit = length % 128;
+        length = length / 128;
+        out.writeByte(length > 0 ? digit | 0x80 : digit);
+      } while (length > 0);
+      out.write(body);
+      out.flush();
+    }
+
+    protected void serve() throws Exception {
+      Socket socket = serverSocket.accept();
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      connect(in, out);
+
+      while (true) {
+        int type = in.readUnsignedByte() >> 4;
+        int remLen = readRemainingLength(in);
+        if (type != 8 && type != 10) {
+          in.skipBytes(remLen);
+          break; // DISCONNECT
+        }
+        int msgId = in.readUnsignedShort();
+        remLen -= 2;
+        StringBuffer filters = new StringBuffer(type == 8 ? "S:" : "U:");
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(body);
+        dos.writeShort(msgId);
+        while (remLen > 0) {
+          byte[] filter = new byte[in.readUnsignedShort()];
+          in.readFully(filter);
+          String name = new String(filter, "UTF-8");
+          remLen -= 2 + filter.length;
+          if (filters.length() > 2) {
+            filters.append(',');
+          }
+          filters.append(name);
+          if (type == 8) {
+            int qos = in.readUnsignedByte();
+            remLen--;
+            synchronized (this) {
+              requestedQos.add(Integer.valueOf(qos));
+            }
+            dos.writeByte(name.startsWith("deny") ? 0x80 : Math.min(qos, 1));
+          }
+        }
+        synchronized (this) {
+          packets.add(filters.toString());
+        }
+        write(out, type == 8 ? 0x90 : 0xB0, body.toByteArray());
+      }
+      socket.close();
+    }
+  }
+
+  /**
+   * Many single subscribe requests are sent in few packets, each token
+   * is given the granted QoS of its own topic filter, and the thread that
+   * sends the batches comes from the thread factory and ends on disconnect
+   */
+  @Test
+  public void testCoalescedSubscribes() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    FakeServer server = new FakeServer();
+    server.start();
+
+    final List<Thread> threads = new ArrayList<Thread>();
+    MqttConnectOptions options = new MqttConnectOptions();
+    options.setSubscribeCoalescing(200, 100);
+    options.setThreadFactory(new MqttThreadFactory() {
+      public Thread newThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        synchronized (threads) {
+          threads.add(thread);
+        }
+        return thread;
+      }
+    });
+    MqttAsyncClient client = new MqttAsyncClient(server.getServerURI(), methodName, new MemoryPersistence());
+    client.connect(options).waitForCompletion(10000);
+
+    int count = 250;
+    IMqttToken[] tokens = new IMqttToken[count];
+    for (int i = 0; i < count; i++) {
+      String filter = (i % 50 == 7) ? "deny/" + i : "sensors/" + i + "/#";
+      tokens[i] = client.subscribe(filter, i % 3);
+    }
+    for (int i = 0; i < count; i++) {
+      tokens[i].waitForCompletion(10000);
+      Assert.assertTrue(tokens[i].isComplete());
+      int[] granted = tokens[i].getGrantedQos();
+      Assert.assertEquals(1, granted.length);
+      int expected = (i % 50 == 7) ? 0x80 : Math.min(i % 3, 1);
+      Assert.assertEquals("subscription " + i, expected, granted[0]);
+    }
+
+    // The requests of each kind are sent in the order they are made
+    IMqttToken unsubscribe = client.unsubscribe(new String[] {"sensors/0/#", "sensors/1/#"});
+    IMqttToken subscribe = client.subscribe(new String[] {"sensors/0/#", "sensors/1/#", "sensors/2/#"},
+        new int[] {1, 1, 1});
+    unsubscribe.waitForCompletion(10000);
+    subscribe.waitForCompletion(10000);
+    Assert.assertTrue(Arrays.equals(new int[] {1, 1, 1}, subscribe.getGrantedQos()));
+
+    client.disconnect().waitForCompletion(10000);
+    Thread flusher = null;
+    synchronized (threads) {
+      for (Thread thread : threads) {
+        if (thread.getName().equals("MQTT Subscribe: " + methodName)) {
+          flusher = thread;
+        }
+      }
+    }
+    Assert.assertNotNull(flusher);
+    flusher.join(10000);
+    Assert.assertFalse(flusher.isAlive());
+    client.close();
+    server.join(10000);
+    Assert.assertNull(String.valueOf(server.getFailure()), server.getFailure());
+    log.info(count + " subscriptions sent in " + (server.packets.size() - 2) + " packets");
+    Assert.assertEquals(5, server.packets.size());
+    for (int i = 0; i < 3; i++) {
+      String packet = server.packets.get(i);
+      Assert.assertTrue(packet.startsWith("S:"));
+      Assert.assertEquals(i < 2 ? 100 : 50, packet.split(",").length);
+    }
+    Assert.assertEquals("U:sensors/0/#,sensors/1/#", server.packets.get(3));
+    Assert.assertEquals("S:sensors/0/#,sensors/1/#,sensors/2/#", server.packets.get(4));
+  }
+
+  /**
+   * The subscriptions of a client are sent again in as few packets as hold
+   * them, at the QoS the server granted, without the topic filters it has
+   * unsubscribed from or the server refused
+   */
+  @Test
+  public void testResubscribe() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    FakeServer server = new FakeServer();
+    server.start();
+
+    MqttConnectOptions options = new MqttConnectOptions();
+    options.setSubscribeCoalescing(50, 3);
+    MqttAsyncClient client = new MqttAsyncClient(server.getServerURI(), methodName, new MemoryPersistence());
+    client.connect(options).waitForCompletion(10000);
+
+    // QoS 2 is asked for on some, but the server grants QoS 1 at most
+    for (int i = 0; i < 8; i++) {
+      client.subscribe("alerts/" + i, 1 + i % 2).waitForCompletion(10000);
+    }
+    IMqttToken refused = client.subscribe("deny/1", 1);
+    refused.waitForCompletion(10000);
+    Assert.assertEquals(0x80, refused.getGrantedQos()[0]);
+    client.unsubscribe("alerts/3").waitForCompletion(10000);
+    int before;
+    int beforeQos;
+    synchronized (server) {
+      before = server.packets.size();
+      beforeQos = server.requestedQos.size();
+    }
+
+    // Seven topic filters, three in each packet
+    IMqttToken token = client.resubscribe();
+    token.waitForCompletion(10000);
+    Assert.assertTrue(token.isComplete());
+    String[] topics = token.getTopics();
+    int[] granted = token.getGrantedQos();
+    Assert.assertEquals(7, topics.length);
+    Assert.assertEquals(7, granted.length);
+    for (int i = 0; i < topics.length; i++) {
+      Assert.assertTrue(topics[i].startsWith("alerts/"));
+      Assert.assertFalse("alerts/3".equals(topics[i]));
+      Assert.assertEquals(1, granted[i]);
+    }
+    synchronized (server) {
+      List<Integer> resent = server.requestedQos.subList(beforeQos, server.requestedQos.size());
+      Assert.assertEquals(Arrays.asList(new Integer[] {1, 1, 1, 1, 1, 1, 1}), resent);
+    }
+
+    client.disconnect().waitForCompletion(10000);
+    client.close();
+    server.join(10000);
+    Assert.assertNull(String.valueOf(server.getFailure()), server.getFailure());
+    Assert.assertEquals(before + 3, server.packets.size());
+  }
+}
@@ -0,0 +1,181 @@
+/** Copyright (c)  2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.util.SubscriptionTrie;
+import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
+import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that the subscription trie matches topic names to filters by the MQTT rules
+ */
+public class SubscriptionTrieTest {
+
+  static final Class<?> cclass = SubscriptionTrieTest.class;
+  private static final String className = cclass.getName();
+  private static final Logger log = Logger.getLogger(className);
+
+  private static SubscriptionTrie trie(String... filters) {
+    SubscriptionTrie trie = new SubscriptionTrie();
+    for (String filter : filters) {
+      trie.put(filter, filter);
+    }
+    return trie;
+  }
+
+  private static void assertMatches(SubscriptionTrie trie, String topic, String... expected) {
+    Set<Object> actual = new HashSet<Object>(Arrays.asList(trie.match(topic)));
+    Assert.assertEquals(topic, new HashSet<Object>(Arrays.asList(expected)), actual);
+  }
+
+  /**
+   * + matches exactly one level, which may be empty
+   */
+  @Test
+  public void testSingleLevelWildcard() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    SubscriptionTrie trie = trie("a/+/c", "+/+", "+", "/+");
+
+    assertMatches(trie, "a/b/c", "a/+/c");
+    assertMatches(trie, "a//c", "a/+/c");
+    assertMatches(trie, "a/b", "+/+");
+    assertMatches(trie, "a", "+");
+    assertMatches(trie, "/a", "+/+", "/+");
+    assertMatches(trie, "a/b/c/d");
+  }
+
+  /**
+   * # matches any number of levels, including the parent level
+   */
+  @Test
+  public void testMultiLevelWildcard() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    SubscriptionTrie trie = trie("a/#", "#", "a/+/#", "b/c");
+
+    assertMatches(trie, "a", "a/#", "#");
+    assertMatches(trie, "a/b", "a/#", "#", "a/+/#");
+    assertMatches(trie, "a/b/c/d", "a/#", "#", "a/+/#");
+    assertMatches(trie, "b/c", "#", "b/c");
+    assertMatches(trie, "b", "#");
+  }
+
+  /**
+   * Wildcards at the first level do not match topics starting with $
+   */
+  @Test
+  public void testSystemTopics() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    SubscriptionTrie trie = trie("#", "+/info", "$SYS/#", "$SYS/+/info");
+
+    assertMatches(trie, "$SYS/broker/info", "$SYS/#", "$SYS/+/info");
+    assertMatches(trie, "$SYS", "$SYS/#");
+    assertMatches(trie, "broker/info", "#", "+/info");
+  }
+
+  /**
+   * Replacing and removing filters changes later matches, even for topics already matched
+   */
+  @Test
+  public void testReplaceAndRemove() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    SubscriptionTrie trie = trie("a/+", "a/b");
+    assertMatches(trie, "a/b", "a/+", "a/b");
+
+    trie.put("a/+", "replaced");
+    assertMatches(trie, "a/b", "replaced", "a/b");
+    Assert.assertEquals("replaced", trie.get("a/+"));
+    Assert.assertEquals(2, trie.size());
+
+    Assert.assertEquals("a/b", trie.remove("a/b"));
+    Assert.assertNull(trie.remove("a/b"));
+    assertMatches(trie, "a/b", "replaced");
+
+    trie.remove("a/+");
+    Assert.assertTrue(trie.isEmpty());
+    assertMatches(trie, "a/b");
+  }
+
+  /**
+   * The result for a topic is cached until the filters change
+   */
+  @Test
+  public void testCachedResult() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    SubscriptionTrie trie = trie("a/#");
+
+    Object[] first = trie.match("a/b");
+    Assert.assertSame(first, trie.match("a/b"));
+    trie.put("a/b", "a/b");
+    Assert.assertNotSame(first, trie.match("a/b"));
+    Assert.assertEquals(2, trie.match("a/b").length);
+  }
+
+  /**
+   * The most specific match names the first level where filters differ,
+   * then has +, then #, and a filter ending at the topic beats one with #
+   */
+  @Test
+  public void testMostSpecific() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    SubscriptionTrie trie = trie("#", "plant/#", "plant/+/#", "plant/line-1/#", "plant/line-1/+", "+/line-1/temp");
+
+    Assert.assertEquals("plant/line-1/+", trie.matchMostSpecific("plant/line-1/temp"));
+    Assert.assertEquals("plant/line-1/#", trie.matchMostSpecific("plant/line-1/temp/raw"));
+    Assert.assertEquals("plant/line-1/#", trie.matchMostSpecific("plant/line-1"));
+    Assert.assertEquals("plant/+/#", trie.matchMostSpecific("plant/line-2/temp"));
+    Assert.assertEquals("plant/#", trie.matchMostSpecific("plant"));
+    Assert.assertEquals("+/line-1/temp", trie.matchMostSpecific("office/line-1/temp"));
+    Assert.assertEquals("#", trie.matchMostSpecific("office"));
+    Assert.assertNull(trie.matchMostSpecific("$SYS/broker"));
+
+    trie.remove("plant/line-1/+");
+    Assert.assertEquals("plant/line-1/#", trie.matchMostSpecific("plant/line-1/temp"));
+    trie.put("plant/line-1/temp", "exact");
+    Assert.assertEquals("exact", trie.matchMostSpecific("plant/line-1/temp"));
+  }
+
+  /**
+   * Filters that MqttTopic.validate rejects are not held
+   */
+  @Test
+  public void testInvalidFilter() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    SubscriptionTrie trie = new SubscriptionTrie();
+    String[] invalid = {"a/#/b", "a+/b", "a/b#"};
+    for (String filter : invalid) {
+      try {
+        trie.put(filter, filter);
+        Assert.fail(filter);
+      }
+      catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+    Assert.assertTrue(trie.isEmpty());
+  }
+}
@@ -0,0 +1,205 @@
+/** Copyright (c)  2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttProperties;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
+import org.eclipse.paho.client.mqttv3.test.utilities.FakeMqttServer;
+import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that MQTT 5 topic aliases are assigned to outbound publishes and
+ * resolved for inbound ones. The server is a minimal fake, so no broker is needed.
+ */
+public class TopicAliasTest {
+
+  static final Class<?> cclass = TopicAliasTest.class;
+  private static final String className = cclass.getName();
+  private static final Logger log = Logger.getLogger(className);
+
+  private static final int SERVER_ALIAS_MAXIMUM = 2;
+  private static final String[] OUTBOUND = {"t/1", "t/1", "t/2", "t/3", "t/1"};
+
+  /**
+   * A fake MQTT 5 server that accepts two aliases, sends two publishes using
+   * an alias and records the topic name and alias of each publish it receives.
+   */
+  private static class FakeServer extends FakeMqttServer {
+    volatile int protocolLevel = 0;
+    volatile long clientAliasMaximum = -1;
+    final List<String> topics = new ArrayList<String>();
+    final List<Integer> aliases = new ArrayList<Integer>();
+
+    FakeServer() throws Exception {
+    }
+
+    private static void writePublish(DataOutputStream out, String topic, int alias, String payload) throws Exception {
+      byte[] topicBytes = topic.getBytes("UTF-8");
+      byte[] payloadBytes = payload.getBytes("UTF-8");
+      out.writeByte(0x30);
+      out.writeByte(2 + topicBytes.length + 4 + payloadBytes.length);
+      out.writeShort(topicBytes.length);
+      out.write(topicBytes);
+      out.write(new byte[] {3, MqttProperties.TOPIC_ALIAS, 0, (byte) alias});
+      out.write(payloadBytes);
+    }
+
+    protected void serve() throws Exception {
+      Socket socket = serverSocket.accept();
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+
+      DataInputStream connect = new DataInputStream(new ByteArrayInputStream(readPacket(in, 1)));
+      connect.skipBytes(connect.readUnsignedShort());
+      protocolLevel = connect.readUnsignedByte();
+      connect.skipBytes(3);
+      clientAliasMaximum = MqttProperties.decode(connect).getLong(MqttProperties.TOPIC_ALIAS_MAXIMUM, 0);
+
+      out.write(new byte[] {0x20, 0x06, 0x00, 0x00, 0x03, MqttProperties.TOPIC_ALIAS_MAXIMUM, 0x00, SERVER_ALIAS_MAXIMUM});
+      writePublish(out, "inbound/topic", 1, "one");
+      writePublish(out, "", 1, "two");
+      out.flush();
+
+      for (int i = 0; i < OUTBOUND.length; i++) {
+        DataInputStream publish = new DataInputStream(new ByteArrayInputStream(readPacket(in, 3)));
+        byte[] topic = new byte[publish.readUnsignedShort()];
+        publish.readFully(topic);
+        synchronized (this) {
+          topics.add(new String(topic, "UTF-8"));
+          aliases.add(Integer.valueOf((int) MqttProperties.decode(publish).getLong(MqttProperties.TOPIC_ALIAS, 0)));
+        }
+      }
+      readPacket(in, 14); // DISCONNECT
+      socket.close();
+    }
+  }
+
+  private static class Receiver implements MqttCallback {
+    final List<String> topics = new ArrayList<String>();
+    final List<String> payloads = new ArrayList<String>();
+
+    public synchronized void messageArrived(String topic, MqttMessage message) throws Exception {
+      topics.add(topic);
+      payloads.add(new String(message.getPayload(), "UTF-8"));
+      notifyAll();
+    }
+
+    public synchronized void waitForMessages(int count, long timeout) throws InterruptedException {
+      long end = System.currentTimeMillis() + timeout;
+      while (topics.size() < count && System.currentTimeMillis() < end) {
+        wait(1000);
+      }
+    }
+
+    public void connectionLost(Throwable cause) {
+      log.info("Connection lost: " + cause);
+    }
+
+    public void deliveryComplete(IMqttDeliveryToken token) {
+    }
+  }
+
+  /**
+   * Aliases are given to outbound topics, least recently used first, and
+   * inbound aliases are resolved to the topic name they were set with
+   */
+  @Test
+  public void testTopicAliases() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    FakeServer server = new FakeServer();
+    server.start();
+
+    MqttConnectOptions options = new MqttConnectOptions();
+    options.setMqttVersion(MqttConnectOptions.MQTT_VERSION_5);
+    options.setTopicAliasMaximum(10);
+    MqttClient client = new MqttClient(server.getServerURI(), methodName, new MemoryPersistence());
+    Receiver receiver = new Receiver();
+    client.setCallback(receiver);
+    client.connect(options);
+
+    receiver.waitForMessages(2, 10000);
+    for (int i = 0; i < OUTBOUND.length; i++) {
+      client.publish(OUTBOUND[i], new byte[] {(byte) i}, 0, false);
+    }
+    Utility.disconnectAndCloseClient(client);
+    server.join(10000);
+
+    Assert.assertNull(String.valueOf(server.getFailure()), server.getFailure());
+    Assert.assertEquals(5, server.protocolLevel);
+    Assert.assertEquals(10, server.clientAliasMaximum);
+
+    Assert.assertEquals(2, receiver.topics.size());
+    Assert.assertEquals("inbound/topic", receiver.topics.get(0));
+    Assert.assertEquals("inbound/topic", receiver.topics.get(1));
+    Assert.assertEquals("two", receiver.payloads.get(1));
+
+    // t/3 takes the alias of t/1, and t/1 then takes the alias of t/2
+    String[] expectedTopics = {"t/1", "", "t/2", "t/3", "t/1"};
+    int[] expectedAliases = {1, 1, 2, 1, 2};
+    for (int i = 0; i < OUTBOUND.length; i++) {
+      Assert.assertEquals(expectedTopics[i], server.topics.get(i));
+      Assert.assertEquals(expectedAliases[i], server.aliases.get(i).intValue());
+    }
+  }
+
+  /**
+   * Properties are decoded as they were encoded
+   */
+  @Test
+  public void testPropertiesRoundTrip() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    MqttProperties properties = new MqttProperties();
+    properties.put(MqttProperties.SESSION_EXPIRY_INTERVAL, Long.valueOf(0xFFFFFFFFL));
+    properties.put(MqttProperties.TOPIC_ALIAS_MAXIMUM, Integer.valueOf(300));
+    properties.put(MqttProperties.MAXIMUM_QOS, Integer.valueOf(1));
+    properties.put(MqttProperties.SUBSCRIPTION_IDENTIFIER, Integer.valueOf(200000));
+    properties.put(MqttProperties.CONTENT_TYPE, "text/plain");
+    properties.put(MqttProperties.CORRELATION_DATA, new byte[] {1, 2, 3});
+    properties.addUserProperty("site", "\u00e9t\u00e9");
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    properties.encode(new DataOutputStream(baos));
+    MqttProperties decoded = MqttProperties.decode(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+
+    Assert.assertEquals(0xFFFFFFFFL, decoded.getLong(MqttProperties.SESSION_EXPIRY_INTERVAL, 0));
+    Assert.assertEquals(300, decoded.getLong(MqttProperties.TOPIC_ALIAS_MAXIMUM, 0));
+    Assert.assertEquals(1, decoded.getLong(MqttProperties.MAXIMUM_QOS, 0));
+    Assert.assertEquals(200000, decoded.getLong(MqttProperties.SUBSCRIPTION_IDENTIFIER, 0));
+    Assert.assertEquals(-1, decoded.getLong(MqttProperties.TOPIC_ALIAS, -1));
+    Assert.assertEquals("text/plain", decoded.get(MqttProperties.CONTENT_TYPE));
+    Assert.assertArrayEquals(new byte[] {1, 2, 3}, (byte[]) decoded.get(MqttProperties.CORRELATION_DATA));
+    String[] pair = (String[]) decoded.getUserProperties().elementAt(0);
+    Assert.assertEquals("site", pair[0]);
+    Assert.assertEquals("\u00e9t\u00e9", pair[1]);
+  }
+}
@@ -0,0 +1,278 @@
+/** Copyright (c)  2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttWireCapture;
+import org.eclipse.paho.client.mqttv3.MqttWireCaptureReader;
+import org.eclipse.paho.client.mqttv3.MqttWireReplay;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
+import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that a client captures the packets it sends and receives, and that
+ * a capture is played back to a client as it was received. The captures
+ * are played back by the replay itself, so no broker is needed.
+ */
+public class WireCaptureTest {
+
+  static final Class<?> cclass = WireCaptureTest.class;
+  private static final String className = cclass.getName();
+  private static final Logger log = Logger.getLogger(className);
+
+  private static final byte[] CONNACK = new byte[] {0x20, 0x02, 0x00, 0x00};
+
+  /**
+   * Collects the messages that arrive
+   */
+  private static class Collector implements MqttCallback {
+    final List<String> topics = new ArrayList<String>();
+    final List<byte[]> payloads = new ArrayList<byte[]>();
+    final List<Long> times = new ArrayList<Long>();
+
+    public void connectionLost(Throwable cause) {
+    }
+
+    public synchronized void messageArrived(String topic, MqttMessage message) throws Exception {
+      topics.add(topic);
+      payloads.add(message.getPayload());
+      times.add(Long.valueOf(System.nanoTime()));
+      notifyAll();
+    }
+
+    public void deliveryComplete(IMqttDeliveryToken token) {
+    }
+
+    synchronized void waitFor(int count, long timeout) throws InterruptedException {
+      long end = System.currentTimeMillis() + timeout;
+      while (topics.size() < count && System.currentTimeMillis() < end) {
+        wait(Math.max(1, end - System.currentTimeMillis()));
+      }
+    }
+  }
+
+  /**
+   * Returns a publish as it is sent on the network
+   */
+  private static byte[] publish(String topic, int qos, int msgId, String payload) throws IOException {
+    ByteArrayOutputStream variable = new ByteArrayOutputStream();
+    byte[] topicBytes = topic.getBytes("UTF-8");
+    variable.write(topicBytes.length >> 8);
+    variable.write(topicBytes.length);
+    variable.write(topicBytes);
+    if (qos > 0) {
+      variable.write(msgId >> 8);
+      variable.write(msgId);
+    }
+    variable.write(payload.getBytes("UTF-8"));
+    ByteArrayOutputStream packet = new ByteArrayOutputStream();
+    packet.write(0x30 | (qos << 1));
+    packet.write(variable.size());
+    variable.writeTo(packet);
+    return packet.toByteArray();
+  }
+
+  /**
+   * Returns a capture of a connection on which the client received a
+   * CONNACK and then the given packets, the given time apart.
+   */
+  private static byte[] capture(byte[][] packets, long gapMillis) throws Exception {
+    ByteArrayOutputStream file = new ByteArrayOutputStream();
+    MqttWireCapture capture = new MqttWireCapture(file);
+    capture.record(MqttWireCapture.RECORD_CONNECTED, null, 0, 0);
+    capture.record(MqttWireCapture.RECORD_RECEIVED, CONNACK, 0, CONNACK.length);
+    for (int i = 0; i < packets.length; i++) {
+      Thread.sleep(gapMillis);
+      capture.record(MqttWireCapture.RECORD_RECEIVED, packets[i], 0, packets[i].length);
+    }
+    capture.close();
+    return file.toByteArray();
+  }
+
+  private static MqttConnectOptions options() {
+    MqttConnectOptions options = new MqttConnectOptions();
+    options.setKeepAliveInterval(0);
+    return options;
+  }
+
+  /**
+   * The packets a client receives from a replay are captured as they were
+   * sent, with the packets the client sends, and the new capture plays
+   * back the same messages
+   */
+  @Test
+  public void testCaptureAndReplay() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    byte[][] packets = new byte[][] {
+        publish("plant/line-1", 0, 0, "first"),
+        publish("plant/line-2", 1, 7, "second"),
+        publish("plant/line-3", 2, 8, "third"),
+        new byte[] {0x62, 0x02, 0x00, 0x08}}; // PUBREL
+    MqttWireReplay replay = new MqttWireReplay(new MqttWireCaptureReader(new ByteArrayInputStream(capture(packets, 0))));
+    replay.setSpeed(0);
+    ByteArrayOutputStream file = new ByteArrayOutputStream();
+    MqttWireCapture capture = new MqttWireCapture(file);
+    MqttConnectOptions options = options();
+    options.setWireCapture(capture);
+    MqttAsyncClient client = new MqttAsyncClient(replay.start(), methodName, new MemoryPersistence());
+    Collector collector = new Collector();
+    client.setCallback(collector);
+    client.connect(options).waitForCompletion(10000);
+    Assert.assertTrue(replay.waitForCompletion(10000));
+    Assert.assertNull(replay.getFailure());
+    Assert.assertEquals(5, replay.getPacketCount());
+    collector.waitFor(3, 10000);
+    Assert.assertEquals(Arrays.asList(new String[] {"plant/line-1", "plant/line-2", "plant/line-3"}), collector.topics);
+    client.disconnect().waitForCompletion(10000);
+    client.close();
+    capture.close();
+    Assert.assertNull(capture.getFailure());
+
+    // CONNECT, CONNACK, the publishes and release, PUBACK, PUBREC, PUBCOMP, DISCONNECT
+    MqttWireCaptureReader reader = new MqttWireCaptureReader(new ByteArrayInputStream(file.toByteArray()));
+    Assert.assertTrue(reader.next());
+    Assert.assertEquals(MqttWireCapture.RECORD_CONNECTED, reader.getType());
+    List<Integer> sent = new ArrayList<Integer>();
+    List<byte[]> received = new ArrayList<byte[]>();
+    long time = 0;
+    while (reader.next()) {
+      Assert.assertTrue(reader.getTime() >= time);
+      time = reader.getTime();
+      if (reader.getType() == MqttWireCapture.RECORD_SENT) {
+        sent.add(Integer.valueOf(reader.getPacketType()));
+      } else {
+        Assert.assertEquals(MqttWireCapture.RECORD_RECEIVED, reader.getType());
+        received.add(reader.getPacket());
+      }
+    }
+    reader.close();
+    // A PUBREC is sent on receipt but a PUBACK only once the message is delivered
+    Collections.sort(sent);
+    Assert.assertEquals(Arrays.asList(new Integer[] {1, 4, 5, 7, 14}), sent);
+    Assert.assertEquals(5, received.size());
+    Assert.assertArrayEquals(CONNACK, received.get(0));
+    for (int i = 0; i < packets.length; i++) {
+      Assert.assertArrayEquals(packets[i], received.get(i + 1));
+    }
+    Assert.assertEquals(11, capture.getRecordCount());
+
+    // The new capture plays back the same messages
+    replay = new MqttWireReplay(new MqttWireCaptureReader(new ByteArrayInputStream(file.toByteArray())));
+    replay.setSpeed(0);
+    client = new MqttAsyncClient(replay.start(), methodName, new MemoryPersistence());
+    Collector again = new Collector();
+    client.setCallback(again);
+    client.connect(options()).waitForCompletion(10000);
+    Assert.assertTrue(replay.waitForCompletion(10000));
+    again.waitFor(3, 10000);
+    Assert.assertEquals(collector.topics, again.topics);
+    for (int i = 0; i < 3; i++) {
+      Assert.assertArrayEquals(collector.payloads.get(i), again.payloads.get(i));
+    }
+    client.disconnect().waitForCompletion(10000);
+    client.close();
+  }
+
+  /**
+   * Packets are played back at their captured times divided by the speed
+   */
+  @Test
+  public void testSpeed() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    byte[][] packets = new byte[][] {publish("a", 0, 0, "1"), publish("a", 0, 0, "2"), publish("a", 0, 0, "3")};
+    byte[] file = capture(packets, 200);
+    double[] speeds = new double[] {1, 4};
+    for (int s = 0; s < speeds.length; s++) {
+      MqttWireReplay replay = new MqttWireReplay(new MqttWireCaptureReader(new ByteArrayInputStream(file)));
+      replay.setSpeed(speeds[s]);
+      MqttAsyncClient client = new MqttAsyncClient(replay.start(), methodName, new MemoryPersistence());
+      Collector collector = new Collector();
+      client.setCallback(collector);
+      client.connect(options()).waitForCompletion(10000);
+      Assert.assertTrue(replay.waitForCompletion(10000));
+      collector.waitFor(3, 10000);
+      long spread = (collector.times.get(2).longValue() - collector.times.get(0).longValue()) / 1000000;
+      log.info("speed " + speeds[s] + ": messages " + spread + "ms apart, replay took "
+          + replay.getDuration() / 1000000 + "ms");
+      Assert.assertTrue(spread >= 400 / speeds[s] * 0.9);
+      Assert.assertTrue(spread < 400 / speeds[s] + 200);
+      client.disconnect().waitForCompletion(10000);
+      client.close();
+    }
+  }
+
+  /**
+   * A capture cut short is read up to its last whole record, and a file
+   * that is not a capture is rejected
+   */
+  @Test
+  public void testReader() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    byte[] packet = publish("a", 0, 0, "payload");
+    byte[] file = capture(new byte[][] {packet, packet}, 0);
+    byte[] cut = new byte[file.length - 3];
+    System.arraycopy(file, 0, cut, 0, cut.length);
+    MqttWireCaptureReader reader = new MqttWireCaptureReader(new ByteArrayInputStream(cut));
+    int records = 0;
+    while (reader.next()) {
+      records++;
+    }
+    Assert.assertEquals(3, records);
+    Assert.assertArrayEquals(packet, reader.getPacket());
+    Assert.assertEquals(3, reader.getPacketType());
+
+    try {
+      new MqttWireCaptureReader(new ByteArrayInputStream("MQTT".getBytes("UTF-8")));
+      Assert.fail("not a capture");
+    }
+    catch (IOException e) {
+      // expected
+    }
+    try {
+      new MqttWireReplay(new MqttWireCaptureReader(new ByteArrayInputStream(file))).setConnection(-1);
+      Assert.fail("negative connection");
+    }
+    catch (IllegalArgumentException e) {
+      // expected
+    }
+    MqttWireReplay replay = new MqttWireReplay(new MqttWireCaptureReader(new ByteArrayInputStream(file)));
+    replay.setConnection(1);
+    try {
+      replay.start();
+      Assert.fail("no second connection");
+    }
+    catch (IOException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,114 @@
+/** Copyright (c)  2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test.performance;
+
+import java.io.File;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+import org.eclipse.paho.client.mqttv3.test.ManualTest;
+import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
+import org.eclipse.paho.client.mqttv3.test.properties.TestProperties;
+import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Measures the rate at which 64 KB QoS 2 messages are received, with the whole
+ * message persisted and with only its state persisted.
+ *
+ * >> The tests need a server, and are run manually. <<
+ * The rates are written to the log for comparison.
+ */
+@Category(ManualTest.class)
+public class InboundQoS2ManualTest implements MqttCallback {
+
+  static final Class<?> cclass = InboundQoS2ManualTest.class;
+  private static final String className = cclass.getName();
+  private static final Logger log = Logger.getLogger(className);
+
+  private static final int PAYLOAD_SIZE = 64 * 1024;
+  private static final int MESSAGE_COUNT = 1000;
+  private static final long TIMEOUT = 5 * 60 * 1000;
+
+  private int received = 0;
+
+  @Test
+  public void testInboundQoS2Persisted() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    measure(methodName, false);
+  }
+
+  @Test
+  public void testInboundQoS2StateOnly() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    measure(methodName, true);
+  }
+
+  private void measure(String methodName, boolean stateOnly) throws Exception {
+    String serverURI = TestProperties.getServerURI().toString();
+    String topic = className + "/" + methodName;
+    File dir = new File(TestProperties.getTemporaryDirectory(), methodName);
+
+    MqttConnectOptions options = new MqttConnectOptions();
+    options.setInboundQoS2StateOnly(stateOnly);
+    MqttClient subscriber = new MqttClient(serverURI, methodName + "-sub", new MqttDefaultFilePersistence(dir.getAbsolutePath()));
+    subscriber.setCallback(this);
+    subscriber.connect(options);
+    subscriber.subscribe(topic, 2);
+
+    MqttClient publisher = new MqttClient(serverURI, methodName + "-pub", new MqttDefaultFilePersistence(dir.getAbsolutePath()));
+    publisher.connect();
+
+    received = 0;
+    byte[] payload = new byte[PAYLOAD_SIZE];
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < MESSAGE_COUNT; i++) {
+      publisher.publish(topic, payload, 2, false);
+    }
+    synchronized (this) {
+      long end = start + TIMEOUT;
+      while (received < MESSAGE_COUNT && System.currentTimeMillis() < end) {
+        wait(1000);
+      }
+    }
+    long elapsed = Math.max(1, System.currentTimeMillis() - start);
+    log.info(methodName + ": received " + received + " messages of " + PAYLOAD_SIZE + " bytes in " + elapsed
+        + "ms, " + (received * 1000L / elapsed) + " messages/s");
+    Assert.assertEquals(MESSAGE_COUNT, received);
+
+    Utility.disconnectAndCloseClient(publisher);
+    Utility.disconnectAndCloseClient(subscriber);
+  }
+
+  public void connectionLost(Throwable cause) {
+    log.info("Connection lost: " + cause);
+  }
+
+  public synchronized void messageArrived(String topic, MqttMessage message) throws Exception {
+    received++;
+    notifyAll();
+  }
+
+  public void deliveryComplete(IMqttDeliveryToken token) {
+  }
+}
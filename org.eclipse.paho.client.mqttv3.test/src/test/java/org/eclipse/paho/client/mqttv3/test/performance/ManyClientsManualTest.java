@@ -0,0 +1,283 @@
+/** Copyright (c)  2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test.performance;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttThreadFactory;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.test.ManualTest;
+import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
+import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Connects many clients to one fake server, and measures the heap and
+ * threads they use and the rate they publish at, with platform threads and
+ * with virtual threads from a thread factory.
+ *
+ * >> The test is run manually. <<
+ * The number of clients is set with the system property
+ * <code>clients</code>, 20000 by default; the process may need a higher
+ * limit of threads and open files. Virtual threads are only measured on a
+ * Java runtime that has them.
+ */
+@Category(ManualTest.class)
+public class ManyClientsManualTest {
+
+  static final Class<?> cclass = ManyClientsManualTest.class;
+  private static final String className = cclass.getName();
+  private static final Logger log = Logger.getLogger(className);
+
+  private static final int CLIENTS = Integer.getInteger("clients", 20000).intValue();
+  private static final int PUBLISHES = 50;
+
+  /**
+   * A fake server that serves every connection from one thread, answers
+   * each CONNECT and counts the publishes.
+   */
+  private static class SelectorServer extends Thread {
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private volatile boolean running = true;
+    private long publishes = 0;
+
+    SelectorServer() throws Exception {
+      selector = Selector.open();
+      serverChannel = ServerSocketChannel.open();
+      serverChannel.socket().bind(new InetSocketAddress("localhost", 0), 4096);
+      serverChannel.configureBlocking(false);
+      serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+      setDaemon(true);
+    }
+
+    String getServerURI() {
+      return "tcp://localhost:" + serverChannel.socket().getLocalPort();
+    }
+
+    synchronized long getPublishes() {
+      return publishes;
+    }
+
+    void shutdown() throws Exception {
+      running = false;
+      selector.wakeup();
+      join(10000);
+    }
+
+    /**
+     * Handles the whole packets in the buffer, and leaves a partial one
+     */
+    private void handle(SocketChannel channel, ByteBuffer buffer) throws Exception {
+      buffer.flip();
+      while (buffer.remaining() >= 2) {
+        buffer.mark();
+        int type = (buffer.get() & 0xFF) >> 4;
+        int length = 0;
+        int multiplier = 1;
+        int digit = 0x80;
+        while ((digit & 0x80) != 0 && buffer.hasRemaining()) {
+          digit = buffer.get() & 0xFF;
+          length += (digit & 0x7F) * multiplier;
+          multiplier *= 128;
+        }
+        if ((digit & 0x80) != 0 || buffer.remaining() < length) {
+          buffer.reset();
+          break;
+        }
+        buffer.position(buffer.position() + length);
+        if (type == 1) {
+          channel.write(ByteBuffer.wrap(new byte[] {0x20, 0x02, 0x00, 0x00}));
+        }
+        else if (type == 3) {
+          synchronized (this) {
+            publishes++;
+          }
+        }
+      }
+      buffer.compact();
+    }
+
+    public void run() {
+      try {
+        while (running) {
+          selector.select(100);
+          Iterator keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = (SelectionKey) keys.next();
+            keys.remove();
+            if (key.isAcceptable()) {
+              SocketChannel channel;
+              while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(1024));
+              }
+            }
+            else if (key.isReadable()) {
+              SocketChannel channel = (SocketChannel) key.channel();
+              ByteBuffer buffer = (ByteBuffer) key.attachment();
+              int read;
+              try {
+                read = channel.read(buffer);
+              }
+              catch (Exception e) {
+                read = -1;
+              }
+              if (read < 0) {
+                key.cancel();
+                channel.close();
+              }
+              else {
+                handle(channel, buffer);
+              }
+            }
+          }
+        }
+        selector.close();
+        serverChannel.close();
+      }
+      catch (Exception e) {
+        log.log(Level.SEVERE, "server failed", e);
+      }
+    }
+  }
+
+  /**
+   * Returns a factory of virtual threads, or null if the Java runtime has
+   * none.
+   */
+  private static MqttThreadFactory virtualThreadFactory() {
+    try {
+      Method ofVirtual = Thread.class.getMethod("ofVirtual");
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      final Object builder = ofVirtual.invoke(null);
+      final Method name = builderClass.getMethod("name", String.class);
+      final Method unstarted = builderClass.getMethod("unstarted", Runnable.class);
+      return new MqttThreadFactory() {
+        public Thread newThread(Runnable runnable, String threadName) {
+          try {
+            synchronized (builder) {
+              return (Thread) unstarted.invoke(name.invoke(builder, threadName), runnable);
+            }
+          }
+          catch (Exception e) {
+            throw new IllegalStateException(e.toString());
+          }
+        }
+      };
+    }
+    catch (Exception e) {
+      return null;
+    }
+  }
+
+  private static long usedHeap() throws Exception {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private static void measure(String threads, MqttThreadFactory factory) throws Exception {
+    SelectorServer server = new SelectorServer();
+    server.start();
+    // The client trace costs far more than the work measured, so is turned off
+    Logger clientLog = Logger.getLogger("org.eclipse.paho.client.mqttv3");
+    Level level = clientLog.getLevel();
+    clientLog.setLevel(Level.INFO);
+
+    long heapBefore = usedHeap();
+    int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+    MqttAsyncClient[] clients = new MqttAsyncClient[CLIENTS];
+    IMqttToken[] tokens = new IMqttToken[CLIENTS];
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < CLIENTS; i++) {
+      MqttConnectOptions options = new MqttConnectOptions();
+      // The server does not answer pings
+      options.setKeepAliveInterval(0);
+      options.setThreadFactory(factory);
+      clients[i] = new MqttAsyncClient(server.getServerURI(), "many-" + i, new MemoryPersistence());
+      tokens[i] = clients[i].connect(options);
+    }
+    for (int i = 0; i < CLIENTS; i++) {
+      tokens[i].waitForCompletion(60000);
+    }
+    long connectTime = System.currentTimeMillis() - start;
+    long heap = usedHeap() - heapBefore;
+    int platformThreads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+
+    start = System.currentTimeMillis();
+    byte[] payload = new byte[32];
+    for (int n = 0; n < PUBLISHES; n++) {
+      for (int i = 0; i < CLIENTS; i++) {
+        clients[i].publish("many/" + i, payload, 0, false);
+      }
+    }
+    long total = (long) CLIENTS * PUBLISHES;
+    long end = System.currentTimeMillis() + 600000;
+    while (server.getPublishes() < total && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    long publishTime = Math.max(1, System.currentTimeMillis() - start);
+
+    for (int i = 0; i < CLIENTS; i++) {
+      tokens[i] = clients[i].disconnect(0);
+    }
+    for (int i = 0; i < CLIENTS; i++) {
+      tokens[i].waitForCompletion(60000);
+      clients[i].close();
+    }
+    server.shutdown();
+    clientLog.setLevel(level);
+
+    log.info(threads + ": " + CLIENTS + " clients connected in " + connectTime + "ms, "
+        + heap / CLIENTS + " bytes of heap and " + platformThreads + " platform threads in all, "
+        + server.getPublishes() + " publishes at " + server.getPublishes() * 1000 / publishTime + "/s");
+  }
+
+  @Test
+  public void testPlatformThreads() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    measure("platform threads", null);
+  }
+
+  @Test
+  public void testVirtualThreads() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    MqttThreadFactory factory = virtualThreadFactory();
+    if (factory == null) {
+      log.info("virtual threads are not available");
+      return;
+    }
+    measure("virtual threads", factory);
+  }
+}
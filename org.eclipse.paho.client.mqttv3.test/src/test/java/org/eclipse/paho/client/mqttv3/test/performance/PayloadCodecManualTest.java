@@ -0,0 +1,122 @@
+/** Copyright (c)  2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test.performance;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.DeflatePayloadCodec;
+import org.eclipse.paho.client.mqttv3.test.ManualTest;
+import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
+import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Measures the CPU time to compress and decompress telemetry payloads of
+ * several sizes with the deflate codec at several levels, against the
+ * bytes each saves on the wire.
+ *
+ * >> The test is run manually. <<
+ * The times and sizes are written to the log for comparison. Only the
+ * codec is timed, on the current thread, so the cost is what a publishing
+ * thread and a callback thread each pay per message.
+ */
+@Category(ManualTest.class)
+public class PayloadCodecManualTest {
+
+  static final Class<?> cclass = PayloadCodecManualTest.class;
+  private static final String className = cclass.getName();
+  private static final Logger log = Logger.getLogger(className);
+
+  private static final int BYTES_PER_ROUND = 64 * 1024 * 1024;
+  private static final int ROUNDS = 5;
+  private static final int[] SIZES = {256, 1024, 4096, 65536};
+  private static final int[] LEVELS = {1, 6, 9};
+
+  /**
+   * Returns a JSON payload of readings of about the given length, with
+   * values that vary as real readings do.
+   */
+  private static byte[] telemetry(int length) throws Exception {
+    StringBuffer sb = new StringBuffer("{\"device\":\"plant-eu-west-1/line-7/device-1042\",\"readings\":[");
+    for (int i = 0; sb.length() < length - 2; i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append("{\"timestamp\":").append(1413720000000L + i * 250L)
+          .append(",\"vibration\":").append((i * 7919) % 1000 / 100.0)
+          .append(",\"temperature\":").append(20 + (i * 31) % 17)
+          .append(",\"status\":\"").append((i % 50 == 0) ? "warning" : "ok").append("\"}");
+    }
+    return sb.append("]}").toString().getBytes("UTF-8");
+  }
+
+  /**
+   * Returns the CPU nanoseconds to encode, then to decode, the payload
+   * once, and the encoded length.
+   */
+  private static long[] measure(DeflatePayloadCodec codec, byte[] payload) throws Exception {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    int count = Math.max(100, BYTES_PER_ROUND / payload.length / 16);
+    byte[] encoded = codec.encode(payload, 0, payload.length);
+    long start = threads.getCurrentThreadCpuTime();
+    for (int i = 0; i < count; i++) {
+      encoded = codec.encode(payload, 0, payload.length);
+    }
+    long encodeTime = threads.getCurrentThreadCpuTime() - start;
+    if (encoded == null) {
+      return new long[] {encodeTime / count, 0, payload.length};
+    }
+    byte[] decoded = null;
+    start = threads.getCurrentThreadCpuTime();
+    for (int i = 0; i < count; i++) {
+      decoded = codec.decode(encoded, 0, encoded.length);
+    }
+    long decodeTime = threads.getCurrentThreadCpuTime() - start;
+    if (decoded.length != payload.length) {
+      throw new IllegalStateException();
+    }
+    return new long[] {encodeTime / count, decodeTime / count, encoded.length};
+  }
+
+  @Test
+  public void testCpuAgainstBytesSaved() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    for (int s = 0; s < SIZES.length; s++) {
+      byte[] payload = telemetry(SIZES[s]);
+      for (int l = 0; l < LEVELS.length; l++) {
+        DeflatePayloadCodec codec = new DeflatePayloadCodec(0, LEVELS[l]);
+        // Warm up
+        measure(codec, payload);
+        long encode = 0;
+        long decode = 0;
+        long length = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+          long[] result = measure(codec, payload);
+          encode += result[0];
+          decode += result[1];
+          length = result[2];
+        }
+        long saved = payload.length - length;
+        log.info(payload.length + " bytes at level " + LEVELS[l] + ": " + length + " bytes sent, "
+            + (100 * saved / payload.length) + "% saved, encode " + encode / ROUNDS + " ns, decode "
+            + decode / ROUNDS + " ns of CPU, " + ((saved == 0) ? 0 : encode / ROUNDS / saved)
+            + " ns per byte saved");
+      }
+    }
+  }
+}
@@ -0,0 +1,203 @@
+/** Copyright (c)  2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test.performance;
+
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.test.ManualTest;
+import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
+import org.eclipse.paho.client.mqttv3.test.utilities.FakeMqttServer;
+import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Measures the CPU time per publish of small QoS 0 messages on a long
+ * topic, published with the topic name and with a prepared topic, and the
+ * CPU time to validate the topic and build the publish header alone.
+ *
+ * >> The test is run manually. <<
+ * The times are written to the log for comparison. They include the CPU
+ * time of every thread, including the fake server that discards the
+ * publishes, which costs the same in both cases.
+ */
+@Category(ManualTest.class)
+public class PreparedTopicManualTest {
+
+  static final Class<?> cclass = PreparedTopicManualTest.class;
+  private static final String className = cclass.getName();
+  private static final Logger log = Logger.getLogger(className);
+
+  private static final int PUBLISH_COUNT = 200000;
+  private static final int BATCH = 10000;
+  private static final int ROUNDS = 5;
+  private static final String TOPIC = "acme/plant-eu-west-1/building-03/line-7/device-1042/telemetry/vibration/rms";
+
+  /**
+   * A fake server that accepts one connection and discards everything it
+   * is sent.
+   */
+  private static class SinkServer extends FakeMqttServer {
+
+    SinkServer() throws Exception {
+    }
+
+    protected void serve() throws Exception {
+      Socket socket = serverSocket.accept();
+      InputStream in = socket.getInputStream();
+      connect(new DataInputStream(in), socket.getOutputStream());
+      byte[] buffer = new byte[64 * 1024];
+      while (in.read(buffer) >= 0) {
+        // discard
+      }
+      socket.close();
+    }
+  }
+
+  private static long totalCpuTime(ThreadMXBean threads) {
+    long total = 0;
+    long[] ids = threads.getAllThreadIds();
+    for (int i = 0; i < ids.length; i++) {
+      long time = threads.getThreadCpuTime(ids[i]);
+      if (time > 0) {
+        total += time;
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Returns the CPU nanoseconds per publish.
+   */
+  private static long measure(MqttAsyncClient client, boolean prepared) throws Exception {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    MqttTopic topic = client.getTopic(TOPIC);
+    byte[] payload = new byte[16];
+    IMqttDeliveryToken token = null;
+    long start = totalCpuTime(threads);
+    for (int i = 0; i < PUBLISH_COUNT; i++) {
+      MqttMessage message = new MqttMessage(payload);
+      message.setQos(0);
+      if (prepared) {
+        token = client.publish(topic, message);
+      }
+      else {
+        token = client.publish(TOPIC, message);
+      }
+      // Every queued publish holds a message id until it is sent
+      if (i % BATCH == BATCH - 1) {
+        token.waitForCompletion(60000);
+      }
+    }
+    token.waitForCompletion(60000);
+    return (totalCpuTime(threads) - start) / PUBLISH_COUNT;
+  }
+
+  @Test
+  public void testPublishCpuTime() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    SinkServer server = new SinkServer();
+    server.start();
+    MqttAsyncClient client = new MqttAsyncClient(server.getServerURI(), methodName, new MemoryPersistence());
+    // The server does not answer pings
+    MqttConnectOptions options = new MqttConnectOptions();
+    options.setKeepAliveInterval(0);
+    client.connect(options).waitForCompletion(10000);
+
+    // The client trace costs far more than a publish, so is turned off
+    Logger clientLog = Logger.getLogger("org.eclipse.paho.client.mqttv3");
+    Level level = clientLog.getLevel();
+    clientLog.setLevel(Level.INFO);
+
+    // Warm up both paths
+    measure(client, false);
+    measure(client, true);
+    long named = 0;
+    long prepared = 0;
+    for (int round = 0; round < ROUNDS; round++) {
+      named += measure(client, false);
+      prepared += measure(client, true);
+    }
+    clientLog.setLevel(level);
+    log.info("topic name: " + named / ROUNDS + " ns, prepared topic: " + prepared / ROUNDS
+        + " ns of CPU per publish");
+
+    client.disconnect().waitForCompletion(10000);
+    client.close();
+  }
+
+  /**
+   * Returns the CPU nanoseconds to validate the topic, when it is not
+   * prepared, and build the header of a publish.
+   */
+  private static long measureHeader(byte[] encodedTopic) throws Exception {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    MqttMessage message = new MqttMessage(new byte[16]);
+    message.setQos(1);
+    int length = 0;
+    long start = threads.getCurrentThreadCpuTime();
+    for (int i = 0; i < PUBLISH_COUNT; i++) {
+      MqttPublish publish;
+      if (encodedTopic != null) {
+        publish = new MqttPublish(TOPIC, encodedTopic, message);
+      }
+      else {
+        MqttTopic.validate(TOPIC, false);
+        publish = new MqttPublish(TOPIC, message);
+      }
+      publish.setMessageId(1 + i % 65535);
+      length += publish.getHeader().length;
+    }
+    long time = threads.getCurrentThreadCpuTime() - start;
+    if (length == 0) {
+      throw new IllegalStateException();
+    }
+    return time / PUBLISH_COUNT;
+  }
+
+  @Test
+  public void testHeaderCpuTime() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    byte[] utf8 = TOPIC.getBytes("UTF-8");
+    byte[] encoded = new byte[utf8.length + 2];
+    encoded[1] = (byte) utf8.length;
+    System.arraycopy(utf8, 0, encoded, 2, utf8.length);
+
+    measureHeader(null);
+    measureHeader(encoded);
+    long named = 0;
+    long prepared = 0;
+    for (int round = 0; round < ROUNDS; round++) {
+      named += measureHeader(null);
+      prepared += measureHeader(encoded);
+    }
+    log.info("topic name: " + named / ROUNDS + " ns, prepared topic: " + prepared / ROUNDS
+        + " ns of CPU per header");
+  }
+}
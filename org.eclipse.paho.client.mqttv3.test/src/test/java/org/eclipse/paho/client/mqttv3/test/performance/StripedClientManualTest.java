@@ -0,0 +1,235 @@
+/** Copyright (c)  2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test.performance;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttStripedClient;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.test.ManualTest;
+import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
+import org.eclipse.paho.client.mqttv3.test.utilities.FakeMqttServer;
+import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Measures the rate a single thread publishes QoS 1 messages at over 1 to
+ * 8 stripes to a stub broker on the loopback interface.
+ *
+ * >> The test is run manually. <<
+ * The rates are written to the log for comparison. The stub broker holds
+ * back the acknowledgements of the publishes it reads for a millisecond,
+ * as a broker across a network would, so that each connection is bounded
+ * by its in-flight window rather than by the CPU of the machine.
+ */
+@Category(ManualTest.class)
+public class StripedClientManualTest {
+
+  static final Class<?> cclass = StripedClientManualTest.class;
+  private static final String className = cclass.getName();
+  private static final Logger log = Logger.getLogger(className);
+
+  private static final int PUBLISH_COUNT = 20000;
+  private static final int TOPICS = 256;
+  private static final int ACK_DELAY_MILLIS = 1;
+  // The default in-flight window, less one for the publish being completed
+  private static final int WINDOW = 9;
+  private static final int[] STRIPES = {1, 2, 4, 8};
+
+  /**
+   * A stub broker that accepts any number of connections and acknowledges
+   * each batch of QoS 1 publishes it reads after a delay.
+   */
+  private static class StubBroker extends FakeMqttServer {
+
+    StubBroker() throws Exception {
+    }
+
+    void shutdown() throws Exception {
+      serverSocket.close();
+    }
+
+    protected void serve() throws Exception {
+      try {
+        while (true) {
+          final Socket socket = serverSocket.accept();
+          socket.setTcpNoDelay(true);
+          Thread connection = new Thread() {
+            public void run() {
+              serveConnection(socket);
+            }
+          };
+          connection.setDaemon(true);
+          connection.start();
+        }
+      }
+      catch (Exception e) {
+        // closed
+      }
+    }
+
+    private void serveConnection(Socket socket) {
+      try {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+        connect(in, out);
+        ByteArrayOutputStream acks = new ByteArrayOutputStream();
+        while (true) {
+          // Read whatever has arrived, then acknowledge it after the delay
+          do {
+            int type = in.readUnsignedByte() >> 4;
+            int remLen = readRemainingLength(in);
+            if (type != 3) {
+              socket.close(); // DISCONNECT
+              return;
+            }
+            int topicLength = in.readUnsignedShort();
+            in.skipBytes(topicLength);
+            int msgId = in.readUnsignedShort();
+            in.skipBytes(remLen - 2 - topicLength - 2);
+            acks.write(new byte[] {0x40, 0x02, (byte) (msgId >> 8), (byte) msgId});
+          } while (in.available() > 0);
+          Thread.sleep(ACK_DELAY_MILLIS);
+          acks.writeTo(out);
+          out.flush();
+          acks.reset();
+        }
+      }
+      catch (Exception e) {
+        // the client has gone
+      }
+    }
+  }
+
+  /**
+   * Keeps no more publishes outstanding on each stripe than its window.
+   */
+  private static class Windows implements IMqttActionListener {
+    private final MqttStripedClient client;
+    private final int[] outstanding;
+
+    Windows(MqttStripedClient client) {
+      this.client = client;
+      this.outstanding = new int[client.getStripeCount()];
+    }
+
+    synchronized void acquire(int stripe) throws InterruptedException {
+      while (outstanding[stripe] >= WINDOW) {
+        wait();
+      }
+      outstanding[stripe]++;
+    }
+
+    synchronized void awaitIdle() throws InterruptedException {
+      for (int i = 0; i < outstanding.length; i++) {
+        while (outstanding[i] > 0) {
+          wait();
+        }
+      }
+    }
+
+    private synchronized void release(IMqttToken token) {
+      for (int i = 0; i < outstanding.length; i++) {
+        if (token.getClient() == client.getStripe(i)) {
+          outstanding[i]--;
+        }
+      }
+      notifyAll();
+    }
+
+    public void onSuccess(IMqttToken asyncActionToken) {
+      release(asyncActionToken);
+    }
+
+    public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+      log.warning("publish failed: " + exception);
+      release(asyncActionToken);
+    }
+  }
+
+  /**
+   * Returns the publishes per second over the given number of stripes.
+   */
+  private static long measure(StubBroker broker, int stripes) throws Exception {
+    MqttClientPersistence[] persistence = new MqttClientPersistence[stripes];
+    for (int i = 0; i < stripes; i++) {
+      persistence[i] = new MemoryPersistence();
+    }
+    MqttStripedClient client = new MqttStripedClient(broker.getServerURI(), "striped" + stripes, persistence);
+    MqttConnectOptions options = new MqttConnectOptions();
+    options.setKeepAliveInterval(0);
+    client.connect(options).waitForCompletion(10000);
+
+    String[] topics = new String[TOPICS];
+    int[] stripeOf = new int[TOPICS];
+    for (int i = 0; i < TOPICS; i++) {
+      topics[i] = "ingest/device-" + i;
+      stripeOf[i] = client.getStripeIndex(topics[i]);
+    }
+    Windows windows = new Windows(client);
+    byte[] payload = new byte[64];
+    long start = System.nanoTime();
+    for (int i = 0; i < PUBLISH_COUNT; i++) {
+      int topic = i % TOPICS;
+      windows.acquire(stripeOf[topic]);
+      MqttMessage message = new MqttMessage(payload);
+      message.setQos(1);
+      client.publish(topics[topic], topics[topic], message, null, windows);
+    }
+    windows.awaitIdle();
+    long elapsed = System.nanoTime() - start;
+
+    client.disconnect().waitForCompletion(10000);
+    client.close();
+    return PUBLISH_COUNT * 1000000000L / elapsed;
+  }
+
+  @Test
+  public void testScaling() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    StubBroker broker = new StubBroker();
+    broker.start();
+
+    // The client trace costs far more than a publish, so is turned off
+    Logger clientLog = Logger.getLogger("org.eclipse.paho.client.mqttv3");
+    Level level = clientLog.getLevel();
+    clientLog.setLevel(Level.INFO);
+
+    // Warm up
+    measure(broker, STRIPES[STRIPES.length - 1]);
+    long single = 0;
+    for (int i = 0; i < STRIPES.length; i++) {
+      long rate = measure(broker, STRIPES[i]);
+      if (i == 0) {
+        single = rate;
+      }
+      log.info(STRIPES[i] + " stripes: " + rate + " publishes per second, " + (rate * 100 / single)
+          + "% of one stripe");
+    }
+    clientLog.setLevel(level);
+    broker.shutdown();
+  }
+}
@@ -0,0 +1,103 @@
+/** Copyright (c)  2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test.performance;
+
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.util.SubscriptionTrie;
+import org.eclipse.paho.client.mqttv3.test.ManualTest;
+import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
+import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Measures the cost of matching a topic with 100,000 filters registered, for
+ * topics seen for the first time and for topics whose result is cached.
+ *
+ * >> The test is run manually. <<
+ * The costs are written to the log for comparison.
+ */
+@Category(ManualTest.class)
+public class SubscriptionTrieManualTest {
+
+  static final Class<?> cclass = SubscriptionTrieManualTest.class;
+  private static final String className = cclass.getName();
+  private static final Logger log = Logger.getLogger(className);
+
+  private static final int FILTER_COUNT = 100000;
+  private static final int TOPIC_COUNT = 4000;
+  private static final int ROUNDS = 50;
+
+  @Test
+  public void testMatchWith100kFilters() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+
+    // site/<n>/device/<m>/<metric> with a mix of exact and wildcard filters
+    SubscriptionTrie trie = new SubscriptionTrie();
+    long start = System.nanoTime();
+    for (int i = 0; i < FILTER_COUNT; i++) {
+      String site = "site/" + (i % 1000);
+      switch (i % 4) {
+        case 0:
+          trie.put(site + "/device/" + i + "/temperature", Integer.valueOf(i));
+          break;
+        case 1:
+          trie.put(site + "/device/" + i + "/+", Integer.valueOf(i));
+          break;
+        case 2:
+          trie.put(site + "/+/" + i + "/#", Integer.valueOf(i));
+          break;
+        default:
+          trie.put(site + "/device/" + i + "/#", Integer.valueOf(i));
+          break;
+      }
+    }
+    log.info("Registered " + FILTER_COUNT + " filters in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+    String[] topics = new String[TOPIC_COUNT];
+    for (int i = 0; i < TOPIC_COUNT; i++) {
+      int device = (i * 25) % FILTER_COUNT;
+      topics[i] = "site/" + (device % 1000) + "/device/" + device + "/temperature";
+    }
+
+    int matched = 0;
+    long uncached = 0;
+    for (int round = 0; round < ROUNDS; round++) {
+      // changing a filter empties the cache, so every topic is matched in the tree
+      trie.put("unrelated/" + round, Integer.valueOf(round));
+      start = System.nanoTime();
+      for (int i = 0; i < TOPIC_COUNT; i++) {
+        matched += trie.match(topics[i]).length;
+      }
+      uncached += System.nanoTime() - start;
+    }
+
+    long cached = 0;
+    for (int round = 0; round < ROUNDS; round++) {
+      start = System.nanoTime();
+      for (int i = 0; i < TOPIC_COUNT; i++) {
+        matched += trie.match(topics[i]).length;
+      }
+      cached += System.nanoTime() - start;
+    }
+
+    Assert.assertTrue(matched > 0);
+    long matches = (long) ROUNDS * TOPIC_COUNT;
+    log.info("Uncached match: " + (uncached / matches) + " ns");
+    log.info("Cached match: " + (cached / matches) + " ns");
+  }
+}
@@ -0,0 +1,110 @@
+/** Copyright (c)  2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test.performance;
+
+import java.util.Random;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttTopicAliases;
+import org.eclipse.paho.client.mqttv3.test.ManualTest;
+import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
+import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Measures the bytes on the wire, and the time to encode them, for 8 byte
+ * sensor readings published on 400 hierarchical topics, under MQTT 3.1.1
+ * and under MQTT 5 with different numbers of topic aliases.
+ *
+ * >> The test is run manually. <<
+ * The sizes are written to the log for comparison.
+ */
+@Category(ManualTest.class)
+public class TopicAliasManualTest {
+
+  static final Class<?> cclass = TopicAliasManualTest.class;
+  private static final String className = cclass.getName();
+  private static final Logger log = Logger.getLogger(className);
+
+  private static final int PUBLISH_COUNT = 200000;
+  private static final String[] METRICS = {"temperature", "humidity", "pressure", "vibration/rms"};
+
+  private static String[] sensorTopics() {
+    String[] topics = new String[100 * METRICS.length];
+    int i = 0;
+    for (int device = 0; device < 100; device++) {
+      for (int metric = 0; metric < METRICS.length; metric++) {
+        topics[i++] = "acme/plant-eu-west-1/building-0" + (device % 4) + "/line-" + (device % 10)
+            + "/device-" + (1000 + device) + "/telemetry/" + METRICS[metric];
+      }
+    }
+    return topics;
+  }
+
+  /**
+   * Returns the bytes written for the publishes, or the time taken in
+   * nanoseconds.
+   * @param aliasMaximum the aliases the server accepts, or -1 for MQTT 3.1.1
+   */
+  private static long[] measure(String[] topics, int aliasMaximum) throws Exception {
+    MqttTopicAliases aliases = (aliasMaximum > 0) ? new MqttTopicAliases(aliasMaximum) : null;
+    int version = (aliasMaximum < 0) ? MqttConnectOptions.MQTT_VERSION_3_1_1 : MqttConnectOptions.MQTT_VERSION_5;
+    // Most readings come from a few busy devices, as is typical
+    Random random = new Random(42);
+    byte[] reading = new byte[8];
+    long bytes = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < PUBLISH_COUNT; i++) {
+      int index = (int) (Math.abs(random.nextGaussian()) * topics.length / 4) % topics.length;
+      MqttMessage message = new MqttMessage(reading);
+      message.setQos(1);
+      MqttPublish publish = new MqttPublish(topics[index], message);
+      publish.setMessageId(1 + i % 65535);
+      publish.setMqttVersion(version);
+      if (aliases != null) {
+        aliases.apply(publish);
+      }
+      bytes += publish.getHeader().length + publish.getPayloadLength();
+    }
+    return new long[] {bytes, System.nanoTime() - start};
+  }
+
+  @Test
+  public void testBytesOnWire() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    String[] topics = sensorTopics();
+    // Warm up the encoders
+    measure(topics, 64);
+
+    long[] baseline = measure(topics, -1);
+    log.info("MQTT 3.1.1: " + baseline[0] / PUBLISH_COUNT + " bytes, "
+        + baseline[1] / PUBLISH_COUNT + " ns per publish");
+    int[] maximums = {0, 16, 64, 256, 1024};
+    for (int i = 0; i < maximums.length; i++) {
+      long[] result = measure(topics, maximums[i]);
+      long saved = 100 - (100 * result[0] / baseline[0]);
+      log.info("MQTT 5, " + maximums[i] + " aliases: " + result[0] / PUBLISH_COUNT + " bytes, "
+          + result[1] / PUBLISH_COUNT + " ns per publish, " + saved + "% fewer bytes");
+      if (maximums[i] >= topics.length) {
+        Assert.assertTrue(result[0] < baseline[0] / 2);
+      }
+    }
+  }
+}
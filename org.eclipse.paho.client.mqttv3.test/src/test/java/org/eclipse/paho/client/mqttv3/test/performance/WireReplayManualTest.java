@@ -0,0 +1,174 @@
+/** Copyright (c)  2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test.performance;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttWireCapture;
+import org.eclipse.paho.client.mqttv3.MqttWireCaptureReader;
+import org.eclipse.paho.client.mqttv3.MqttWireReplay;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.test.ManualTest;
+import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
+import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Measures the rate a client takes in a capture of QoS 1 telemetry played
+ * back as fast as it reads, with and without the client capturing what it
+ * receives, to show both the use of a replay and the cost of a capture.
+ *
+ * >> The test is run manually. <<
+ * The rates are written to the log for comparison. A real capture can be
+ * measured in the same way, by reading it from a file rather than making
+ * one up.
+ */
+@Category(ManualTest.class)
+public class WireReplayManualTest {
+
+  static final Class<?> cclass = WireReplayManualTest.class;
+  private static final String className = cclass.getName();
+  private static final Logger log = Logger.getLogger(className);
+
+  private static final int MESSAGES = 100000;
+  private static final int PAYLOAD_SIZE = 256;
+  private static final int ROUNDS = 5;
+
+  /**
+   * Counts the messages that arrive
+   */
+  private static class Counter implements MqttCallback {
+    private int count = 0;
+
+    public void connectionLost(Throwable cause) {
+    }
+
+    public synchronized void messageArrived(String topic, MqttMessage message) throws Exception {
+      count++;
+      if (count == MESSAGES) {
+        notifyAll();
+      }
+    }
+
+    public void deliveryComplete(IMqttDeliveryToken token) {
+    }
+
+    synchronized void waitForAll() throws InterruptedException {
+      while (count < MESSAGES) {
+        wait();
+      }
+    }
+  }
+
+  /**
+   * Returns a capture of a connection on which the client received QoS 1
+   * publishes on a few hundred topics.
+   */
+  private static byte[] capture() throws Exception {
+    ByteArrayOutputStream file = new ByteArrayOutputStream();
+    MqttWireCapture capture = new MqttWireCapture(file);
+    capture.record(MqttWireCapture.RECORD_CONNECTED, null, 0, 0);
+    byte[] connack = new byte[] {0x20, 0x02, 0x00, 0x00};
+    capture.record(MqttWireCapture.RECORD_RECEIVED, connack, 0, connack.length);
+    for (int i = 0; i < MESSAGES; i++) {
+      byte[] topic = ("plant/line-" + (i % 16) + "/device-" + (i % 300)).getBytes("UTF-8");
+      int msgId = i % 65535 + 1;
+      int remainingLength = 2 + topic.length + 2 + PAYLOAD_SIZE;
+      ByteArrayOutputStream packet = new ByteArrayOutputStream();
+      packet.write(0x32);
+      packet.write((remainingLength % 128) | 0x80);
+      packet.write(remainingLength / 128);
+      packet.write(topic.length >> 8);
+      packet.write(topic.length);
+      packet.write(topic);
+      packet.write(msgId >> 8);
+      packet.write(msgId);
+      packet.write(new byte[PAYLOAD_SIZE]);
+      capture.record(MqttWireCapture.RECORD_RECEIVED, packet.toByteArray(), 0, packet.size());
+    }
+    capture.close();
+    return file.toByteArray();
+  }
+
+  /**
+   * Returns the messages per second the client takes in.
+   */
+  private static long measure(byte[] file, boolean capturing) throws Exception {
+    MqttWireReplay replay = new MqttWireReplay(new MqttWireCaptureReader(new ByteArrayInputStream(file)));
+    replay.setSpeed(0);
+    MqttConnectOptions options = new MqttConnectOptions();
+    options.setKeepAliveInterval(0);
+    MqttWireCapture capture = null;
+    if (capturing) {
+      capture = new MqttWireCapture(new OutputStream() {
+        public void write(int b) {
+        }
+
+        public void write(byte[] b, int off, int len) {
+        }
+      });
+      options.setWireCapture(capture);
+    }
+    MqttAsyncClient client = new MqttAsyncClient(replay.start(), "replay", new MemoryPersistence());
+    Counter counter = new Counter();
+    client.setCallback(counter);
+    long start = System.nanoTime();
+    client.connect(options).waitForCompletion(10000);
+    counter.waitForAll();
+    long elapsed = System.nanoTime() - start;
+    replay.waitForCompletion(0);
+    client.disconnect().waitForCompletion(10000);
+    client.close();
+    if (capture != null) {
+      capture.close();
+    }
+    return MESSAGES * 1000000000L / elapsed;
+  }
+
+  @Test
+  public void testReplayRate() throws Exception {
+    String methodName = Utility.getMethodName();
+    LoggingUtilities.banner(log, cclass, methodName);
+    byte[] file = capture();
+    log.info("capture of " + MESSAGES + " publishes of " + PAYLOAD_SIZE + " bytes is " + file.length + " bytes");
+
+    // The client trace costs far more than a message, so is turned off
+    Logger clientLog = Logger.getLogger("org.eclipse.paho.client.mqttv3");
+    Level level = clientLog.getLevel();
+    clientLog.setLevel(Level.INFO);
+
+    // Warm up
+    measure(file, false);
+    measure(file, true);
+    long plain = 0;
+    long capturing = 0;
+    for (int i = 0; i < ROUNDS; i++) {
+      plain += measure(file, false);
+      capturing += measure(file, true);
+    }
+    log.info("not capturing: " + plain / ROUNDS + " messages per second");
+    log.info("capturing: " + capturing / ROUNDS + " messages per second");
+    clientLog.setLevel(level);
+  }
+}
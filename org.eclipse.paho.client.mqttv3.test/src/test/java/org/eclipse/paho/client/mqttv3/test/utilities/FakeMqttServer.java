@@ -0,0 +1,196 @@
+/* Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ *******************************************************************************/
+
+package org.eclipse.paho.client.mqttv3.test.utilities;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+
+/**
+ * A minimal MQTT server on a local port, for tests that need to control
+ * exactly what a client is sent, so no broker is needed. A test subclasses
+ * it and implements {@link #serve()} to accept the connections it needs and
+ * to read and write the packets it expects, using the helpers here.
+ * <p>
+ * The server runs on its own daemon thread once started. Anything thrown
+ * while serving is kept for the test to check with {@link #getFailure()},
+ * and the server socket is closed once serving is done.
+ * </p>
+ */
+public abstract class FakeMqttServer extends Thread {
+
+  /** A CONNACK accepting the connection */
+  public static final byte[] CONNACK = new byte[] {0x20, 0x02, 0x00, 0x00};
+
+  protected final ServerSocket serverSocket;
+  private volatile Throwable failure = null;
+
+  /**
+   * Creates a server listening on a free local port.
+   * @throws IOException
+   */
+  public FakeMqttServer() throws IOException {
+    this(new ServerSocket(0));
+  }
+
+  /**
+   * Creates a server that accepts connections on a socket the caller has
+   * set up and bound.
+   * @param serverSocket
+   */
+  public FakeMqttServer(ServerSocket serverSocket) {
+    this.serverSocket = serverSocket;
+    setDaemon(true);
+  }
+
+  /**
+   * @return the URI a client connects to the server with
+   */
+  public String getServerURI() {
+    return "tcp://localhost:" + serverSocket.getLocalPort();
+  }
+
+  /**
+   * @return what was thrown while serving, or null
+   */
+  public Throwable getFailure() {
+    return failure;
+  }
+
+  public void run() {
+    try {
+      serve();
+    }
+    catch (Throwable t) {
+      failure = t;
+    }
+    finally {
+      try {
+        serverSocket.close();
+      }
+      catch (Exception e) {
+        // ignore
+      }
+    }
+  }
+
+  /**
+   * Accepts and serves the connections the test needs, on the server
+   * thread.
+   * @throws Exception
+   */
+  protected abstract void serve() throws Exception;
+
+  /**
+   * Keeps what was thrown while serving a connection on another thread.
+   * @param failure
+   */
+  protected void setFailure(Throwable failure) {
+    this.failure = failure;
+  }
+
+  /**
+   * Reads a CONNECT and accepts it.
+   * @param in
+   * @param out
+   * @throws IOException
+   */
+  public static void connect(DataInputStream in, OutputStream out) throws IOException {
+    in.readUnsignedByte(); // CONNECT
+    skip(in, readRemainingLength(in));
+    out.write(CONNACK);
+    out.flush();
+  }
+
+  /**
+   * @param in
+   * @return the remaining length of the packet whose fixed header is being read
+   * @throws IOException
+   */
+  public static int readRemainingLength(DataInputStream in) throws IOException {
+    int value = 0;
+    int multiplier = 1;
+    int digit;
+    do {
+      digit = in.readUnsignedByte();
+      value += (digit & 0x7F) * multiplier;
+      multiplier *= 128;
+    } while ((digit & 0x80) != 0);
+    return value;
+  }
+
+  /**
+   * @param out
+   * @param length the remaining length of the packet whose fixed header is being written
+   * @throws IOException
+   */
+  public static void writeRemainingLength(DataOutputStream out, int length) throws IOException {
+    do {
+      int digit = length % 128;
+      length = length / 128;
+      if (length > 0) {
+        digit |= 0x80;
+      }
+      out.writeByte(digit);
+    } while (length > 0);
+  }
+
+  /**
+   * Reads a packet and discards it.
+   * @param in
+   * @return the type of the packet
+   * @throws IOException
+   */
+  public static int skipPacket(DataInputStream in) throws IOException {
+    int type = in.readUnsignedByte() >> 4;
+    skip(in, readRemainingLength(in));
+    return type;
+  }
+
+  /**
+   * Reads and discards bytes, as a socket stream may skip fewer than asked.
+   * @param in
+   * @param count the number of bytes to skip
+   * @throws IOException
+   */
+  public static void skip(DataInputStream in, int count) throws IOException {
+    while (count > 0) {
+      int skipped = in.skipBytes(count);
+      if (skipped <= 0) {
+        in.readUnsignedByte();
+        skipped = 1;
+      }
+      count -= skipped;
+    }
+  }
+
+  /**
+   * Reads a packet, which must be of the type expected.
+   * @param in
+   * @param expectedType
+   * @return the packet after its fixed header
+   * @throws IOException
+   */
+  public static byte[] readPacket(DataInputStream in, int expectedType) throws IOException {
+    int type = in.readUnsignedByte() >> 4;
+    if (type != expectedType) {
+      throw new IOException("expected packet type " + expectedType + " but read " + type);
+    }
+    byte[] body = new byte[readRemainingLength(in)];
+    in.readFully(body);
+    return body;
+  }
+}
@@ -15,23 +15,27 @@
  */
 package org.eclipse.paho.client.mqttv3.internal;
 
+import java.nio.channels.WritableByteChannel;
 import java.util.Enumeration;
 import java.util.Properties;
 import java.util.Vector;
 
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
 import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttCallback;
 import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttEventRecorder;
 import org.eclipse.paho.client.mqttv3.MqttException;
-import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
 import org.eclipse.paho.client.mqttv3.MqttPingSender;
+import org.eclipse.paho.client.mqttv3.MqttThreadFactory;
 import org.eclipse.paho.client.mqttv3.MqttToken;
 import org.eclipse.paho.client.mqttv3.MqttTopic;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttConnack;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttConnect;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttDisconnect;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttProperties;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
 import org.eclipse.paho.client.mqttv3.logging.Logger;
@@ -64,6 +68,8 @@ public class ClientComms {
 	private MqttClientPersistence	persistence;
 	private MqttPingSender			pingSender;
 	private CommsTokenStore 		tokenStore;
+	private SubscribeCoalescer		subscribeCoalescer = null;
+	private MqttThreadFactory		threadFactory = null;
 	private boolean 				stoppingComms = false;
 
 	private byte	conState = DISCONNECTED;
@@ -127,6 +133,13 @@ public class ClientComms {
 		}
 	}
 
+	/**
+	 * Sends the acknowledgments of a batch of delivered messages together.
+	 */
+	void internalSendAcks(Vector acks) throws MqttException {
+		this.clientState.sendAcks(acks);
+	}
+
 	/**
 	 * Sends a message to the broker if in connected state, but only waits for the message to be
 	 * stored, before returning.
@@ -202,6 +215,7 @@ public class ClientComms {
 				conState = CONNECTING;
 
 				this.conOptions = options;
+				this.threadFactory = options.getThreadFactory();
 
 				MqttConnect connect = new MqttConnect(client.getClientId(),
 						options.getMqttVersion(),
@@ -210,10 +224,32 @@ public class ClientComms {
 						options.getUserName(),
 						options.getPassword(),
 						options.getWillMessage(),
-						options.getWillDestination());
+						options.getWillDestination(),
+						getConnectProperties(options));
 
 				this.clientState.setKeepAliveSecs(options.getKeepAliveInterval());
 				this.clientState.setCleanSession(options.isCleanSession());
+				this.clientState.setInboundQoS2StateOnly(options.isInboundQoS2StateOnly());
+				this.clientState.setSpoolDirectory(options.getSpoolDirectory());
+				this.clientState.setInboundStreamingThreshold(options.getInboundStreamingThreshold());
+				this.clientState.setBufferAllocator(options.getBufferAllocator());
+				this.clientState.setExplicitRelease(options.isExplicitRelease(), options.isPayloadLeakDetection());
+				this.clientState.setTopicCacheSize(options.getTopicCacheSize());
+				this.clientState.setMqttVersion(options.getMqttVersion());
+				this.clientState.setTopicAliasMaximum(options.getTopicAliasMaximum());
+				this.clientState.setConflatedTopics(options.getConflatedTopics());
+				this.clientState.setPayloadCodecs(options.getPayloadCodecs());
+				this.clientState.setRateLimit(options.getMessageRateLimit(), options.getMessageRateBurst(),
+						options.getByteRateLimit(), options.getByteRateBurst());
+				this.clientState.setEventRecorder(options.getEventRecorder());
+				this.clientState.setLatencySampling(options.getLatencySampling());
+				this.callback.setBatchSize(options.getCallbackBatchSize());
+				if (options.getSubscribeCoalescingWindow() > 0) {
+					this.subscribeCoalescer = new SubscribeCoalescer(this, client.getClientId(),
+							options.getSubscribeCoalescingWindow(), options.getSubscribeCoalescingMaximum());
+				} else {
+					this.subscribeCoalescer = null;
+				}
 
 				tokenStore.open();
 				ConnectBG conbg = new ConnectBG(this, token, connect);
@@ -235,6 +271,24 @@ public class ClientComms {
 		}
 	}
 
+	/**
+	 * Returns the properties of an MQTT 5 CONNECT, or null for earlier versions.
+	 */
+	private MqttProperties getConnectProperties(MqttConnectOptions options) {
+		if (options.getMqttVersion() != MqttConnectOptions.MQTT_VERSION_5) {
+			return null;
+		}
+		MqttProperties properties = new MqttProperties();
+		if (!options.isCleanSession()) {
+			// Keep the session until it is cleaned, as under MQTT 3.1.1
+			properties.put(MqttProperties.SESSION_EXPIRY_INTERVAL, new Long(0xFFFFFFFFL));
+		}
+		if (options.getTopicAliasMaximum() > 0) {
+			properties.put(MqttProperties.TOPIC_ALIAS_MAXIMUM, new Integer(options.getTopicAliasMaximum()));
+		}
+		return properties;
+	}
+
 	public void connectComplete( MqttConnack cack, MqttException mex) throws MqttException {
 		final String methodName = "connectComplete";
 		int rc = cack.getReturnCode();
@@ -263,6 +317,8 @@ public class ClientComms {
 	 */
 	public void shutdownConnection(MqttToken token, MqttException reason) {
 		final String methodName = "shutdownConnection";
+		MqttEventRecorder recorder = clientState.getEventRecorder();
+		long start = (recorder == null) ? 0 : System.nanoTime();
 		boolean wasConnected;
 		MqttToken endToken = null; 		//Token to notify after disconnect completes
 
@@ -291,6 +347,9 @@ public class ClientComms {
 		// when actions complete
 		if (callback!= null) {callback.stop(); }
 
+		// Fail the subscribe and unsubscribe requests still waiting to be sent
+		if (subscribeCoalescer != null) {subscribeCoalescer.stop(reason); }
+
 		// Stop the network module, send and receive now not possible
 		try {
 			if (networkModules != null) {
@@ -341,6 +400,10 @@ public class ClientComms {
 			conState = DISCONNECTED;
 			stoppingComms = false;
 		}
+		if (recorder != null) {
+			recorder.record(MqttEventRecorder.EVENT_SHUTDOWN, client.getClientId(), 0,
+					(reason == null) ? 0 : reason.getReasonCode(), 0, System.nanoTime() - start);
+		}
 
 		// Internal disconnect processing has completed.  If there
 		// is a disconnect token or a connect in error notify
@@ -411,6 +474,12 @@ public class ClientComms {
 
 	public void disconnect(MqttDisconnect disconnect, long quiesceTimeout, MqttToken token) throws MqttException {
 		final String methodName = "disconnect";
+		// Send the waiting subscribe and unsubscribe requests ahead of the
+		// disconnect, outside the lock as they are sent through it
+		SubscribeCoalescer coalescer = subscribeCoalescer;
+		if (coalescer != null) {
+			coalescer.flush();
+		}
 		synchronized (conLock){
 			if (isClosed()) {
 				//@TRACE 223=failed: in closed state
@@ -497,6 +566,21 @@ public class ClientComms {
 		this.callback.setCallback(mqttCallback);
 	}
 
+	public void setMessageListener(String topicFilter, IMqttMessageListener messageListener) {
+		this.callback.setMessageListener(topicFilter, messageListener);
+	}
+
+	public void removeMessageListener(String topicFilter) {
+		this.callback.removeMessageListener(topicFilter);
+	}
+
+	/**
+	 * Tells the callback thread that a subscriber has asked for messages.
+	 */
+	public void notifyDemand() {
+		this.callback.notifyDemand();
+	}
+
 	protected MqttTopic getTopic(String topic) {
 		return new MqttTopic(topic, this);
 	}
@@ -515,8 +599,8 @@ public class ClientComms {
 	public MqttDeliveryToken[] getPendingDeliveryTokens() {
 		return tokenStore.getOutstandingDelTokens();
 	}
-	protected void deliveryComplete(MqttPublish msg) throws MqttPersistenceException {
-		this.clientState.deliveryComplete(msg);
+	protected MqttWireMessage deliveryComplete(MqttPublish msg) throws MqttException {
+		return this.clientState.deliveryComplete(msg);
 	}
 
 	public IMqttAsyncClient getClient() {
@@ -527,6 +611,44 @@ public class ClientComms {
 		return this.clientState.getKeepAlive();
 	}
 
+	/**
+	 * Sets how long the connection may be idle before a ping is sent, for
+	 * a ping sender that pings more often than the keepAlive interval.
+	 * @param pingInterval the milliseconds, or 0 to ping at the keepAlive
+	 * interval
+	 */
+	public void setPingInterval(long pingInterval) {
+		this.clientState.setPingInterval(pingInterval);
+	}
+
+	/**
+	 * Returns the time, from {@link System#currentTimeMillis()}, a packet
+	 * was last sent or received.
+	 */
+	public long getLastActivity() {
+		return this.clientState.getLastActivity();
+	}
+
+	/**
+	 * Returns a new thread, not yet started, from the thread factory of the
+	 * connect options, or a platform thread if there is none.
+	 */
+	Thread newThread(Runnable runnable, String name) {
+		MqttThreadFactory factory = threadFactory;
+		if (factory == null) {
+			return new Thread(runnable, name);
+		}
+		return factory.newThread(runnable, name);
+	}
+
+	/**
+	 * Returns the coalescer of subscribe and unsubscribe requests, or null
+	 * if requests are sent as they are made.
+	 */
+	public SubscribeCoalescer getSubscribeCoalescer() {
+		return subscribeCoalescer;
+	}
+
 	public ClientState getClientState() {
 		return clientState;
 	}
@@ -558,7 +680,7 @@ public class ClientComms {
 			clientComms = cc;
 			conToken 	= cToken;
 			conPacket 	= cPacket;
-			cBg = new Thread(this, "MQTT Con: "+getClient().getClientId());
+			cBg = newThread(this, "MQTT Con: "+getClient().getClientId());
 		}
 
 		void start() {
@@ -590,7 +712,11 @@ public class ClientComms {
 				networkModule.start();
 				receiver = new CommsReceiver(clientComms, clientState, tokenStore, networkModule.getInputStream());
 				receiver.start("MQTT Rec: "+getClient().getClientId());
-				sender = new CommsSender(clientComms, clientState, tokenStore, networkModule.getOutputStream());
+				WritableByteChannel channel = null;
+				if (networkModule instanceof TCPNetworkModule) {
+					channel = ((TCPNetworkModule) networkModule).getSocketChannel();
+				}
+				sender = new CommsSender(clientComms, clientState, tokenStore, networkModule.getOutputStream(), channel);
 				sender.start("MQTT Snd: "+getClient().getClientId());
 				callback.start("MQTT Call: "+getClient().getClientId());				
 				internalSend(conPacket, conToken);
@@ -625,7 +751,7 @@ public class ClientComms {
 		}
 
 		void start() {
-			dBg = new Thread(this, "MQTT Disc: "+getClient().getClientId());
+			dBg = newThread(this, "MQTT Disc: "+getClient().getClientId());
 			dBg.start();
 		}
 		
@@ -0,0 +1,351 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.client.mqttv3;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.eclipse.paho.client.mqttv3.internal.ClientComms;
+import org.eclipse.paho.client.mqttv3.logging.Logger;
+import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
+
+/**
+ * Ping sender that learns how long the connection can be idle before the
+ * network drops it, and pings just often enough to keep it open.
+ * <p>
+ * Networks such as cellular carriers drop the NAT mapping of a connection
+ * that has been idle for a while, without telling either end. A ping at
+ * the keepAlive interval can then come too late, and the connection is
+ * lost, while pinging much more often wastes radio wake-ups. This sender
+ * starts by pinging after the connection has been idle for a minimum
+ * interval. Each time a ping after that idle time is answered, it tries a
+ * longer one, up to the keepAlive interval. When the connection is lost
+ * with such a ping unanswered, it goes back to some way below the longest
+ * idle time that worked, and after that only tries times some way below
+ * the one that failed, settling a margin below the longest that worked.
+ * </p>
+ * <p>
+ * Pings are only sent once no packet has been sent or received for the
+ * interval, so none are sent while messages flow. The server is still
+ * sent a ping at least every keepAlive interval.
+ * </p>
+ * <p>
+ * The interval learned for each network and server can be kept in a file,
+ * so that a client starts from it the next time it connects. The
+ * application names the network, for example by its carrier or WiFi
+ * network, with {@link #setNetwork(String)}.
+ * </p>
+ * @see MqttAsyncClient#MqttAsyncClient(String, String, MqttClientPersistence, MqttPingSender)
+ */
+public class AdaptivePingSender implements MqttPingSender {
+	private static final String CLASS_NAME = AdaptivePingSender.class.getName();
+	private static final Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
+
+	/**
+	 * The default shortest interval pings are sent at, in milliseconds.
+	 */
+	public static final long MINIMUM_INTERVAL_DEFAULT = 10000;
+
+	// Once the connection has been lost, intervals are kept this far below
+	// both the shortest idle time that failed and the longest that worked
+	private static final int MARGIN_PERCENT = 10;
+	// Intervals this close to the longest that is tried are not tried
+	private static final int RESOLUTION_PERCENT = 5;
+	// The timer is not exact, so a ping a little early still tests the interval
+	private static final long DELTA = 100;
+	// Guards the files of learned intervals, which clients may share
+	private static final Object storeLock = new Object();
+
+	private ClientComms comms;
+	private Timer timer;
+	private File store;
+	private String network = "";
+	private long minimumInterval = MINIMUM_INTERVAL_DEFAULT;
+
+	// The key of the learned interval, the network and server of the connection
+	private String key = null;
+	private long interval = 0;
+	// The longest idle time a ping was answered after, or 0
+	private long good = 0;
+	// The shortest idle time the connection was lost after, or 0
+	private long bad = 0;
+	// The ping that is testing the interval, and the idle time before it
+	private MqttToken probe = null;
+	private long probeIdle = 0;
+
+	/**
+	 * Constructs a sender that does not keep the intervals it learns.
+	 */
+	public AdaptivePingSender() {
+		this(null);
+	}
+
+	/**
+	 * Constructs a sender that keeps the intervals it learns in a file.
+	 * @param store the file, which may be shared by clients, or null
+	 */
+	public AdaptivePingSender(File store) {
+		this.store = store;
+	}
+
+	/**
+	 * Sets the name of the network the client connects over. The interval
+	 * is learned, and kept, for each network and server. It takes effect
+	 * the next time the client connects.
+	 * @param network the name of the network, or null if it is not known
+	 */
+	public synchronized void setNetwork(String network) {
+		this.network = (network == null) ? "" : network;
+	}
+
+	/**
+	 * Sets the shortest interval pings are sent at, which is the interval
+	 * first tried on a network that has none learned.
+	 * @param minimumInterval the milliseconds, more than 0
+	 * @throws IllegalArgumentException if the interval is not more than 0
+	 */
+	public synchronized void setMinimumInterval(long minimumInterval) {
+		if (minimumInterval <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.minimumInterval = minimumInterval;
+	}
+
+	/**
+	 * Returns the interval pings are sent at while the connection is idle.
+	 * @return the milliseconds, or 0 if the client has not connected
+	 */
+	public synchronized long getInterval() {
+		return interval;
+	}
+
+	public void init(ClientComms comms) {
+		if (comms == null) {
+			throw new IllegalArgumentException("ClientComms cannot be null.");
+		}
+		this.comms = comms;
+	}
+
+	public synchronized void start() {
+		final String methodName = "start";
+		String clientid = comms.getClient().getClientId();
+
+		//@Trace 659=start timer for client:{0}
+		log.fine(CLASS_NAME, methodName, "659", new Object[]{clientid});
+
+		long keepAlive = comms.getKeepAlive();
+		if (keepAlive <= 0) {
+			// No pings are sent, so no timer thread is needed
+			timer = null;
+			return;
+		}
+		String newKey = network + " " + comms.getClient().getServerURI();
+		if (!newKey.equals(key)) {
+			key = newKey;
+			good = load(key);
+			bad = 0;
+			interval = (good > 0) ? good : minimumInterval;
+		}
+		interval = Math.max(Math.min(interval, keepAlive), Math.min(minimumInterval, keepAlive));
+		probe = null;
+		comms.setPingInterval(interval);
+		//@Trace 670=ping interval={0}ms learned={1}ms
+		log.fine(CLASS_NAME, methodName, "670", new Object[]{new Long(interval), new Long(good)});
+
+		timer = new Timer("MQTT Ping: " + clientid);
+		timer.schedule(new PingTask(), interval);
+	}
+
+	public synchronized void stop() {
+		final String methodName = "stop";
+		//@Trace 661=stop
+		log.fine(CLASS_NAME, methodName, "661", null);
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
+		}
+		if (probe != null) {
+			// The connection is shut down before the sender is stopped, so
+			// the ping has its result
+			MqttException ex = probe.getException();
+			if (ex != null && (ex.getReasonCode() == MqttException.REASON_CODE_CLIENT_TIMEOUT
+					|| ex.getReasonCode() == MqttException.REASON_CODE_CONNECTION_LOST)) {
+				failed(probeIdle);
+			} else if (probe.isComplete() && ex == null) {
+				answered(probeIdle);
+			}
+			probe = null;
+		}
+	}
+
+	public synchronized void schedule(long delayInMilliseconds) {
+		if (timer == null) {
+			return;
+		}
+		timer.schedule(new PingTask(), delayInMilliseconds);
+	}
+
+	/**
+	 * Checks whether the ping testing the interval has been answered, and
+	 * sends a ping if one is needed.
+	 */
+	private void check() {
+		synchronized (this) {
+			if (probe != null && probe.isComplete()) {
+				if (probe.getException() == null) {
+					answered(probeIdle);
+				}
+				probe = null;
+			}
+		}
+		long idle = System.currentTimeMillis() - comms.getLastActivity();
+		MqttToken token = comms.checkForActivity();
+		synchronized (this) {
+			if (token != null && probe == null && idle >= interval - Math.min(DELTA, interval / 10)) {
+				probe = token;
+				probeIdle = idle;
+			}
+		}
+	}
+
+	/**
+	 * Tries a longer interval, as the connection was still open after it
+	 * was idle for the given time.
+	 */
+	private void answered(long idle) {
+		final String methodName = "answered";
+		long keepAlive = comms.getKeepAlive();
+		if (idle > good) {
+			good = Math.min(idle, keepAlive);
+			save(key, good);
+		}
+		if (bad == 0) {
+			interval = Math.min(keepAlive, good + good / 2);
+		} else {
+			long limit = Math.min(keepAlive, bad - bad * MARGIN_PERCENT / 100);
+			if (limit - good > bad * RESOLUTION_PERCENT / 100) {
+				interval = (good + limit) / 2;
+			} else {
+				// A ping that was answered close to the failure may have been
+				// lucky, and the NAT timeout may itself vary a little
+				interval = Math.max(Math.min(good - good * MARGIN_PERCENT / 100, limit),
+						Math.min(minimumInterval, keepAlive));
+			}
+		}
+		comms.setPingInterval(interval);
+		//@Trace 671=ping after idle {0}ms answered, ping interval={1}ms
+		log.fine(CLASS_NAME, methodName, "671", new Object[]{new Long(idle), new Long(interval)});
+	}
+
+	/**
+	 * Goes back to the longest interval that worked, as the connection was
+	 * lost after it was idle for the given time.
+	 */
+	private void failed(long idle) {
+		final String methodName = "failed";
+		bad = (bad == 0) ? idle : Math.min(bad, idle);
+		if (good >= bad) {
+			// What worked before no longer does
+			good = 0;
+			save(key, 0);
+		}
+		if (good > 0) {
+			interval = Math.max(Math.min(good - good * MARGIN_PERCENT / 100, bad - bad * MARGIN_PERCENT / 100),
+					minimumInterval);
+		} else {
+			interval = Math.max(minimumInterval, bad / 2);
+		}
+		comms.setPingInterval(interval);
+		//@Trace 672=ping after idle {0}ms lost, ping interval={1}ms
+		log.fine(CLASS_NAME, methodName, "672", new Object[]{new Long(idle), new Long(interval)});
+	}
+
+	/**
+	 * Returns the interval learned for a network and server, or 0.
+	 */
+	private long load(String key) {
+		if (store == null) {
+			return 0;
+		}
+		synchronized (storeLock) {
+			String value = read().getProperty(key);
+			try {
+				return (value == null) ? 0 : Long.parseLong(value);
+			} catch (NumberFormatException ex) {
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * Keeps the interval learned for a network and server, or forgets it
+	 * if it is 0.
+	 */
+	private void save(String key, long learned) {
+		final String methodName = "save";
+		if (store == null) {
+			return;
+		}
+		synchronized (storeLock) {
+			Properties intervals = read();
+			if (learned > 0) {
+				intervals.setProperty(key, String.valueOf(learned));
+			} else {
+				intervals.remove(key);
+			}
+			try {
+				FileOutputStream out = new FileOutputStream(store);
+				try {
+					intervals.store(out, "MQTT ping intervals");
+				} finally {
+					out.close();
+				}
+			} catch (IOException ex) {
+				//@Trace 673=could not store ping intervals in {0}
+				log.fine(CLASS_NAME, methodName, "673", new Object[]{store}, ex);
+			}
+		}
+	}
+
+	private Properties read() {
+		Properties intervals = new Properties();
+		if (store.exists()) {
+			try {
+				FileInputStream in = new FileInputStream(store);
+				try {
+					intervals.load(in);
+				} finally {
+					in.close();
+				}
+			} catch (IOException ex) {
+				// Start again with none learned
+			}
+		}
+		return intervals;
+	}
+
+	private class PingTask extends TimerTask {
+		private static final String methodName = "PingTask.run";
+
+		public void run() {
+			//@Trace 660=Check schedule at {0}
+			log.fine(CLASS_NAME, methodName, "660", new Object[]{new Long(System.currentTimeMillis())});
+			check();
+		}
+	}
+}
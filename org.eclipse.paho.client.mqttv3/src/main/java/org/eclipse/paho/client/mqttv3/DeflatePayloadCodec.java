@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+
+package org.eclipse.paho.client.mqttv3;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A payload codec that compresses payloads with deflate.
+ *
+ * <p>A compressed payload is the marker byte <code>0xFF</code>, which never
+ * starts a UTF-8 string, followed by the zlib stream, which ends with a
+ * checksum. Payloads shorter than the threshold, and payloads that do not
+ * get smaller, are sent unchanged. A received payload that does not start
+ * with the marker, or does not inflate, is delivered unchanged, so clients
+ * that do not compress can publish on the same topics. A payload that
+ * would inflate to more than the maximum decoded length, 16 MB by default,
+ * is also delivered unchanged rather than inflated, so that a small
+ * publish cannot make the client allocate up to the 256 MB an MQTT payload
+ * can hold. Clients that only
+ * subscribe must compress too to read the payloads, so compression is only
+ * worth choosing for topics that all of their subscribers decode.
+ * </p>
+ * <p>Each thread that uses the codec keeps its own
+ * {@link java.util.zip.Deflater} and {@link java.util.zip.Inflater}, which
+ * are reset for each payload rather than created. A single codec can be
+ * shared by several clients.
+ * </p>
+ *
+ * @see MqttConnectOptions#setPayloadCodec(String, MqttPayloadCodec)
+ */
+public class DeflatePayloadCodec implements MqttPayloadCodec {
+
+	/** The byte a compressed payload starts with */
+	public static final byte MARKER = (byte) 0xFF;
+
+	/** The default length of the shortest payload that is compressed */
+	public static final int THRESHOLD_DEFAULT = 128;
+
+	/** The default length of the longest payload that is inflated */
+	public static final int MAX_DECODED_LENGTH_DEFAULT = 16 * 1024 * 1024;
+
+	// The longest payload MQTT can carry
+	private static final int MAX_PAYLOAD_LENGTH = 268435455;
+
+	private int threshold;
+	private int level;
+	private int maxDecodedLength;
+	private ThreadLocal deflaters = new ThreadLocal();
+	private ThreadLocal inflaters = new ThreadLocal();
+
+	/**
+	 * Constructs a codec that compresses payloads of 128 bytes or more with
+	 * the default compression level.
+	 */
+	public DeflatePayloadCodec() {
+		this(THRESHOLD_DEFAULT, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * Constructs a codec.
+	 * @param threshold the length of the shortest payload to compress
+	 * @param level the compression level, from 1 for the fastest to 9 for
+	 * the smallest, or {@link java.util.zip.Deflater#DEFAULT_COMPRESSION}
+	 * @throws IllegalArgumentException if the threshold is negative or the
+	 * level is not valid
+	 */
+	public DeflatePayloadCodec(int threshold, int level) {
+		this(threshold, level, MAX_DECODED_LENGTH_DEFAULT);
+	}
+
+	/**
+	 * Constructs a codec that inflates received payloads up to a length.
+	 * @param threshold the length of the shortest payload to compress
+	 * @param level the compression level, from 1 for the fastest to 9 for
+	 * the smallest, or {@link java.util.zip.Deflater#DEFAULT_COMPRESSION}
+	 * @param maxDecodedLength the length of the longest payload a received
+	 * payload is inflated to, up to the 268435455 bytes MQTT can carry. A
+	 * payload that would inflate to more is delivered unchanged.
+	 * @throws IllegalArgumentException if the threshold is negative, the
+	 * level is not valid or the maximum decoded length is not positive
+	 */
+	public DeflatePayloadCodec(int threshold, int level, int maxDecodedLength) {
+		if (threshold < 0 || ((level < 1 || level > 9) && level != Deflater.DEFAULT_COMPRESSION)
+				|| maxDecodedLength <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.threshold = threshold;
+		this.level = level;
+		this.maxDecodedLength = Math.min(maxDecodedLength, MAX_PAYLOAD_LENGTH);
+	}
+
+	/**
+	 * Returns the length of the longest payload a received payload is
+	 * inflated to.
+	 */
+	public int getMaxDecodedLength() {
+		return maxDecodedLength;
+	}
+
+	public byte[] encode(byte[] payload, int offset, int length) {
+		if (length < threshold || length < 2) {
+			return null;
+		}
+		Deflater deflater = (Deflater) deflaters.get();
+		if (deflater == null) {
+			deflater = new Deflater(level);
+			deflaters.set(deflater);
+		}
+		// Compress into at most one byte less than the payload, or not at all
+		byte[] out = new byte[length - 1];
+		int compressed;
+		try {
+			deflater.setInput(payload, offset, length);
+			deflater.finish();
+			compressed = deflater.deflate(out, 1, out.length - 1);
+			if (!deflater.finished()) {
+				return null;
+			}
+		} finally {
+			deflater.reset();
+		}
+		out[0] = MARKER;
+		byte[] encoded = new byte[1 + compressed];
+		System.arraycopy(out, 0, encoded, 0, encoded.length);
+		return encoded;
+	}
+
+	public byte[] decode(byte[] payload, int offset, int length) {
+		if (length < 2 || payload[offset] != MARKER) {
+			return null;
+		}
+		Inflater inflater = (Inflater) inflaters.get();
+		if (inflater == null) {
+			inflater = new Inflater();
+			inflaters.set(inflater);
+		}
+		try {
+			inflater.setInput(payload, offset + 1, length - 1);
+			// One byte more than the longest payload, to tell when it is exceeded
+			int limit = maxDecodedLength + 1;
+			byte[] out = new byte[(int) Math.min(limit, Math.max(256, length * 4L))];
+			int count = 0;
+			while (!inflater.finished()) {
+				if (count == out.length) {
+					if (count == limit) {
+						// Too large to inflate, so delivered as it was received
+						return null;
+					}
+					byte[] larger = new byte[(int) Math.min(limit, 2L * out.length)];
+					System.arraycopy(out, 0, larger, 0, count);
+					out = larger;
+				}
+				int n = inflater.inflate(out, count, out.length - count);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					// Cut short, so it was not compressed by this codec
+					return null;
+				}
+				count += n;
+			}
+			if (inflater.getRemaining() > 0 || count > maxDecodedLength) {
+				return null;
+			}
+			if (count == out.length) {
+				return out;
+			}
+			byte[] decoded = new byte[count];
+			System.arraycopy(out, 0, decoded, 0, count);
+			return decoded;
+		} catch (DataFormatException ex) {
+			return null;
+		} finally {
+			inflater.reset();
+		}
+	}
+}
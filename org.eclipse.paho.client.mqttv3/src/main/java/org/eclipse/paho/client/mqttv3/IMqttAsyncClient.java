@@ -646,6 +646,83 @@ public interface IMqttAsyncClient {
 	public IMqttToken subscribe(String[] topicFilters, int[] qos, Object userContext, IMqttActionListener callback)
 			throws MqttException;
 
+	/**
+	 * Subscribe to a topic, which may include wildcards, delivering the
+	 * messages that arrive on it to a listener.
+	 *
+	 * @see #subscribe(String[], int[], Object, IMqttActionListener, IMqttMessageListener[])
+	 *
+	 * @param topicFilter the topic to subscribe to, which can include wildcards.
+	 * @param qos the maximum quality of service at which to subscribe.
+	 * @param messageListener the listener that messages matching the topic filter are passed to
+	 * @return token used to track and wait for the subscribe to complete.
+	 * @throws MqttException if there was an error registering the subscription.
+	 */
+	public IMqttToken subscribe(String topicFilter, int qos, IMqttMessageListener messageListener) throws MqttException;
+
+	/**
+	 * Subscribe to a topic, which may include wildcards, delivering the
+	 * messages that arrive on it to a listener.
+	 *
+	 * @see #subscribe(String[], int[], Object, IMqttActionListener, IMqttMessageListener[])
+	 *
+	 * @param topicFilter the topic to subscribe to, which can include wildcards.
+	 * @param qos the maximum quality of service at which to subscribe.
+	 * @param userContext optional object used to pass context to the callback. Use
+	 * null if not required.
+	 * @param callback optional listener that will be notified when subscribe
+	 * has completed
+	 * @param messageListener the listener that messages matching the topic filter are passed to
+	 * @return token used to track and wait for the subscribe to complete.
+	 * @throws MqttException if there was an error registering the subscription.
+	 */
+	public IMqttToken subscribe(String topicFilter, int qos, Object userContext, IMqttActionListener callback,
+			IMqttMessageListener messageListener) throws MqttException;
+
+	/**
+	 * Subscribe to multiple topics, each of which may include wildcards,
+	 * delivering the messages that arrive on each to its own listener.
+	 *
+	 * @see #subscribe(String[], int[], Object, IMqttActionListener, IMqttMessageListener[])
+	 *
+	 * @param topicFilters one or more topics to subscribe to, which can include wildcards
+	 * @param qos the maximum quality of service at which to subscribe each topic.
+	 * @param messageListeners one listener for each topic filter
+	 * @return token used to track and wait for the subscribe to complete.
+	 * @throws MqttException if there was an error registering the subscription.
+	 * @throws IllegalArgumentException if the supplied arrays are not the same size.
+	 */
+	public IMqttToken subscribe(String[] topicFilters, int[] qos, IMqttMessageListener[] messageListeners) throws MqttException;
+
+	/**
+	 * Subscribe to multiple topics, each of which may include wildcards,
+	 * delivering the messages that arrive on each to its own listener.
+	 *
+	 * <p>The client matches each message that arrives against the topic
+	 * filters of the listeners, and passes it to every listener whose filter
+	 * matches. A message that matches no listener's filter is passed to the
+	 * callback set by {@link #setCallback(MqttCallback)}. Matching follows the
+	 * wildcard rules described for {@link #subscribe(String[], int[], Object, IMqttActionListener)},
+	 * and its cost depends on the number of levels in the topic rather than
+	 * the number of filters.</p>
+	 *
+	 * <p>Subscribing again with the same topic filter replaces its listener, and
+	 * unsubscribing from the topic filter removes it.</p>
+	 *
+	 * @param topicFilters one or more topics to subscribe to, which can include wildcards
+	 * @param qos the maximum quality of service at which to subscribe each topic.
+	 * @param userContext optional object used to pass context to the callback. Use
+	 * null if not required.
+	 * @param callback optional listener that will be notified when subscribe
+	 * has completed
+	 * @param messageListeners one listener for each topic filter
+	 * @return token used to track and wait for the subscribe to complete.
+	 * @throws MqttException if there was an error registering the subscription.
+	 * @throws IllegalArgumentException if the supplied arrays are not the same size.
+	 */
+	public IMqttToken subscribe(String[] topicFilters, int[] qos, Object userContext, IMqttActionListener callback,
+			IMqttMessageListener[] messageListeners) throws MqttException;
+
 	/**
 	 * Requests the server unsubscribe the client from a topic.
 	 *
@@ -303,6 +303,38 @@ public IMqttToken connectWithResult(MqttConnectOptions options) throws MqttSecur
 	 */
   public void subscribe(String[] topicFilters, int[] qos) throws MqttException;
 
+	/**
+	 * Subscribe to a topic, which may include wildcards, delivering the
+	 * messages that arrive on it to a listener.
+	 *
+	 * @see #subscribe(String[], int[], IMqttMessageListener[])
+	 *
+	 * @param topicFilter the topic to subscribe to, which can include wildcards.
+	 * @param qos the maximum quality of service at which to subscribe.
+	 * @param messageListener the listener that messages matching the topic filter are passed to
+	 * @throws MqttException if there was an error registering the subscription.
+	 */
+  public void subscribe(String topicFilter, int qos, IMqttMessageListener messageListener) throws MqttException;
+
+	/**
+	 * Subscribes to multiple topics, each of which may include wildcards,
+	 * delivering the messages that arrive on each to its own listener.
+	 *
+	 * <p>A message is passed to every listener whose topic filter matches
+	 * it, and a message that matches no listener's filter is passed to the
+	 * callback set by {@link #setCallback(MqttCallback)}. Unsubscribing
+	 * from a topic filter removes its listener.</p>
+	 *
+	 * @see #subscribe(String[], int[])
+	 *
+	 * @param topicFilters the topics to subscribe to, which can include wildcards.
+	 * @param qos the maximum quality of service to subscribe each topic at.
+	 * @param messageListeners one listener for each topic filter
+	 * @throws MqttException if there was an error registering the subscription.
+	 * @throws IllegalArgumentException if the supplied arrays are not the same size.
+	 */
+  public void subscribe(String[] topicFilters, int[] qos, IMqttMessageListener[] messageListeners) throws MqttException;
+
 	/**
 	 * Requests the server unsubscribe the client from a topic.
 	 *
@@ -0,0 +1,33 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.client.mqttv3;
+
+/**
+ * The demand of an {@link IMqttMessageSubscriber} for messages, in the
+ * manner of a Reactive Streams <code>Subscription</code>.
+ */
+public interface IMqttDemand {
+
+	/**
+	 * Asks for more messages. The demand adds up, and a demand of
+	 * {@link Long#MAX_VALUE} is never used up.
+	 * @param n the number of messages, at least 1
+	 */
+	public void request(long n);
+
+	/**
+	 * Asks for no more messages. Messages may still be passed to the
+	 * subscriber for a short time after.
+	 */
+	public void cancel();
+}
@@ -0,0 +1,39 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.client.mqttv3;
+
+/**
+ * Implementors of this interface will be notified when a message arrives
+ * on a topic matching the filter it was subscribed with.
+ *
+ * @see IMqttAsyncClient#subscribe(String, int, IMqttMessageListener)
+ */
+public interface IMqttMessageListener {
+	/**
+	 * This method is called when a message arrives on a topic matching the
+	 * filter the listener was subscribed with. A message matching the filters
+	 * of several listeners is passed to each of them in turn.
+	 *
+	 * <p>
+	 * As with {@link MqttCallback#messageArrived(String, MqttMessage)}, the
+	 * method is invoked on the callback thread, and the message is not
+	 * acknowledged until it, and any other listener for the message, has
+	 * returned cleanly. Throwing an exception shuts down the client.</p>
+	 *
+	 * @param topic name of the topic on the message was published to
+	 * @param message the actual message.
+	 * @throws Exception if a terminal error has occurred, and the client should be
+	 * shut down.
+	 */
+	public void messageArrived(String topic, MqttMessage message) throws Exception;
+}
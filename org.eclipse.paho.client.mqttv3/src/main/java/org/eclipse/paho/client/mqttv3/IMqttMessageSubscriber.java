@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.client.mqttv3;
+
+/**
+ * Receives a stream of messages at the rate it asks for them, in the manner
+ * of a Reactive Streams <code>Subscriber</code>.
+ * <p>
+ * Inbound, it is passed to
+ * {@link MqttAsyncClient#subscribe(String, int, IMqttMessageSubscriber)}
+ * and is given the messages that arrive on the subscription. Outbound, a
+ * {@link MqttPublishSubscriber} publishes the messages it is given. An
+ * adapter to <code>java.util.concurrent.Flow</code> or to the Reactive
+ * Streams interfaces need only forward each method.
+ * </p>
+ */
+public interface IMqttMessageSubscriber {
+
+	/**
+	 * Called once, before any other method, with the demand used to ask for
+	 * messages. No message is passed until some are requested.
+	 * @param demand the demand for messages
+	 */
+	public void onSubscribe(IMqttDemand demand);
+
+	/**
+	 * Called with each message, no more often than the messages requested.
+	 * @param topic the name of the topic the message is published to
+	 * @param message the message
+	 */
+	public void onNext(String topic, MqttMessage message);
+
+	/**
+	 * Called once if the stream fails. No other method is called after it.
+	 * @param cause the reason the stream failed
+	 */
+	public void onError(Throwable cause);
+
+	/**
+	 * Called once when the stream ends. No other method is called after it.
+	 */
+	public void onComplete();
+}
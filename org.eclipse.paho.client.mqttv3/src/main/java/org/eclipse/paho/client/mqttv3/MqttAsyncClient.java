@@ -16,19 +16,24 @@
  */
 package org.eclipse.paho.client.mqttv3;
 
+import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Properties;
 
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLSocketFactory;
 
+import org.eclipse.paho.client.mqttv3.internal.CapturingNetworkModule;
 import org.eclipse.paho.client.mqttv3.internal.ClientComms;
 import org.eclipse.paho.client.mqttv3.internal.ConnectActionListener;
 import org.eclipse.paho.client.mqttv3.internal.ExceptionHelper;
 import org.eclipse.paho.client.mqttv3.internal.LocalNetworkModule;
+import org.eclipse.paho.client.mqttv3.internal.MessageDemand;
 import org.eclipse.paho.client.mqttv3.internal.NetworkModule;
 import org.eclipse.paho.client.mqttv3.internal.SSLNetworkModule;
+import org.eclipse.paho.client.mqttv3.internal.SubscribeCoalescer;
 import org.eclipse.paho.client.mqttv3.internal.TCPNetworkModule;
+import org.eclipse.paho.client.mqttv3.internal.Token;
 import org.eclipse.paho.client.mqttv3.internal.security.SSLSocketFactoryFactory;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttDisconnect;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
@@ -87,6 +92,8 @@ public class MqttAsyncClient implements IMqttAsyncClient { // DestinationProvide
 	private String serverURI;
 	protected ClientComms comms;
 	private Hashtable topics;
+	// The QoS of each topic filter subscribed to, by topic filter
+	private Hashtable subscriptions = new Hashtable();
 	private MqttClientPersistence persistence;
 
 	/**
@@ -409,6 +416,9 @@ public class MqttAsyncClient implements IMqttAsyncClient { // DestinationProvide
 			// This shouldn't happen, as long as validateURI() has been called.
 			netModule = null;
 		}
+		if (netModule != null && options.getWireCapture() != null) {
+			netModule = new CapturingNetworkModule(netModule, options.getWireCapture());
+		}
 		return netModule;
 	}
 
@@ -633,9 +643,8 @@ public class MqttAsyncClient implements IMqttAsyncClient { // DestinationProvide
 	 * @throws IllegalArgumentException if the topic contains a '+' or '#'
 	 * wildcard character.
 	 */
-	protected MqttTopic getTopic(String topic) {
-		MqttTopic.validate(topic, false/*wildcards NOT allowed*/);
-
+	public MqttTopic getTopic(String topic) {
+		// A topic is validated when it is created
 		MqttTopic result = (MqttTopic)topics.get(topic);
 		if (result == null) {
 			result = new MqttTopic(topic, comms);
@@ -715,16 +724,100 @@ public class MqttAsyncClient implements IMqttAsyncClient { // DestinationProvide
 		token.setActionCallback(callback);
 		token.setUserContext(userContext);
 		token.internalTok.setTopics(topicFilters);
+		token.internalTok.setCompletionListener(new SubscriptionRecorder(topicFilters, true));
 
-		MqttSubscribe register = new MqttSubscribe(topicFilters, qos);
-
-		comms.sendNoWait(register, token);
+		SubscribeCoalescer coalescer = comms.getSubscribeCoalescer();
+		if (coalescer != null) {
+			coalescer.subscribe(topicFilters, qos, token);
+		} else {
+			MqttSubscribe register = new MqttSubscribe(topicFilters, qos);
+			comms.sendNoWait(register, token);
+		}
 		//@TRACE 109=<
 		log.fine(CLASS_NAME,methodName,"109");
 
 		return token;
 	}
 
+	/* (non-Javadoc)
+	 * @see org.eclipse.paho.client.mqttv3.IMqttAsyncClient#subscribe(java.lang.String, int, org.eclipse.paho.client.mqttv3.IMqttMessageListener)
+	 */
+	public IMqttToken subscribe(String topicFilter, int qos, IMqttMessageListener messageListener) throws MqttException {
+		return this.subscribe(new String[] {topicFilter}, new int[] {qos}, null, null, new IMqttMessageListener[] {messageListener});
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.paho.client.mqttv3.IMqttAsyncClient#subscribe(java.lang.String, int, java.lang.Object, org.eclipse.paho.client.mqttv3.IMqttActionListener, org.eclipse.paho.client.mqttv3.IMqttMessageListener)
+	 */
+	public IMqttToken subscribe(String topicFilter, int qos, Object userContext, IMqttActionListener callback,
+			IMqttMessageListener messageListener) throws MqttException {
+		return this.subscribe(new String[] {topicFilter}, new int[] {qos}, userContext, callback, new IMqttMessageListener[] {messageListener});
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.paho.client.mqttv3.IMqttAsyncClient#subscribe(java.lang.String[], int[], org.eclipse.paho.client.mqttv3.IMqttMessageListener[])
+	 */
+	public IMqttToken subscribe(String[] topicFilters, int[] qos, IMqttMessageListener[] messageListeners) throws MqttException {
+		return this.subscribe(topicFilters, qos, null, null, messageListeners);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.paho.client.mqttv3.IMqttAsyncClient#subscribe(java.lang.String[], int[], java.lang.Object, org.eclipse.paho.client.mqttv3.IMqttActionListener, org.eclipse.paho.client.mqttv3.IMqttMessageListener[])
+	 */
+	public IMqttToken subscribe(String[] topicFilters, int[] qos, Object userContext, IMqttActionListener callback,
+			IMqttMessageListener[] messageListeners) throws MqttException {
+		if (messageListeners.length != topicFilters.length) {
+			throw new IllegalArgumentException();
+		}
+		for (int i = 0; i < topicFilters.length; i++) {
+			MqttTopic.validate(topicFilters[i], true/*allow wildcards*/);
+		}
+		// Register the listeners first, so that no message is missed
+		for (int i = 0; i < topicFilters.length; i++) {
+			if (messageListeners[i] == null) {
+				comms.removeMessageListener(topicFilters[i]);
+			} else {
+				comms.setMessageListener(topicFilters[i], messageListeners[i]);
+			}
+		}
+		return this.subscribe(topicFilters, qos, userContext, callback);
+	}
+
+	/**
+	 * Subscribes to a topic filter, and passes the messages that arrive on
+	 * it to a subscriber as it asks for them.
+	 * <p>
+	 * The subscriber is given its demand before the subscribe is sent, and
+	 * is passed no message until it asks for some. While it has not asked
+	 * for the next message, the client stops reading from the network once
+	 * its inbound queue is full, so the server is held back and no messages
+	 * pile up in the client. Messages on other subscriptions are held back
+	 * too, as they share the connection. Publishes, subscribes and
+	 * unsubscribes still complete, and their listeners are still called, so
+	 * the subscriber can ask for more from an action listener. Once the
+	 * inbound queue is full, though, an acknowledgement from the server is
+	 * not read until there is demand again.
+	 * </p>
+	 * <p>
+	 * The subscriber's {@link IMqttMessageSubscriber#onError(Throwable)} is
+	 * called if the subscription fails, and
+	 * {@link IMqttMessageSubscriber#onComplete()} when the topic filter is
+	 * unsubscribed from. Cancelling the demand unsubscribes from the topic
+	 * filter.
+	 * </p>
+	 * @param topicFilter the topic to subscribe to, which can include wildcards.
+	 * @param qos the maximum quality of service at which to subscribe.
+	 * @param subscriber the subscriber the messages are passed to
+	 * @return token used to track and wait for the subscribe to complete.
+	 * @throws MqttException if there was an error registering the subscription.
+	 */
+	public IMqttToken subscribe(String topicFilter, int qos, IMqttMessageSubscriber subscriber) throws MqttException {
+		MqttTopic.validate(topicFilter, true/*allow wildcards*/);
+		MessageDemand demand = new MessageDemand(this, comms, topicFilter, subscriber);
+		subscriber.onSubscribe(demand);
+		return this.subscribe(new String[] {topicFilter}, new int[] {qos}, null, demand, new IMqttMessageListener[] {demand});
+	}
+
 	/* (non-Javadoc)
 	 * @see org.eclipse.paho.client.mqttv3.IMqttAsyncClient#unsubscribe(java.lang.String, java.lang.Object, org.eclipse.paho.client.mqttv3.IMqttActionListener)
 	 */
@@ -764,6 +857,9 @@ public class MqttAsyncClient implements IMqttAsyncClient { // DestinationProvide
 			// to reduce unnecessary control packet send to broker.
 			MqttTopic.validate(topicFilters[i], true/*allow wildcards*/);
 		}
+		for (int i=0;i<topicFilters.length;i++) {
+			comms.removeMessageListener(topicFilters[i]);
+		}
 		
 		//@TRACE 107=Unsubscribe topic={0} userContext={1} callback={2}
 		log.fine(CLASS_NAME, methodName,"107",new Object[]{subs, userContext, callback});
@@ -772,16 +868,135 @@ public class MqttAsyncClient implements IMqttAsyncClient { // DestinationProvide
 		token.setActionCallback(callback);
 		token.setUserContext(userContext);
 		token.internalTok.setTopics(topicFilters);
+		token.internalTok.setCompletionListener(new SubscriptionRecorder(topicFilters, false));
 
-		MqttUnsubscribe unregister = new MqttUnsubscribe(topicFilters);
-
-		comms.sendNoWait(unregister, token);
+		SubscribeCoalescer coalescer = comms.getSubscribeCoalescer();
+		if (coalescer != null) {
+			coalescer.unsubscribe(topicFilters, token);
+		} else {
+			MqttUnsubscribe unregister = new MqttUnsubscribe(topicFilters);
+			comms.sendNoWait(unregister, token);
+		}
 		//@TRACE 110=<
 		log.fine(CLASS_NAME,methodName,"110");
 
 		return token;
 	}
 
+	/**
+	 * Records the result of a subscribe or unsubscribe for
+	 * {@link MqttAsyncClient#resubscribe(Object, IMqttActionListener)} once
+	 * the server has answered it. A topic filter is recorded at the QoS the
+	 * server granted, and not at all if the server refused it or the
+	 * subscribe failed. A topic filter is forgotten once it has been
+	 * unsubscribed from.
+	 */
+	private class SubscriptionRecorder implements Token.CompletionListener {
+		private String[] topicFilters;
+		private boolean subscribe;
+
+		SubscriptionRecorder(String[] topicFilters, boolean subscribe) {
+			this.topicFilters = topicFilters;
+			this.subscribe = subscribe;
+		}
+
+		public void complete(Token token) {
+			if (!token.isComplete() || token.getException() != null) {
+				return;
+			}
+			if (subscribe) {
+				int[] grantedQos = token.getGrantedQos();
+				for (int i = 0; i < topicFilters.length && i < grantedQos.length; i++) {
+					if (grantedQos[i] != MqttException.REASON_CODE_SUBSCRIBE_FAILED) {
+						subscriptions.put(topicFilters[i], new Integer(grantedQos[i]));
+					}
+				}
+			} else {
+				for (int i = 0; i < topicFilters.length; i++) {
+					subscriptions.remove(topicFilters[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Subscribes again to every topic filter the client has subscribed to
+	 * and not unsubscribed from, at the QoS the server last granted, for
+	 * example after reconnecting to a server that did not keep the session.
+	 * A subscribe or unsubscribe counts once the server has answered it,
+	 * and a topic filter the server refused is not subscribed to again.
+	 * <p>
+	 * The topic filters are sent in one SUBSCRIBE packet or, when
+	 * subscribe requests are coalesced, in as few packets as hold them. The
+	 * message listeners set for the topic filters are kept.
+	 * </p>
+	 * @param userContext optional object used to pass context to the callback. Use
+	 * null if not required.
+	 * @param callback optional listener that will be notified when the
+	 * subscriptions have completed
+	 * @return token used to track and wait for the subscriptions to complete,
+	 * or null if the client has no subscriptions. The granted QoS are given in
+	 * the order of {@link IMqttToken#getTopics()}.
+	 * @throws MqttException if there was an error registering the subscriptions.
+	 * @see MqttConnectOptions#setSubscribeCoalescing(int, int)
+	 */
+	public IMqttToken resubscribe(Object userContext, IMqttActionListener callback) throws MqttException {
+		String[] topicFilters;
+		int[] qos;
+		synchronized (subscriptions) {
+			if (subscriptions.isEmpty()) {
+				return null;
+			}
+			topicFilters = new String[subscriptions.size()];
+			qos = new int[topicFilters.length];
+			Enumeration e = subscriptions.keys();
+			for (int i = 0; i < topicFilters.length; i++) {
+				topicFilters[i] = (String) e.nextElement();
+				qos[i] = ((Integer) subscriptions.get(topicFilters[i])).intValue();
+			}
+		}
+		return this.subscribe(topicFilters, qos, userContext, callback);
+	}
+
+	/**
+	 * Subscribes again to every topic filter the client has subscribed to.
+	 * @return token used to track and wait for the subscriptions to complete,
+	 * or null if the client has no subscriptions.
+	 * @throws MqttException if there was an error registering the subscriptions.
+	 * @see #resubscribe(Object, IMqttActionListener)
+	 */
+	public IMqttToken resubscribe() throws MqttException {
+		return resubscribe(null, null);
+	}
+
+	/**
+	 * Returns a copy of the histogram of the times sampled publishes took to
+	 * reach a stage of their delivery from the stage before. For
+	 * {@link MqttDeliveryToken#STAGE_SUBMITTED} it is of the times they
+	 * took from being submitted to being acknowledged, or for QoS 0 to
+	 * being written. The histograms count the publishes of every
+	 * connection of the client.
+	 * @param stage the stage, one of the <code>STAGE_</code> constants of
+	 * {@link MqttDeliveryToken}
+	 * @return the histogram, with times in nanoseconds
+	 * @throws IllegalArgumentException if the stage is not one of them
+	 * @see MqttConnectOptions#setLatencySampling(int)
+	 */
+	public MqttLatencyHistogram getLatencyHistogram(int stage) {
+		return comms.getClientState().getLatencyHistogram(stage);
+	}
+
+	/**
+	 * Returns the number of delivered messages found to have been garbage
+	 * collected without being released, while messages are released
+	 * explicitly and leaks are looked for.
+	 * @return the number of leaks found
+	 * @see MqttConnectOptions#setPayloadLeakDetection(boolean)
+	 */
+	public int getPayloadLeakCount() {
+		return comms.getClientState().getPayloadLeakCount();
+	}
+
 	/* (non-Javadoc)
 	 * @see IMqttAsyncClient#setCallback(MqttCallback)
 	 */
@@ -863,6 +1078,55 @@ public class MqttAsyncClient implements IMqttAsyncClient { // DestinationProvide
 		return token;
 	}
 
+	/**
+	 * Publishes a message to a topic on the server, using a topic obtained
+	 * from {@link #getTopic(String)}.
+	 * <p>
+	 * The topic name was validated and encoded when the topic was created,
+	 * so this costs less than publishing with the name, which is worth it
+	 * when many messages are published on the same topic.
+	 * </p>
+	 * @param topic the topic to deliver the message to
+	 * @param message the message to deliver
+	 * @return token used to track and wait for the publish to complete
+	 * @see #publish(String, MqttMessage)
+	 */
+	public IMqttDeliveryToken publish(MqttTopic topic, MqttMessage message) throws MqttException, MqttPersistenceException {
+		return this.publish(topic, message, null, null);
+	}
+
+	/**
+	 * Publishes a message to a topic on the server, using a topic obtained
+	 * from {@link #getTopic(String)}.
+	 * @param topic the topic to deliver the message to
+	 * @param message the message to deliver
+	 * @param userContext optional object used to pass context to the callback
+	 * @param callback optional listener that will be notified when message
+	 * delivery has completed
+	 * @return token used to track and wait for the publish to complete
+	 * @see #publish(MqttTopic, MqttMessage)
+	 * @see #publish(String, MqttMessage, Object, IMqttActionListener)
+	 */
+	public IMqttDeliveryToken publish(MqttTopic topic, MqttMessage message, Object userContext, IMqttActionListener callback) throws MqttException,
+			MqttPersistenceException {
+		final String methodName = "publish";
+		//@TRACE 111=< topic={0} message={1}userContext={1} callback={2}
+		log.fine(CLASS_NAME,methodName,"111", new Object[] {topic, userContext, callback});
+
+		MqttDeliveryToken token = new MqttDeliveryToken(getClientId());
+		token.setActionCallback(callback);
+		token.setUserContext(userContext);
+		token.setMessage(message);
+		token.internalTok.setTopics(new String[] {topic.getName()});
+
+		comms.sendNoWait(topic.createPublish(message), token);
+
+		//@TRACE 112=<
+		log.fine(CLASS_NAME,methodName,"112");
+
+		return token;
+	}
+
 	/* (non-Javadoc)
 	 * @see org.eclipse.paho.client.mqttv3.IMqttAsyncClient#close()
 	 */
@@ -0,0 +1,52 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.client.mqttv3;
+
+/**
+ * A callback that is passed the messages that have arrived in batches,
+ * rather than one at a time. Register it like any other callback, with
+ * {@link IMqttAsyncClient#setCallback(MqttCallback)}.
+ * <p>
+ * Each call is passed every message that is waiting to be delivered, up
+ * to the batch size set with
+ * {@link MqttConnectOptions#setCallbackBatchSize(int)}, so an application
+ * that stores each message, for example in a database, can store a batch
+ * in one transaction. While messages arrive slowly a batch holds a single
+ * message.
+ * </p>
+ * <p>
+ * The messages of a batch are acknowledged after the method returns
+ * cleanly, and the acknowledgments are written to the network together.
+ * As with {@link MqttCallback#messageArrived(String, MqttMessage)}, if
+ * the method throws an exception the client is shut down, and QoS 1 and 2
+ * messages of the batch are delivered again when it reconnects.
+ * </p>
+ * <p>
+ * Messages that match the filter of a message listener, and messages
+ * whose payload is streamed, are passed to
+ * {@link MqttCallback#messageArrived(String, MqttMessage)} one at a time
+ * as before.
+ * </p>
+ */
+public interface MqttBatchCallback extends MqttCallback {
+	/**
+	 * This method is called when messages arrive from the server.
+	 *
+	 * @param topics the names of the topics the messages were published to
+	 * @param messages the messages, in the order they arrived, the same
+	 * number as the topics
+	 * @throws Exception if a terminal error has occurred, and the client should be
+	 * shut down.
+	 */
+	public void messagesArrived(String[] topics, MqttMessage[] messages) throws Exception;
+}
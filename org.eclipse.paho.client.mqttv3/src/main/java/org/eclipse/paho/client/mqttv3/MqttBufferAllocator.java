@@ -0,0 +1,44 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+
+package org.eclipse.paho.client.mqttv3;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Represents an object that supplies the buffers that the payloads of
+ * inbound messages are read into.
+ *
+ * @see MqttConnectOptions#setBufferAllocator(MqttBufferAllocator)
+ * @see PooledBufferAllocator
+ */
+public interface MqttBufferAllocator {
+
+	/**
+	 * Returns a buffer to read a payload into. It is called on the thread
+	 * that reads from the network.
+	 * @param size the length of the payload
+	 * @return a buffer with at least <code>size</code> bytes remaining
+	 */
+	public ByteBuffer allocate(int size);
+
+	/**
+	 * Gives back a buffer returned by {@link #allocate(int)} once the message
+	 * has been delivered. It is called on the callback thread. Buffers of
+	 * messages that are not delivered are not released, and are left to
+	 * the garbage collector.
+	 * @param buffer the buffer that is no longer in use
+	 */
+	public void release(ByteBuffer buffer);
+
+}
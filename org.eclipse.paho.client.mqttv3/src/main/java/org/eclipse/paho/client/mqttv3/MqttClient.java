@@ -328,6 +328,67 @@ public class MqttClient implements IMqttClient { //), DestinationProvider {
 		}
 	}
 
+	/*
+	 * @see IMqttClient#subscribe(String, int, IMqttMessageListener)
+	 */
+	public void subscribe(String topicFilter, int qos, IMqttMessageListener messageListener) throws MqttException {
+		this.subscribe(new String[] {topicFilter}, new int[] {qos}, new IMqttMessageListener[] {messageListener});
+	}
+
+	/*
+	 * @see IMqttClient#subscribe(String[], int[], IMqttMessageListener[])
+	 */
+	public void subscribe(String[] topicFilters, int[] qos, IMqttMessageListener[] messageListeners) throws MqttException {
+		IMqttToken tok = aClient.subscribe(topicFilters, qos, null, null, messageListeners);
+		tok.waitForCompletion(getTimeToWait());
+		int[] grantedQos = tok.getGrantedQos();
+		for (int i = 0; i < grantedQos.length; ++i) {
+			qos[i] = grantedQos[i];
+		}
+		if (grantedQos.length == 1 && qos[0] == 0x80) {
+			throw new MqttException(MqttException.REASON_CODE_SUBSCRIBE_FAILED);
+		}
+	}
+
+	/**
+	 * Subscribes again to every topic filter the client has subscribed to
+	 * and waits for the subscriptions to complete.
+	 * @throws MqttException if a subscription failed or there was an error
+	 * registering the subscriptions
+	 * @see MqttAsyncClient#resubscribe(Object, IMqttActionListener)
+	 */
+	public void resubscribe() throws MqttException {
+		IMqttToken tok = aClient.resubscribe(null, null);
+		if (tok == null) {
+			return;
+		}
+		tok.waitForCompletion(getTimeToWait());
+		int[] grantedQos = tok.getGrantedQos();
+		for (int i = 0; i < grantedQos.length; ++i) {
+			if (grantedQos[i] == 0x80) {
+				throw new MqttException(MqttException.REASON_CODE_SUBSCRIBE_FAILED);
+			}
+		}
+	}
+
+	/**
+	 * Returns a copy of the histogram of the times sampled publishes took to
+	 * reach a stage of their delivery.
+	 * @see MqttAsyncClient#getLatencyHistogram(int)
+	 */
+	public MqttLatencyHistogram getLatencyHistogram(int stage) {
+		return aClient.getLatencyHistogram(stage);
+	}
+
+	/**
+	 * Returns the number of delivered messages found to have been garbage
+	 * collected without being released.
+	 * @see MqttAsyncClient#getPayloadLeakCount()
+	 */
+	public int getPayloadLeakCount() {
+		return aClient.getPayloadLeakCount();
+	}
+
 	/*
 	 * @see IMqttClient#unsubscribe(String)
 	 */
@@ -361,6 +422,17 @@ public class MqttClient implements IMqttClient { //), DestinationProvider {
 		aClient.publish(topic, message, null, null).waitForCompletion(getTimeToWait());
 	}
 
+	/**
+	 * Publishes a message to a topic obtained from {@link #getTopic(String)}
+	 * and waits for it to be delivered. The topic name is not validated or
+	 * encoded again.
+	 * @see MqttAsyncClient#publish(MqttTopic, MqttMessage)
+	 */
+	public void publish(MqttTopic topic, MqttMessage message) throws MqttException,
+			MqttPersistenceException {
+		aClient.publish(topic, message, null, null).waitForCompletion(getTimeToWait());
+	}
+
 	/**
 	 * Set the maximum time to wait for an action to complete.
 	 * <p>Set the maximum time to wait for an action to complete before
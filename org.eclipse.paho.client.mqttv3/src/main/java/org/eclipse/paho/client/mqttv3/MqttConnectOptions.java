@@ -16,6 +16,7 @@
  */
 package org.eclipse.paho.client.mqttv3;
 
+import java.util.Hashtable;
 import java.util.Properties;
 
 import javax.net.SocketFactory;
@@ -41,12 +42,25 @@ public class MqttConnectOptions {
 	 * The default clean session setting if one is not specified
 	 */
 	public static final boolean CLEAN_SESSION_DEFAULT = true;
+	/**
+	 * The default number of inbound topic names held in the topic cache
+	 */
+	public static final int TOPIC_CACHE_SIZE_DEFAULT = 4096;
+	/**
+	 * The default highest MQTT 5 topic alias the client accepts from the server
+	 */
+	public static final int TOPIC_ALIAS_MAXIMUM_DEFAULT = 64;
+	/**
+	 * The default most messages passed to a batch callback in one call
+	 */
+	public static final int CALLBACK_BATCH_SIZE_DEFAULT = 10;
 	/**
 	 * The default MqttVersion is 3.1.1 first, dropping back to 3.1 if that fails
 	 */
 	public static final int MQTT_VERSION_DEFAULT = 0;
 	public static final int MQTT_VERSION_3_1 = 3;
 	public static final int MQTT_VERSION_3_1_1 = 4;
+	public static final int MQTT_VERSION_5 = 5;
 
 	protected static final int URI_TYPE_TCP = 0;
 	protected static final int URI_TYPE_SSL = 1;
@@ -63,6 +77,27 @@ public class MqttConnectOptions {
 	private int connectionTimeout = CONNECTION_TIMEOUT_DEFAULT;
 	private String[] serverURIs = null;
 	private int MqttVersion = MQTT_VERSION_DEFAULT;
+	private boolean inboundQoS2StateOnly = false;
+	private String spoolDirectory = null;
+	private int inboundStreamingThreshold = 0;
+	private MqttBufferAllocator bufferAllocator = null;
+	private boolean explicitRelease = false;
+	private boolean payloadLeakDetection = false;
+	private MqttThreadFactory threadFactory = null;
+	private MqttEventRecorder eventRecorder = null;
+	private MqttWireCapture wireCapture = null;
+	private int topicCacheSize = TOPIC_CACHE_SIZE_DEFAULT;
+	private int topicAliasMaximum = TOPIC_ALIAS_MAXIMUM_DEFAULT;
+	private String[] conflatedTopics = null;
+	private Hashtable payloadCodecs = new Hashtable();
+	private int messageRateLimit = 0;
+	private int messageRateBurst = 0;
+	private int byteRateLimit = 0;
+	private int byteRateBurst = 0;
+	private int subscribeCoalescingWindow = 0;
+	private int subscribeCoalescingMaximum = 0;
+	private int latencySampling = 0;
+	private int callbackBatchSize = CALLBACK_BATCH_SIZE_DEFAULT;
 
 	/**
 	 * Constructs a new <code>MqttConnectOptions</code> object using the
@@ -480,23 +515,656 @@ public class MqttConnectOptions {
 	 * and to fall back to 3.1 if that fails.
 	 * Version 3.1.1 or 3.1 can be selected specifically, with no fall back,
 	 * by using the MQTT_VERSION_3_1_1 or MQTT_VERSION_3_1 options respectively.
+	 * <p>
+	 * MQTT_VERSION_5 connects with version 5.0, with no fall back. The
+	 * client then sends and receives topic aliases, so that a publish on a
+	 * topic used recently carries a two byte alias in place of the topic
+	 * name; see {@link #setTopicAliasMaximum(int)}. Other MQTT 5 features
+	 * are not used. A session that is not clean is kept by the server until
+	 * it expires, which it never does.
+	 * </p>
 	 *
 	 * @param MqttVersion the version of the MQTT protocol.
 	 */
 	public void setMqttVersion(int MqttVersion)throws IllegalArgumentException {
 		if (MqttVersion != MQTT_VERSION_DEFAULT && 
 			MqttVersion != MQTT_VERSION_3_1 && 
-			MqttVersion != MQTT_VERSION_3_1_1) {
+			MqttVersion != MQTT_VERSION_3_1_1 &&
+			MqttVersion != MQTT_VERSION_5) {
 			throw new IllegalArgumentException();
 		}
 		this.MqttVersion = MqttVersion;
 	}
 
+	/**
+	 * Returns whether only the state of inbound QoS 2 messages is persisted.
+	 * @return the inbound QoS 2 state only flag
+	 * @see #setInboundQoS2StateOnly(boolean)
+	 */
+	public boolean isInboundQoS2StateOnly() {
+		return inboundQoS2StateOnly;
+	}
+
+	/**
+	 * Sets whether only the state of inbound QoS 2 messages is persisted,
+	 * rather than the whole message.
+	 * <ul>
+	 * <li>If set to false, the default, an inbound QoS 2 message is persisted
+	 * when it arrives and is passed to
+	 * {@link MqttCallback#messageArrived(String, MqttMessage)} when the
+	 * server releases it. 
+	 * <li>If set to true, an inbound QoS 2 message is passed to 
+	 * {@link MqttCallback#messageArrived(String, MqttMessage)} as soon as 
+	 * it arrives. Once that method returns only the message ID is persisted, 
+	 * which is enough to ensure the message is not delivered again when the
+	 * server resends it, including after a restart. This avoids writing the
+	 * payload of large messages to the persistent store. If the client fails,
+	 * or the connection is lost, before the message ID is persisted the 
+	 * message may be delivered again. 
+	 * </ul>
+	 * @param inboundQoS2StateOnly whether only the state of inbound QoS 2 messages is persisted
+	 */
+	public void setInboundQoS2StateOnly(boolean inboundQoS2StateOnly) {
+		this.inboundQoS2StateOnly = inboundQoS2StateOnly;
+	}
+
+	/**
+	 * Returns the directory that the payloads of QoS 1 and 2 streamed
+	 * messages are spooled to.
+	 * @return the spool directory, or null for the system temporary directory
+	 * @see #setSpoolDirectory(String)
+	 */
+	public String getSpoolDirectory() {
+		return spoolDirectory;
+	}
+
+	/**
+	 * Sets the directory that the payloads of QoS 1 and 2
+	 * {@link MqttStreamedMessage}s are copied to before they are sent, so
+	 * that they can be sent again and survive a restart of the client. The
+	 * client persistence only holds a reference to the spool file, which is
+	 * deleted when delivery completes.
+	 * <p>
+	 * The default, null, uses the system temporary directory. Choose a
+	 * directory that is not cleared when the system restarts if messages
+	 * must be delivered after a restart.
+	 * </p>
+	 * @param spoolDirectory the spool directory, or null
+	 */
+	public void setSpoolDirectory(String spoolDirectory) {
+		this.spoolDirectory = spoolDirectory;
+	}
+
+	/**
+	 * Returns the size above which inbound messages are streamed.
+	 * @return the inbound streaming threshold in bytes, or 0 if inbound messages are not streamed
+	 * @see #setInboundStreamingThreshold(int)
+	 */
+	public int getInboundStreamingThreshold() {
+		return inboundStreamingThreshold;
+	}
+
+	/**
+	 * Sets the size above which inbound messages are delivered as 
+	 * {@link MqttStreamedMessage}s, rather than being read into memory.
+	 * <p>
+	 * The payload of a streamed message is read from the network, through
+	 * {@link MqttStreamedMessage#getPayloadStream()}, while
+	 * {@link MqttCallback#messageArrived(String, MqttMessage)} runs. No other
+	 * message is read until that method returns, and any of the payload that
+	 * was not read is then skipped. The message is acknowledged after the 
+	 * method returns. A QoS 2 streamed message is delivered as it arrives, as
+	 * described in {@link #setInboundQoS2StateOnly(boolean)}.
+	 * </p>
+	 * <p>
+	 * The default, 0, reads every message into memory.
+	 * </p>
+	 * @param inboundStreamingThreshold the size of message, in bytes, above which it is streamed
+	 * @throws IllegalArgumentException if the threshold is negative
+	 */
+	public void setInboundStreamingThreshold(int inboundStreamingThreshold) {
+		if (inboundStreamingThreshold < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.inboundStreamingThreshold = inboundStreamingThreshold;
+	}
+
+	/**
+	 * Returns the allocator that inbound payloads are read into.
+	 * @return the buffer allocator, or null if payloads are read into byte arrays
+	 * @see #setBufferAllocator(MqttBufferAllocator)
+	 */
+	public MqttBufferAllocator getBufferAllocator() {
+		return bufferAllocator;
+	}
+
+	/**
+	 * Sets the allocator that supplies the buffers the payloads of inbound
+	 * messages are read into, such as a {@link PooledBufferAllocator}.
+	 * <p>
+	 * The payload of each inbound message is then read into a buffer from
+	 * the allocator, available through {@link MqttMessage#getPayloadBuffer()},
+	 * and the buffer is released back to the allocator when
+	 * {@link MqttCallback#messageArrived(String, MqttMessage)} returns. An
+	 * application that keeps a message after that must copy its payload,
+	 * for example with {@link MqttMessage#getPayload()}, or release the
+	 * message itself, see {@link #setExplicitRelease(boolean)}.
+	 * </p>
+	 * <p>
+	 * The default, null, reads each payload into a new byte array.
+	 * </p>
+	 * @param bufferAllocator the buffer allocator, or null
+	 */
+	public void setBufferAllocator(MqttBufferAllocator bufferAllocator) {
+		this.bufferAllocator = bufferAllocator;
+	}
+
+	/**
+	 * Returns whether the application releases the buffers of the messages
+	 * delivered to it.
+	 * @return true if messages are released by the application
+	 * @see #setExplicitRelease(boolean)
+	 */
+	public boolean isExplicitRelease() {
+		return explicitRelease;
+	}
+
+	/**
+	 * Sets whether the application releases the buffers the payloads of
+	 * messages delivered to it were read into, rather than the client
+	 * releasing them when the callback returns.
+	 * <p>
+	 * With a {@link #setBufferAllocator(MqttBufferAllocator) buffer allocator}
+	 * set, the payload of each inbound message is read into a pooled buffer,
+	 * which is then not allocated for each message. The application can keep
+	 * a message after the callback returns, for example to process it on
+	 * another thread, and calls {@link MqttMessage#release()} once it is done
+	 * with it. A message that is to be kept for a long time can be copied
+	 * with {@link MqttMessage#copy()} and released at once, so that the pool
+	 * is not drained. A message that is not released is left to the garbage
+	 * collector, and its buffer is not reused.
+	 * </p>
+	 * <p>
+	 * Messages that are not delivered, because no callback or listener takes
+	 * them, are released by the client. The default value is false.
+	 * </p>
+	 * @param explicitRelease true if messages are released by the application
+	 * @see #setPayloadLeakDetection(boolean)
+	 */
+	public void setExplicitRelease(boolean explicitRelease) {
+		this.explicitRelease = explicitRelease;
+	}
+
+	/**
+	 * Returns whether messages that are not released are looked for.
+	 * @return true if leaks are detected
+	 * @see #setPayloadLeakDetection(boolean)
+	 */
+	public boolean isPayloadLeakDetection() {
+		return payloadLeakDetection;
+	}
+
+	/**
+	 * Sets whether the client looks for delivered messages that the
+	 * application let go of without releasing them, when messages are
+	 * released explicitly. Each one found is logged as a warning and counted
+	 * in {@link MqttAsyncClient#getPayloadLeakCount()}. Its buffer is not
+	 * given back to the allocator, as the application may still be using it
+	 * through {@link MqttMessage#getPayloadBuffer()}, so the leak should be
+	 * fixed by releasing the message. A leak is found some time after the
+	 * message is garbage collected.
+	 * <p>
+	 * Each delivered message is tracked by a weak reference, which is meant
+	 * for development and testing rather than production. The default value
+	 * is false.
+	 * </p>
+	 * @param payloadLeakDetection true to detect leaks
+	 * @see #setExplicitRelease(boolean)
+	 */
+	public void setPayloadLeakDetection(boolean payloadLeakDetection) {
+		this.payloadLeakDetection = payloadLeakDetection;
+	}
+
+	/**
+	 * Returns the factory the threads of the connection are created by.
+	 * @return the thread factory, or null if platform threads are created
+	 * @see #setThreadFactory(MqttThreadFactory)
+	 */
+	public MqttThreadFactory getThreadFactory() {
+		return threadFactory;
+	}
+
+	/**
+	 * Sets the factory that creates the threads that send, receive and
+	 * call back the application, that connect and disconnect, and that
+	 * sends coalesced subscribe requests, for example to run them on virtual threads when there are many clients.
+	 * <p>
+	 * The client only blocks these threads in <code>synchronized</code>
+	 * blocks and {@link Object#wait()}, and while reading from the network.
+	 * On Java runtimes where a virtual thread that waits in a monitor holds
+	 * on to its carrier thread, each connected client still needs a
+	 * carrier thread while it waits.
+	 * </p>
+	 * <p>
+	 * The default, null, creates a platform thread for each.
+	 * </p>
+	 * @param threadFactory the thread factory, or null
+	 */
+	public void setThreadFactory(MqttThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+	}
+
+	/**
+	 * Returns the recorder the steps of sending and receiving packets are
+	 * recorded by.
+	 * @return the event recorder, or null if the steps are not recorded
+	 * @see #setEventRecorder(MqttEventRecorder)
+	 */
+	public MqttEventRecorder getEventRecorder() {
+		return eventRecorder;
+	}
+
+	/**
+	 * Sets a recorder that is told of each packet queued, written,
+	 * acknowledged, delivered, persisted and removed from persistence, and
+	 * of the connection being shut down, with how long each step took.
+	 * <p>
+	 * The default, null, records nothing, and the client does not time the
+	 * steps.
+	 * </p>
+	 * @param eventRecorder the event recorder, or null
+	 */
+	public void setEventRecorder(MqttEventRecorder eventRecorder) {
+		this.eventRecorder = eventRecorder;
+	}
+
+	/**
+	 * Returns the capture the packets sent and received are written to.
+	 * @return the wire capture, or null if packets are not captured
+	 * @see #setWireCapture(MqttWireCapture)
+	 */
+	public MqttWireCapture getWireCapture() {
+		return wireCapture;
+	}
+
+	/**
+	 * Sets a capture that each packet sent and received is written to, with
+	 * the time it was sent or received, so that the traffic can later be
+	 * played back with {@link MqttWireReplay}.
+	 * <p>
+	 * The default, null, captures nothing. While capturing, the client
+	 * writes packets through a stream rather than directly to the socket
+	 * channel, and copies each packet, so it sends and receives more slowly.
+	 * </p>
+	 * @param wireCapture the wire capture, or null
+	 */
+	public void setWireCapture(MqttWireCapture wireCapture) {
+		this.wireCapture = wireCapture;
+	}
+
+	/**
+	 * Returns the number of inbound topic names held in the topic cache.
+	 * @return the topic cache size, or 0 if the cache is not used
+	 * @see #setTopicCacheSize(int)
+	 */
+	public int getTopicCacheSize() {
+		return topicCacheSize;
+	}
+
+	/**
+	 * Sets the number of inbound topic names the client holds on to, so
+	 * that a message received on a topic it has seen recently is given the
+	 * same String instance for its topic name, without the name being
+	 * decoded again. Names that have not been received recently are
+	 * replaced when the cache is full.
+	 * <p>
+	 * The default is {@link #TOPIC_CACHE_SIZE_DEFAULT}, and the size is
+	 * rounded up to a power of two. A value of 0 decodes every topic name.
+	 * </p>
+	 * @param topicCacheSize the number of topic names to hold
+	 * @throws IllegalArgumentException if the size is negative
+	 */
+	public void setTopicCacheSize(int topicCacheSize) {
+		if (topicCacheSize < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.topicCacheSize = topicCacheSize;
+	}
+
+	/**
+	 * Returns the highest MQTT 5 topic alias the client accepts from the server.
+	 * @see #setTopicAliasMaximum(int)
+	 */
+	public int getTopicAliasMaximum() {
+		return topicAliasMaximum;
+	}
+
+	/**
+	 * Sets the number of MQTT 5 topic aliases the server may use when it
+	 * sends messages to the client. The client holds the topic name of each
+	 * alias for the life of the connection.
+	 * <p>
+	 * The default is {@link #TOPIC_ALIAS_MAXIMUM_DEFAULT}. A value of 0
+	 * means the server sends the topic name with every message. The
+	 * aliases the client uses when it sends messages are limited by the
+	 * server instead. The setting has no effect for earlier MQTT versions.
+	 * </p>
+	 * @param topicAliasMaximum the highest topic alias, up to 65535
+	 * @throws IllegalArgumentException if the value is negative or above 65535
+	 */
+	public void setTopicAliasMaximum(int topicAliasMaximum) {
+		if (topicAliasMaximum < 0 || topicAliasMaximum > 65535) {
+			throw new IllegalArgumentException();
+		}
+		this.topicAliasMaximum = topicAliasMaximum;
+	}
+
+	/**
+	 * Returns the topic filters whose messages are conflated.
+	 * @see #setConflatedTopics(String[])
+	 */
+	public String[] getConflatedTopics() {
+		return conflatedTopics;
+	}
+
+	/**
+	 * Sets the topics on which only the latest value matters, such as
+	 * telemetry readings, so that only the latest QoS 0 or QoS 1 message
+	 * waiting to be sent on each topic is kept.
+	 * <p>
+	 * When a message is published on a topic that matches one of the
+	 * filters while an earlier message with the same QoS on the same topic
+	 * is still waiting to be sent, the new message takes the place of the
+	 * earlier one in the outbound queue. The earlier message is never sent,
+	 * and its token completes with the reason code
+	 * {@link MqttException#REASON_CODE_MESSAGE_CONFLATED}. This limits the
+	 * memory and bandwidth used when the network is slower than the rate
+	 * messages are published at to one waiting message per topic.
+	 * </p>
+	 * <p>
+	 * QoS 2 messages are never conflated. The default, null, conflates no
+	 * messages.
+	 * </p>
+	 * @param conflatedTopics topic filters, which may include wildcards, or null
+	 * @throws IllegalArgumentException if a topic filter is not valid
+	 */
+	public void setConflatedTopics(String[] conflatedTopics) {
+		if (conflatedTopics != null) {
+			for (int i = 0; i < conflatedTopics.length; i++) {
+				MqttTopic.validate(conflatedTopics[i], true);
+			}
+		}
+		this.conflatedTopics = conflatedTopics;
+	}
+
+	/**
+	 * Returns the payload codecs and the topic filters they are used for.
+	 * @return a table of the codec for each topic filter, which must not be
+	 * changed
+	 * @see #setPayloadCodec(String, MqttPayloadCodec)
+	 */
+	public Hashtable getPayloadCodecs() {
+		return payloadCodecs;
+	}
+
+	/**
+	 * Sets the codec that transforms the payloads of messages on the topics
+	 * a filter matches, such as a {@link DeflatePayloadCodec} to compress
+	 * verbose payloads on a metered link.
+	 * <p>
+	 * Payloads published on a matching topic are encoded before they are
+	 * persisted and sent, and payloads received on a matching topic are
+	 * decoded before they are delivered. The token of a publish still
+	 * holds the message as it was published. Payloads that are streamed
+	 * are not transformed.
+	 * </p>
+	 * <p>
+	 * Each filter can have its own codec, and a topic that no filter
+	 * matches is not transformed. When several filters match a topic, the
+	 * codec of the most specific is used: the filters are compared level by
+	 * level, and at the first level where they differ a filter naming the
+	 * level wins over <code>+</code>, which wins over <code>#</code>. So
+	 * <code>plant/line-1/#</code> wins over <code>plant/+/#</code>, which
+	 * wins over <code>plant/#</code>. The default is no codec for any topic.
+	 * </p>
+	 * @param topicFilter a topic filter, which may include wildcards
+	 * @param codec the codec, or null to stop using a codec for the filter
+	 * @throws IllegalArgumentException if the topic filter is not valid
+	 */
+	public void setPayloadCodec(String topicFilter, MqttPayloadCodec codec) {
+		MqttTopic.validate(topicFilter, true);
+		if (codec == null) {
+			payloadCodecs.remove(topicFilter);
+		} else {
+			payloadCodecs.put(topicFilter, codec);
+		}
+	}
+
+	/**
+	 * Returns the most publishes sent per second.
+	 * @return the messages per second, or 0 if there is no limit
+	 * @see #setMessageRateLimit(int, int)
+	 */
+	public int getMessageRateLimit() {
+		return messageRateLimit;
+	}
+
+	/**
+	 * Returns the most publishes sent at once after a pause.
+	 * @see #setMessageRateLimit(int, int)
+	 */
+	public int getMessageRateBurst() {
+		return messageRateBurst;
+	}
+
+	/**
+	 * Sets the most publishes the client sends per second, for servers that
+	 * disconnect clients which exceed an agreed message rate.
+	 * <p>
+	 * Publishes are paced as they are written to the network, so that a
+	 * backlog sent after reconnecting is spread out rather than sent at
+	 * once. The methods that publish are not blocked; the messages wait in
+	 * the outbound queue, and acknowledgements and pings are not delayed.
+	 * After a pause up to <code>burst</code> publishes can be sent at once.
+	 * </p>
+	 * <p>
+	 * The default, 0, sets no limit.
+	 * </p>
+	 * @param messagesPerSecond the messages per second, or 0 for no limit
+	 * @param burst the messages that can be sent at once, at least 1 when
+	 * there is a limit
+	 * @throws IllegalArgumentException if a value is out of range
+	 * @see #setByteRateLimit(int, int)
+	 */
+	public void setMessageRateLimit(int messagesPerSecond, int burst) {
+		if (messagesPerSecond < 0 || burst < 0 || (messagesPerSecond > 0 && burst < 1)) {
+			throw new IllegalArgumentException();
+		}
+		this.messageRateLimit = messagesPerSecond;
+		this.messageRateBurst = burst;
+	}
+
+	/**
+	 * Returns the most bytes sent per second.
+	 * @return the bytes per second, or 0 if there is no limit
+	 * @see #setByteRateLimit(int, int)
+	 */
+	public int getByteRateLimit() {
+		return byteRateLimit;
+	}
+
+	/**
+	 * Returns the most bytes sent at once after a pause.
+	 * @see #setByteRateLimit(int, int)
+	 */
+	public int getByteRateBurst() {
+		return byteRateBurst;
+	}
+
+	/**
+	 * Sets the most bytes the client sends per second, counting every byte
+	 * written to the network, for servers that disconnect clients which
+	 * exceed an agreed byte rate.
+	 * <p>
+	 * Publishes are paced in the same way as for
+	 * {@link #setMessageRateLimit(int, int)}. A publish larger than the
+	 * burst is still sent whole, and the publishes after it wait until the
+	 * rate allows for it.
+	 * </p>
+	 * <p>
+	 * The default, 0, sets no limit.
+	 * </p>
+	 * @param bytesPerSecond the bytes per second, or 0 for no limit
+	 * @param burst the bytes that can be sent at once, at least 1 when there
+	 * is a limit
+	 * @throws IllegalArgumentException if a value is out of range
+	 */
+	public void setByteRateLimit(int bytesPerSecond, int burst) {
+		if (bytesPerSecond < 0 || burst < 0 || (bytesPerSecond > 0 && burst < 1)) {
+			throw new IllegalArgumentException();
+		}
+		this.byteRateLimit = bytesPerSecond;
+		this.byteRateBurst = burst;
+	}
+
+	/**
+	 * Returns how long subscribe and unsubscribe requests wait to be
+	 * coalesced with others.
+	 * @return the milliseconds, or 0 if requests are not coalesced
+	 * @see #setSubscribeCoalescing(int, int)
+	 */
+	public int getSubscribeCoalescingWindow() {
+		return subscribeCoalescingWindow;
+	}
+
+	/**
+	 * Returns the most topic filters sent in one coalesced SUBSCRIBE or
+	 * UNSUBSCRIBE.
+	 * @see #setSubscribeCoalescing(int, int)
+	 */
+	public int getSubscribeCoalescingMaximum() {
+		return subscribeCoalescingMaximum;
+	}
+
+	/**
+	 * Sets the client to coalesce subscribe and unsubscribe requests, for
+	 * applications that make many of them at once, for example to restore
+	 * their subscriptions after reconnecting.
+	 * <p>
+	 * Requests made within <code>windowMillis</code> of the first waiting
+	 * request are sent together in one SUBSCRIBE or UNSUBSCRIBE packet,
+	 * which is sent sooner when it holds <code>maxFilters</code> topic
+	 * filters. Each request still has its own token, which completes with
+	 * the granted QoS of its own topic filters when the server acknowledges
+	 * the packet. A request with more topic filters than the maximum is
+	 * sent in as few packets as it fits in. Subscribe and unsubscribe
+	 * requests are sent in the order they are made.
+	 * </p>
+	 * <p>
+	 * The default, 0, sends every request in its own packet at once.
+	 * </p>
+	 * @param windowMillis the milliseconds requests wait, or 0 to not
+	 * coalesce them
+	 * @param maxFilters the most topic filters in one packet, at least 1
+	 * when requests are coalesced
+	 * @throws IllegalArgumentException if a value is out of range
+	 * @see MqttAsyncClient#resubscribe()
+	 */
+	public void setSubscribeCoalescing(int windowMillis, int maxFilters) {
+		if (windowMillis < 0 || maxFilters < 0 || (windowMillis > 0 && maxFilters < 1)) {
+			throw new IllegalArgumentException();
+		}
+		this.subscribeCoalescingWindow = windowMillis;
+		this.subscribeCoalescingMaximum = maxFilters;
+	}
+
+	/**
+	 * Returns how many publishes there are for each one whose delivery is
+	 * timed.
+	 * @return the number of publishes, or 0 if none are timed
+	 * @see #setLatencySampling(int)
+	 */
+	public int getLatencySampling() {
+		return latencySampling;
+	}
+
+	/**
+	 * Sets the client to time the stages of delivery of one publish in
+	 * every <code>sampling</code>: when it is submitted, queued, taken from
+	 * the queue, written to the network and acknowledged.
+	 * <p>
+	 * The times of each sampled publish can be read from its
+	 * {@link MqttDeliveryToken#getStageTime(int)}, and the times publishes
+	 * took to reach each stage are counted in histograms read with
+	 * {@link MqttAsyncClient#getLatencyHistogram(int)}. A publish that is
+	 * not sampled costs a check of this setting at each stage, and a
+	 * sampled one a read of the clock. Sampling one publish in 100 keeps
+	 * the cost well below 1% of the time to publish.
+	 * </p>
+	 * <p>
+	 * The default, 0, times no publishes.
+	 * </p>
+	 * @param sampling the number of publishes for each one timed, 1 to
+	 * time every publish, or 0 to time none
+	 * @throws IllegalArgumentException if the number is negative
+	 */
+	public void setLatencySampling(int sampling) {
+		if (sampling < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.latencySampling = sampling;
+	}
+
+	/**
+	 * Returns the most messages passed to a batch callback in one call.
+	 * @return the number of messages
+	 * @see #setCallbackBatchSize(int)
+	 */
+	public int getCallbackBatchSize() {
+		return callbackBatchSize;
+	}
+
+	/**
+	 * Sets the most messages passed to a {@link MqttBatchCallback} in one
+	 * call. Up to this many messages that have arrived are held in memory
+	 * while the callback runs, before the client stops reading from the
+	 * network, so a larger batch needs more memory.
+	 * <p>
+	 * The default value is 10.
+	 * </p>
+	 * @param batchSize the number of messages, at least 1
+	 * @throws IllegalArgumentException if the number is less than 1
+	 */
+	public void setCallbackBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.callbackBatchSize = batchSize;
+	}
+
 	public Properties getDebug() {
 		final String strNull="null";
 		Properties p = new Properties();
 		p.put("MqttVersion", new Integer(getMqttVersion()));
 		p.put("CleanSession", Boolean.valueOf(isCleanSession()));
+		p.put("InboundQoS2StateOnly", Boolean.valueOf(isInboundQoS2StateOnly()));
+		p.put("SpoolDirectory", (getSpoolDirectory() == null) ? strNull : getSpoolDirectory());
+		p.put("InboundStreamingThreshold", new Integer(getInboundStreamingThreshold()));
+		p.put("BufferAllocator", (getBufferAllocator() == null) ? strNull : getBufferAllocator().getClass().getName());
+		p.put("ExplicitRelease", Boolean.valueOf(isExplicitRelease()));
+		p.put("PayloadLeakDetection", Boolean.valueOf(isPayloadLeakDetection()));
+		p.put("ThreadFactory", (getThreadFactory() == null) ? strNull : getThreadFactory().getClass().getName());
+		p.put("EventRecorder", (getEventRecorder() == null) ? strNull : getEventRecorder().getClass().getName());
+		p.put("WireCapture", (getWireCapture() == null) ? strNull : getWireCapture().getClass().getName());
+		p.put("TopicCacheSize", new Integer(getTopicCacheSize()));
+		p.put("TopicAliasMaximum", new Integer(getTopicAliasMaximum()));
+		p.put("ConflatedTopics", (getConflatedTopics() == null) ? strNull : String.valueOf(getConflatedTopics().length));
+		p.put("PayloadCodecs", String.valueOf(getPayloadCodecs().size()));
+		p.put("MessageRateLimit", getMessageRateLimit() + "/" + getMessageRateBurst());
+		p.put("ByteRateLimit", getByteRateLimit() + "/" + getByteRateBurst());
+		p.put("SubscribeCoalescing", getSubscribeCoalescingWindow() + "/" + getSubscribeCoalescingMaximum());
+		p.put("LatencySampling", new Integer(getLatencySampling()));
+		p.put("CallbackBatchSize", new Integer(getCallbackBatchSize()));
 		p.put("ConTimeout", new Integer(getConnectionTimeout()));
 		p.put("KeepAliveInterval", new Integer(getKeepAliveInterval()));
 		p.put("UserName", (getUserName() == null) ? strNull : getUserName());
@@ -25,8 +25,31 @@ package org.eclipse.paho.client.mqttv3;
  * @see MqttToken
  */
 public class MqttDeliveryToken extends MqttToken implements IMqttDeliveryToken {
-		
-	
+
+	/**
+	 * The stage at which the publish was passed to the client.
+	 */
+	public static final int STAGE_SUBMITTED = 0;
+	/**
+	 * The stage at which the publish was persisted and queued to be sent.
+	 */
+	public static final int STAGE_QUEUED = 1;
+	/**
+	 * The stage at which the publish was taken from the queue to be sent,
+	 * once there was room in the in-flight window and the rate limits
+	 * allowed.
+	 */
+	public static final int STAGE_DEQUEUED = 2;
+	/**
+	 * The stage at which the publish was written and flushed to the network.
+	 */
+	public static final int STAGE_WRITTEN = 3;
+	/**
+	 * The stage at which the acknowledgement that completes a QoS 1 or 2
+	 * publish arrived.
+	 */
+	public static final int STAGE_ACKED = 4;
+
 	public MqttDeliveryToken() {
 		super();
 	}
@@ -50,4 +73,16 @@ public class MqttDeliveryToken extends MqttToken implements IMqttDeliveryToken {
 	protected void setMessage(MqttMessage msg) {
 		internalTok.setMessage(msg);
 	}
+
+	/**
+	 * Returns when the publish reached a stage of its delivery, if the
+	 * publish was one of those sampled.
+	 * @param stage the stage, one of the <code>STAGE_</code> constants
+	 * @return the value of {@link System#nanoTime()} when the stage was
+	 * reached, or 0 if it has not been or the publish was not sampled
+	 * @see MqttConnectOptions#setLatencySampling(int)
+	 */
+	public long getStageTime(int stage) {
+		return internalTok.getStageTime(stage);
+	}
 }
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+
+package org.eclipse.paho.client.mqttv3;
+
+/**
+ * Records the steps a client takes to send and receive packets, with how
+ * long each took, for profiling without the cost of the client trace.
+ * <p>
+ * The client calls the recorder on the thread that took the step, so it
+ * must be quick and must not call the client. While no recorder is set the
+ * client does not read the clock for it. An application can record the
+ * steps as Java Flight Recorder events, to be seen in Mission Control
+ * with the garbage collections and socket reads and writes of the same
+ * time, for example:
+ * </p>
+ * <pre>
+ * &#64;Name("org.eclipse.paho.Packet") &#64;Label("MQTT Packet")
+ * class PacketEvent extends jdk.jfr.Event {
+ *     int event; String clientId; int packetType; int messageId;
+ *     &#64;DataAmount long size; &#64;Timespan long duration;
+ * }
+ *
+ * options.setEventRecorder(new MqttEventRecorder() {
+ *     public void record(int event, String clientId, int packetType, int messageId, long size, long duration) {
+ *         PacketEvent e = new PacketEvent();
+ *         if (e.isEnabled()) {
+ *             e.event = event; e.clientId = clientId; e.packetType = packetType;
+ *             e.messageId = messageId; e.size = size; e.duration = duration;
+ *             e.commit();
+ *         }
+ *     }
+ * });
+ * </pre>
+ * @see MqttConnectOptions#setEventRecorder(MqttEventRecorder)
+ */
+public interface MqttEventRecorder {
+
+	/**
+	 * A packet was queued to be sent. The duration includes persisting a
+	 * publish.
+	 */
+	public static final int EVENT_QUEUED = 1;
+	/**
+	 * A packet was written and flushed to the network. The size is the
+	 * encoded size of the packet.
+	 */
+	public static final int EVENT_WRITTEN = 2;
+	/**
+	 * An acknowledgement was received and handled. The size is the encoded
+	 * size of the packet.
+	 */
+	public static final int EVENT_ACKED = 3;
+	/**
+	 * An inbound publish was delivered to the application. The duration is
+	 * the time the application took, with any wait for a subscriber to ask
+	 * for the message.
+	 */
+	public static final int EVENT_DELIVERED = 4;
+	/**
+	 * A packet was put into persistence. The size is the persisted size.
+	 */
+	public static final int EVENT_PERSISTED = 5;
+	/**
+	 * A packet was removed from persistence. The packet type is not known,
+	 * so is 0.
+	 */
+	public static final int EVENT_UNPERSISTED = 6;
+	/**
+	 * The connection was shut down. The packet type and size are 0, and
+	 * the message id is the reason code, or 0 for a disconnect.
+	 */
+	public static final int EVENT_SHUTDOWN = 7;
+
+	/**
+	 * Records a step the client took.
+	 * @param event the step, one of the <code>EVENT_</code> constants
+	 * @param clientId the id of the client
+	 * @param packetType the MQTT control packet type, such as 3 for a
+	 * publish, or 0 if the step is not about a packet
+	 * @param messageId the message id of the packet, or 0 if it has none
+	 * @param size the size of the packet in bytes, or for a publish that is
+	 * queued or delivered the size of its payload, or 0 if not known
+	 * @param duration the time the step took, in nanoseconds
+	 */
+	public void record(int event, String clientId, int packetType, int messageId, long size, long duration);
+}
@@ -152,6 +152,13 @@ public class MqttException extends Exception {
 	 * then new messages can be sent.   
 	 */
 	public static final short REASON_CODE_MAX_INFLIGHT    			= 32202;
+	
+	/**
+	 * A message waiting to be sent has been replaced by a newer message on
+	 * the same topic, as the topic is conflated.
+	 * @see MqttConnectOptions#setConflatedTopics(String[])
+	 */
+	public static final short REASON_CODE_MESSAGE_CONFLATED			= 32203;
 
 	private int reasonCode;
 	private Throwable cause;
@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.client.mqttv3;
+
+/**
+ * Counts times in nanoseconds in buckets whose width grows with the times
+ * they hold, so that any percentile can be read to within about 1.6% of
+ * the true time with a fixed amount of memory.
+ * <p>
+ * Times below 128 nanoseconds each have a bucket. Above that, each power
+ * of two is split into 64 buckets. Times of more than two hours are
+ * counted as two hours.
+ * </p>
+ * @see MqttAsyncClient#getLatencyHistogram(int)
+ */
+public class MqttLatencyHistogram {
+
+	private static final int SUB_BUCKETS = 64;
+	private static final int MAX_SHIFT = 36;
+	private static final long MAX_VALUE = ((2L * SUB_BUCKETS) << MAX_SHIFT) - 1;
+
+	private long[] counts = new long[2 * SUB_BUCKETS + MAX_SHIFT * SUB_BUCKETS];
+	private long count = 0;
+	private long total = 0;
+	private long max = 0;
+
+	/**
+	 * Counts a time.
+	 * @param value the time in nanoseconds, where a negative time is
+	 * counted as 0
+	 */
+	public synchronized void record(long value) {
+		if (value < 0) {
+			value = 0;
+		} else if (value > MAX_VALUE) {
+			value = MAX_VALUE;
+		}
+		counts[index(value)]++;
+		count++;
+		total += value;
+		if (value > max) {
+			max = value;
+		}
+	}
+
+	/**
+	 * Returns the bucket a time is counted in.
+	 */
+	private static int index(long value) {
+		if (value < 2 * SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 0;
+		while ((value >> shift) >= 2 * SUB_BUCKETS) {
+			shift++;
+		}
+		return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) ((value >> shift) - SUB_BUCKETS);
+	}
+
+	/**
+	 * Returns the highest time that is counted in a bucket.
+	 */
+	private static long highestValue(int index) {
+		if (index < 2 * SUB_BUCKETS) {
+			return index;
+		}
+		int shift = (index - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+		long mantissa = SUB_BUCKETS + (index - 2 * SUB_BUCKETS) % SUB_BUCKETS;
+		return ((mantissa + 1) << shift) - 1;
+	}
+
+	/**
+	 * Returns the number of times counted.
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the longest time counted, in nanoseconds, or 0 if none has been.
+	 */
+	public synchronized long getMax() {
+		return max;
+	}
+
+	/**
+	 * Returns the mean of the times counted, in nanoseconds, or 0 if none
+	 * has been.
+	 */
+	public synchronized long getMean() {
+		return (count == 0) ? 0 : total / count;
+	}
+
+	/**
+	 * Returns the time that the given percentage of the times counted were
+	 * no longer than.
+	 * @param percentile the percentage, from 0 to 100
+	 * @return the time in nanoseconds, or 0 if no time has been counted
+	 * @throws IllegalArgumentException if the percentage is not from 0 to 100
+	 */
+	public synchronized long getValueAtPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException();
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(percentile / 100 * count);
+		if (rank < 1) {
+			rank = 1;
+		}
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(highestValue(i), max);
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Returns a copy of this histogram, that does not change as more
+	 * times are counted in this one.
+	 */
+	public synchronized MqttLatencyHistogram copy() {
+		MqttLatencyHistogram copy = new MqttLatencyHistogram();
+		System.arraycopy(counts, 0, copy.counts, 0, counts.length);
+		copy.count = count;
+		copy.total = total;
+		copy.max = max;
+		return copy;
+	}
+
+	/**
+	 * Counts the times counted in another histogram as well, for example to
+	 * combine the histograms of several clients.
+	 * @param other the histogram to add, which is not changed
+	 */
+	public void add(MqttLatencyHistogram other) {
+		MqttLatencyHistogram snapshot = other.copy();
+		synchronized (this) {
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] += snapshot.counts[i];
+			}
+			count += snapshot.count;
+			total += snapshot.total;
+			if (snapshot.max > max) {
+				max = snapshot.max;
+			}
+		}
+	}
+
+	/**
+	 * Forgets all the times counted.
+	 */
+	public synchronized void reset() {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = 0;
+		}
+		count = 0;
+		total = 0;
+		max = 0;
+	}
+
+	public synchronized String toString() {
+		return "count=" + count + " mean=" + getMean() / 1000 + "us p50=" + getValueAtPercentile(50) / 1000
+				+ "us p99=" + getValueAtPercentile(99) / 1000 + "us max=" + max / 1000 + "us";
+	}
+}
@@ -15,19 +15,42 @@
  */
 package org.eclipse.paho.client.mqttv3;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
 /**
  * An MQTT message holds the application payload and options
  * specifying how the message is to be delivered
  * The message includes a "payload" (the body of the message)
- * represented as a byte[].
+ * represented as a byte[], or as a {@link ByteBuffer} which may be direct.
  */
 public class MqttMessage {
 
+	/**
+	 * The priority of bulk messages, sent after those of higher priority.
+	 */
+	public static final int PRIORITY_LOW = 0;
+	/**
+	 * The default priority.
+	 */
+	public static final int PRIORITY_NORMAL = 1;
+	/**
+	 * The priority of urgent messages, such as alarms, sent before any
+	 * others that are waiting.
+	 */
+	public static final int PRIORITY_HIGH = 2;
+
+	private static final int CHUNK_SIZE = 8192;
+
 	private boolean mutable = true;
 	private byte[] payload;
+	private ByteBuffer payloadBuffer = null;
 	private int qos = 1;
 	private boolean retained = false;
 	private boolean dup = false;
+	private int priority = PRIORITY_NORMAL;
 
 	/**
 	 * Utility method to validate the supplied QoS value.
@@ -62,12 +85,70 @@ public class MqttMessage {
 	}
 
 	/**
-	 * Returns the payload as a byte array.
+	 * Constructs a message with the remaining bytes of the specified buffer
+	 * as a payload, and all other values set to defaults.
+	 * @see #setPayload(ByteBuffer)
+	 */
+	public MqttMessage(ByteBuffer payload) {
+		setPayload(payload);
+	}
+
+	/**
+	 * Returns the payload as a byte array. A payload held in a buffer is
+	 * copied into a new array, unless the buffer wraps the whole of an array.
 	 *
 	 * @return the payload as a byte array.
 	 */
 	public byte[] getPayload() {
-		return payload;
+		if (payloadBuffer == null) {
+			return payload;
+		}
+		if (payloadBuffer.hasArray() && payloadBuffer.arrayOffset() == 0
+				&& payloadBuffer.remaining() == payloadBuffer.array().length) {
+			return payloadBuffer.array();
+		}
+		byte[] copy = new byte[payloadBuffer.remaining()];
+		payloadBuffer.duplicate().get(copy);
+		return copy;
+	}
+
+	/**
+	 * Returns a read-only view of the payload. The view has its own position
+	 * and limit, so reading from it does not change the message.
+	 * <p>
+	 * The payload of a message received into a buffer from a
+	 * {@link MqttBufferAllocator} is only valid until
+	 * {@link MqttCallback#messageArrived(String, MqttMessage)} returns, after
+	 * which the buffer is reused, or with explicit release until
+	 * {@link #release()} is called. Copy the payload to keep it for longer.
+	 * </p>
+	 *
+	 * @return the payload as a read-only buffer.
+	 */
+	public ByteBuffer getPayloadBuffer() {
+		if (payloadBuffer == null) {
+			return ByteBuffer.wrap(payload).asReadOnlyBuffer();
+		}
+		return payloadBuffer.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Returns the number of bytes in the payload.
+	 * @return the length of the payload
+	 */
+	public int getPayloadLength() {
+		if (payloadBuffer == null) {
+			return payload.length;
+		}
+		return payloadBuffer.remaining();
+	}
+
+	/**
+	 * Returns whether the payload is held in a buffer rather than a byte array.
+	 * @return <code>true</code> if the payload was set from a buffer
+	 */
+	public boolean isPayloadBuffer() {
+		return payloadBuffer != null;
 	}
 
 	/**
@@ -77,6 +158,7 @@ public class MqttMessage {
 	public void clearPayload() {
 		checkMutable();
 		this.payload = new byte[] {};
+		this.payloadBuffer = null;
 	}
 
 	/**
@@ -92,6 +174,69 @@ public class MqttMessage {
 			throw new NullPointerException();
 		}
 		this.payload = payload;
+		this.payloadBuffer = null;
+	}
+
+	/**
+	 * Sets the payload of this message to be the remaining bytes of the
+	 * specified buffer, which may be a heap or a direct buffer. The bytes are
+	 * not copied: the buffer's contents must not be changed until the message
+	 * has been delivered. The position and limit of the buffer are not changed.
+	 *
+	 * @param payload the payload for this message.
+	 * @throws IllegalStateException if this message cannot be edited
+	 * @throws NullPointerException if no payload is provided
+	 */
+	public void setPayload(ByteBuffer payload) {
+		checkMutable();
+		if (payload == null) {
+			throw new NullPointerException();
+		}
+		this.payloadBuffer = payload.slice();
+		this.payload = null;
+	}
+
+	/**
+	 * Writes the payload to a stream. A payload held in an array, or in a
+	 * buffer backed by one, is written in a single call without being copied.
+	 * @param out the stream to write the payload to
+	 * @throws IOException if the payload cannot be written
+	 */
+	public void writePayload(OutputStream out) throws IOException {
+		if (payloadBuffer == null) {
+			out.write(payload);
+		}
+		else if (payloadBuffer.hasArray()) {
+			out.write(payloadBuffer.array(), payloadBuffer.arrayOffset() + payloadBuffer.position(), payloadBuffer.remaining());
+		}
+		else {
+			ByteBuffer source = payloadBuffer.duplicate();
+			byte[] chunk = new byte[Math.min(CHUNK_SIZE, Math.max(source.remaining(), 1))];
+			while (source.hasRemaining()) {
+				int count = Math.min(chunk.length, source.remaining());
+				source.get(chunk, 0, count);
+				out.write(chunk, 0, count);
+			}
+		}
+	}
+
+	/**
+	 * Writes the payload to a channel, which for a direct buffer avoids
+	 * copying it through the heap.
+	 * @param target the channel to write the payload to
+	 * @return <code>false</code> if the payload is held in an array and
+	 * should be written to a stream instead, in which case nothing has been written
+	 * @throws IOException if the payload cannot be written
+	 */
+	public boolean transferPayload(WritableByteChannel target) throws IOException {
+		if (payloadBuffer == null) {
+			return false;
+		}
+		ByteBuffer source = payloadBuffer.duplicate();
+		while (source.hasRemaining()) {
+			target.write(source);
+		}
+		return true;
 	}
 
 	/**
@@ -176,6 +321,83 @@ public class MqttMessage {
 		this.qos = qos;
 	}
 
+	/**
+	 * Returns the priority with which this message is sent.
+	 * @return the priority, one of {@link #PRIORITY_LOW},
+	 * {@link #PRIORITY_NORMAL} or {@link #PRIORITY_HIGH}.
+	 * @see #setPriority(int)
+	 */
+	public int getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Sets the priority with which this message is sent.
+	 * <p>
+	 * Messages waiting to be sent are queued by priority. A message is sent
+	 * before any waiting messages of lower priority, so an alarm does not
+	 * wait behind a backlog of bulk messages. Messages of the same priority
+	 * are sent in the order they were published. A lower priority is still
+	 * served regularly when higher priority messages keep arriving, so it is
+	 * never starved.
+	 * </p>
+	 * <p>
+	 * A high priority message is queued even when the in-flight window is
+	 * full, and is given the next free place in it.
+	 * </p>
+	 * <p>
+	 * The priority is not sent to the server, and is not persisted, so
+	 * messages restored after a restart are sent with the default priority.
+	 * The default value is {@link #PRIORITY_NORMAL}.
+	 * </p>
+	 *
+	 * @param priority one of {@link #PRIORITY_LOW}, {@link #PRIORITY_NORMAL}
+	 * or {@link #PRIORITY_HIGH}
+	 * @throws IllegalArgumentException if the priority is not valid
+	 * @throws IllegalStateException if this message cannot be edited
+	 */
+	public void setPriority(int priority) {
+		checkMutable();
+		if ((priority < PRIORITY_LOW) || (priority > PRIORITY_HIGH)) {
+			throw new IllegalArgumentException();
+		}
+		this.priority = priority;
+	}
+
+	/**
+	 * Returns a copy of this message whose payload is held in a new byte
+	 * array. A received message whose payload is in a pooled buffer can be
+	 * copied to keep it after the buffer is released.
+	 * @return the copy, which can be edited
+	 * @see #release()
+	 */
+	public MqttMessage copy() {
+		byte[] bytes;
+		if (payloadBuffer == null) {
+			bytes = (byte[]) payload.clone();
+		} else {
+			bytes = new byte[payloadBuffer.remaining()];
+			payloadBuffer.duplicate().get(bytes);
+		}
+		MqttMessage copy = new MqttMessage(bytes);
+		copy.qos = qos;
+		copy.retained = retained;
+		copy.dup = dup;
+		copy.priority = priority;
+		return copy;
+	}
+
+	/**
+	 * Gives back the pooled buffer the payload of a received message was read
+	 * into, when the client was connected with
+	 * {@link MqttConnectOptions#setExplicitRelease(boolean)}. The payload is
+	 * then empty. It does nothing for other messages, or for a message that
+	 * has been released already.
+	 * @see #copy()
+	 */
+	public void release() {
+	}
+
 	/**
 	 * Returns a string representation of this message's payload.
 	 * Makes an attempt to return the payload as a string. As the
@@ -184,7 +406,7 @@ public class MqttMessage {
 	 * @return a string representation of this message.
 	 */
 	public String toString() {
-		return new String(payload);
+		return new String(getPayload());
 	}
 
 	/**
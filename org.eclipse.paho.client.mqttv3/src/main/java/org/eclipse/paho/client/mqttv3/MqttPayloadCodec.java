@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+
+package org.eclipse.paho.client.mqttv3;
+
+/**
+ * Represents an object that transforms the payloads of messages on some
+ * topics as they are sent, and transforms them back as they are received,
+ * for example to compress them.
+ * <p>
+ * A codec is called by several threads at once, so must be thread safe.
+ * An encoded payload must be recognisable, so that payloads from clients
+ * that do not encode them can be received on the same topics, and those
+ * are passed to the application unchanged.
+ * </p>
+ *
+ * @see MqttConnectOptions#setPayloadCodec(String, MqttPayloadCodec)
+ * @see DeflatePayloadCodec
+ */
+public interface MqttPayloadCodec {
+
+	/**
+	 * Encodes a payload that is about to be sent. It is called on the
+	 * thread that publishes the message.
+	 * @param payload the array holding the payload
+	 * @param offset the offset of the payload in the array
+	 * @param length the length of the payload
+	 * @return the encoded payload, or null to send the payload unchanged
+	 * @throws MqttException if the payload cannot be encoded
+	 */
+	public byte[] encode(byte[] payload, int offset, int length) throws MqttException;
+
+	/**
+	 * Decodes a payload that has been received. It is called on the
+	 * callback thread.
+	 * @param payload the array holding the payload
+	 * @param offset the offset of the payload in the array
+	 * @param length the length of the payload
+	 * @return the decoded payload, or null if the payload was not encoded
+	 * by this codec, so is delivered unchanged
+	 * @throws MqttException if the payload cannot be decoded
+	 */
+	public byte[] decode(byte[] payload, int offset, int length) throws MqttException;
+
+}
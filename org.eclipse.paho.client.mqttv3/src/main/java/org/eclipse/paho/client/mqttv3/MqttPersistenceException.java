@@ -24,6 +24,15 @@ public class MqttPersistenceException extends MqttException {
 
 	/** Persistence is already being used by another client. */
 	public static final short REASON_CODE_PERSISTENCE_IN_USE	= 32200;
+
+	/** A message is too large for the persistence to store. */
+	public static final short REASON_CODE_PERSISTENCE_DATA_TOO_LARGE	= 32204;
+
+	/**
+	 * The persisted data was written in a format, or with settings, that
+	 * the persistence cannot read.
+	 */
+	public static final short REASON_CODE_PERSISTENCE_INCOMPATIBLE	= 32205;
 	
 	/**
 	 * Constructs a new <code>MqttPersistenceException</code>
@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.client.mqttv3;
+
+/**
+ * Publishes the messages of a stream, asking for them no faster than the
+ * in-flight window of the client allows.
+ * <p>
+ * When it is subscribed to a stream it asks for one fewer messages than
+ * the client may have in flight at once, and then for one more each time a
+ * publish completes. A publish still counts as in flight while its
+ * completion is notified, so one place is kept for it. The stream is held
+ * back while the server is slow to acknowledge, and the client never fails
+ * a publish because its in-flight window is full, if no other publishes
+ * share it.
+ * </p>
+ * <p>
+ * If a publish fails, the demand is cancelled and the failure is thrown by
+ * {@link #waitForCompletion(long)}.
+ * </p>
+ */
+public class MqttPublishSubscriber implements IMqttMessageSubscriber {
+
+	private MqttAsyncClient client;
+	private IMqttDemand demand = null;
+	private int outstanding = 0;
+	private boolean finished = false;
+	private Throwable failure = null;
+
+	private IMqttActionListener publishListener = new IMqttActionListener() {
+		public void onSuccess(IMqttToken asyncActionToken) {
+			IMqttDemand more;
+			synchronized (MqttPublishSubscriber.this) {
+				outstanding--;
+				more = (failure == null) ? demand : null;
+				MqttPublishSubscriber.this.notifyAll();
+			}
+			if (more != null) {
+				more.request(1);
+			}
+		}
+
+		public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+			synchronized (MqttPublishSubscriber.this) {
+				outstanding--;
+			}
+			fail(exception);
+		}
+	};
+
+	/**
+	 * Constructs a subscriber that publishes with the given client.
+	 * @param client the client, which must be connected before messages are
+	 * asked for
+	 */
+	public MqttPublishSubscriber(MqttAsyncClient client) {
+		this.client = client;
+	}
+
+	public void onSubscribe(IMqttDemand demand) {
+		synchronized (this) {
+			this.demand = demand;
+		}
+		demand.request(Math.max(1, client.comms.getClientState().getMaxInFlight() - 1));
+	}
+
+	public void onNext(String topic, MqttMessage message) {
+		synchronized (this) {
+			if (failure != null) {
+				return;
+			}
+			outstanding++;
+		}
+		try {
+			client.publish(topic, message, null, publishListener);
+		} catch (MqttException ex) {
+			synchronized (this) {
+				outstanding--;
+			}
+			fail(ex);
+		}
+	}
+
+	public void onError(Throwable cause) {
+		synchronized (this) {
+			if (failure == null) {
+				failure = cause;
+			}
+			finished = true;
+			notifyAll();
+		}
+	}
+
+	public void onComplete() {
+		synchronized (this) {
+			finished = true;
+			notifyAll();
+		}
+	}
+
+	private void fail(Throwable cause) {
+		IMqttDemand cancel;
+		synchronized (this) {
+			if (failure != null) {
+				return;
+			}
+			failure = cause;
+			cancel = demand;
+			notifyAll();
+		}
+		if (cancel != null) {
+			cancel.cancel();
+		}
+	}
+
+	/**
+	 * Returns the number of messages being published that have not
+	 * completed.
+	 */
+	public synchronized int getOutstanding() {
+		return outstanding;
+	}
+
+	/**
+	 * Waits until the stream has ended and every message of it has been
+	 * published.
+	 * @param timeout the most milliseconds to wait, or 0 to wait until then
+	 * @return true if the stream was published, false if the wait timed out
+	 * @throws MqttException if a publish, or the stream, failed
+	 */
+	public synchronized boolean waitForCompletion(long timeout) throws MqttException {
+		long end = System.currentTimeMillis() + timeout;
+		while (failure == null && !(finished && outstanding == 0)) {
+			long remaining = end - System.currentTimeMillis();
+			if (timeout > 0 && remaining <= 0) {
+				return false;
+			}
+			try {
+				wait(timeout > 0 ? remaining : 0);
+			} catch (InterruptedException ex) {
+				throw new MqttException(ex);
+			}
+		}
+		if (failure instanceof MqttException) {
+			throw (MqttException) failure;
+		} else if (failure != null) {
+			throw new MqttException(failure);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,442 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A message whose payload is read from a stream, buffer or file as it is
+ * written to the network, rather than being held in a byte array.
+ * <p>
+ * Use this class to publish large payloads, such as firmware images, without
+ * holding the whole payload on the heap. The size of the payload must be
+ * known when the message is created.
+ * </p>
+ * <p>
+ * A QoS 0 message is written straight from its source to the network. When
+ * the source is a file and the connection uses a socket created by a
+ * {@link java.nio.channels.SocketChannel}, the payload is transferred by
+ * the operating system without being copied through the heap.
+ * </p>
+ * <p>
+ * The payload of a QoS 1 or 2 message has to be available to send again,
+ * and to survive a restart of the client, so it is copied to a spool file
+ * in the spool directory (see {@link MqttConnectOptions#setSpoolDirectory(String)})
+ * before the publish returns. Only a reference to the spool file is held in
+ * the client persistence.
+ * </p>
+ * <p>
+ * The source must not be changed, and a stream must not be closed, until
+ * the payload has been written: for QoS 0 that is when delivery completes,
+ * for QoS 1 and 2 when the publish returns. The client never closes a stream
+ * or channel supplied by the application.
+ * </p>
+ * <p>
+ * Large inbound messages are also delivered as streamed messages when
+ * {@link MqttConnectOptions#setInboundStreamingThreshold(int)} is set. Their
+ * payload is read from the network through {@link #getPayloadStream()} while
+ * {@link MqttCallback#messageArrived(String, MqttMessage)} runs, and the
+ * message is acknowledged once that method returns.
+ * </p>
+ * <p>
+ * Calling {@link #getPayload()} reads the whole payload into a byte array,
+ * which defeats the purpose of this class, and throws an
+ * <code>IllegalStateException</code> if the source cannot be read. Calling {@link #setPayload(byte[])}
+ * or {@link #setPayload(ByteBuffer)} turns this into an ordinary message.
+ * </p>
+ */
+public class MqttStreamedMessage extends MqttMessage {
+
+	/**
+	 * The largest payload that can be sent in a single MQTT message.
+	 */
+	public static final int MAX_PAYLOAD_LENGTH = 268435455;
+
+	private static final int CHUNK_SIZE = 8192;
+
+	private InputStream stream = null;
+	private boolean consumed = false;
+	private ByteBuffer buffer = null;
+	private FileChannel channel = null;
+	private File file = null;
+	private long position = 0;
+	private int length = 0;
+
+	/**
+	 * Constructs a message that reads its payload from a stream. The stream
+	 * is read once, so the message can only be sent once.
+	 * @param stream the stream to read the payload from
+	 * @param length the number of bytes to read from the stream
+	 * @throws IllegalArgumentException if the length is negative or larger than {@link #MAX_PAYLOAD_LENGTH}
+	 */
+	public MqttStreamedMessage(InputStream stream, int length) {
+		super();
+		if (stream == null) {
+			throw new NullPointerException();
+		}
+		validateLength(length);
+		this.stream = stream;
+		this.length = length;
+	}
+
+	/**
+	 * Constructs a message whose payload is the remaining bytes of a buffer.
+	 * The position and limit of the buffer are not changed.
+	 * @param buffer the buffer holding the payload
+	 * @throws IllegalArgumentException if more than {@link #MAX_PAYLOAD_LENGTH} bytes remain
+	 */
+	public MqttStreamedMessage(ByteBuffer buffer) {
+		super();
+		if (buffer == null) {
+			throw new NullPointerException();
+		}
+		validateLength(buffer.remaining());
+		this.buffer = buffer.duplicate();
+		this.length = buffer.remaining();
+	}
+
+	/**
+	 * Constructs a message whose payload is a region of a file channel. The
+	 * position of the channel is not changed.
+	 * @param channel the channel to read the payload from
+	 * @param position the position in the channel of the first byte of the payload
+	 * @param length the number of bytes in the payload
+	 * @throws IllegalArgumentException if the position is negative, or the length is
+	 * negative or larger than {@link #MAX_PAYLOAD_LENGTH}
+	 */
+	public MqttStreamedMessage(FileChannel channel, long position, int length) {
+		super();
+		if (channel == null) {
+			throw new NullPointerException();
+		}
+		validatePosition(position);
+		validateLength(length);
+		this.channel = channel;
+		this.position = position;
+		this.length = length;
+	}
+
+	/**
+	 * Constructs a message whose payload is the whole of a file.
+	 * @param file the file holding the payload
+	 * @throws IllegalArgumentException if the file is larger than {@link #MAX_PAYLOAD_LENGTH}
+	 */
+	public MqttStreamedMessage(File file) {
+		this(file, 0, (int) Math.min(file.length(), (long) MAX_PAYLOAD_LENGTH + 1));
+	}
+
+	/**
+	 * Constructs a message whose payload is a region of a file. The file is
+	 * opened each time the payload is written, and closed afterwards.
+	 * @param file the file holding the payload
+	 * @param position the position in the file of the first byte of the payload
+	 * @param length the number of bytes in the payload
+	 * @throws IllegalArgumentException if the position is negative, or the length is
+	 * negative or larger than {@link #MAX_PAYLOAD_LENGTH}
+	 */
+	public MqttStreamedMessage(File file, long position, int length) {
+		super();
+		if (file == null) {
+			throw new NullPointerException();
+		}
+		validatePosition(position);
+		validateLength(length);
+		this.file = file;
+		this.position = position;
+		this.length = length;
+	}
+
+	private static void validatePosition(long position) {
+		if (position < 0) {
+			throw new IllegalArgumentException();
+		}
+	}
+
+	private static void validateLength(int length) {
+		if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+			throw new IllegalArgumentException();
+		}
+	}
+
+	/**
+	 * Returns whether the payload is still read from its source, rather than
+	 * held in a byte array.
+	 * @return <code>true</code> if the payload is streamed
+	 */
+	public boolean isStreamed() {
+		return stream != null || buffer != null || channel != null || file != null;
+	}
+
+	/**
+	 * Returns whether the payload can be written more than once. Only a
+	 * payload read from a stream cannot.
+	 * @return <code>true</code> if the payload can be written again
+	 */
+	public boolean isRepeatable() {
+		return stream == null;
+	}
+
+	/**
+	 * Returns the number of bytes in the payload.
+	 * @return the length of the payload
+	 */
+	public int getPayloadLength() {
+		if (isStreamed()) {
+			return length;
+		}
+		return super.getPayloadLength();
+	}
+
+	/**
+	 * Reads the whole payload into a byte array. A stream is read to the end
+	 * and the payload is held in the array from then on.
+	 * <p>
+	 * As this method cannot throw an <code>IOException</code>, a failure to
+	 * read the source is thrown as an <code>IllegalStateException</code> with
+	 * the <code>IOException</code> as its cause. Use
+	 * {@link #getPayloadStream()} or {@link #writePayload(OutputStream)} to
+	 * handle such failures directly.
+	 * </p>
+	 * @return the payload as a byte array
+	 * @throws IllegalStateException if the payload could not be read, or has
+	 * already been read from a stream
+	 */
+	public byte[] getPayload() {
+		if (!isStreamed()) {
+			return super.getPayload();
+		}
+		boolean fromStream = stream != null;
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+		try {
+			writePayload(out);
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+		if (fromStream) {
+			setPayload(out.getBuffer());
+			return super.getPayload();
+		}
+		return out.getBuffer();
+	}
+
+	/**
+	 * Returns a stream to read the payload from. A payload read from a stream,
+	 * such as that of a large inbound message, can only be read once, by this
+	 * method, {@link #writePayload(OutputStream)} or {@link #getPayload()}.
+	 * Any other payload is read into memory.
+	 * @return a stream to read the payload from
+	 * @throws IOException if the payload cannot be read, or has already been
+	 * read from a stream
+	 */
+	public InputStream getPayloadStream() throws IOException {
+		if (stream != null) {
+			if (consumed) {
+				throw new IOException();
+			}
+			consumed = true;
+			return stream;
+		}
+		return new ByteArrayInputStream(getPayload());
+	}
+
+	/**
+	 * Sets a byte array as the payload, replacing any stream, buffer or file.
+	 * @see MqttMessage#setPayload(byte[])
+	 */
+	public void setPayload(byte[] payload) {
+		super.setPayload(payload);
+		clearSource();
+	}
+
+	/**
+	 * Sets a buffer as the payload, replacing any stream or file.
+	 * @see MqttMessage#setPayload(ByteBuffer)
+	 */
+	public void setPayload(ByteBuffer payload) {
+		super.setPayload(payload);
+		clearSource();
+	}
+
+	/**
+	 * Clears the payload, replacing any stream, buffer or file.
+	 * @see MqttMessage#clearPayload()
+	 */
+	public void clearPayload() {
+		super.clearPayload();
+		clearSource();
+	}
+
+	private void clearSource() {
+		stream = null;
+		consumed = false;
+		buffer = null;
+		channel = null;
+		file = null;
+		position = 0;
+		length = 0;
+	}
+
+	/**
+	 * Writes the payload to a stream.
+	 * @param out the stream to write the payload to
+	 * @throws IOException if the payload cannot be read, or has already been
+	 * read from a stream
+	 */
+	public void writePayload(OutputStream out) throws IOException {
+		if (!isStreamed()) {
+			super.writePayload(out);
+		}
+		else if (stream != null) {
+			if (consumed) {
+				throw new IOException();
+			}
+			consumed = true;
+			InputStream in = stream;
+			byte[] chunk = new byte[Math.min(CHUNK_SIZE, Math.max(length, 1))];
+			int remaining = length;
+			while (remaining > 0) {
+				int count = in.read(chunk, 0, Math.min(chunk.length, remaining));
+				if (count < 0) {
+					throw new EOFException();
+				}
+				out.write(chunk, 0, count);
+				remaining -= count;
+			}
+		}
+		else if (buffer != null) {
+			ByteBuffer source = buffer.duplicate();
+			if (source.hasArray()) {
+				out.write(source.array(), source.arrayOffset() + source.position(), source.remaining());
+			} else {
+				byte[] chunk = new byte[Math.min(CHUNK_SIZE, Math.max(length, 1))];
+				while (source.hasRemaining()) {
+					int count = Math.min(chunk.length, source.remaining());
+					source.get(chunk, 0, count);
+					out.write(chunk, 0, count);
+				}
+			}
+		}
+		else if (channel != null) {
+			writeChannel(channel, out);
+		}
+		else {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				writeChannel(in.getChannel(), out);
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	private void writeChannel(FileChannel source, OutputStream out) throws IOException {
+		ByteBuffer chunk = ByteBuffer.allocate(Math.min(CHUNK_SIZE, Math.max(length, 1)));
+		long offset = position;
+		long end = position + length;
+		while (offset < end) {
+			chunk.clear();
+			chunk.limit((int) Math.min(chunk.capacity(), end - offset));
+			int count = source.read(chunk, offset);
+			if (count < 0) {
+				throw new EOFException();
+			}
+			out.write(chunk.array(), 0, count);
+			offset += count;
+		}
+	}
+
+	/**
+	 * Transfers the payload to a channel without copying it through a stream.
+	 * A payload read from a file is transferred by the operating system where
+	 * it can be.
+	 * @param target the channel to transfer the payload to
+	 * @return <code>false</code> if the payload cannot be transferred to a
+	 * channel, in which case nothing has been written
+	 * @throws IOException if the payload cannot be read or written
+	 */
+	public boolean transferPayload(WritableByteChannel target) throws IOException {
+		if (buffer != null) {
+			ByteBuffer source = buffer.duplicate();
+			while (source.hasRemaining()) {
+				target.write(source);
+			}
+			return true;
+		}
+		else if (channel != null) {
+			transferChannel(channel, target);
+			return true;
+		}
+		else if (file != null) {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				transferChannel(in.getChannel(), target);
+			} finally {
+				in.close();
+			}
+			return true;
+		}
+		else if (stream != null) {
+			return false;
+		}
+		return super.transferPayload(target);
+	}
+
+	private void transferChannel(FileChannel source, WritableByteChannel target) throws IOException {
+		long offset = position;
+		long end = position + length;
+		while (offset < end) {
+			long count = source.transferTo(offset, end - offset, target);
+			if (count <= 0 && offset >= source.size()) {
+				throw new EOFException();
+			}
+			offset += count;
+		}
+	}
+
+	/**
+	 * Returns a description of a streamed payload, or the payload as a string.
+	 * @see MqttMessage#toString()
+	 */
+	public String toString() {
+		if (isStreamed()) {
+			return "[streamed payload length:" + length + "]";
+		}
+		return super.toString();
+	}
+
+	/**
+	 * A byte array stream that hands over its buffer without copying it
+	 * when it has been filled exactly.
+	 */
+	private static class ByteArrayOutputStream extends java.io.ByteArrayOutputStream {
+		public ByteArrayOutputStream(int size) {
+			super(size);
+		}
+
+		public byte[] getBuffer() {
+			return count == buf.length ? buf : toByteArray();
+		}
+	}
+}
@@ -0,0 +1,524 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+
+package org.eclipse.paho.client.mqttv3;
+
+import java.util.Vector;
+
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+
+/**
+ * Publishes over several connections to the same server at once, for more
+ * throughput than a single connection gives.
+ * <p>
+ * A single client writes every message with one thread over one socket,
+ * and has at most its in-flight window of messages waiting for
+ * acknowledgement. This client opens a number of stripes, each a
+ * {@link MqttAsyncClient} with its own connection, thread and window, and
+ * client id made of the given id, a hyphen and the number of the stripe.
+ * </p>
+ * <p>
+ * Each publish is sent on the stripe chosen by the hash of its topic, or of
+ * a key given with it, so the messages on one topic, or with one key, are
+ * all sent over the same connection and stay in order. Messages on
+ * different topics may arrive in any order.
+ * </p>
+ * <p>
+ * If any stripe loses its connection, the callback is told once, and
+ * publishes sent on that stripe fail until {@link #connect(MqttConnectOptions)}
+ * is called again, which connects the stripes that are not connected.
+ * Publishes are not moved to another stripe, which would break their order.
+ * The callback is called on the callback thread of each stripe, so it may
+ * be called by several threads at once.
+ * </p>
+ * <p>
+ * Subscriptions are not striped, as each stripe would receive every
+ * message. To receive messages, subscribe with one of the stripes, from
+ * {@link #getStripe(int)}.
+ * </p>
+ */
+public class MqttStripedClient {
+
+	private String clientId;
+	private MqttAsyncClient[] stripes;
+	volatile private MqttCallback callback = null;
+	// Whether every stripe has connected since the loss was last reported
+	private boolean reportLoss = false;
+
+	private MqttCallback stripeCallback = new MqttCallback() {
+		public void connectionLost(Throwable cause) {
+			MqttCallback target;
+			synchronized (MqttStripedClient.this) {
+				target = reportLoss ? callback : null;
+				reportLoss = false;
+			}
+			if (target != null) {
+				target.connectionLost(cause);
+			}
+		}
+
+		public void messageArrived(String topic, MqttMessage message) throws Exception {
+			MqttCallback target = callback;
+			if (target != null) {
+				target.messageArrived(topic, message);
+			}
+		}
+
+		public void deliveryComplete(IMqttDeliveryToken token) {
+			MqttCallback target = callback;
+			if (target != null) {
+				target.deliveryComplete(token);
+			}
+		}
+	};
+
+	/**
+	 * Constructs a client with the default file persistence for each stripe.
+	 * @param serverURI the address of the server to connect to
+	 * @param clientId the client id the ids of the stripes are made from
+	 * @param stripeCount the number of connections
+	 * @throws IllegalArgumentException if the number is less than 1
+	 * @throws MqttException if a stripe cannot be created
+	 * @see MqttAsyncClient#MqttAsyncClient(String, String)
+	 */
+	public MqttStripedClient(String serverURI, String clientId, int stripeCount) throws MqttException {
+		this(serverURI, clientId, defaultPersistence(stripeCount));
+	}
+
+	private static MqttClientPersistence[] defaultPersistence(int stripeCount) {
+		if (stripeCount < 1) {
+			throw new IllegalArgumentException();
+		}
+		MqttClientPersistence[] persistence = new MqttClientPersistence[stripeCount];
+		for (int i = 0; i < stripeCount; i++) {
+			persistence[i] = new MqttDefaultFilePersistence();
+		}
+		return persistence;
+	}
+
+	/**
+	 * Constructs a client with a stripe for each persistence given. Each
+	 * stripe needs its own persistence, as it keeps its own in-flight
+	 * messages.
+	 * @param serverURI the address of the server to connect to
+	 * @param clientId the client id the ids of the stripes are made from
+	 * @param persistence the persistence of each stripe, where null is
+	 * memory persistence
+	 * @throws IllegalArgumentException if no persistence is given, or the
+	 * same persistence is given twice
+	 * @throws MqttException if a stripe cannot be created
+	 * @see MqttAsyncClient#MqttAsyncClient(String, String, MqttClientPersistence)
+	 */
+	public MqttStripedClient(String serverURI, String clientId, MqttClientPersistence[] persistence) throws MqttException {
+		if (persistence.length < 1) {
+			throw new IllegalArgumentException();
+		}
+		for (int i = 0; i < persistence.length; i++) {
+			for (int j = i + 1; j < persistence.length; j++) {
+				if (persistence[i] != null && persistence[i] == persistence[j]) {
+					throw new IllegalArgumentException();
+				}
+			}
+		}
+		this.clientId = clientId;
+		this.stripes = new MqttAsyncClient[persistence.length];
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new MqttAsyncClient(serverURI, clientId + "-" + i, persistence[i]);
+			stripes[i].setCallback(stripeCallback);
+		}
+	}
+
+	/**
+	 * Returns the client id the ids of the stripes are made from.
+	 */
+	public String getClientId() {
+		return clientId;
+	}
+
+	/**
+	 * Returns the number of stripes.
+	 */
+	public int getStripeCount() {
+		return stripes.length;
+	}
+
+	/**
+	 * Returns a stripe, for example to subscribe with it.
+	 * @param index the number of the stripe, from 0
+	 * @return the client of the stripe
+	 */
+	public MqttAsyncClient getStripe(int index) {
+		return stripes[index];
+	}
+
+	/**
+	 * Returns the number of the stripe that the messages on a topic, or with
+	 * a key, are sent on.
+	 * @param key the topic or key
+	 * @return the number of the stripe, from 0
+	 */
+	public int getStripeIndex(Object key) {
+		int hash = key.hashCode();
+		// Spread the high bits, which hash codes of similar strings vary in least
+		hash ^= (hash >>> 16);
+		return (hash & 0x7fffffff) % stripes.length;
+	}
+
+	/**
+	 * Sets the callback told of lost connections, completed deliveries and
+	 * messages that arrive on any stripe.
+	 * @param callback the callback, or null for none
+	 */
+	public void setCallback(MqttCallback callback) {
+		this.callback = callback;
+	}
+
+	/**
+	 * Connects every stripe that is not connected, with the same options.
+	 * A stripe that cannot start to connect fails the token rather than
+	 * throwing, so that the stripes that did start are still waited for.
+	 * @param options the options, which are used by every stripe
+	 * @return a token that completes when every stripe is connected, or
+	 * fails with the first failure once every stripe has finished
+	 * @throws MqttException not thrown; a stripe that cannot start to
+	 * connect fails the token
+	 */
+	public IMqttToken connect(MqttConnectOptions options) throws MqttException {
+		return connect(options, null, null);
+	}
+
+	/**
+	 * Connects every stripe that is not connected, with the same options.
+	 * @param options the options, which are used by every stripe
+	 * @param userContext optional object passed to the callback
+	 * @param callback optional listener told once every stripe has finished
+	 * @return a token that completes when every stripe is connected
+	 * @throws MqttException not thrown; a stripe that cannot start to
+	 * connect fails the token
+	 * @see #connect(MqttConnectOptions)
+	 */
+	public IMqttToken connect(MqttConnectOptions options, Object userContext, IMqttActionListener callback) throws MqttException {
+		StripedToken token = new StripedToken(true, userContext, callback);
+		Vector connecting = new Vector();
+		for (int i = 0; i < stripes.length; i++) {
+			if (!stripes[i].isConnected()) {
+				connecting.addElement(stripes[i]);
+			}
+		}
+		token.expect(connecting.size());
+		for (int i = 0; i < connecting.size(); i++) {
+			try {
+				((MqttAsyncClient) connecting.elementAt(i)).connect(options, null, token.listener);
+			} catch (MqttException ex) {
+				// The stripe has finished, and the others are still waited for
+				token.finished(ex);
+			}
+		}
+		return token;
+	}
+
+	/**
+	 * Returns whether every stripe is connected.
+	 */
+	public boolean isConnected() {
+		for (int i = 0; i < stripes.length; i++) {
+			if (!stripes[i].isConnected()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of stripes that are connected.
+	 */
+	public int getConnectedCount() {
+		int count = 0;
+		for (int i = 0; i < stripes.length; i++) {
+			if (stripes[i].isConnected()) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Publishes a message on the stripe chosen by its topic.
+	 * @param topic the topic to deliver the message to
+	 * @param message the message to deliver
+	 * @return the token of the publish on its stripe
+	 * @throws MqttException if the stripe cannot send the message
+	 * @see MqttAsyncClient#publish(String, MqttMessage)
+	 */
+	public IMqttDeliveryToken publish(String topic, MqttMessage message) throws MqttException {
+		return stripes[getStripeIndex(topic)].publish(topic, message, null, null);
+	}
+
+	/**
+	 * Publishes a message on the stripe chosen by a key, so that messages
+	 * with the same key stay in order whatever their topic.
+	 * @param key the key the stripe is chosen by
+	 * @param topic the topic to deliver the message to
+	 * @param message the message to deliver
+	 * @param userContext optional object passed to the callback
+	 * @param callback optional listener told when the publish completes
+	 * @return the token of the publish on its stripe
+	 * @throws MqttException if the stripe cannot send the message
+	 * @see MqttAsyncClient#publish(String, MqttMessage, Object, IMqttActionListener)
+	 */
+	public IMqttDeliveryToken publish(Object key, String topic, MqttMessage message, Object userContext, IMqttActionListener callback) throws MqttException {
+		return stripes[getStripeIndex(key)].publish(topic, message, userContext, callback);
+	}
+
+	/**
+	 * Returns the tokens of the publishes of every stripe that have not
+	 * completed.
+	 * @see MqttAsyncClient#getPendingDeliveryTokens()
+	 */
+	public IMqttDeliveryToken[] getPendingDeliveryTokens() {
+		Vector tokens = new Vector();
+		for (int i = 0; i < stripes.length; i++) {
+			IMqttDeliveryToken[] pending = stripes[i].getPendingDeliveryTokens();
+			for (int j = 0; j < pending.length; j++) {
+				tokens.addElement(pending[j]);
+			}
+		}
+		IMqttDeliveryToken[] result = new IMqttDeliveryToken[tokens.size()];
+		tokens.copyInto(result);
+		return result;
+	}
+
+	/**
+	 * Returns the histogram of the delivery times of the sampled publishes
+	 * of every stripe.
+	 * @see MqttAsyncClient#getLatencyHistogram(int)
+	 */
+	public MqttLatencyHistogram getLatencyHistogram(int stage) {
+		MqttLatencyHistogram histogram = new MqttLatencyHistogram();
+		for (int i = 0; i < stripes.length; i++) {
+			histogram.add(stripes[i].getLatencyHistogram(stage));
+		}
+		return histogram;
+	}
+
+	/**
+	 * Returns the number of delivered messages of every stripe found to have
+	 * been garbage collected without being released.
+	 * @see MqttAsyncClient#getPayloadLeakCount()
+	 */
+	public int getPayloadLeakCount() {
+		int count = 0;
+		for (int i = 0; i < stripes.length; i++) {
+			count += stripes[i].getPayloadLeakCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Disconnects every stripe that is connected. A stripe that cannot start
+	 * to disconnect fails the token rather than throwing, so that the
+	 * stripes that did start are still waited for.
+	 * @return a token that completes when every stripe has disconnected, or
+	 * fails with the first failure once every stripe has finished
+	 * @throws MqttException not thrown; a stripe that cannot start to
+	 * disconnect fails the token
+	 * @see MqttAsyncClient#disconnect()
+	 */
+	public IMqttToken disconnect() throws MqttException {
+		synchronized (this) {
+			// Disconnecting is not a loss
+			reportLoss = false;
+		}
+		StripedToken token = new StripedToken(false, null, null);
+		Vector connected = new Vector();
+		for (int i = 0; i < stripes.length; i++) {
+			if (stripes[i].isConnected()) {
+				connected.addElement(stripes[i]);
+			}
+		}
+		token.expect(connected.size());
+		for (int i = 0; i < connected.size(); i++) {
+			try {
+				((MqttAsyncClient) connected.elementAt(i)).disconnect(null, token.listener);
+			} catch (MqttException ex) {
+				// The stripe has finished, and the others are still waited for
+				token.finished(ex);
+			}
+		}
+		return token;
+	}
+
+	/**
+	 * Closes every stripe.
+	 * @throws MqttException if a stripe cannot be closed, after trying to
+	 * close the others
+	 * @see MqttAsyncClient#close()
+	 */
+	public void close() throws MqttException {
+		MqttException failure = null;
+		for (int i = 0; i < stripes.length; i++) {
+			try {
+				stripes[i].close();
+			} catch (MqttException ex) {
+				if (failure == null) {
+					failure = ex;
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Completes when the actions of every stripe it waits for have finished.
+	 */
+	private class StripedToken implements IMqttToken {
+		private boolean connect;
+		private int remaining = 0;
+		private boolean complete = false;
+		private MqttException exception = null;
+		private Object userContext;
+		private IMqttActionListener callback;
+
+		final IMqttActionListener listener = new IMqttActionListener() {
+			public void onSuccess(IMqttToken asyncActionToken) {
+				finished(null);
+			}
+
+			public void onFailure(IMqttToken asyncActionToken, Throwable failure) {
+				finished((failure instanceof MqttException) ? (MqttException) failure : new MqttException(failure));
+			}
+		};
+
+		StripedToken(boolean connect, Object userContext, IMqttActionListener callback) {
+			this.connect = connect;
+			this.userContext = userContext;
+			this.callback = callback;
+		}
+
+		void expect(int count) {
+			synchronized (this) {
+				remaining = count;
+			}
+			if (count == 0) {
+				finished(null);
+			}
+		}
+
+		private void finished(MqttException failure) {
+			IMqttActionListener notify;
+			MqttException result;
+			synchronized (this) {
+				if (failure != null && exception == null) {
+					exception = failure;
+				}
+				if (remaining > 0) {
+					remaining--;
+				}
+				if (remaining > 0 || complete) {
+					return;
+				}
+				if (connect && exception == null) {
+					synchronized (MqttStripedClient.this) {
+						// Every stripe is connected again, so a loss is news,
+						// even one that follows straight after the wait
+						reportLoss = true;
+					}
+				}
+				complete = true;
+				notifyAll();
+				notify = callback;
+				result = exception;
+			}
+			if (notify != null) {
+				if (result == null) {
+					notify.onSuccess(this);
+				} else {
+					notify.onFailure(this, result);
+				}
+			}
+		}
+
+		public void waitForCompletion() throws MqttException {
+			waitForCompletion(-1);
+		}
+
+		public synchronized void waitForCompletion(long timeout) throws MqttException {
+			long end = System.currentTimeMillis() + timeout;
+			while (!complete) {
+				long wait = (timeout <= 0) ? 0 : end - System.currentTimeMillis();
+				if (timeout > 0 && wait <= 0) {
+					throw new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT);
+				}
+				try {
+					wait(wait);
+				} catch (InterruptedException ex) {
+					throw new MqttException(ex);
+				}
+			}
+			if (exception != null) {
+				throw exception;
+			}
+		}
+
+		public synchronized boolean isComplete() {
+			return complete;
+		}
+
+		public synchronized MqttException getException() {
+			return exception;
+		}
+
+		public synchronized void setActionCallback(IMqttActionListener listener) {
+			this.callback = listener;
+		}
+
+		public synchronized IMqttActionListener getActionCallback() {
+			return callback;
+		}
+
+		public IMqttAsyncClient getClient() {
+			return null;
+		}
+
+		public String[] getTopics() {
+			return null;
+		}
+
+		public synchronized void setUserContext(Object userContext) {
+			this.userContext = userContext;
+		}
+
+		public synchronized Object getUserContext() {
+			return userContext;
+		}
+
+		public int getMessageId() {
+			return 0;
+		}
+
+		public int[] getGrantedQos() {
+			return null;
+		}
+
+		public boolean getSessionPresent() {
+			return false;
+		}
+
+		public MqttWireMessage getResponse() {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,43 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+
+package org.eclipse.paho.client.mqttv3;
+
+/**
+ * Creates the threads a client connection runs on: the threads that send,
+ * receive and call back the application, the threads that connect and
+ * disconnect, and the thread that sends coalesced subscribe requests.
+ * <p>
+ * An application with many clients can use it to run them on lightweight
+ * threads. For example, on a Java runtime with virtual threads:
+ * </p>
+ * <pre>
+ * options.setThreadFactory(new MqttThreadFactory() {
+ *     public Thread newThread(Runnable runnable, String name) {
+ *         return Thread.ofVirtual().name(name).unstarted(runnable);
+ *     }
+ * });
+ * </pre>
+ * @see MqttConnectOptions#setThreadFactory(MqttThreadFactory)
+ */
+public interface MqttThreadFactory {
+
+	/**
+	 * Returns a new thread that runs the given work. The client starts the
+	 * thread, so it must not have been started.
+	 * @param runnable the work the thread runs
+	 * @param name the name of the thread
+	 * @return the thread
+	 */
+	public Thread newThread(Runnable runnable, String name);
+}
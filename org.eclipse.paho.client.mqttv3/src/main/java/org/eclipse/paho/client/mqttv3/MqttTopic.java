@@ -23,6 +23,12 @@ import org.eclipse.paho.client.mqttv3.util.Strings;
 
 /**
  * Represents a topic destination, used for publish/subscribe messaging.
+ * <p>
+ * The topic name is validated and encoded when the topic is created, so
+ * publishing on it repeatedly, with {@link #publish(MqttMessage)} or
+ * {@link MqttAsyncClient#publish(MqttTopic, MqttMessage)}, costs neither.
+ * A topic cannot be changed once it has been created.
+ * </p>
  */
 public class MqttTopic {
 	
@@ -61,12 +67,29 @@ public class MqttTopic {
 	private static final int MAX_TOPIC_LEN = 65535;
 	private static final char NUL = '\u0000';
 	
-	private ClientComms comms;
-	private String name;
+	private final ClientComms comms;
+	private final String name;
+	// The name as it is written in a publish, UTF-8 encoded after its length
+	private final byte[] encodedName;
 	
+	/**
+	 * Constructs a topic.
+	 * @throws IllegalArgumentException if the name is not a valid topic name
+	 */
 	public MqttTopic(String name, ClientComms comms) {
+		validate(name, false/*wildcards NOT allowed*/);
 		this.comms = comms;
 		this.name = name;
+		byte[] utf8;
+		try {
+			utf8 = name.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		this.encodedName = new byte[utf8.length + 2];
+		encodedName[0] = (byte) ((utf8.length >>> 8) & 0xFF);
+		encodedName[1] = (byte) (utf8.length & 0xFF);
+		System.arraycopy(utf8, 0, encodedName, 2, utf8.length);
 	}
 	
 	/**
@@ -121,8 +144,8 @@ public class MqttTopic {
 	/**
 	 * Create a PUBLISH packet from the specified message.
 	 */
-	private MqttPublish createPublish(MqttMessage message) {
-		return new MqttPublish(this.getName(), message);
+	MqttPublish createPublish(MqttMessage message) {
+		return new MqttPublish(name, encodedName, message);
 	}
 	
 	/**
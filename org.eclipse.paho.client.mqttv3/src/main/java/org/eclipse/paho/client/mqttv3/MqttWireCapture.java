@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.client.mqttv3;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.eclipse.paho.client.mqttv3.logging.Logger;
+import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
+
+/**
+ * Writes every MQTT packet a client sends and receives, as the bytes sent
+ * on the network, with the time and the direction of each, to a compact
+ * binary file. The file can be read with {@link MqttWireCaptureReader} and
+ * played back to a client with {@link MqttWireReplay}, to measure changes
+ * to the client against the traffic of a real application.
+ * <p>
+ * A file starts with the four bytes <code>MQWC</code>, a version byte of
+ * 1 and the time the capture started, in milliseconds since 1970, as eight
+ * bytes. Each record that follows is a byte giving its type, the
+ * nanoseconds since the record before it and the length of the packet, each
+ * as a variable length integer of seven bits to the byte, least significant
+ * first, and then the packet. A connection record, written each time the
+ * client connects, has no packet.
+ * </p>
+ * <p>
+ * Payloads are captured as they are, so a capture holds whatever the
+ * application sent and received. A capture should only be used by one
+ * client. If the file cannot be written to, the capture stops and the
+ * client carries on.
+ * </p>
+ * @see MqttConnectOptions#setWireCapture(MqttWireCapture)
+ */
+public class MqttWireCapture {
+	private static final String CLASS_NAME = MqttWireCapture.class.getName();
+	private static final Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
+
+	/**
+	 * The client connected, so the packets that follow are on a new
+	 * network connection.
+	 */
+	public static final int RECORD_CONNECTED = 0;
+	/**
+	 * The client sent a packet.
+	 */
+	public static final int RECORD_SENT = 1;
+	/**
+	 * The client received a packet.
+	 */
+	public static final int RECORD_RECEIVED = 2;
+
+	static final byte[] MAGIC = new byte[] {'M', 'Q', 'W', 'C'};
+	static final int VERSION = 1;
+
+	private OutputStream out;
+	private long lastTime;
+	private long recordCount = 0;
+	private long byteCount = 0;
+	private IOException failure = null;
+	private boolean closed = false;
+
+	/**
+	 * Creates a capture that writes to a file, replacing anything in it.
+	 * @param fileName the name of the file
+	 * @throws IOException if the file cannot be written to
+	 */
+	public MqttWireCapture(String fileName) throws IOException {
+		this(new FileOutputStream(fileName));
+	}
+
+	/**
+	 * Creates a capture that writes to a stream, which is closed when the
+	 * capture is.
+	 * @param out the stream
+	 * @throws IOException if the stream cannot be written to
+	 */
+	public MqttWireCapture(OutputStream out) throws IOException {
+		this.out = new BufferedOutputStream(out, 65536);
+		this.out.write(MAGIC);
+		this.out.write(VERSION);
+		long start = System.currentTimeMillis();
+		for (int i = 56; i >= 0; i -= 8) {
+			this.out.write((int) (start >>> i));
+		}
+		lastTime = System.nanoTime();
+	}
+
+	/**
+	 * Writes a record, timed now. The client calls this for each packet
+	 * it sends and receives, so an application need not.
+	 * @param type the type of record, one of <code>RECORD_CONNECTED</code>,
+	 * <code>RECORD_SENT</code> or <code>RECORD_RECEIVED</code>
+	 * @param packet the array holding the packet
+	 * @param offset the offset of the packet in the array
+	 * @param length the length of the packet
+	 */
+	public synchronized void record(int type, byte[] packet, int offset, int length) {
+		final String methodName = "record";
+		if (closed || failure != null) {
+			return;
+		}
+		long now = System.nanoTime();
+		try {
+			out.write(type);
+			writeVariableLength(now - lastTime);
+			writeVariableLength(length);
+			if (length > 0) {
+				out.write(packet, offset, length);
+			}
+		} catch (IOException e) {
+			failure = e;
+			//@TRACE 675=wire capture stopped after {0} records
+			log.warning(CLASS_NAME, methodName, "675", new Object[] { new Long(recordCount) }, e);
+			return;
+		}
+		lastTime = now;
+		recordCount++;
+		byteCount += length;
+	}
+
+	private void writeVariableLength(long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	/**
+	 * Returns the number of records written, including connection records.
+	 */
+	public synchronized long getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * Returns the number of bytes of packets written.
+	 */
+	public synchronized long getByteCount() {
+		return byteCount;
+	}
+
+	/**
+	 * Returns the exception the capture stopped on, or null if it has not
+	 * failed.
+	 */
+	public synchronized IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Writes the records so far to the stream, so that they can be read
+	 * while the capture goes on.
+	 * @throws IOException if the stream cannot be written to
+	 */
+	public synchronized void flush() throws IOException {
+		if (!closed) {
+			out.flush();
+		}
+	}
+
+	/**
+	 * Writes the records so far and closes the stream. Packets sent and
+	 * received after this are not captured.
+	 * @throws IOException if the stream cannot be written to
+	 */
+	public synchronized void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.client.mqttv3;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the records of a file written by {@link MqttWireCapture}, one at a
+ * time.
+ * <p>
+ * A file that was cut short, for example because the process capturing
+ * it was killed, is read up to the last whole record.
+ * </p>
+ */
+public class MqttWireCaptureReader {
+
+	private static final byte[] NO_PACKET = new byte[0];
+
+	private DataInputStream in;
+	private long startTime;
+	private int type = -1;
+	private long time = 0;
+	private byte[] packet = null;
+
+	/**
+	 * Creates a reader of a capture file.
+	 * @param fileName the name of the file
+	 * @throws IOException if the file cannot be read, or is not a capture
+	 */
+	public MqttWireCaptureReader(String fileName) throws IOException {
+		this(new FileInputStream(fileName));
+	}
+
+	/**
+	 * Creates a reader of a capture from a stream, which is closed when the
+	 * reader is.
+	 * @param in the stream
+	 * @throws IOException if the stream cannot be read, or is not a capture
+	 */
+	public MqttWireCaptureReader(InputStream in) throws IOException {
+		this.in = new DataInputStream(new BufferedInputStream(in, 65536));
+		byte[] magic = new byte[MqttWireCapture.MAGIC.length];
+		this.in.readFully(magic);
+		for (int i = 0; i < magic.length; i++) {
+			if (magic[i] != MqttWireCapture.MAGIC[i]) {
+				throw new IOException("not an MQTT wire capture");
+			}
+		}
+		int version = this.in.readUnsignedByte();
+		if (version != MqttWireCapture.VERSION) {
+			throw new IOException("unsupported capture version " + version);
+		}
+		startTime = this.in.readLong();
+	}
+
+	/**
+	 * Returns the time the capture started, in milliseconds since 1970.
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * Reads the next record.
+	 * @return whether there was a record, or false at the end of the capture
+	 * @throws IOException if the capture cannot be read
+	 */
+	public boolean next() throws IOException {
+		int nextType = in.read();
+		if (nextType < 0) {
+			return false;
+		}
+		try {
+			long nextTime = time + readVariableLength();
+			long length = readVariableLength();
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException("record of " + length + " bytes");
+			}
+			byte[] nextPacket = (length == 0) ? NO_PACKET : new byte[(int) length];
+			in.readFully(nextPacket);
+			type = nextType;
+			time = nextTime;
+			packet = nextPacket;
+			return true;
+		} catch (EOFException e) {
+			// The last record was not written completely
+			return false;
+		}
+	}
+
+	private long readVariableLength() throws IOException {
+		long value = 0;
+		int shift = 0;
+		int digit;
+		do {
+			digit = in.readUnsignedByte();
+			value |= (long) (digit & 0x7F) << shift;
+			shift += 7;
+		} while ((digit & 0x80) != 0);
+		return value;
+	}
+
+	/**
+	 * Returns the type of the current record, one of
+	 * <code>MqttWireCapture.RECORD_CONNECTED</code>,
+	 * <code>RECORD_SENT</code> or <code>RECORD_RECEIVED</code>.
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the time of the current record, in nanoseconds since the
+	 * capture started.
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * Returns the packet of the current record as it was on the network,
+	 * which is empty for a connection record.
+	 */
+	public byte[] getPacket() {
+		return packet;
+	}
+
+	/**
+	 * Returns the MQTT packet type of the current record, for example 3 for
+	 * a publish, or 0 for a connection record.
+	 */
+	public int getPacketType() {
+		return (packet.length == 0) ? 0 : (packet[0] >> 4) & 0x0F;
+	}
+
+	/**
+	 * Closes the stream the capture is read from.
+	 * @throws IOException if the stream cannot be closed
+	 */
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -0,0 +1,492 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.client.mqttv3;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Vector;
+
+/**
+ * Plays back the packets a client received in a capture written by
+ * {@link MqttWireCapture}, as a stub server on the loopback interface, so
+ * that the decoding, callbacks and persistence of a client can be measured
+ * against the traffic of a real application.
+ * <p>
+ * One connection of the capture is played back, to the first client to
+ * connect. Once the client has sent its CONNECT, the CONNACK, publishes
+ * and releases the client received are sent at the times they were
+ * received, relative to the first of them, divided by the speed. Packets
+ * that answer the client are not played back, as the client being
+ * measured need not send what the captured client did. Instead the replay
+ * answers the publishes, releases, subscribes, unsubscribes and pings the
+ * client sends, as a server would. The packets to play back are read into
+ * memory when the replay starts, so that reading the capture does not slow
+ * the replay down.
+ * </p>
+ * <p>
+ * For example, to play a capture back twice as fast as it was received:
+ * </p>
+ * <pre>
+ * MqttWireReplay replay = new MqttWireReplay(new MqttWireCaptureReader("app.mqwc"));
+ * replay.setSpeed(2);
+ * MqttAsyncClient client = new MqttAsyncClient(replay.start(), "replay", new MemoryPersistence());
+ * client.setCallback(callback);
+ * client.connect().waitForCompletion();
+ * replay.waitForCompletion(0);
+ * </pre>
+ */
+public class MqttWireReplay {
+
+	// The types of the packets the replay reads and writes
+	private static final int CONNECT = 1;
+	private static final int CONNACK = 2;
+	private static final int PUBLISH = 3;
+	private static final int PUBREL = 6;
+	private static final int SUBSCRIBE = 8;
+	private static final int UNSUBSCRIBE = 10;
+	private static final int PINGREQ = 12;
+	private static final int DISCONNECT = 14;
+
+	private MqttWireCaptureReader reader;
+	private int connection = 0;
+	private double speed = 1;
+	private ServerSocket serverSocket = null;
+	private Socket socket = null;
+	private Vector packets = null;
+	private Vector times = null;
+	private boolean stopped = false;
+	private boolean complete = false;
+	private IOException failure = null;
+	private long packetCount = 0;
+	private long byteCount = 0;
+	private long maxLag = 0;
+	private long duration = 0;
+
+	/**
+	 * Creates a replay of a capture.
+	 * @param reader the reader of the capture, which should not have been
+	 * read from
+	 */
+	public MqttWireReplay(MqttWireCaptureReader reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * Sets the connection of the capture to play back.
+	 * <p>
+	 * The default value is 0, the first connection.
+	 * </p>
+	 * @param connection the number of the connection, from 0
+	 */
+	public void setConnection(int connection) {
+		if (connection < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.connection = connection;
+	}
+
+	/**
+	 * Sets how many times faster than they were captured the packets are
+	 * played back.
+	 * <p>
+	 * The default value is 1, the speed they were captured at. A speed of 0
+	 * sends the packets as fast as the client reads them.
+	 * </p>
+	 * @param speed the speed, which must not be negative
+	 */
+	public void setSpeed(double speed) {
+		if (speed < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.speed = speed;
+	}
+
+	/**
+	 * Reads the packets to play back, and starts to listen on a free port
+	 * of the loopback interface for the client to connect.
+	 * @return the URI for the client to connect to
+	 * @throws IOException if the capture cannot be read, does not have the
+	 * connection, or the port cannot be listened on
+	 */
+	public synchronized String start() throws IOException {
+		readConnection();
+		serverSocket = new ServerSocket(0, 1, InetAddress.getByName("localhost"));
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				replay();
+			}
+		}, "MQTT Replay: " + serverSocket.getLocalPort());
+		thread.setDaemon(true);
+		thread.start();
+		return "tcp://localhost:" + serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Reads the packets received on the connection to play back, with the
+	 * times they were received.
+	 */
+	private void readConnection() throws IOException {
+		packets = new Vector();
+		times = new Vector();
+		int connections = -1;
+		while (reader.next()) {
+			int type = reader.getType();
+			if (type == MqttWireCapture.RECORD_CONNECTED) {
+				connections++;
+				if (connections > connection) {
+					break;
+				}
+			} else if (connections == connection && type == MqttWireCapture.RECORD_RECEIVED) {
+				int packetType = reader.getPacketType();
+				if (packetType == CONNACK || packetType == PUBLISH || packetType == PUBREL) {
+					packets.addElement(reader.getPacket());
+					times.addElement(new Long(reader.getTime()));
+				}
+			}
+		}
+		reader.close();
+		if (connections < connection) {
+			throw new IOException("the capture has no connection " + connection);
+		}
+	}
+
+	private void replay() {
+		try {
+			Socket accepted = serverSocket.accept();
+			synchronized (this) {
+				socket = accepted;
+				if (stopped) {
+					socket.close();
+					return;
+				}
+			}
+			serverSocket.close();
+			socket.setTcpNoDelay(true);
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			final OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 65536);
+
+			byte[] connect = readPacket(in);
+			if (connect == null || ((connect[0] >> 4) & 0x0F) != CONNECT) {
+				throw new IOException("the client did not connect");
+			}
+			final boolean mqtt5 = getProtocolLevel(connect) == MqttConnectOptions.MQTT_VERSION_5;
+			Thread responder = new Thread(new Runnable() {
+				public void run() {
+					respond(in, out, mqtt5);
+				}
+			}, Thread.currentThread().getName() + " responder");
+			responder.setDaemon(true);
+			responder.start();
+
+			send(out);
+		} catch (IOException e) {
+			synchronized (this) {
+				if (!stopped) {
+					failure = e;
+				}
+			}
+		} finally {
+			synchronized (this) {
+				complete = true;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Sends the captured packets at their times.
+	 */
+	private void send(OutputStream out) throws IOException {
+		long start = System.nanoTime();
+		long first = (times.size() == 0) ? 0 : ((Long) times.elementAt(0)).longValue();
+		for (int i = 0; i < packets.size(); i++) {
+			synchronized (this) {
+				if (stopped) {
+					return;
+				}
+			}
+			byte[] packet = (byte[]) packets.elementAt(i);
+			if (speed > 0) {
+				long time = ((Long) times.elementAt(i)).longValue() - first;
+				long wait = start + (long) (time / speed) - System.nanoTime();
+				if (wait > 0) {
+					synchronized (out) {
+						out.flush();
+					}
+					try {
+						Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+					} catch (InterruptedException e) {
+						return;
+					}
+				} else {
+					synchronized (this) {
+						maxLag = Math.max(maxLag, -wait);
+					}
+				}
+			}
+			synchronized (out) {
+				out.write(packet);
+			}
+			synchronized (this) {
+				packetCount++;
+				byteCount += packet.length;
+			}
+		}
+		synchronized (out) {
+			out.flush();
+		}
+		synchronized (this) {
+			duration = System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * Answers the packets the client sends, as a server would, until the
+	 * client disconnects.
+	 */
+	private void respond(DataInputStream in, OutputStream out, boolean mqtt5) {
+		try {
+			byte[] packet;
+			while ((packet = readPacket(in)) != null) {
+				byte[] response = answer(packet, mqtt5);
+				if (response != null) {
+					synchronized (out) {
+						out.write(response);
+						out.flush();
+					}
+				}
+				if (((packet[0] >> 4) & 0x0F) == DISCONNECT) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			// The client has gone
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Ignore as the replay is over
+		}
+	}
+
+	/**
+	 * Returns the answer to a packet from the client, or null if it needs
+	 * none.
+	 */
+	private static byte[] answer(byte[] packet, boolean mqtt5) throws IOException {
+		DataInputStream body = new DataInputStream(new ByteArrayInputStream(packet));
+		int header = body.readUnsignedByte();
+		readRemainingLength(body);
+		ByteArrayOutputStream response = new ByteArrayOutputStream();
+		int msgId;
+		switch ((header >> 4) & 0x0F) {
+		case PUBLISH:
+			int qos = (header >> 1) & 0x03;
+			if (qos == 0) {
+				return null;
+			}
+			body.skipBytes(body.readUnsignedShort());
+			msgId = body.readUnsignedShort();
+			// PUBACK or PUBREC
+			return new byte[] {(byte) ((qos == 1) ? 0x40 : 0x50), 0x02, (byte) (msgId >> 8), (byte) msgId};
+		case PUBREL:
+			msgId = body.readUnsignedShort();
+			return new byte[] {0x70, 0x02, (byte) (msgId >> 8), (byte) msgId};
+		case SUBSCRIBE:
+		case UNSUBSCRIBE:
+			boolean subscribe = ((header >> 4) & 0x0F) == SUBSCRIBE;
+			msgId = body.readUnsignedShort();
+			response.write(msgId >> 8);
+			response.write(msgId);
+			if (mqtt5) {
+				body.skipBytes(readRemainingLength(body));
+				response.write(0);
+			}
+			while (body.available() > 0) {
+				body.skipBytes(body.readUnsignedShort());
+				if (subscribe) {
+					// Grant the QoS asked for
+					response.write(body.readUnsignedByte() & 0x03);
+				} else if (mqtt5) {
+					response.write(0);
+				}
+			}
+			byte[] variable = response.toByteArray();
+			response.reset();
+			response.write(subscribe ? 0x90 : 0xB0);
+			writeRemainingLength(response, variable.length);
+			response.write(variable);
+			return response.toByteArray();
+		case PINGREQ:
+			return new byte[] {(byte) 0xD0, 0x00};
+		default:
+			// Acknowledgements of the packets played back need no answer
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the protocol level the client connected with.
+	 */
+	private static int getProtocolLevel(byte[] connect) throws IOException {
+		DataInputStream body = new DataInputStream(new ByteArrayInputStream(connect));
+		body.readUnsignedByte();
+		readRemainingLength(body);
+		body.skipBytes(body.readUnsignedShort());
+		return body.readUnsignedByte();
+	}
+
+	/**
+	 * Reads a whole packet, or returns null at the end of the stream.
+	 */
+	private static byte[] readPacket(DataInputStream in) throws IOException {
+		int header = in.read();
+		if (header < 0) {
+			return null;
+		}
+		ByteArrayOutputStream fixedHeader = new ByteArrayOutputStream(5);
+		fixedHeader.write(header);
+		int remainingLength = 0;
+		int multiplier = 1;
+		int digit;
+		do {
+			digit = in.readUnsignedByte();
+			fixedHeader.write(digit);
+			remainingLength += (digit & 0x7F) * multiplier;
+			multiplier *= 128;
+		} while ((digit & 0x80) != 0);
+		byte[] packet = new byte[fixedHeader.size() + remainingLength];
+		System.arraycopy(fixedHeader.toByteArray(), 0, packet, 0, fixedHeader.size());
+		in.readFully(packet, fixedHeader.size(), remainingLength);
+		return packet;
+	}
+
+	private static int readRemainingLength(DataInputStream in) throws IOException {
+		int value = 0;
+		int multiplier = 1;
+		int digit;
+		do {
+			digit = in.readUnsignedByte();
+			value += (digit & 0x7F) * multiplier;
+			multiplier *= 128;
+		} while ((digit & 0x80) != 0);
+		return value;
+	}
+
+	private static void writeRemainingLength(ByteArrayOutputStream out, int value) {
+		do {
+			int digit = value % 128;
+			value /= 128;
+			out.write((value > 0) ? (digit | 0x80) : digit);
+		} while (value > 0);
+	}
+
+	/**
+	 * Waits for all the captured packets to be sent.
+	 * @param timeout the longest time to wait, in milliseconds, or 0 to wait
+	 * until they have been
+	 * @return whether they have all been sent, or the replay failed or was
+	 * stopped
+	 * @throws InterruptedException if the thread is interrupted
+	 */
+	public synchronized boolean waitForCompletion(long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		while (!complete) {
+			if (timeout <= 0) {
+				wait();
+			} else {
+				long remaining = end - System.currentTimeMillis();
+				if (remaining <= 0) {
+					break;
+				}
+				wait(remaining);
+			}
+		}
+		return complete;
+	}
+
+	/**
+	 * Returns the number of packets in the connection played back.
+	 */
+	public synchronized int getPacketTotal() {
+		return (packets == null) ? 0 : packets.size();
+	}
+
+	/**
+	 * Returns the number of packets sent so far.
+	 */
+	public synchronized long getPacketCount() {
+		return packetCount;
+	}
+
+	/**
+	 * Returns the number of bytes of packets sent so far.
+	 */
+	public synchronized long getByteCount() {
+		return byteCount;
+	}
+
+	/**
+	 * Returns the longest time, in nanoseconds, that a packet was sent
+	 * after its time, because the client did not read the packets before
+	 * it as quickly as they were captured.
+	 */
+	public synchronized long getMaxLag() {
+		return maxLag;
+	}
+
+	/**
+	 * Returns the nanoseconds from sending the first packet to having sent
+	 * the last, or 0 until they have all been sent.
+	 */
+	public synchronized long getDuration() {
+		return duration;
+	}
+
+	/**
+	 * Returns the exception the replay failed with, or null if it has not
+	 * failed.
+	 */
+	public synchronized IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Stops the replay and closes the connection to the client.
+	 */
+	public void stop() {
+		Socket toClose;
+		synchronized (this) {
+			stopped = true;
+			toClose = socket;
+		}
+		try {
+			if (serverSocket != null) {
+				serverSocket.close();
+			}
+			if (toClose != null) {
+				toClose.close();
+			}
+		} catch (IOException e) {
+			// Ignore as the replay is stopping
+		}
+	}
+}
@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+
+package org.eclipse.paho.client.mqttv3;
+
+import java.nio.ByteBuffer;
+import java.util.Vector;
+
+/**
+ * A buffer allocator that keeps released buffers for reuse.
+ *
+ * <p>Buffers are pooled in sizes that are powers of two, from 256 bytes up
+ * to a maximum size. Larger payloads are read into a buffer that is not
+ * pooled. A single allocator can be shared by several clients.
+ * </p>
+ * <p>Direct buffers suit payloads that are written to channels or native
+ * code; heap buffers suit payloads read as arrays, with
+ * {@link java.nio.ByteBuffer#array()}.
+ * </p>
+ *
+ * @see MqttBufferAllocator
+ */
+public class PooledBufferAllocator implements MqttBufferAllocator {
+
+	private static final int MIN_SHIFT = 8;
+
+	/** The default size of the largest pooled buffer */
+	public static final int MAX_BUFFER_SIZE_DEFAULT = 1024 * 1024;
+	/** The default number of buffers kept of each size */
+	public static final int BUFFERS_PER_SIZE_DEFAULT = 16;
+
+	private int maxShift;
+	private int buffersPerSize;
+	private boolean direct;
+	private Vector[] pools;
+
+	/**
+	 * Constructs an allocator that pools direct buffers of up to 1 MB,
+	 * keeping 16 buffers of each size.
+	 */
+	public PooledBufferAllocator() {
+		this(MAX_BUFFER_SIZE_DEFAULT, BUFFERS_PER_SIZE_DEFAULT);
+	}
+
+	/**
+	 * Constructs an allocator of direct buffers.
+	 * @param maxBufferSize the size of the largest buffer to pool, which is
+	 * rounded up to a power of two
+	 * @param buffersPerSize the number of released buffers of each size to keep
+	 * @throws IllegalArgumentException if either value is less than 1
+	 */
+	public PooledBufferAllocator(int maxBufferSize, int buffersPerSize) {
+		this(maxBufferSize, buffersPerSize, true);
+	}
+
+	/**
+	 * Constructs an allocator.
+	 * @param maxBufferSize the size of the largest buffer to pool, which is
+	 * rounded up to a power of two
+	 * @param buffersPerSize the number of released buffers of each size to keep
+	 * @param direct true to allocate direct buffers, false for heap buffers
+	 * @throws IllegalArgumentException if either size is less than 1
+	 */
+	public PooledBufferAllocator(int maxBufferSize, int buffersPerSize, boolean direct) {
+		if (maxBufferSize < 1 || buffersPerSize < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.maxShift = Math.max(MIN_SHIFT, shiftFor(maxBufferSize));
+		this.buffersPerSize = buffersPerSize;
+		this.direct = direct;
+		this.pools = new Vector[maxShift - MIN_SHIFT + 1];
+		for (int i = 0; i < pools.length; i++) {
+			pools[i] = new Vector(buffersPerSize);
+		}
+	}
+
+	/**
+	 * Returns the smallest shift for which 1 &lt;&lt; shift is at least size.
+	 */
+	private static int shiftFor(int size) {
+		int shift = 0;
+		while (shift < 31 && (1 << shift) < size) {
+			shift++;
+		}
+		return shift;
+	}
+
+	public ByteBuffer allocate(int size) {
+		int shift = Math.max(MIN_SHIFT, shiftFor(size));
+		if (shift > maxShift) {
+			return newBuffer(size);
+		}
+		Vector pool = pools[shift - MIN_SHIFT];
+		ByteBuffer buffer = null;
+		synchronized (pool) {
+			if (!pool.isEmpty()) {
+				buffer = (ByteBuffer) pool.remove(pool.size() - 1);
+			}
+		}
+		if (buffer == null) {
+			buffer = newBuffer(1 << shift);
+		}
+		buffer.clear();
+		buffer.limit(size);
+		return buffer;
+	}
+
+	private ByteBuffer newBuffer(int size) {
+		return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+	}
+
+	public void release(ByteBuffer buffer) {
+		int capacity = buffer.capacity();
+		int shift = shiftFor(capacity);
+		if (buffer.isDirect() != direct || (1 << shift) != capacity || shift < MIN_SHIFT || shift > maxShift) {
+			return;
+		}
+		Vector pool = pools[shift - MIN_SHIFT];
+		synchronized (pool) {
+			// ByteBuffer.equals compares contents, so look for the same buffer by identity
+			for (int i = 0; i < pool.size(); i++) {
+				if (pool.elementAt(i) == buffer) {
+					return;
+				}
+			}
+			if (pool.size() < buffersPerSize) {
+				pool.addElement(buffer);
+			}
+		}
+	}
+}
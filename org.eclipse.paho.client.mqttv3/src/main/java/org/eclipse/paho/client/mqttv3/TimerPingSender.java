@@ -50,6 +50,11 @@ public class TimerPingSender implements MqttPingSender {
 		//@Trace 659=start timer for client:{0}
 		log.fine(CLASS_NAME, methodName, "659", new Object[]{clientid});
 				
+		if (comms.getKeepAlive() <= 0) {
+			// No pings are sent, so no timer thread is needed
+			timer = null;
+			return;
+		}
 		timer = new Timer("MQTT Ping: " + clientid);
 		//Check ping after first keep alive interval.
 		timer.schedule(new PingTask(), comms.getKeepAlive());
@@ -65,6 +70,9 @@ public class TimerPingSender implements MqttPingSender {
 	}
 
 	public void schedule(long delayInMilliseconds) {
+		if (timer == null) {
+			return;
+		}
 		timer.schedule(new PingTask(), delayInMilliseconds);		
 	}
 	
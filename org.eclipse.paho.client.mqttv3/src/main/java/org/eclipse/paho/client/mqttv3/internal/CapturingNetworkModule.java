@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttWireCapture;
+
+/**
+ * Wraps the network module of a client to write each packet sent and
+ * received to a {@link MqttWireCapture}. The bytes passing through the
+ * streams are split into packets by their fixed headers, so each packet is
+ * recorded once it has been completely written or read.
+ * <p>
+ * As the module is not a <code>TCPNetworkModule</code>, the client writes
+ * to its stream rather than to the socket channel while capturing.
+ * </p>
+ */
+public class CapturingNetworkModule implements NetworkModule {
+
+	private NetworkModule networkModule;
+	private MqttWireCapture capture;
+
+	public CapturingNetworkModule(NetworkModule networkModule, MqttWireCapture capture) {
+		this.networkModule = networkModule;
+		this.capture = capture;
+	}
+
+	/**
+	 * Returns the network module that is wrapped.
+	 */
+	public NetworkModule getNetworkModule() {
+		return networkModule;
+	}
+
+	public void start() throws IOException, MqttException {
+		networkModule.start();
+		capture.record(MqttWireCapture.RECORD_CONNECTED, null, 0, 0);
+	}
+
+	public InputStream getInputStream() throws IOException {
+		final PacketSplitter splitter = new PacketSplitter(MqttWireCapture.RECORD_RECEIVED);
+		return new FilterInputStream(networkModule.getInputStream()) {
+			public int read() throws IOException {
+				int b = in.read();
+				if (b >= 0) {
+					splitter.write(b);
+				}
+				return b;
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				int count = in.read(b, off, len);
+				if (count > 0) {
+					splitter.write(b, off, count);
+				}
+				return count;
+			}
+
+			public long skip(long n) throws IOException {
+				// Read rather than skip, so that the bytes are captured
+				int count = read(new byte[(int) Math.min(n, 8192)]);
+				return Math.max(count, 0);
+			}
+		};
+	}
+
+	public OutputStream getOutputStream() throws IOException {
+		final PacketSplitter splitter = new PacketSplitter(MqttWireCapture.RECORD_SENT);
+		return new FilterOutputStream(networkModule.getOutputStream()) {
+			public void write(int b) throws IOException {
+				out.write(b);
+				splitter.write(b);
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				splitter.write(b, off, len);
+			}
+		};
+	}
+
+	public void stop() throws IOException {
+		networkModule.stop();
+	}
+
+	/**
+	 * Collects the bytes of one direction of a connection into packets,
+	 * and records each packet once it is complete. Each is only used by the
+	 * thread reading or writing its stream.
+	 */
+	private class PacketSplitter {
+		// The largest buffer kept for the next packet after a large one
+		private static final int MAX_RETAINED = 65536;
+		private int type;
+		private byte[] packet = new byte[256];
+		private int length = 0;
+		// The bytes of the packet still to come, or -1 while its fixed header
+		// is being read
+		private int remaining = -1;
+		private int remainingLength = 0;
+		private int multiplier = 1;
+		private byte[] single = new byte[1];
+
+		PacketSplitter(int type) {
+			this.type = type;
+		}
+
+		void write(int b) {
+			single[0] = (byte) b;
+			write(single, 0, 1);
+		}
+
+		void write(byte[] b, int off, int len) {
+			while (len > 0) {
+				if (remaining < 0) {
+					int digit = b[off++] & 0xFF;
+					len--;
+					append(digit);
+					if (length == 1) {
+						remainingLength = 0;
+						multiplier = 1;
+					} else {
+						remainingLength += (digit & 0x7F) * multiplier;
+						multiplier *= 128;
+						// The remaining length takes at most four bytes
+						if ((digit & 0x80) == 0 || length == 5) {
+							remaining = remainingLength;
+						}
+					}
+				} else {
+					int count = Math.min(len, remaining);
+					ensureCapacity(length + count);
+					System.arraycopy(b, off, packet, length, count);
+					length += count;
+					remaining -= count;
+					off += count;
+					len -= count;
+				}
+				if (remaining == 0) {
+					capture.record(type, packet, 0, length);
+					length = 0;
+					remaining = -1;
+					if (packet.length > MAX_RETAINED) {
+						packet = new byte[256];
+					}
+				}
+			}
+		}
+
+		private void append(int b) {
+			ensureCapacity(length + 1);
+			packet[length++] = (byte) b;
+		}
+
+		private void ensureCapacity(int capacity) {
+			if (capacity > packet.length) {
+				byte[] larger = new byte[Math.max(capacity, packet.length * 2)];
+				System.arraycopy(packet, 0, larger, 0, length);
+				packet = larger;
+			}
+		}
+	}
+}
@@ -16,15 +16,23 @@
 package org.eclipse.paho.client.mqttv3.internal;
 
 import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Properties;
 import java.util.Vector;
 
+import org.eclipse.paho.client.mqttv3.MqttBufferAllocator;
 import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttEventRecorder;
+import org.eclipse.paho.client.mqttv3.MqttLatencyHistogram;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttPayloadCodec;
 import org.eclipse.paho.client.mqttv3.MqttPersistable;
 import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
 import org.eclipse.paho.client.mqttv3.MqttPingSender;
@@ -32,16 +40,22 @@ import org.eclipse.paho.client.mqttv3.MqttToken;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttAck;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttConnack;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttConnect;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPersistedPublish;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttPingReq;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttPingResp;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttProperties;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttPubAck;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttPubComp;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttPubRec;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttPubRel;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttReceivedMessage;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttTopicCache;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
+import org.eclipse.paho.client.mqttv3.internal.wire.PayloadLeakDetector;
 import org.eclipse.paho.client.mqttv3.logging.Logger;
 import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
+import org.eclipse.paho.client.mqttv3.util.SubscriptionTrie;
 
 /**
  * The core of the client, which holds the state information for pending and
@@ -61,6 +75,10 @@ import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
  * - outboundqos2 hashtable if a QoS 2 PUBLISH or PUBREL
  * - outboundqos1 hashtable if a QoS 1 PUBLISH
  * (see restoreState)
+ * Restored PUBLISH messages are held as MqttPersistedPublish index entries: only the
+ * key, message id, QoS and payload size are kept in memory. The payload is read back
+ * from persistence when the sender thread takes the message (see get), so memory use
+ * does not grow with the size of the stored backlog.
  * 
  * 3) On Connect, copy messages from the outbound hashtables to the pendingMessages or 
  * pendingFlows vector in messageid order.
@@ -79,6 +97,17 @@ import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
  *    and update persistence.
  *  - if QoS 2 PUBCOMP remove from persistence and outboundqos2  
  * 
+ * 6) Inbound QoS 2 messages are normally persisted in full and delivered on PUBREL.
+ * In inbound QoS 2 state only mode they are delivered as they arrive, and once
+ * delivered only the PUBREC is persisted and held in inboundqos2. This records 
+ * that the message id has been delivered, so that a resent PUBLISH is not delivered 
+ * again, until the PUBREL arrives.
+ * 
+ * 7) The payload of a QoS 1 or 2 streamed PUBLISH is copied to a spool file before 
+ * the message is queued, and only the header and the path of the spool file are 
+ * persisted, under a separate key. The spool files are tracked in spooledFiles and
+ * deleted when delivery completes.
+ * 
  * Notes:
  * because of the multithreaded nature of the client it is vital that any changes to this
  * class take concurrency into account.  For instance as soon as a flow / message is put on 
@@ -93,6 +122,7 @@ public class ClientState {
 	private static final String PERSISTENCE_SENT_PREFIX = "s-";
 	private static final String PERSISTENCE_CONFIRMED_PREFIX = "sc-";
 	private static final String PERSISTENCE_RECEIVED_PREFIX = "r-";
+	private static final String PERSISTENCE_SPOOLED_PREFIX = "sr-";
 	
 	private static final int DEFAULT_MAX_INFLIGHT = 10;
 	private static final int MIN_MSG_ID = 1;		// Lowest possible MQTT message ID to use
@@ -100,13 +130,14 @@ public class ClientState {
 	private int nextMsgId = MIN_MSG_ID - 1;			// The next available message ID to use
 	private Hashtable inUseMsgIds;					// Used to store a set of in-use message IDs
 
-	volatile private Vector pendingMessages;
+	volatile private PendingMessageLanes pendingMessages;
 	volatile private Vector pendingFlows;
 	
 	private CommsTokenStore tokenStore;
 	private ClientComms clientComms = null;
 	private CommsCallback callback = null;
 	private long keepAlive;
+	volatile private long pingInterval = 0;
 	private boolean cleanSession;
 	private MqttClientPersistence persistence;
 	
@@ -130,6 +161,43 @@ public class ClientState {
 	private Hashtable outboundQoS2 = null;
 	private Hashtable outboundQoS1 = null;
 	private Hashtable inboundQoS2 = null;
+	// Inbound QoS 2 messages waiting to be delivered in state only mode
+	private Hashtable inboundQoS2Arrived = null;
+	private boolean inboundQoS2StateOnly = false;
+	private int inboundStreamingThreshold = 0;
+	private MqttBufferAllocator bufferAllocator = null;
+	// Whether the application releases pooled payloads, and finds those it does not
+	private boolean explicitRelease = false;
+	private PayloadLeakDetector leakDetector = null;
+	private int topicCacheSize = MqttConnectOptions.TOPIC_CACHE_SIZE_DEFAULT;
+	private MqttTopicCache topicCache = new MqttTopicCache(topicCacheSize);
+	private int mqttVersion = 0;
+	// The highest topic alias accepted from the server, and the highest the
+	// server accepts from the client
+	private int topicAliasMaximum = 0;
+	private int serverTopicAliasMaximum = 0;
+	// The filters of the conflated topics, and the latest publish waiting
+	// to be sent on each conflated topic
+	private SubscriptionTrie conflatedTopics = null;
+	private Hashtable waitingByTopic = new Hashtable();
+	private long conflatedCount = 0;
+	// The codec for the payloads on each topic filter that has one
+	private SubscriptionTrie payloadCodecs = null;
+	// Paces the publishes sent, and the time they waited on earlier connections
+	volatile private RateLimiter rateLimiter = null;
+	volatile private MqttEventRecorder eventRecorder = null;
+
+	// One publish in this many has the times it reaches each stage kept, or
+	// none if 0
+	volatile private int latencySampling = 0;
+	private long latencySampleCount = 0;
+	// The times sampled publishes took to reach each stage from the one
+	// before, and in all at the index of the first stage
+	private MqttLatencyHistogram[] latencyHistograms = new MqttLatencyHistogram[MqttDeliveryToken.STAGE_ACKED + 1];
+	private long rateLimitWaitTime = 0;
+	// Spool files holding the payloads of outbound streamed messages
+	private Hashtable spooledFiles = null;
+	private File spoolDirectory = null;
 	
 	private MqttPingSender pingSender = null;
 
@@ -140,11 +208,13 @@ public class ClientState {
 		log.finer(CLASS_NAME, "<Init>", "" );
 
 		inUseMsgIds = new Hashtable();
-		pendingMessages = new Vector(this.maxInflight);
+		pendingMessages = new PendingMessageLanes(this.maxInflight);
 		pendingFlows = new Vector();
 		outboundQoS2 = new Hashtable();
 		outboundQoS1 = new Hashtable();
 		inboundQoS2 = new Hashtable();
+		inboundQoS2Arrived = new Hashtable();
+		spooledFiles = new Hashtable();
 		pingCommand = new MqttPingReq();
 		inFlightPubRels = 0;
 		actualInFlight = 0;
@@ -155,6 +225,10 @@ public class ClientState {
 		this.clientComms = clientComms;
 		this.pingSender = pingSender;
 		
+		for (int i = 0; i < latencyHistograms.length; i++) {
+			latencyHistograms[i] = new MqttLatencyHistogram();
+		}
+		
 		restoreState();
 	}
 
@@ -164,9 +238,307 @@ public class ClientState {
 	protected long getKeepAlive() {
 		return this.keepAlive;
 	}
+
+	/**
+	 * Sets how long the connection may be idle before a ping is sent, when
+	 * that is less than the keepAlive interval.
+	 * @param pingInterval the milliseconds, or 0 to ping at the keepAlive
+	 * interval
+	 */
+	protected void setPingInterval(long pingInterval) {
+		this.pingInterval = pingInterval;
+	}
+
+	/**
+	 * Returns how long the connection may be idle before a ping is sent, at
+	 * most the keepAlive interval.
+	 */
+	protected long getPingInterval() {
+		long interval = pingInterval;
+		return (interval > 0 && interval < keepAlive) ? interval : keepAlive;
+	}
+
+	/**
+	 * Returns the time a packet was last sent or received.
+	 */
+	protected long getLastActivity() {
+		return Math.max(lastInboundActivity, lastOutboundActivity);
+	}
 	protected void setCleanSession(boolean cleanSession) {
 		this.cleanSession = cleanSession;
 	}
+	protected void setInboundQoS2StateOnly(boolean inboundQoS2StateOnly) {
+		this.inboundQoS2StateOnly = inboundQoS2StateOnly;
+	}
+	protected void setInboundStreamingThreshold(int inboundStreamingThreshold) {
+		this.inboundStreamingThreshold = inboundStreamingThreshold;
+	}
+	/**
+	 * Returns the remaining length above which an inbound PUBLISH has its
+	 * payload left on the network for the application to read, or 0.
+	 */
+	public int getInboundStreamingThreshold() {
+		return inboundStreamingThreshold;
+	}
+	protected void setBufferAllocator(MqttBufferAllocator bufferAllocator) {
+		this.bufferAllocator = bufferAllocator;
+	}
+	/**
+	 * Returns the allocator that inbound payloads are read into, or null.
+	 */
+	public MqttBufferAllocator getBufferAllocator() {
+		return bufferAllocator;
+	}
+	protected void setExplicitRelease(boolean explicitRelease, boolean detectLeaks) {
+		this.explicitRelease = explicitRelease;
+		// Keep the count of leaks found on earlier connections
+		if (!explicitRelease || !detectLeaks) {
+			this.leakDetector = null;
+		} else if (leakDetector == null) {
+			this.leakDetector = new PayloadLeakDetector();
+		}
+	}
+	/**
+	 * Returns whether the application releases the pooled buffers of the
+	 * messages delivered to it.
+	 */
+	public boolean isExplicitRelease() {
+		return explicitRelease;
+	}
+	/**
+	 * Leaves the pooled buffer of a delivered message for the application to
+	 * release, or releases it now if the application does not.
+	 */
+	protected void releaseDelivered(MqttPublish message) {
+		if (!explicitRelease) {
+			message.releasePayload();
+		} else if (message.detachPayload()) {
+			PayloadLeakDetector detector = leakDetector;
+			if (detector != null) {
+				detector.track((MqttReceivedMessage) message.getMessage());
+			}
+		}
+	}
+	/**
+	 * Returns the number of delivered messages found to have been garbage
+	 * collected without being released, or 0 if they are not looked for.
+	 */
+	public int getPayloadLeakCount() {
+		PayloadLeakDetector detector = leakDetector;
+		return (detector == null) ? 0 : detector.getLeakCount();
+	}
+	protected void setTopicCacheSize(int topicCacheSize) {
+		// Keep the names already cached unless the size has changed
+		if (topicCacheSize != this.topicCacheSize) {
+			this.topicCacheSize = topicCacheSize;
+			this.topicCache = (topicCacheSize == 0) ? null : new MqttTopicCache(topicCacheSize);
+		}
+	}
+	/**
+	 * Returns the cache that inbound topic names are decoded through, or null.
+	 */
+	public MqttTopicCache getTopicCache() {
+		return topicCache;
+	}
+	protected void setMqttVersion(int mqttVersion) {
+		this.mqttVersion = mqttVersion;
+	}
+	/**
+	 * Returns the MQTT version of the connection.
+	 */
+	public int getMqttVersion() {
+		return mqttVersion;
+	}
+	protected void setTopicAliasMaximum(int topicAliasMaximum) {
+		this.topicAliasMaximum = topicAliasMaximum;
+	}
+	/**
+	 * Returns the highest MQTT 5 topic alias the server may send.
+	 */
+	public int getTopicAliasMaximum() {
+		return topicAliasMaximum;
+	}
+	/**
+	 * Returns the highest MQTT 5 topic alias the server accepts, from the
+	 * CONNACK of the current connection, or 0 if it accepts none.
+	 */
+	public int getServerTopicAliasMaximum() {
+		return serverTopicAliasMaximum;
+	}
+	protected void setConflatedTopics(String[] topicFilters) {
+		if (topicFilters == null || topicFilters.length == 0) {
+			conflatedTopics = null;
+			return;
+		}
+		SubscriptionTrie filters = new SubscriptionTrie();
+		for (int i = 0; i < topicFilters.length; i++) {
+			filters.put(topicFilters[i], Boolean.TRUE);
+		}
+		conflatedTopics = filters;
+	}
+	protected void setPayloadCodecs(Hashtable codecs) {
+		if (codecs == null || codecs.isEmpty()) {
+			payloadCodecs = null;
+			return;
+		}
+		SubscriptionTrie filters = new SubscriptionTrie();
+		Enumeration e = codecs.keys();
+		while (e.hasMoreElements()) {
+			String filter = (String) e.nextElement();
+			filters.put(filter, codecs.get(filter));
+		}
+		payloadCodecs = filters;
+	}
+	/**
+	 * Returns the codec of the most specific filter matching a topic, or
+	 * null if its payloads are not transformed.
+	 */
+	private MqttPayloadCodec getPayloadCodec(String topic) {
+		SubscriptionTrie codecs = payloadCodecs;
+		if (codecs == null) {
+			return null;
+		}
+		return (MqttPayloadCodec) codecs.matchMostSpecific(topic);
+	}
+	/**
+	 * Decodes the payload of a received publish, if its topic has a codec,
+	 * before it is delivered.
+	 */
+	public void decodePayload(MqttPublish publish) throws MqttException {
+		MqttPayloadCodec codec = getPayloadCodec(publish.getTopicName());
+		if (codec != null) {
+			publish.decodePayload(codec);
+		}
+	}
+	/**
+	 * Returns the number of publishes that were replaced by a newer publish
+	 * on the same topic before they were sent.
+	 */
+	public long getConflatedCount() {
+		synchronized (queueLock) {
+			return conflatedCount;
+		}
+	}
+	/**
+	 * Sets the limits on the rate publishes are sent at, starting with full
+	 * buckets.
+	 * @see RateLimiter
+	 */
+	protected void setRateLimit(int messagesPerSecond, int messageBurst, int bytesPerSecond, int byteBurst) {
+		synchronized (queueLock) {
+			if (rateLimiter != null) {
+				rateLimitWaitTime += rateLimiter.getWaitTime();
+			}
+			if (messagesPerSecond == 0 && bytesPerSecond == 0) {
+				rateLimiter = null;
+			} else {
+				rateLimiter = new RateLimiter(messagesPerSecond, messageBurst, bytesPerSecond, byteBurst);
+			}
+		}
+	}
+
+	/**
+	 * Sets the recorder the steps of sending and receiving packets are
+	 * recorded by, and wraps the persistence to record its puts and
+	 * removes while there is one.
+	 * @param recorder the event recorder, or null to record nothing
+	 */
+	protected void setEventRecorder(MqttEventRecorder recorder) {
+		if (persistence instanceof RecordingPersistence) {
+			persistence = ((RecordingPersistence) persistence).getPersistence();
+		}
+		if (recorder != null) {
+			persistence = new RecordingPersistence(persistence, recorder, clientComms.getClient().getClientId());
+		}
+		this.eventRecorder = recorder;
+	}
+
+	/**
+	 * Returns the recorder the steps of sending and receiving packets are
+	 * recorded by, or null if they are not recorded.
+	 */
+	public MqttEventRecorder getEventRecorder() {
+		return eventRecorder;
+	}
+
+	/**
+	 * Records a step taken for a packet.
+	 * @param recorder the event recorder, which is not null
+	 * @param start the value of {@link System#nanoTime()} when the step started
+	 */
+	void recordEvent(MqttEventRecorder recorder, int event, MqttWireMessage message, long size, long start) {
+		recorder.record(event, clientComms.getClient().getClientId(), message.getType(), message.getMessageId(),
+				size, System.nanoTime() - start);
+	}
+
+	/**
+	 * Sets how many publishes there are for each one whose stages are
+	 * timed.
+	 * @param sampling the number of publishes, or 0 to time none
+	 */
+	protected void setLatencySampling(int sampling) {
+		this.latencySampling = sampling;
+	}
+
+	/**
+	 * Returns a copy of the histogram of the times sampled publishes took to
+	 * reach a stage from the stage before, or for
+	 * {@link MqttDeliveryToken#STAGE_SUBMITTED} to reach their last stage.
+	 * @param stage the stage
+	 */
+	public MqttLatencyHistogram getLatencyHistogram(int stage) {
+		if (stage < MqttDeliveryToken.STAGE_SUBMITTED || stage > MqttDeliveryToken.STAGE_ACKED) {
+			throw new IllegalArgumentException();
+		}
+		return latencyHistograms[stage].copy();
+	}
+
+	/**
+	 * Keeps the time a publish reached a stage, if it is sampled.
+	 */
+	private void stampStage(MqttWireMessage message, int stage) {
+		MqttToken token = tokenStore.getToken(message);
+		if (token != null) {
+			token.internalTok.stampStage(stage);
+		}
+	}
+
+	/**
+	 * Counts the times a sampled publish took to reach each stage in the
+	 * histograms, once it has reached its last.
+	 * @param lastStage the stage the publish completed at
+	 */
+	private void recordLatency(MqttToken token, int lastStage) {
+		if (token == null || !token.internalTok.isSampled()) {
+			return;
+		}
+		Token tok = token.internalTok;
+		for (int stage = MqttDeliveryToken.STAGE_QUEUED; stage <= lastStage; stage++) {
+			latencyHistograms[stage].record(tok.getStageTime(stage) - tok.getStageTime(stage - 1));
+		}
+		latencyHistograms[MqttDeliveryToken.STAGE_SUBMITTED].record(
+				tok.getStageTime(lastStage) - tok.getStageTime(MqttDeliveryToken.STAGE_SUBMITTED));
+	}
+
+	/**
+	 * Returns the most publishes that may be in flight at once.
+	 */
+	public int getMaxInFlight() {
+		return maxInflight;
+	}
+
+	/**
+	 * Returns the total milliseconds publishes have waited to be sent
+	 * because of the rate limits.
+	 */
+	public long getRateLimitWaitTime() {
+		synchronized (queueLock) {
+			return rateLimitWaitTime + ((rateLimiter == null) ? 0 : rateLimiter.getWaitTime());
+		}
+	}
+	protected void setSpoolDirectory(String spoolDirectory) {
+		this.spoolDirectory = (spoolDirectory == null) ? null : new File(spoolDirectory);
+	}
 	
 	private String getSendPersistenceKey(MqttWireMessage message) {
 		return PERSISTENCE_SENT_PREFIX + message.getMessageId();
@@ -180,18 +552,29 @@ public class ClientState {
 		return PERSISTENCE_RECEIVED_PREFIX + message.getMessageId();
 	}
 	
+	private String getSpooledPersistenceKey(MqttWireMessage message) {
+		return PERSISTENCE_SPOOLED_PREFIX + message.getMessageId();
+	}
+	
 	protected void clearState() throws MqttException {
 		final String methodName = "clearState";
 		//@TRACE 603=clearState
 		log.fine(CLASS_NAME, methodName,">");
 
 		persistence.clear();
+		Enumeration files = spooledFiles.elements();
+		while (files.hasMoreElements()) {
+			((File) files.nextElement()).delete();
+		}
+		spooledFiles.clear();
 		inUseMsgIds.clear();
 		pendingMessages.clear();
+		waitingByTopic.clear();
 		pendingFlows.clear();
 		outboundQoS2.clear();
 		outboundQoS1.clear();
 		inboundQoS2.clear();
+		inboundQoS2Arrived.clear();
 		tokenStore.clear();
 	}
 	
@@ -220,6 +603,46 @@ public class ClientState {
 		return message;
 	}
 
+	/**
+	 * Restores a streamed publish from its persisted header and the path of 
+	 * the spool file holding its payload. If the spool file has gone while the
+	 * publish still has to be sent, the record is removed and null is returned.
+	 */
+	private MqttWireMessage restoreSpooledMessage(String key, MqttPersistable persistable) throws MqttException {
+		final String methodName = "restoreSpooledMessage";
+		MqttPublish message = null;
+		try {
+			// The store may return the header and the path in a single array
+			byte[] payload = persistable.getPayloadBytes();
+			int payloadLength = (payload == null) ? 0 : persistable.getPayloadLength();
+			byte[] reference = new byte[persistable.getHeaderLength() + payloadLength];
+			System.arraycopy(persistable.getHeaderBytes(), persistable.getHeaderOffset(), reference, 0, persistable.getHeaderLength());
+			if (payloadLength > 0) {
+				System.arraycopy(payload, persistable.getPayloadOffset(), reference, persistable.getHeaderLength(), payloadLength);
+			}
+			message = new MqttPublish(reference);
+		} catch (IOException ex) {
+			//@TRACE 602=key={0} exception
+			log.fine(CLASS_NAME, methodName, "602", new Object[] {key}, ex);
+			persistence.remove(key);
+			return null;
+		} catch (MqttException ex) {
+			//@TRACE 602=key={0} exception
+			log.fine(CLASS_NAME, methodName, "602", new Object[] {key}, ex);
+			persistence.remove(key);
+			return null;
+		}
+		if (!message.getSpoolFile().exists() && !persistence.containsKey(getSendConfirmPersistenceKey(message))) {
+			//@TRACE 666=spool file no longer available, dropping key={0} file={1}
+			log.fine(CLASS_NAME, methodName, "666", new Object[] {key, message.getSpoolFile()});
+			persistence.remove(key);
+			return null;
+		}
+		//@TRACE 601=key={0} message={1}
+		log.fine(CLASS_NAME, methodName, "601", new Object[]{key,message});
+		return message;
+	}
+
 	/**
 	 * Inserts a new message to the list, ensuring that list is ordered from lowest to highest in terms of the message id's.
 	 * @param list the list to insert the message into
@@ -301,16 +724,25 @@ public class ClientState {
 		while (messageKeys.hasMoreElements()) {
 			key = (String) messageKeys.nextElement();
 			persistable = persistence.get(key);
-			MqttWireMessage message = restoreMessage(key, persistable);
+			MqttWireMessage message;
+			if (key.startsWith(PERSISTENCE_SPOOLED_PREFIX)) {
+				message = restoreSpooledMessage(key, persistable);
+			} else {
+				message = restoreMessage(key, persistable);
+			}
 			if (message != null) {
 				if (key.startsWith(PERSISTENCE_RECEIVED_PREFIX)) {
 					//@TRACE 604=inbound QoS 2 publish key={0} message={1}
 					log.fine(CLASS_NAME,methodName,"604", new Object[]{key,message});
 
-					// The inbound messages that we have persisted will be QoS 2 
+					// The inbound messages that we have persisted will be QoS 2, either
+					// the PUBLISH or, in state only mode, the PUBREC for a delivered PUBLISH
 					inboundQoS2.put(new Integer(message.getMessageId()),message);
-				} else if (key.startsWith(PERSISTENCE_SENT_PREFIX)) {
+				} else if (key.startsWith(PERSISTENCE_SENT_PREFIX) || key.startsWith(PERSISTENCE_SPOOLED_PREFIX)) {
 					MqttPublish sendMessage = (MqttPublish) message;
+					if (sendMessage.getSpoolFile() != null) {
+						spooledFiles.put(new Integer(sendMessage.getMessageId()), sendMessage.getSpoolFile());
+					}
 					highestMsgId = Math.max(sendMessage.getMessageId(), highestMsgId);
 					if (persistence.containsKey(getSendConfirmPersistenceKey(sendMessage))) {
 						MqttPersistable persistedConfirm = persistence.get(getSendConfirmPersistenceKey(sendMessage));
@@ -331,17 +763,23 @@ public class ClientState {
 					} else {
 						// QoS 1 or 2, with no CONFIRM sent...
 						// Put the SEND to the list of pending messages, ensuring message ID ordering...
+						// Only an index entry is kept, the payload is re-read from persistence when sent.
+						// A spooled payload is already read from its spool file when sent.
 						sendMessage.setDuplicate(true);
+						MqttPublish indexEntry = sendMessage;
+						if (sendMessage.getSpoolFile() == null) {
+							indexEntry = new MqttPersistedPublish(key, sendMessage);
+						}
 						if (sendMessage.getMessage().getQos() == 2) {
 							//@TRACE 607=outbound QoS 2 publish key={0} message={1}
-							log.fine(CLASS_NAME,methodName, "607", new Object[]{key,message});
+							log.fine(CLASS_NAME,methodName, "607", new Object[]{key,indexEntry});
 							
-							outboundQoS2.put(new Integer(sendMessage.getMessageId()),sendMessage);
+							outboundQoS2.put(new Integer(sendMessage.getMessageId()),indexEntry);
 						} else {
 							//@TRACE 608=outbound QoS 1 publish key={0} message={1}
-							log.fine(CLASS_NAME,methodName, "608", new Object[]{key,message});
+							log.fine(CLASS_NAME,methodName, "608", new Object[]{key,indexEntry});
 
-							outboundQoS1.put(new Integer(sendMessage.getMessageId()),sendMessage);
+							outboundQoS1.put(new Integer(sendMessage.getMessageId()),indexEntry);
 						}
 					}
 					MqttDeliveryToken tok = tokenStore.restoreToken(sendMessage);
@@ -350,7 +788,8 @@ public class ClientState {
 				}
 				else if (key.startsWith(PERSISTENCE_CONFIRMED_PREFIX)) {
 					MqttPubRel pubRelMessage = (MqttPubRel) message;
-					if (!persistence.containsKey(getSendPersistenceKey(pubRelMessage))) {
+					if (!persistence.containsKey(getSendPersistenceKey(pubRelMessage))
+							&& !persistence.containsKey(getSpooledPersistenceKey(pubRelMessage))) {
 						orphanedPubRels.addElement(key);
 					}
 				}
@@ -371,8 +810,9 @@ public class ClientState {
 	
 	private void restoreInflightMessages() {
 		final String methodName = "restoreInflightMessages";
-		pendingMessages = new Vector(this.maxInflight);
+		Vector restored = new Vector(this.maxInflight);
 		pendingFlows = new Vector();
+		waitingByTopic.clear();
 
 		Enumeration keys = outboundQoS2.keys();
 		while (keys.hasMoreElements()) {
@@ -383,7 +823,7 @@ public class ClientState {
 				log.fine(CLASS_NAME,methodName, "610", new Object[]{key});
                 // set DUP flag only for PUBLISH, but NOT for PUBREL (spec 3.1.1)
 				msg.setDuplicate(true);  
-				insertInOrder(pendingMessages, (MqttPublish)msg);
+				insertInOrder(restored, (MqttPublish)msg);
 			} else if (msg instanceof MqttPubRel) {
 				//@TRACE 611=QoS 2 pubrel key={0}
 				log.fine(CLASS_NAME,methodName, "611", new Object[]{key});
@@ -399,11 +839,12 @@ public class ClientState {
 			//@TRACE 612=QoS 1 publish key={0}
 			log.fine(CLASS_NAME,methodName, "612", new Object[]{key});
 
-			insertInOrder(pendingMessages, msg);
+			insertInOrder(restored, msg);
 		}
 		
 		this.pendingFlows = reOrder(pendingFlows);
-		this.pendingMessages = reOrder(pendingMessages);
+		this.pendingMessages = new PendingMessageLanes(this.maxInflight);
+		this.pendingMessages.addAll(reOrder(restored));
 	}
 	
 	/**
@@ -416,6 +857,21 @@ public class ClientState {
 	 * @throws MqttException
 	 */
 	public void send(MqttWireMessage message, MqttToken token) throws MqttException {
+		MqttEventRecorder recorder = eventRecorder;
+		if (recorder == null) {
+			queue(message, token);
+			return;
+		}
+		long start = System.nanoTime();
+		queue(message, token);
+		long size = (message instanceof MqttPublish) ? ((MqttPublish) message).getPayloadLength() : 0;
+		recordEvent(recorder, MqttEventRecorder.EVENT_QUEUED, message, size, start);
+	}
+
+	/**
+	 * Persists a message if need be and queues it to be sent.
+	 */
+	private void queue(MqttWireMessage message, MqttToken token) throws MqttException {
 		final String methodName = "send";
 		if (message.isMessageIdRequired() && (message.getMessageId() == 0)) {
 			message.setMessageId(getNextMessageId());
@@ -428,14 +884,30 @@ public class ClientState {
 		}
 			
 		if (message instanceof MqttPublish) {
+			MqttPublish publish = (MqttPublish) message;
+			int sampling = latencySampling;
+			long submitted = (sampling > 0) ? System.nanoTime() : 0;
+			if (publish.isStreamed() && publish.getMessage().getQos() > 0 && publish.getSpoolFile() == null) {
+				// Copy the payload before taking the lock, it may take a while
+				spool(publish);
+			}
+			MqttPayloadCodec codec = getPayloadCodec(publish.getTopicName());
+			if (codec != null) {
+				// Encode before taking the lock too, so that it is persisted encoded
+				publish.encodePayload(codec);
+			}
 			synchronized (queueLock) {
-				if (actualInFlight >= this.maxInflight) {
+				// A high priority message is queued even when the window is full
+				if (actualInFlight >= this.maxInflight && publish.getMessage().getPriority() != MqttMessage.PRIORITY_HIGH) {
 					//@TRACE 613= sending {0} msgs at max inflight window
 					log.fine(CLASS_NAME, methodName, "613", new Object[]{new Integer(actualInFlight)});
 
 					throw new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT);
 				}
 				
+				if (sampling > 0 && token != null && (latencySampleCount++ % sampling) == 0) {
+					token.internalTok.sampleStages(submitted);
+				}
 				MqttMessage innerMessage = ((MqttPublish) message).getMessage();
 				//@TRACE 628=pending publish key={0} qos={1} message={2}
 				log.fine(CLASS_NAME,methodName,"628", new Object[]{new Integer(message.getMessageId()), new Integer(innerMessage.getQos()), message});
@@ -443,15 +915,20 @@ public class ClientState {
 				switch(innerMessage.getQos()) {
 					case 2:
 						outboundQoS2.put(new Integer(message.getMessageId()), message);
-						persistence.put(getSendPersistenceKey(message), (MqttPublish) message);
+						persistSend(publish);
 						break;
 					case 1:
 						outboundQoS1.put(new Integer(message.getMessageId()), message);
-						persistence.put(getSendPersistenceKey(message), (MqttPublish) message);
+						persistSend(publish);
 						break;
 				}
 				tokenStore.saveToken(token, message);
-				pendingMessages.addElement(message);
+				if (token != null) {
+					token.internalTok.stampStage(MqttDeliveryToken.STAGE_QUEUED);
+				}
+				if (!conflate(publish)) {
+					pendingMessages.addElement(message);
+				}
 				queueLock.notifyAll();
 			}
 		} else {
@@ -489,6 +966,119 @@ public class ClientState {
 		}
 	}
 	
+	/**
+	 * Queues the acknowledgments of a batch of delivered messages together,
+	 * so that the sender writes them all before it flushes.
+	 * @param acks the acknowledgments, in the order the messages arrived
+	 */
+	protected void sendAcks(Vector acks) throws MqttException {
+		synchronized (queueLock) {
+			for (int i = 0; i < acks.size(); i++) {
+				send((MqttWireMessage) acks.elementAt(i), null);
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the next flow to be sent is an acknowledgment, which
+	 * the sender can write before it flushes the one it has written.
+	 */
+	protected boolean isAckPending() {
+		synchronized (queueLock) {
+			Vector flows = pendingFlows;
+			return flows != null && !flows.isEmpty() && flows.elementAt(0) instanceof MqttAck;
+		}
+	}
+
+	/**
+	 * Copies the payload of a streamed publish to a new spool file.
+	 */
+	private void spool(MqttPublish message) throws MqttException {
+		final String methodName = "spool";
+		File file;
+		try {
+			file = File.createTempFile("mqtt-" + message.getMessageId() + "-", ".spool", spoolDirectory);
+		} catch (IOException ex) {
+			throw new MqttPersistenceException(ex);
+		}
+		//@TRACE 667=spool payload key={0} length={1} file={2}
+		log.fine(CLASS_NAME, methodName, "667", new Object[]{new Integer(message.getMessageId()), new Integer(message.getPayloadLength()), file});
+
+		message.spool(file);
+		spooledFiles.put(new Integer(message.getMessageId()), file);
+	}
+	
+	/**
+	 * Puts a publish on a conflated topic in the place of the publish with
+	 * the same QoS that is waiting to be sent on the topic, if there is one.
+	 * The waiting publish is dropped and its token is notified.
+	 * Must be called while holding the queueLock.
+	 * @return whether the publish took the place of a waiting publish
+	 */
+	private boolean conflate(MqttPublish publish) throws MqttException {
+		final String methodName = "conflate";
+		int qos = publish.getMessage().getQos();
+		if (conflatedTopics == null || qos > 1 || conflatedTopics.match(publish.getTopicName()).length == 0) {
+			return false;
+		}
+		MqttPublish waiting = (MqttPublish) waitingByTopic.put(publish.getTopicName(), publish);
+		if (waiting == null || waiting.getMessage().getQos() != qos) {
+			return false;
+		}
+		if (!pendingMessages.replace(waiting, publish)) {
+			return false;
+		}
+		//@TRACE 668=conflated publish key={0} replaced by key={1}
+		log.fine(CLASS_NAME, methodName, "668", new Object[]{new Integer(waiting.getMessageId()), new Integer(publish.getMessageId())});
+
+		conflatedCount++;
+		if (qos == 1) {
+			outboundQoS1.remove(new Integer(waiting.getMessageId()));
+			removeSend(waiting);
+		}
+		MqttToken token = tokenStore.getToken(waiting);
+		tokenStore.removeToken(waiting);
+		releaseMessageId(waiting.getMessageId());
+		if (token != null) {
+			notifyResult(null, token, new MqttException(MqttException.REASON_CODE_MESSAGE_CONFLATED));
+		}
+		return true;
+	}
+	
+	/**
+	 * Persists an outbound publish. For a spooled publish only the header and
+	 * the path of the spool file are persisted.
+	 */
+	private void persistSend(MqttPublish message) throws MqttException {
+		if (message.getSpoolFile() == null) {
+			persistence.put(getSendPersistenceKey(message), message);
+			return;
+		}
+		byte[] header = message.getHeader();
+		byte[] path;
+		try {
+			path = message.getSpoolFile().getAbsolutePath().getBytes("UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new MqttPersistenceException(ex);
+		}
+		String key = getSpooledPersistenceKey(message);
+		persistence.put(key, new MqttPersistentData(key, header, 0, header.length, path, 0, path.length));
+	}
+	
+	/**
+	 * Removes the persisted outbound publish with the given id, deleting its
+	 * spool file if it has one.
+	 */
+	private void removeSend(MqttWireMessage message) throws MqttPersistenceException {
+		File file = (File) spooledFiles.remove(new Integer(message.getMessageId()));
+		if (file != null) {
+			persistence.remove(getSpooledPersistenceKey(message));
+			file.delete();
+		} else {
+			persistence.remove(getSendPersistenceKey(message));
+		}
+	}
+	
 	/**
 	 * This removes the MqttSend message from the outbound queue and persistence.
 	 * @param message
@@ -506,7 +1096,10 @@ public class ClientState {
 				outboundQoS2.remove(new Integer(message.getMessageId()));
 			}
 			pendingMessages.removeElement(message);
-			persistence.remove(getSendPersistenceKey(message));
+			if (waitingByTopic.get(message.getTopicName()) == message) {
+				waitingByTopic.remove(message.getTopicName());
+			}
+			removeSend(message);
 			tokenStore.removeToken(message);
 			checkQuiesceLock();
 		}
@@ -584,8 +1177,16 @@ public class ClientState {
                 //    This would be the case when receiving a large message;                                                                                                                                                  
                 //    the broker needs to keep receiving a regular ping even if the ping response are queued after the long message                                                                                           
                 //    If lacking to do so, the broker will consider my connection lost and cut my socket.                                                                                                                     
+                // 3. Is a ping required to keep the connection open through the network?
+                //    Condition: (pingOutstanding == 0 && (time - lastActivity >= pingInterval - delta))
+                //    Only when a ping interval shorter than the keepAlive is set, for example to keep a NAT mapping.
+                //    The delta is kept small against a short interval, so that a ping is not sent between messages.
+                long interval = getPingInterval();
+                long intervalDelta = Math.min(delta, interval / 10);
+                long lastActivity = Math.max(lastInboundActivity, lastOutboundActivity);
                 if ((pingOutstanding == 0 && (time - lastInboundActivity >= keepAlive - delta)) ||
-                    (time - lastOutboundActivity >= keepAlive - delta)) {
+                    (time - lastOutboundActivity >= keepAlive - delta) ||
+                    (pingOutstanding == 0 && (time - lastActivity >= interval - intervalDelta))) {
 
                     //@TRACE 620=ping needed. keepAlive={0} lastOutboundActivity={1} lastInboundActivity={2}                                                                                                              
                     log.fine(CLASS_NAME,methodName,"620", new Object[]{new Long(this.keepAlive),new Long(lastOutboundActivity),new Long(lastInboundActivity)});
@@ -596,14 +1197,18 @@ public class ClientState {
                     tokenStore.saveToken(token, pingCommand);
                     pendingFlows.insertElementAt(pingCommand, 0);
 
-                    nextPingTime = getKeepAlive();
+                    nextPingTime = interval;
 
                     //Wake sender thread since it may be in wait state (in ClientState.get())                                                                                                                             
                     notifyQueueLock();
                 }
                 else {
                     log.fine(CLASS_NAME, methodName, "634", null);
-                    nextPingTime = Math.max(1, getKeepAlive() - (time - lastOutboundActivity));
+                    long next = getKeepAlive() - (time - lastOutboundActivity);
+                    if (pingOutstanding == 0) {
+                    	next = Math.min(next, interval - (time - lastActivity));
+                    }
+                    nextPingTime = Math.max(1, next);
                 }
             }
             //@TRACE 624=Schedule next ping at {0}                                                                                                                                                                                
@@ -628,77 +1233,169 @@ public class ClientState {
 		final String methodName = "get";
 		MqttWireMessage result = null;
 
-		synchronized (queueLock) {
-			while (result == null) {
+		while (true) {
+			synchronized (queueLock) {
+				while (result == null) {
 				
-				// If there is no work wait until there is work.
-				// If the inflight window is full and no flows are pending wait until space is freed.
-				// In both cases queueLock will be notified.
-				if ((pendingMessages.isEmpty() && pendingFlows.isEmpty()) || 
-					(pendingFlows.isEmpty() && actualInFlight >= this.maxInflight)) {
-					try {
-						//@TRACE 644=wait for new work or for space in the inflight window 
-						log.fine(CLASS_NAME,methodName, "644");						
+					// If there is no work wait until there is work.
+					// If the inflight window is full and no flows are pending wait until space is freed.
+					// In both cases queueLock will be notified.
+					if ((pendingMessages.isEmpty() && pendingFlows.isEmpty()) || 
+						(pendingFlows.isEmpty() && actualInFlight >= this.maxInflight)) {
+						try {
+							//@TRACE 644=wait for new work or for space in the inflight window 
+							log.fine(CLASS_NAME,methodName, "644");						
  
-						queueLock.wait();
+							queueLock.wait();
 						
-						//@TRACE 647=new work or ping arrived 
-						log.fine(CLASS_NAME,methodName, "647");
-					} catch (InterruptedException e) {
+							//@TRACE 647=new work or ping arrived 
+							log.fine(CLASS_NAME,methodName, "647");
+						} catch (InterruptedException e) {
+						}
 					}
-				}
 				
-				// Handle the case where not connected. This should only be the case if: 
-				// - in the process of disconnecting / shutting down
-				// - in the process of connecting
-				if (!connected && 
-						(pendingFlows.isEmpty() || !((MqttWireMessage)pendingFlows.elementAt(0) instanceof MqttConnect))) {
-					//@TRACE 621=no outstanding flows and not connected
-					log.fine(CLASS_NAME,methodName,"621");
+					// Handle the case where not connected. This should only be the case if: 
+					// - in the process of disconnecting / shutting down
+					// - in the process of connecting
+					if (!connected && 
+							(pendingFlows.isEmpty() || !((MqttWireMessage)pendingFlows.elementAt(0) instanceof MqttConnect))) {
+						//@TRACE 621=no outstanding flows and not connected
+						log.fine(CLASS_NAME,methodName,"621");
 					
-					return null;
-				}
+						return null;
+					}
 
-				// Check if there is a need to send a ping to keep the session alive. 
-				// Note this check is done before processing messages. If not done first
-				// an app that only publishes QoS 0 messages will prevent keepalive processing
-				// from functioning. 
-//				checkForActivity(); //Use pinger, don't check here
+					// Check if there is a need to send a ping to keep the session alive. 
+					// Note this check is done before processing messages. If not done first
+					// an app that only publishes QoS 0 messages will prevent keepalive processing
+					// from functioning. 
+	//				checkForActivity(); //Use pinger, don't check here
 				
-				// Now process any queued flows or messages
-				if (!pendingFlows.isEmpty()) {
-					// Process the first "flow" in the queue
-					result = (MqttWireMessage)pendingFlows.remove(0);
-					if (result instanceof MqttPubRel) {
-						inFlightPubRels++;
-
-						//@TRACE 617=+1 inflightpubrels={0}
-						log.fine(CLASS_NAME,methodName,"617", new Object[]{new Integer(inFlightPubRels)});
-					}
+					// Now process any queued flows or messages
+					if (!pendingFlows.isEmpty()) {
+						// Process the first "flow" in the queue
+						result = (MqttWireMessage)pendingFlows.remove(0);
+						if (result instanceof MqttPubRel) {
+							inFlightPubRels++;
+
+							//@TRACE 617=+1 inflightpubrels={0}
+							log.fine(CLASS_NAME,methodName,"617", new Object[]{new Integer(inFlightPubRels)});
+						}
 		
-					checkQuiesceLock();
-				} else if (!pendingMessages.isEmpty()) {
-					// If the inflight window is full then messages are not 
-					// processed until the inflight window has space. 
-					if (actualInFlight < this.maxInflight) {
-						// The in flight window is not full so process the 
-						// first message in the queue
-						result = (MqttWireMessage)pendingMessages.elementAt(0);
-						pendingMessages.removeElementAt(0);
-						actualInFlight++;
+						checkQuiesceLock();
+					} else if (!pendingMessages.isEmpty()) {
+						// If the inflight window is full then messages are not 
+						// processed until the inflight window has space. 
+						if (actualInFlight < this.maxInflight) {
+							long delay = (rateLimiter == null) ? 0 : rateLimiter.acquire();
+							if (delay > 0) {
+								// Flows are not held back while waiting for the rate limit
+								//@TRACE 669=rate limit reached, wait {0}ms
+								log.fine(CLASS_NAME,methodName,"669",new Object[]{new Long(delay)});
+								try {
+									queueLock.wait(delay);
+								} catch (InterruptedException e) {
+								}
+								continue;
+							}
+							// The in flight window is not full so process the 
+							// next message, by priority
+							result = pendingMessages.next();
+							if (result instanceof MqttPublish && waitingByTopic.get(((MqttPublish) result).getTopicName()) == result) {
+								waitingByTopic.remove(((MqttPublish) result).getTopicName());
+							}
+							if (result instanceof MqttPersistedPublish) {
+								// Its payload is read from persistence once the
+								// queue lock is released
+								break;
+							}
+							actualInFlight++;
+							if (latencySampling > 0) {
+								stampStage(result, MqttDeliveryToken.STAGE_DEQUEUED);
+							}
 	
-						//@TRACE 623=+1 actualInFlight={0}
-						log.fine(CLASS_NAME,methodName,"623",new Object[]{new Integer(actualInFlight)});
-					} else {
-						//@TRACE 622=inflight window full
-						log.fine(CLASS_NAME,methodName,"622");				
+							//@TRACE 623=+1 actualInFlight={0}
+							log.fine(CLASS_NAME,methodName,"623",new Object[]{new Integer(actualInFlight)});
+						} else {
+							//@TRACE 622=inflight window full
+							log.fine(CLASS_NAME,methodName,"622");				
+						}
+					}			
+				}
+				if (!(result instanceof MqttPersistedPublish)) {
+					return result;
+				}
+			}
+			// Only the sender thread takes messages, so the inflight window still
+			// has space once the publish has been read
+			MqttPublish publish = loadPersistedPublish((MqttPersistedPublish) result);
+			result = null;
+			if (publish != null) {
+				synchronized (queueLock) {
+					if (!connected) {
+						// Queued again from the outbound state on reconnect
+						//@TRACE 621=no outstanding flows and not connected
+						log.fine(CLASS_NAME,methodName,"621");
+						return null;
+					}
+					actualInFlight++;
+					if (latencySampling > 0) {
+						stampStage(publish, MqttDeliveryToken.STAGE_DEQUEUED);
 					}
-				}			
+
+					//@TRACE 623=+1 actualInFlight={0}
+					log.fine(CLASS_NAME,methodName,"623",new Object[]{new Integer(actualInFlight)});
+					return publish;
+				}
 			}
 		}
-		return result;
 	}
 	
+	/**
+	 * Reads the full publish for a restored index entry back from persistence
+	 * so that it can be written to the network. If the persisted message has 
+	 * gone or is corrupt the entry is dropped from the outbound state, its
+	 * token fails with a persistence exception, and null is returned.
+	 * Must be called without holding the queueLock, so that reading from
+	 * persistence does not hold up threads queueing messages and acks.
+	 * @param indexEntry the index entry taken from the pending messages
+	 * @return the publish to send, or null if it could not be restored
+	 */
+	private MqttPublish loadPersistedPublish(MqttPersistedPublish indexEntry) throws MqttException {
+		final String methodName = "loadPersistedPublish";
+		String key = indexEntry.getPersistenceKey();
+		//@TRACE 662=load payload from persistence key={0} length={1}
+		log.fine(CLASS_NAME,methodName,"662", new Object[]{key, new Integer(indexEntry.getPayloadLength())});
+
+		MqttPublish publish = null;
+		if (persistence.containsKey(key)) {
+			publish = (MqttPublish) restoreMessage(key, persistence.get(key));
+		}
+		if (publish == null) {
+			//@TRACE 663=persisted publish no longer available, dropping key={0}
+			log.fine(CLASS_NAME,methodName,"663", new Object[]{key});
+
+			MqttToken token;
+			synchronized (queueLock) {
+				Integer msgId = new Integer(indexEntry.getMessageId());
+				if (indexEntry.getMessage().getQos() == 2) {
+					outboundQoS2.remove(msgId);
+				} else {
+					outboundQoS1.remove(msgId);
+				}
+				token = tokenStore.getToken(indexEntry);
+				tokenStore.removeToken(indexEntry);
+				releaseMessageId(indexEntry.getMessageId());
+			}
+			if (token != null) {
+				notifyResult(null, token, new MqttPersistenceException());
+			}
+			return null;
+		}
+		publish.setDuplicate(true);
+		return publish;
+	}
+
 	public void setKeepAliveInterval(long interval) {
 		this.keepAlive = interval;
 	}
@@ -744,6 +1441,10 @@ public class ClientState {
         if (sentBytesCount > 0) {
         	this.lastOutboundActivity = System.currentTimeMillis();
         }
+        RateLimiter limiter = rateLimiter;
+        if (limiter != null) {
+        	limiter.consume(sentBytesCount);
+        }
         // @TRACE 631=sent bytes count={0}                                                                                                                                                                                            
         log.fine(CLASS_NAME, methodName, "631", new Object[] {
         		 new Integer(sentBytesCount) });
@@ -778,6 +1479,7 @@ public class ClientState {
 			if (((MqttPublish)message).getMessage().getQos() == 0) {
 				// once a QoS 0 message is sent we can clean up its records straight away as
 				// we won't be hearing about it again
+				recordLatency(token, MqttDeliveryToken.STAGE_WRITTEN);
 				token.internalTok.markComplete(null, null);
 				callback.asyncOperationComplete(token);
 				decrementInFlight();
@@ -826,6 +1528,25 @@ public class ClientState {
                  new Integer(receivedBytesCount) });
     }
 
+    /**
+	 * Called by the CommsReceiver when an ack has arrived, to handle it and
+	 * record that it has.
+	 * 
+	 * @param ack the ack
+	 * @param size the encoded size of the ack
+	 * @throws MqttException
+	 */
+	protected void notifyReceivedAck(MqttAck ack, int size) throws MqttException {
+		MqttEventRecorder recorder = eventRecorder;
+		if (recorder == null) {
+			notifyReceivedAck(ack);
+			return;
+		}
+		long start = System.nanoTime();
+		notifyReceivedAck(ack);
+		recordEvent(recorder, MqttEventRecorder.EVENT_ACKED, ack, size, start);
+	}
+
     /**
 	 * Called by the CommsReceiver when an ack has arrived. 
 	 * 
@@ -853,6 +1574,7 @@ public class ClientState {
 		} else if (ack instanceof MqttPubAck || ack instanceof MqttPubComp) {
 			// QoS 1 & 2 notify users of result before removing from
 			// persistence
+			recordLatency(token, MqttDeliveryToken.STAGE_ACKED);
 			notifyResult(ack, token, mex);
 			// Do not remove publish / delivery token at this stage
 			// do this when the persistence is removed later 
@@ -869,6 +1591,7 @@ public class ClientState {
 		} else if (ack instanceof MqttConnack) {
 			int rc = ((MqttConnack) ack).getReturnCode();
 			if (rc == 0) {
+				serverTopicAliasMaximum = (int) ((MqttConnack) ack).getProperties().getLong(MqttProperties.TOPIC_ALIAS_MAXIMUM, 0);
 				synchronized (queueLock) {
 					if (cleanSession) {
 						clearState();
@@ -930,6 +1653,29 @@ public class ClientState {
 					}
 					break;
 				case 2:
+					Integer msgId = new Integer(send.getMessageId());
+					Object received = inboundQoS2.get(msgId);
+					// A payload left on the network cannot be persisted, so it is 
+					// always delivered as it arrives
+					boolean stateOnly = inboundQoS2StateOnly || send.getPayloadInputStream() != null;
+					if (received instanceof MqttPubRec || (stateOnly && received != null)) {
+						// Already delivered in state only mode, or persisted awaiting
+						// the PUBREL, but the server has not seen the PUBREC
+						//@TRACE 664=inbound QoS 2 publish already received key={0}
+						log.fine(CLASS_NAME, methodName, "664", new Object[]{msgId});
+						this.send(new MqttPubRec(send), null);
+						break;
+					}
+					if (stateOnly) {
+						if (!inboundQoS2Arrived.containsKey(msgId)) {
+							// The PUBREC is sent once the message has been delivered
+							inboundQoS2Arrived.put(msgId, send);
+							if (callback != null) {
+								callback.messageArrived(send);
+							}
+						}
+						break;
+					}
 					persistence.put(getReceivedPersistenceKey(message),
 							(MqttPublish) message);
 					inboundQoS2.put(new Integer(send.getMessageId()), send);
@@ -940,13 +1686,17 @@ public class ClientState {
 					//should NOT reach here
 				}
 			} else if (message instanceof MqttPubRel) {
-				MqttPublish sendMsg = (MqttPublish) inboundQoS2
+				MqttWireMessage received = (MqttWireMessage) inboundQoS2
 						.get(new Integer(message.getMessageId()));
-				if (sendMsg != null) {
+				if (received instanceof MqttPublish) {
 					if (callback != null) {
-						callback.messageArrived(sendMsg);
+						callback.messageArrived((MqttPublish) received);
 					}
 				} else {
+					if (received != null) {
+						// Delivered in state only mode, the PUBCOMP removes it from persistence
+						inboundQoS2.remove(new Integer(message.getMessageId()));
+					}
 					// Original publish has already been delivered.
 					MqttPubComp pubComp = new MqttPubComp(message
 							.getMessageId());
@@ -980,7 +1730,7 @@ public class ClientState {
 
 			if (ack instanceof MqttPubAck) {
 				// QoS 1 - user notified now remove from persistence...
-				persistence.remove(getSendPersistenceKey(message));
+				removeSend(message);
 				outboundQoS1.remove(new Integer(ack.getMessageId()));
 				decrementInFlight();
 				releaseMessageId(message.getMessageId());
@@ -990,7 +1740,7 @@ public class ClientState {
 						new Object[] { new Integer(ack.getMessageId()) });
 			} else if (ack instanceof MqttPubComp) {
 				// QoS 2 - user notified now remove from persistence...
-				persistence.remove(getSendPersistenceKey(message));
+				removeSend(message);
 				persistence.remove(getSendConfirmPersistenceKey(message));
 				outboundQoS2.remove(new Integer(ack.getMessageId()));
 
@@ -1101,7 +1851,12 @@ public class ClientState {
 			}
 
 			pendingMessages.clear();
+			waitingByTopic.clear();
 			pendingFlows.clear();
+			// The callback drops the messages it has not delivered, so a message
+			// delivered in state only mode whose state was not persisted is
+			// delivered again when the server resends it
+			inboundQoS2Arrived.clear();
 			synchronized (pingOutstandingLock) {
 				// Reset pingOutstanding to allow reconnects to assume no previous ping.
 			    pingOutstanding = 0;
@@ -1191,7 +1946,8 @@ public class ClientState {
 			// Quiesce time up or inflight messages delivered.  Ensure pending delivery
 			// vectors are cleared ready for disconnect to be sent as the final flow.
 			synchronized (queueLock) {
-				pendingMessages.clear();				
+				pendingMessages.clear();
+				waitingByTopic.clear();
 				pendingFlows.clear();
 				quiescing = false;
 				actualInFlight = 0;
@@ -1210,14 +1966,42 @@ public class ClientState {
 		}
 	}
 
-	protected void deliveryComplete(MqttPublish message) throws MqttPersistenceException {
+	/**
+	 * Called when an inbound QoS 2 message has been delivered to the application.
+	 * @param message the delivered message
+	 * @return the acknowledgement to send; a PUBCOMP if the message was delivered 
+	 * on PUBREL, a PUBREC if it was delivered as it arrived in state only mode,
+	 * or null if it arrived on a connection that has since been lost.
+	 * @throws MqttException
+	 */
+	protected MqttWireMessage deliveryComplete(MqttPublish message) throws MqttException {
 		final String methodName = "deliveryComplete";
+		Integer msgId = new Integer(message.getMessageId());
+
+		if (inboundQoS2Arrived.remove(msgId) != null) {
+			//@TRACE 665=persist state of delivered publish. key={0}
+			log.fine(CLASS_NAME,methodName,"665", new Object[]{msgId});
+
+			MqttPubRec pubRec = new MqttPubRec(message);
+			byte[] header = pubRec.getHeader();
+			persistence.put(getReceivedPersistenceKey(message), new MqttPersistentData(getReceivedPersistenceKey(message), header, 0, header.length, null, 0, 0));
+			inboundQoS2.put(msgId, pubRec);
+			return pubRec;
+		}
+		if (!(inboundQoS2.get(msgId) instanceof MqttPublish)) {
+			// Delivered as it arrived, but the connection was lost before its
+			// state was persisted. The server resends it and it is delivered again.
+			//@TRACE 676=delivered publish arrived before the connection was lost, not acknowledged. key={0}
+			log.fine(CLASS_NAME,methodName,"676", new Object[]{msgId});
+			return null;
+		}
 
 		//@TRACE 641=remove publish from persistence. key={0}
-		log.fine(CLASS_NAME,methodName,"641", new Object[]{new Integer(message.getMessageId())});
+		log.fine(CLASS_NAME,methodName,"641", new Object[]{msgId});
 		
 		persistence.remove(getReceivedPersistenceKey(message));
-		inboundQoS2.remove(new Integer(message.getMessageId()));
+		inboundQoS2.remove(msgId);
+		return new MqttPubComp(message);
 	}
 	
 	/**
@@ -1228,10 +2012,13 @@ public class ClientState {
 	protected void close() {
 		inUseMsgIds.clear();
 		pendingMessages.clear();
+		waitingByTopic.clear();
 		pendingFlows.clear();
 		outboundQoS2.clear();
 		outboundQoS1.clear();
 		inboundQoS2.clear();
+		inboundQoS2Arrived.clear();
+		spooledFiles.clear();
 		tokenStore.clear();
 		inUseMsgIds = null;
 		pendingMessages = null;
@@ -1239,6 +2026,8 @@ public class ClientState {
 		outboundQoS2 = null;
 		outboundQoS1 = null;
 		inboundQoS2 = null;
+		inboundQoS2Arrived = null;
+		spooledFiles = null;
 		tokenStore = null;
 		callback = null;
 		clientComms = null;
@@ -1254,6 +2043,7 @@ public class ClientState {
 		props.put("maxInflight", new Integer(maxInflight));
 		props.put("nextMsgID", new Integer(nextMsgId));
 		props.put("actualInFlight", new Integer(actualInFlight));
+		props.put("rateLimitWaitTime", new Long(getRateLimitWaitTime()));
 		props.put("inFlightPubRels", new Integer(inFlightPubRels));
 		props.put("quiescing", Boolean.valueOf(quiescing));
 		props.put("pingoutstanding", new Integer(pingOutstanding));
@@ -1262,6 +2052,14 @@ public class ClientState {
 		props.put("outboundQoS2", outboundQoS2);
 		props.put("outboundQoS1", outboundQoS1);
 		props.put("inboundQoS2", inboundQoS2);
+		props.put("inboundQoS2Arrived", inboundQoS2Arrived);
+		props.put("spooledFiles", spooledFiles);
+		if (topicCache != null) {
+			props.put("topicCache", topicCache.getDebug());
+		}
+		props.put("mqttVersion", new Integer(mqttVersion));
+		props.put("serverTopicAliasMaximum", new Integer(serverTopicAliasMaximum));
+		props.put("conflatedCount", new Long(conflatedCount));
 		props.put("tokens", tokenStore);
 		return props;
 	}
@@ -18,15 +18,20 @@ package org.eclipse.paho.client.mqttv3.internal;
 import java.util.Vector;
 
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.MqttBatchCallback;
 import org.eclipse.paho.client.mqttv3.MqttCallback;
 import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttEventRecorder;
 import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.MqttToken;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttPubAck;
-import org.eclipse.paho.client.mqttv3.internal.wire.MqttPubComp;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
 import org.eclipse.paho.client.mqttv3.logging.Logger;
 import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
+import org.eclipse.paho.client.mqttv3.util.SubscriptionTrie;
 
 /**
  * Bridge between Receiver and the external API. This class gets called by
@@ -39,9 +44,15 @@ public class CommsCallback implements Runnable {
 
 	private static final int INBOUND_QUEUE_SIZE = 10;
 	private MqttCallback mqttCallback;
+	private SubscriptionTrie messageListeners = new SubscriptionTrie();
 	private ClientComms clientComms;
 	private Vector messageQueue;
 	private Vector completeQueue;
+	// The most messages passed to a batch callback, and the most queued
+	private int batchSize = INBOUND_QUEUE_SIZE;
+	private int inboundQueueSize = INBOUND_QUEUE_SIZE;
+	// The messages taken from the queue for a batch callback
+	private Vector batch = new Vector(INBOUND_QUEUE_SIZE);
 	public boolean running = false;
 	private boolean quiescing = false;
 	private Object lifecycle = new Object();
@@ -74,7 +85,7 @@ public class CommsCallback implements Runnable {
 
 				running = true;
 				quiescing = false;
-				callbackThread = new Thread(this, threadName);
+				callbackThread = clientComms.newThread(this, threadName);
 				callbackThread.start();
 			}
 		}
@@ -99,6 +110,9 @@ public class CommsCallback implements Runnable {
 							log.fine(CLASS_NAME, methodName, "701");
 							workAvailable.notifyAll();
 						}
+						synchronized (spaceAvailable) {
+							spaceAvailable.notifyAll();
+						}
 						// Wait for the thread to finish.
 						callbackThread.join();
 					} catch (InterruptedException ex) {
@@ -115,6 +129,30 @@ public class CommsCallback implements Runnable {
 		this.mqttCallback = mqttCallback;
 	}
 
+	/**
+	 * Sets the most messages passed to a batch callback in one call. The
+	 * queue holds at least as many.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+		this.inboundQueueSize = Math.max(INBOUND_QUEUE_SIZE, batchSize);
+	}
+
+	public void setMessageListener(String topicFilter, IMqttMessageListener messageListener) {
+		this.messageListeners.put(topicFilter, messageListener);
+	}
+
+	public void removeMessageListener(String topicFilter) {
+		Object listener = this.messageListeners.remove(topicFilter);
+		if (listener instanceof MessageDemand) {
+			((MessageDemand) listener).complete();
+		}
+	}
+
+	public void removeMessageListeners() {
+		this.messageListeners.clear();
+	}
+
 	public void run() {
 		final String methodName = "run";
 		while (running) {
@@ -148,6 +186,7 @@ public class CommsCallback implements Runnable {
 					
 					// Check for messageArrived callbacks...
 					MqttPublish message = null;
+					boolean batched = mqttCallback instanceof MqttBatchCallback;
 					synchronized (messageQueue) {
 					    if (!messageQueue.isEmpty()) {
 						    // Note, there is a window on connect where a publish
@@ -156,9 +195,24 @@ public class CommsCallback implements Runnable {
 							message = (MqttPublish) messageQueue.elementAt(0);
 
 							messageQueue.removeElementAt(0);
+							if (batched && isBatched(message)) {
+								// Take the messages behind it for the same batch
+								batch.addElement(message);
+								while (batch.size() < batchSize && !messageQueue.isEmpty()
+										&& isBatched((MqttPublish) messageQueue.elementAt(0))) {
+									batch.addElement(messageQueue.elementAt(0));
+									messageQueue.removeElementAt(0);
+								}
+							}
 					    }
 					}
-					if (null != message) {
+					if (!batch.isEmpty()) {
+						try {
+							handleBatch(batch);
+						} finally {
+							batch.removeAllElements();
+						}
+					} else if (null != message) {
 						handleMessage(message);
 					}
 				}
@@ -291,22 +345,26 @@ public class CommsCallback implements Runnable {
 	 */
 	public void messageArrived(MqttPublish sendMessage) {
 		final String methodName = "messageArrived";
-		if (mqttCallback != null) {
+		if (mqttCallback != null || !messageListeners.isEmpty()) {
 			// If we already have enough messages queued up in memory, wait
 			// until some more queue space becomes available. This helps 
 			// the client protect itself from getting flooded by messages 
 			// from the server.
 			synchronized (spaceAvailable) {
-				while (running && !quiescing && messageQueue.size() >= INBOUND_QUEUE_SIZE) {
+				while (running && !quiescing && messageQueue.size() >= inboundQueueSize) {
 					try {
 						// @TRACE 709=wait for spaceAvailable
 						log.fine(CLASS_NAME, methodName, "709");
-						spaceAvailable.wait(200);
+						spaceAvailable.wait();
 					} catch (InterruptedException ex) {
 					}
 				}
 			}
 			if (!quiescing) {
+				if (sendMessage.getPayloadInputStream() != null) {
+					// The receiver waits for the application to read the payload
+					sendMessage.getPayloadInputStream().claim();
+				}
 				messageQueue.addElement(sendMessage);
 				// Notify the CommsCallback thread that there's work to do...
 				synchronized (workAvailable) {
@@ -345,21 +403,162 @@ public class CommsCallback implements Runnable {
 			throws MqttException, Exception {
 		final String methodName = "handleMessage";
 		// If quisecing process any pending messages. 
-		if (mqttCallback != null) {
-			String destName = publishMessage.getTopicName();
-
+		String destName = publishMessage.getTopicName();
+		// Listeners subscribed with a matching filter take the message, and
+		// the callback has any message that no listener matches
+		Object[] listeners = messageListeners.match(destName);
+		MqttCallback callback = mqttCallback;
+		if (listeners.length > 0 || callback != null) {
 			// @TRACE 713=call messageArrived key={0} topic={1}
 			log.fine(CLASS_NAME, methodName, "713", new Object[] { 
 					new Integer(publishMessage.getMessageId()), destName });
-			mqttCallback.messageArrived(destName, publishMessage.getMessage());
+			clientState.decodePayload(publishMessage);
+			MqttEventRecorder recorder = clientState.getEventRecorder();
+			long start = (recorder == null) ? 0 : System.nanoTime();
+			// Every subscriber asks for the message before any listener has it,
+			// so that no listener has it twice if the callback stops meanwhile
+			for (int i = 0; i < listeners.length; i++) {
+				if (listeners[i] instanceof MessageDemand && !awaitDemand((MessageDemand) listeners[i])) {
+					// Stopped while waiting, so the message is not acknowledged
+					// and the server sends it again
+					publishMessage.releasePayload();
+					return;
+				}
+			}
+			for (int i = 0; i < listeners.length; i++) {
+				if (listeners[i] instanceof MessageDemand) {
+					MessageDemand demand = (MessageDemand) listeners[i];
+					synchronized (demand) {
+						demand.take();
+					}
+				}
+				((IMqttMessageListener) listeners[i]).messageArrived(destName, publishMessage.getMessage());
+			}
+			if (listeners.length == 0) {
+				callback.messageArrived(destName, publishMessage.getMessage());
+			}
+			if (recorder != null) {
+				clientState.recordEvent(recorder, MqttEventRecorder.EVENT_DELIVERED, publishMessage,
+						publishMessage.getPayloadLength(), start);
+			}
+			// Skip any of a streamed payload that was not read, before acknowledging it
+			publishMessage.discardPayload();
+			clientState.releaseDelivered(publishMessage);
 			if (publishMessage.getMessage().getQos() == 1) {
 				this.clientComms.internalSend(new MqttPubAck(publishMessage),
 						new MqttToken(clientComms.getClient().getClientId()));
 			} else if (publishMessage.getMessage().getQos() == 2) {
-				this.clientComms.deliveryComplete(publishMessage);
-				MqttPubComp pubComp = new MqttPubComp(publishMessage);
-				this.clientComms.internalSend(pubComp, new MqttToken(clientComms.getClient().getClientId()));
+				// PUBCOMP if delivered on PUBREL, or PUBREC if delivered as it arrived
+				MqttWireMessage ack = this.clientComms.deliveryComplete(publishMessage);
+				if (ack != null) {
+					this.clientComms.internalSend(ack, new MqttToken(clientComms.getClient().getClientId()));
+				}
 			}
+		} else {
+			publishMessage.discardPayload();
+			publishMessage.releasePayload();
+		}
+	}
+
+	/**
+	 * Returns whether a message is passed to the batch callback: it matches
+	 * no listener, and has no streamed payload to be read in the callback.
+	 */
+	private boolean isBatched(MqttPublish publishMessage) {
+		return publishMessage.getPayloadInputStream() == null
+				&& messageListeners.match(publishMessage.getTopicName()).length == 0;
+	}
+
+	/**
+	 * Passes a batch of messages to the batch callback, then acknowledges
+	 * them together.
+	 */
+	private void handleBatch(Vector messages) throws MqttException, Exception {
+		final String methodName = "handleBatch";
+		int count = messages.size();
+		String[] topics = new String[count];
+		MqttMessage[] arrived = new MqttMessage[count];
+		for (int i = 0; i < count; i++) {
+			MqttPublish publishMessage = (MqttPublish) messages.elementAt(i);
+			clientState.decodePayload(publishMessage);
+			topics[i] = publishMessage.getTopicName();
+			arrived[i] = publishMessage.getMessage();
+		}
+		// @TRACE 722=call messagesArrived count={0}
+		log.fine(CLASS_NAME, methodName, "722", new Object[] { new Integer(count) });
+		MqttEventRecorder recorder = clientState.getEventRecorder();
+		long start = (recorder == null) ? 0 : System.nanoTime();
+		((MqttBatchCallback) mqttCallback).messagesArrived(topics, arrived);
+
+		Vector acks = new Vector(count);
+		for (int i = 0; i < count; i++) {
+			MqttPublish publishMessage = (MqttPublish) messages.elementAt(i);
+			if (recorder != null) {
+				clientState.recordEvent(recorder, MqttEventRecorder.EVENT_DELIVERED, publishMessage,
+						publishMessage.getPayloadLength(), start);
+			}
+			clientState.releaseDelivered(publishMessage);
+			if (arrived[i].getQos() == 1) {
+				acks.addElement(new MqttPubAck(publishMessage));
+			} else if (arrived[i].getQos() == 2) {
+				// PUBCOMP if delivered on PUBREL, or PUBREC if delivered as it arrived
+				MqttWireMessage ack = this.clientComms.deliveryComplete(publishMessage);
+				if (ack != null) {
+					acks.addElement(ack);
+				}
+			}
+		}
+		if (!acks.isEmpty()) {
+			this.clientComms.internalSendAcks(acks);
+		}
+	}
+
+	/**
+	 * Waits until the subscriber of a subscription asks for a message,
+	 * without taking it from the demand, which only this thread does. While
+	 * it waits, no more messages are taken from the queue, and once the
+	 * queue is full the receiver stops reading from the network. Completed
+	 * actions are still handled, so that tokens complete and a subscriber
+	 * that asks for more from an action listener is not waited on forever.
+	 * @return true if there is demand, false if the callback was stopped
+	 */
+	private boolean awaitDemand(MessageDemand demand) throws MqttException, InterruptedException {
+		final String methodName = "awaitDemand";
+		while (true) {
+			if (demand.hasDemand()) {
+				return true;
+			}
+			if (!running) {
+				return false;
+			}
+			MqttToken token = null;
+			synchronized (completeQueue) {
+				if (!completeQueue.isEmpty()) {
+					token = (MqttToken) completeQueue.elementAt(0);
+					completeQueue.removeElementAt(0);
+				}
+			}
+			if (token != null) {
+				handleActionComplete(token);
+				continue;
+			}
+			synchronized (workAvailable) {
+				if (running && completeQueue.isEmpty() && !demand.hasDemand()) {
+					// @TRACE 721=wait for demand
+					log.fine(CLASS_NAME, methodName, "721");
+					workAvailable.wait();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wakes the callback thread if it is waiting for a subscriber to ask
+	 * for a message.
+	 */
+	public void notifyDemand() {
+		synchronized (workAvailable) {
+			workAvailable.notifyAll();
 		}
 	}
 
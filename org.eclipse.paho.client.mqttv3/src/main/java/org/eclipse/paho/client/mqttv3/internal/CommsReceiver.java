@@ -18,10 +18,13 @@ package org.eclipse.paho.client.mqttv3.internal;
 import java.io.IOException;
 import java.io.InputStream;
 
+import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttToken;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttAck;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttInputStream;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPayloadInputStream;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
 import org.eclipse.paho.client.mqttv3.logging.Logger;
 import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
@@ -60,7 +63,7 @@ public class CommsReceiver implements Runnable {
 		synchronized (lifecycle) {
 			if (!running) {
 				running = true;
-				recThread = new Thread(this, threadName);
+				recThread = clientComms.newThread(this, threadName);
 				recThread.start();
 			}
 		}
@@ -115,7 +118,8 @@ public class CommsReceiver implements Runnable {
 							// This ensures that the send processing can complete  before the 
 							// receive processing starts! ( request and ack and ack processing
 							// can occur before request processing is complete if not!
-							clientState.notifyReceivedAck((MqttAck)message);
+							token.internalTok.stampStage(MqttDeliveryToken.STAGE_ACKED);
+							clientState.notifyReceivedAck((MqttAck)message, in.getPacketLength());
 						}
 					} else {
 						// It its an ack and there is no token then something is not right.
@@ -125,6 +129,9 @@ public class CommsReceiver implements Runnable {
 				} else {
 					// A new message has arrived
 					clientState.notifyReceivedMsg(message);
+					if (message instanceof MqttPublish) {
+						receivePayload((MqttPublish) message);
+					}
 				}
 			}
 			catch (MqttException ex) {
@@ -155,6 +162,28 @@ public class CommsReceiver implements Runnable {
 		log.fine(CLASS_NAME,methodName,"854");
 	}
 	
+	/**
+	 * Waits for the application to read a payload that has been left on the
+	 * network, so that the next message can be read. The payload is skipped 
+	 * if the message was not passed to the application.
+	 */
+	private void receivePayload(MqttPublish message) throws IOException {
+		final String methodName = "receivePayload";
+		MqttPayloadInputStream payload = message.getPayloadInputStream();
+		if (payload == null) {
+			return;
+		}
+		if (!payload.isClaimed()) {
+			payload.close();
+			return;
+		}
+		//@TRACE 857=wait for payload to be read key={0} length={1}
+		log.fine(CLASS_NAME,methodName,"857", new Object[]{new Integer(message.getMessageId()), new Integer(payload.getLength())});
+		while (running && !payload.isClosed()) {
+			payload.waitForClose(200);
+		}
+	}
+	
 	public boolean isRunning() {
 		return running;
 	}
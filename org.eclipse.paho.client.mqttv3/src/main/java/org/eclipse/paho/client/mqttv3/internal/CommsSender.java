@@ -17,7 +17,10 @@ package org.eclipse.paho.client.mqttv3.internal;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 
+import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttEventRecorder;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttToken;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttAck;
@@ -42,7 +45,15 @@ public class CommsSender implements Runnable {
 	private Thread 	sendThread		= null;
 	
 	public CommsSender(ClientComms clientComms, ClientState clientState, CommsTokenStore tokenStore, OutputStream out) {
-		this.out = new MqttOutputStream(clientState, out);
+		this(clientComms, clientState, tokenStore, out, null);
+	}
+	
+	/**
+	 * Constructs a sender that can transfer streamed payloads straight to
+	 * the channel underlying <code>out</code>, if there is one.
+	 */
+	public CommsSender(ClientComms clientComms, ClientState clientState, CommsTokenStore tokenStore, OutputStream out, WritableByteChannel channel) {
+		this.out = new MqttOutputStream(clientState, out, channel);
 		this.clientComms = clientComms;
 		this.clientState = clientState;
 		this.tokenStore = tokenStore;
@@ -56,7 +67,7 @@ public class CommsSender implements Runnable {
 		synchronized (lifecycle) {
 			if (!running) {
 				running = true;
-				sendThread = new Thread(this, threadName);
+				sendThread = clientComms.newThread(this, threadName);
 				sendThread.start();
 			}
 		}
@@ -100,9 +111,17 @@ public class CommsSender implements Runnable {
 					//@TRACE 802=network send key={0} msg={1}
 					log.fine(CLASS_NAME,methodName,"802", new Object[] {message.getKey(),message});
 
+					MqttEventRecorder recorder = clientState.getEventRecorder();
+					long start = (recorder == null) ? 0 : System.nanoTime();
 					if (message instanceof MqttAck) {
 						out.write(message);
-						out.flush();
+						// Acknowledgments queued together are written with one flush
+						if (!clientState.isAckPending()) {
+							out.flush();
+						}
+						if (recorder != null) {
+							clientState.recordEvent(recorder, MqttEventRecorder.EVENT_WRITTEN, message, out.getMessageLength(), start);
+						}
 					} else {
 						MqttToken token = tokenStore.getToken(message);
 						// While quiescing the tokenstore can be cleared so need 
@@ -120,6 +139,10 @@ public class CommsSender implements Runnable {
 										throw ex;
 									}
 								}
+								if (recorder != null) {
+									clientState.recordEvent(recorder, MqttEventRecorder.EVENT_WRITTEN, message, out.getMessageLength(), start);
+								}
+								token.internalTok.stampStage(MqttDeliveryToken.STAGE_WRITTEN);
 								clientState.notifySent(message);
 							}
 						}
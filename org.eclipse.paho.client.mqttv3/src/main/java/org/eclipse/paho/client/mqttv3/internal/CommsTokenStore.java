@@ -115,6 +115,7 @@ public class CommsTokenStore {
 			} else {
 				token = new MqttDeliveryToken(logContext);
 				token.internalTok.setKey(key);
+				token.internalTok.setMessageID(message.getMessageId());
 				this.tokens.put(key, token);
 				//@TRACE 303=creating new token key={0} message={1} token={2}
 				log.fine(CLASS_NAME,methodName,"303",new Object[]{key, message, token});
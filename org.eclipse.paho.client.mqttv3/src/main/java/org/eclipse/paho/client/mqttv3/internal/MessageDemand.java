@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttDemand;
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.IMqttMessageSubscriber;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * Passes the messages of a subscription to an
+ * {@link IMqttMessageSubscriber} as it asks for them.
+ * <p>
+ * It is the message listener of the subscription. The callback thread
+ * waits for demand before it passes a message to it, handling only
+ * completed actions meanwhile, so while the subscriber asks for no messages
+ * the inbound queue fills, and then the receiver stops reading from the
+ * network until there is demand again.
+ * The server is held back by the network in turn. It is also the action
+ * listener of the subscribe, so that the subscriber is told if the
+ * subscription fails.
+ * </p>
+ */
+public class MessageDemand implements IMqttDemand, IMqttMessageListener, IMqttActionListener {
+
+	private IMqttAsyncClient client;
+	private ClientComms comms;
+	private String topicFilter;
+	private IMqttMessageSubscriber subscriber;
+
+	private long requested = 0;
+	private boolean cancelled = false;
+	private boolean finished = false;
+
+	public MessageDemand(IMqttAsyncClient client, ClientComms comms, String topicFilter, IMqttMessageSubscriber subscriber) {
+		this.client = client;
+		this.comms = comms;
+		this.topicFilter = topicFilter;
+		this.subscriber = subscriber;
+	}
+
+	public void request(long n) {
+		if (n <= 0) {
+			fail(new IllegalArgumentException("request " + n));
+			cancel();
+			return;
+		}
+		synchronized (this) {
+			requested += n;
+			if (requested < 0) {
+				// Overflowed, so the demand is unbounded
+				requested = Long.MAX_VALUE;
+			}
+		}
+		comms.notifyDemand();
+	}
+
+	public void cancel() {
+		synchronized (this) {
+			if (cancelled) {
+				return;
+			}
+			cancelled = true;
+		}
+		comms.notifyDemand();
+		try {
+			client.unsubscribe(topicFilter);
+		} catch (MqttException ex) {
+			// The listener is removed even if the client is not connected
+		}
+	}
+
+	/**
+	 * Takes one message from the demand. Must be called while
+	 * synchronized on this object.
+	 * @return true if a message can be passed on, or dropped because the
+	 * subscriber wants no more, false if the callback thread should wait
+	 */
+	boolean take() {
+		if (cancelled || finished) {
+			return true;
+		}
+		if (requested > 0) {
+			if (requested != Long.MAX_VALUE) {
+				requested--;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns whether a message can be taken, without taking it.
+	 */
+	synchronized boolean hasDemand() {
+		return cancelled || finished || requested > 0;
+	}
+
+	public void messageArrived(String topic, MqttMessage message) throws Exception {
+		synchronized (this) {
+			if (cancelled || finished) {
+				return;
+			}
+		}
+		subscriber.onNext(topic, message);
+	}
+
+	/**
+	 * Ends the stream, when the topic filter is unsubscribed from.
+	 */
+	void complete() {
+		boolean wasCancelled;
+		synchronized (this) {
+			if (finished) {
+				return;
+			}
+			finished = true;
+			wasCancelled = cancelled;
+		}
+		comms.notifyDemand();
+		if (!wasCancelled) {
+			subscriber.onComplete();
+		}
+	}
+
+	private void fail(Throwable cause) {
+		synchronized (this) {
+			if (finished) {
+				return;
+			}
+			finished = true;
+		}
+		comms.notifyDemand();
+		subscriber.onError(cause);
+	}
+
+	public void onSuccess(IMqttToken asyncActionToken) {
+		int[] grantedQos = asyncActionToken.getGrantedQos();
+		if (grantedQos.length > 0 && grantedQos[0] == 0x80) {
+			fail(new MqttException(MqttException.REASON_CODE_SUBSCRIBE_FAILED));
+			comms.removeMessageListener(topicFilter);
+		}
+	}
+
+	public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+		fail(exception);
+		comms.removeMessageListener(topicFilter);
+	}
+}
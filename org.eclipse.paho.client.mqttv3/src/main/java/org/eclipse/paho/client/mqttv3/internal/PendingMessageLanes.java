@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import java.util.Vector;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
+
+/**
+ * Holds the publishes waiting to be sent, in one first in first out lane
+ * for each message priority.
+ * <p>
+ * The next message is taken from the highest priority lane that has one,
+ * so that a high priority message only waits for the messages of its own
+ * priority. So that a lower priority lane is never starved, it is served
+ * once {@link #STARVATION_LIMIT} messages have been taken from higher lanes
+ * while it was waiting.
+ * </p>
+ * <p>
+ * This class is not thread safe, the caller must hold the queue lock.
+ * </p>
+ */
+public class PendingMessageLanes {
+
+	/**
+	 * The number of messages taken from higher priority lanes, while a lower
+	 * priority lane has messages waiting, before the lower lane is served.
+	 */
+	public static final int STARVATION_LIMIT = 8;
+
+	private static final int LANE_COUNT = MqttMessage.PRIORITY_HIGH + 1;
+
+	private Vector[] lanes = new Vector[LANE_COUNT];
+	// The messages taken from higher lanes since each lane was last served
+	private int[] skipped = new int[LANE_COUNT];
+	private int size = 0;
+
+	public PendingMessageLanes(int initialCapacity) {
+		for (int i = 0; i < LANE_COUNT; i++) {
+			lanes[i] = new Vector(initialCapacity);
+		}
+	}
+
+	private static int laneOf(MqttWireMessage message) {
+		if (message instanceof MqttPublish) {
+			MqttMessage inner = ((MqttPublish) message).getMessage();
+			if (inner != null) {
+				return inner.getPriority();
+			}
+		}
+		return MqttMessage.PRIORITY_NORMAL;
+	}
+
+	/**
+	 * Adds a message to the end of the lane for its priority.
+	 */
+	public void addElement(MqttWireMessage message) {
+		lanes[laneOf(message)].addElement(message);
+		size++;
+	}
+
+	/**
+	 * Adds messages to the ends of the lanes for their priorities, in order.
+	 */
+	public void addAll(Vector messages) {
+		for (int i = 0; i < messages.size(); i++) {
+			addElement((MqttWireMessage) messages.elementAt(i));
+		}
+	}
+
+	/**
+	 * Removes a message from its lane.
+	 * @return <code>true</code> if the message was waiting
+	 */
+	public boolean removeElement(MqttWireMessage message) {
+		for (int i = 0; i < LANE_COUNT; i++) {
+			if (lanes[i].removeElement(message)) {
+				size--;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Replaces a waiting message with another. If both have the same
+	 * priority the new message takes the place of the old one, otherwise it
+	 * is added to the end of the lane for its priority.
+	 * @return <code>true</code> if the old message was waiting and has been
+	 * replaced, <code>false</code> if nothing was changed
+	 */
+	public boolean replace(MqttWireMessage oldMessage, MqttWireMessage newMessage) {
+		// The priority of a message could have changed after it was added
+		int lane = laneOf(oldMessage);
+		int index = lanes[lane].indexOf(oldMessage);
+		for (int i = 0; i < LANE_COUNT && index < 0; i++) {
+			lane = i;
+			index = lanes[i].indexOf(oldMessage);
+		}
+		if (index < 0) {
+			return false;
+		}
+		if (laneOf(newMessage) == lane) {
+			lanes[lane].setElementAt(newMessage, index);
+		} else {
+			lanes[lane].removeElementAt(index);
+			lanes[laneOf(newMessage)].addElement(newMessage);
+		}
+		return true;
+	}
+
+	/**
+	 * Removes and returns the next message to send.
+	 * @return the message, or null if there are none
+	 */
+	public MqttWireMessage next() {
+		if (size == 0) {
+			return null;
+		}
+		int lane = -1;
+		for (int i = 0; i < LANE_COUNT && lane < 0; i++) {
+			if (!lanes[i].isEmpty() && skipped[i] >= STARVATION_LIMIT) {
+				lane = i;
+			}
+		}
+		for (int i = LANE_COUNT - 1; i >= 0 && lane < 0; i--) {
+			if (!lanes[i].isEmpty()) {
+				lane = i;
+			}
+		}
+		skipped[lane] = 0;
+		for (int i = 0; i < lane; i++) {
+			if (!lanes[i].isEmpty()) {
+				skipped[i]++;
+			}
+		}
+		MqttWireMessage message = (MqttWireMessage) lanes[lane].elementAt(0);
+		lanes[lane].removeElementAt(0);
+		size--;
+		return message;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of messages waiting with a priority.
+	 */
+	public int size(int priority) {
+		return lanes[priority].size();
+	}
+
+	public void clear() {
+		for (int i = 0; i < LANE_COUNT; i++) {
+			lanes[i].clear();
+			skipped[i] = 0;
+		}
+		size = 0;
+	}
+
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		for (int i = LANE_COUNT - 1; i >= 0; i--) {
+			sb.append(i).append("=").append(lanes[i]);
+			if (i > 0) {
+				sb.append(" ");
+			}
+		}
+		return sb.toString();
+	}
+}
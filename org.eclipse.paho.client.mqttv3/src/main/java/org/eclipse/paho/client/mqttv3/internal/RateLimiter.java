@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+/**
+ * Paces the publishes sent on a connection with a token bucket for the
+ * message rate and another for the byte rate.
+ * <p>
+ * Each bucket fills at its rate up to its burst size. A publish may be sent
+ * when there is a whole message token and the byte bucket is not empty. The
+ * bytes are taken from the byte bucket as they are written, so a large
+ * message can leave it in debt, which then delays the messages that follow.
+ * Over time neither rate is exceeded, and a backlog is sent no faster than
+ * the rates allow.
+ * </p>
+ */
+public class RateLimiter {
+
+	private double messageRate;
+	private double messageBurst;
+	private double byteRate;
+	private double byteBurst;
+
+	private double messageTokens;
+	private double byteTokens;
+	private long lastFill;
+
+	// When the current wait started, or 0 if no publish is waiting
+	private long waitStart = 0;
+	private long waitTime = 0;
+
+	/**
+	 * Constructs a limiter, with full buckets.
+	 * @param messagesPerSecond the messages per second, or 0 for no limit
+	 * @param messageBurst the messages that can be sent at once
+	 * @param bytesPerSecond the bytes per second, or 0 for no limit
+	 * @param byteBurst the bytes that can be sent at once
+	 */
+	public RateLimiter(int messagesPerSecond, int messageBurst, int bytesPerSecond, int byteBurst) {
+		this.messageRate = messagesPerSecond;
+		this.messageBurst = messageBurst;
+		this.byteRate = bytesPerSecond;
+		this.byteBurst = byteBurst;
+		this.messageTokens = messageBurst;
+		this.byteTokens = byteBurst;
+		this.lastFill = System.currentTimeMillis();
+	}
+
+	private void fill(long now) {
+		long elapsed = now - lastFill;
+		if (elapsed > 0) {
+			if (messageRate > 0) {
+				messageTokens = Math.min(messageBurst, messageTokens + elapsed * messageRate / 1000);
+			}
+			if (byteRate > 0) {
+				byteTokens = Math.min(byteBurst, byteTokens + elapsed * byteRate / 1000);
+			}
+			lastFill = now;
+		}
+	}
+
+	/**
+	 * Takes a message token if a publish can be sent now.
+	 * @return 0 if the publish can be sent, otherwise the milliseconds until
+	 * it can be
+	 */
+	public synchronized long acquire() {
+		long now = System.currentTimeMillis();
+		fill(now);
+		double delay = 0;
+		if (messageRate > 0 && messageTokens < 1) {
+			delay = (1 - messageTokens) * 1000 / messageRate;
+		}
+		if (byteRate > 0 && byteTokens < 0) {
+			delay = Math.max(delay, -byteTokens * 1000 / byteRate);
+		}
+		if (delay > 0) {
+			if (waitStart == 0) {
+				waitStart = now;
+			}
+			return (long) Math.ceil(delay);
+		}
+		if (messageRate > 0) {
+			messageTokens -= 1;
+		}
+		if (waitStart != 0) {
+			waitTime += now - waitStart;
+			waitStart = 0;
+		}
+		return 0;
+	}
+
+	/**
+	 * Takes bytes written to the network from the byte bucket.
+	 */
+	public synchronized void consume(int bytes) {
+		if (byteRate > 0) {
+			fill(System.currentTimeMillis());
+			byteTokens -= bytes;
+		}
+	}
+
+	/**
+	 * Returns the total milliseconds publishes have waited to be sent
+	 * because of the limits.
+	 */
+	public synchronized long getWaitTime() {
+		long total = waitTime;
+		if (waitStart != 0) {
+			total += System.currentTimeMillis() - waitStart;
+		}
+		return total;
+	}
+}
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import java.util.Enumeration;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttEventRecorder;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+
+/**
+ * Wraps the persistence of a client to record each put and remove with an
+ * {@link MqttEventRecorder}. The client state only uses it while a recorder
+ * is set.
+ */
+public class RecordingPersistence implements MqttClientPersistence {
+
+	private MqttClientPersistence persistence;
+	private MqttEventRecorder recorder;
+	private String clientId;
+
+	public RecordingPersistence(MqttClientPersistence persistence, MqttEventRecorder recorder, String clientId) {
+		this.persistence = persistence;
+		this.recorder = recorder;
+		this.clientId = clientId;
+	}
+
+	/**
+	 * Returns the persistence that is wrapped.
+	 */
+	public MqttClientPersistence getPersistence() {
+		return persistence;
+	}
+
+	public void open(String clientId, String serverURI) throws MqttPersistenceException {
+		persistence.open(clientId, serverURI);
+	}
+
+	public void close() throws MqttPersistenceException {
+		persistence.close();
+	}
+
+	public void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+		long start = System.nanoTime();
+		persistence.put(key, persistable);
+		long duration = System.nanoTime() - start;
+		// The persisted header starts with the fixed header of the packet
+		int packetType = 0;
+		if (persistable.getHeaderLength() > 0) {
+			packetType = (persistable.getHeaderBytes()[persistable.getHeaderOffset()] >> 4) & 0x0F;
+		}
+		long size = persistable.getHeaderLength() + persistable.getPayloadLength();
+		recorder.record(MqttEventRecorder.EVENT_PERSISTED, clientId, packetType, getMessageId(key), size, duration);
+	}
+
+	public MqttPersistable get(String key) throws MqttPersistenceException {
+		return persistence.get(key);
+	}
+
+	public void remove(String key) throws MqttPersistenceException {
+		long start = System.nanoTime();
+		persistence.remove(key);
+		recorder.record(MqttEventRecorder.EVENT_UNPERSISTED, clientId, 0, getMessageId(key), 0, System.nanoTime() - start);
+	}
+
+	public Enumeration keys() throws MqttPersistenceException {
+		return persistence.keys();
+	}
+
+	public void clear() throws MqttPersistenceException {
+		persistence.clear();
+	}
+
+	public boolean containsKey(String key) throws MqttPersistenceException {
+		return persistence.containsKey(key);
+	}
+
+	/**
+	 * Returns the message id a persistence key ends with, or 0 if it ends
+	 * with none.
+	 */
+	private static int getMessageId(String key) {
+		int id = 0;
+		int factor = 1;
+		for (int i = key.length() - 1; i >= 0 && factor <= 10000; i--) {
+			char c = key.charAt(i);
+			if (c < '0' || c > '9') {
+				break;
+			}
+			id += (c - '0') * factor;
+			factor *= 10;
+		}
+		return id;
+	}
+}
@@ -16,6 +16,7 @@
 package org.eclipse.paho.client.mqttv3.internal;
 
 import java.io.IOException;
+import java.nio.channels.SocketChannel;
 
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
@@ -90,4 +91,11 @@ public class SSLNetworkModule extends TCPNetworkModule {
 		// reset timeout to default value
 		socket.setSoTimeout(soTimeout);   
 	}
+	
+	/**
+	 * Payloads must go through the SSL socket, never straight to a channel.
+	 */
+	public SocketChannel getSocketChannel() {
+		return null;
+	}
 }
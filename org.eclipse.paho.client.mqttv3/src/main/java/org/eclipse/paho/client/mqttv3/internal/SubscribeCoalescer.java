@@ -0,0 +1,420 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import java.util.Vector;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttToken;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttSuback;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttSubscribe;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttUnsubscribe;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
+import org.eclipse.paho.client.mqttv3.logging.Logger;
+import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
+
+/**
+ * Coalesces the subscribe and unsubscribe requests made on a connection
+ * into as few SUBSCRIBE and UNSUBSCRIBE packets as possible.
+ * <p>
+ * A request waits in a batch of the same kind until the window after the
+ * first request in the batch ends, or until the batch holds the maximum
+ * number of topic filters. The batch is then sent with its own token. When
+ * the server acknowledges it, each request in it takes its share of the
+ * granted QoS, and its token completes once every batch it was split
+ * across has been acknowledged. A batch of one kind is sent before a
+ * request of the other kind is added, so that the requests reach the
+ * server in the order they were made.
+ * </p>
+ * <p>
+ * A batch that cannot be sent fails its requests once the coalescer's lock
+ * is released, so that the application's listeners are never called while
+ * it is held.
+ * </p>
+ */
+public class SubscribeCoalescer {
+	private static final String CLASS_NAME = SubscribeCoalescer.class.getName();
+	private static final Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
+
+	private ClientComms comms;
+	private String clientId;
+	private int window;
+	private int maximum;
+	// Sends each batch when its window ends, started with the first batch
+	private Thread flusher = null;
+	private boolean stopped = false;
+
+	// The batches waiting to be sent, or null
+	private Batch subscribes = null;
+	private Batch unsubscribes = null;
+
+	/**
+	 * A subscribe or unsubscribe request and its token.
+	 */
+	private static class Request {
+		final String[] topicFilters;
+		final int[] qos;
+		final MqttToken token;
+		final int[] grantedQos;
+		// The batches the request is in that are not yet acknowledged
+		int outstanding = 0;
+		boolean failed = false;
+
+		Request(String[] topicFilters, int[] qos, MqttToken token) {
+			this.topicFilters = topicFilters;
+			this.qos = qos;
+			this.token = token;
+			this.grantedQos = (qos == null) ? null : new int[qos.length];
+		}
+	}
+
+	/**
+	 * The topic filters of a request sent in one batch.
+	 */
+	private static class Part {
+		final Request request;
+		final int offset;
+		final int count;
+
+		Part(Request request, int offset, int count) {
+			this.request = request;
+			this.offset = offset;
+			this.count = count;
+		}
+	}
+
+	/**
+	 * The requests sent in one packet.
+	 */
+	private class Batch implements IMqttActionListener {
+		final boolean subscribe;
+		final Vector parts = new Vector();
+		final MqttToken token;
+		int size = 0;
+		// When the window of the batch ends
+		long deadline;
+		// Why the batch could not be sent, or null
+		MqttException failure = null;
+
+		Batch(boolean subscribe) {
+			this.subscribe = subscribe;
+			this.token = new MqttToken(clientId);
+			this.token.setActionCallback(this);
+		}
+
+		MqttWireMessage createMessage() {
+			String[] topicFilters = new String[size];
+			int[] qos = new int[size];
+			int index = 0;
+			for (int i = 0; i < parts.size(); i++) {
+				Part part = (Part) parts.elementAt(i);
+				System.arraycopy(part.request.topicFilters, part.offset, topicFilters, index, part.count);
+				if (subscribe) {
+					System.arraycopy(part.request.qos, part.offset, qos, index, part.count);
+				}
+				index += part.count;
+			}
+			token.internalTok.setTopics(topicFilters);
+			if (subscribe) {
+				return new MqttSubscribe(topicFilters, qos);
+			}
+			return new MqttUnsubscribe(topicFilters);
+		}
+
+		public void onSuccess(IMqttToken asyncActionToken) {
+			MqttWireMessage response = asyncActionToken.getResponse();
+			int[] grantedQos = null;
+			if (subscribe) {
+				grantedQos = asyncActionToken.getGrantedQos();
+			}
+			Vector completed = new Vector();
+			synchronized (SubscribeCoalescer.this) {
+				int index = 0;
+				for (int i = 0; i < parts.size(); i++) {
+					Part part = (Part) parts.elementAt(i);
+					Request request = part.request;
+					if (grantedQos != null) {
+						for (int j = 0; j < part.count; j++) {
+							// A filter the server gave no return code for has failed
+							int qos = (index + j < grantedQos.length) ? grantedQos[index + j] : 0x80;
+							request.grantedQos[part.offset + j] = qos;
+						}
+					}
+					index += part.count;
+					request.outstanding--;
+					if (request.outstanding == 0 && !request.failed) {
+						completed.addElement(request);
+					}
+				}
+			}
+			for (int i = 0; i < completed.size(); i++) {
+				Request request = (Request) completed.elementAt(i);
+				if (subscribe) {
+					complete(request, new MqttSuback(response.getMessageId(), request.grantedQos), null);
+				} else {
+					complete(request, response, null);
+				}
+			}
+		}
+
+		public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+			MqttException ex;
+			if (exception instanceof MqttException) {
+				ex = (MqttException) exception;
+			} else {
+				ex = new MqttException(exception);
+			}
+			fail(this, ex);
+		}
+	}
+
+	/**
+	 * Sends each batch when its window ends, until the coalescer is stopped.
+	 */
+	private class Flusher implements Runnable {
+		public void run() {
+			while (true) {
+				Vector unsent = new Vector();
+				synchronized (SubscribeCoalescer.this) {
+					while (!stopped) {
+						Batch next = subscribes;
+						if (next == null || (unsubscribes != null && unsubscribes.deadline < next.deadline)) {
+							next = unsubscribes;
+						}
+						long now = System.currentTimeMillis();
+						if (next != null && next.deadline <= now) {
+							send(next, unsent);
+							break;
+						}
+						try {
+							SubscribeCoalescer.this.wait((next == null) ? 0 : next.deadline - now);
+						} catch (InterruptedException ex) {
+							return;
+						}
+					}
+					if (stopped) {
+						return;
+					}
+				}
+				failUnsent(unsent);
+			}
+		}
+	}
+
+	/**
+	 * Constructs a coalescer for a connection.
+	 * @param comms the connection the packets are sent on
+	 * @param clientId the client identifier, used to name the flush thread
+	 * @param windowMillis how long a batch waits for more requests
+	 * @param maxFilters the most topic filters in a batch
+	 */
+	public SubscribeCoalescer(ClientComms comms, String clientId, int windowMillis, int maxFilters) {
+		this.comms = comms;
+		this.clientId = clientId;
+		this.window = windowMillis;
+		this.maximum = maxFilters;
+		log.setResourceName(clientId);
+	}
+
+	/**
+	 * Adds a subscribe request to the batch waiting to be sent.
+	 * @throws MqttException if the client is not connected
+	 */
+	public void subscribe(String[] topicFilters, int[] qos, MqttToken token) throws MqttException {
+		add(new Request(topicFilters, qos, token), true);
+	}
+
+	/**
+	 * Adds an unsubscribe request to the batch waiting to be sent.
+	 * @throws MqttException if the client is not connected
+	 */
+	public void unsubscribe(String[] topicFilters, MqttToken token) throws MqttException {
+		add(new Request(topicFilters, null, token), false);
+	}
+
+	private void add(Request request, boolean subscribe) throws MqttException {
+		Vector unsent = new Vector();
+		synchronized (this) {
+			add(request, subscribe, unsent);
+		}
+		failUnsent(unsent);
+	}
+
+	private void add(Request request, boolean subscribe, Vector unsent) throws MqttException {
+		final String methodName = "add";
+		if (stopped || !comms.isConnected()) {
+			//@TRACE 901=failed: not connected
+			log.fine(CLASS_NAME, methodName, "901");
+			throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+		}
+		if (flusher == null) {
+			flusher = comms.newThread(new Flusher(), "MQTT Subscribe: " + clientId);
+			flusher.start();
+		}
+		Batch other = subscribe ? unsubscribes : subscribes;
+		if (other != null) {
+			send(other, unsent);
+		}
+
+		// Find the batches first, so that an acknowledgement cannot complete
+		// the request before all of it is added
+		Vector full = new Vector();
+		int offset = 0;
+		int length = request.topicFilters.length;
+		while (offset < length) {
+			Batch batch = subscribe ? subscribes : unsubscribes;
+			if (batch == null) {
+				batch = new Batch(subscribe);
+				if (subscribe) {
+					subscribes = batch;
+				} else {
+					unsubscribes = batch;
+				}
+				batch.deadline = System.currentTimeMillis() + window;
+				notifyAll();
+			}
+			int count = Math.min(length - offset, maximum - batch.size);
+			batch.parts.addElement(new Part(request, offset, count));
+			batch.size += count;
+			request.outstanding++;
+			offset += count;
+			if (batch.size >= maximum) {
+				full.addElement(batch);
+				if (subscribe) {
+					subscribes = null;
+				} else {
+					unsubscribes = null;
+				}
+			}
+		}
+		//@TRACE 902=coalesced {0} topic filters of key={1} into {2} batches
+		log.fine(CLASS_NAME, methodName, "902", new Object[] { new Integer(length),
+				request.token.internalTok.getKey(), new Integer(request.outstanding) });
+		for (int i = 0; i < full.size(); i++) {
+			send((Batch) full.elementAt(i), unsent);
+		}
+	}
+
+	/**
+	 * Sends the batches waiting to be sent.
+	 */
+	public void flush() {
+		Vector unsent = new Vector();
+		synchronized (this) {
+			if (subscribes != null) {
+				send(subscribes, unsent);
+			}
+			if (unsubscribes != null) {
+				send(unsubscribes, unsent);
+			}
+		}
+		failUnsent(unsent);
+	}
+
+	/**
+	 * Sends a batch, called with the coalescer's lock held.
+	 * @param unsent the batches that could not be sent, which the caller
+	 * fails once it has released the lock
+	 */
+	private void send(Batch batch, Vector unsent) {
+		final String methodName = "send";
+		if (batch == subscribes) {
+			subscribes = null;
+		} else if (batch == unsubscribes) {
+			unsubscribes = null;
+		}
+		//@TRACE 903=send batch of {0} requests with {1} topic filters
+		log.fine(CLASS_NAME, methodName, "903", new Object[] { new Integer(batch.parts.size()), new Integer(batch.size) });
+		try {
+			comms.sendNoWait(batch.createMessage(), batch.token);
+		} catch (MqttException ex) {
+			batch.failure = ex;
+			unsent.addElement(batch);
+		}
+	}
+
+	private void failUnsent(Vector unsent) {
+		for (int i = 0; i < unsent.size(); i++) {
+			Batch batch = (Batch) unsent.elementAt(i);
+			fail(batch, batch.failure);
+		}
+	}
+
+	private void fail(Batch batch, MqttException ex) {
+		Vector failed = new Vector();
+		synchronized (this) {
+			for (int i = 0; i < batch.parts.size(); i++) {
+				Request request = ((Part) batch.parts.elementAt(i)).request;
+				request.outstanding--;
+				if (!request.failed) {
+					request.failed = true;
+					failed.addElement(request);
+				}
+			}
+		}
+		for (int i = 0; i < failed.size(); i++) {
+			complete((Request) failed.elementAt(i), null, ex);
+		}
+	}
+
+	private void complete(Request request, MqttWireMessage response, MqttException ex) {
+		final String methodName = "complete";
+		//@TRACE 904=key={0} response={1} excep={2}
+		log.fine(CLASS_NAME, methodName, "904", new Object[] { request.token.internalTok.getKey(), response, ex });
+		request.token.internalTok.markComplete(response, ex);
+		request.token.internalTok.notifyComplete();
+		IMqttActionListener callback = request.token.getActionCallback();
+		if (callback != null) {
+			if (ex == null) {
+				callback.onSuccess(request.token);
+			} else {
+				callback.onFailure(request.token, ex);
+			}
+		}
+	}
+
+	/**
+	 * Stops the flush thread, and fails the requests still waiting to be sent.
+	 * @param reason the reason the connection was lost, or null
+	 */
+	public void stop(MqttException reason) {
+		final String methodName = "stop";
+		//@TRACE 900=stop reason={0}
+		log.fine(CLASS_NAME, methodName, "900", new Object[] { reason });
+		MqttException ex = reason;
+		if (ex == null) {
+			ex = new MqttException(MqttException.REASON_CODE_CLIENT_DISCONNECTING);
+		}
+		Batch waitingSubscribes;
+		Batch waitingUnsubscribes;
+		synchronized (this) {
+			stopped = true;
+			notifyAll();
+			waitingSubscribes = subscribes;
+			waitingUnsubscribes = unsubscribes;
+			subscribes = null;
+			unsubscribes = null;
+		}
+		if (waitingSubscribes != null) {
+			fail(waitingSubscribes, ex);
+		}
+		if (waitingUnsubscribes != null) {
+			fail(waitingUnsubscribes, ex);
+		}
+	}
+}
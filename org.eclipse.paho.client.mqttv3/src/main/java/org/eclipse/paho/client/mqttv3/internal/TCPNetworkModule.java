@@ -22,6 +22,7 @@ import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
 
 import javax.net.SocketFactory;
 
@@ -87,6 +88,16 @@ public class TCPNetworkModule implements NetworkModule {
 	public OutputStream getOutputStream() throws IOException {
 		return socket.getOutputStream();
 	}
+	
+	/**
+	 * Returns the channel of the socket, if the socket factory created the
+	 * socket from a <code>SocketChannel</code>, so that file payloads can be
+	 * transferred to it directly.
+	 * @return the channel, or null if the socket has none
+	 */
+	public SocketChannel getSocketChannel() {
+		return socket == null ? null : socket.getChannel();
+	}
 
 	/**
 	 * Stops the module, by closing the TCP socket.
@@ -18,6 +18,7 @@ package org.eclipse.paho.client.mqttv3.internal;
 
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
 import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttAck;
@@ -51,12 +52,65 @@ public class Token {
 	private Object userContext = null;
 	
 	private int messageID = 0;
+	// When a sampled publish reached each stage of its delivery, or null
+	volatile private long[] stageTimes = null;
 	private boolean notified = false;
+	// Told when the action completes, before waiters are woken
+	private CompletionListener completionListener = null;
+
+	/**
+	 * Is told when a token's action completes, before anyone waiting for
+	 * the token is woken and before its action listener is called, so that
+	 * the client can record the result first.
+	 */
+	public interface CompletionListener {
+		/**
+		 * Called once, when the token is complete or has failed.
+		 * @param token the token, whose response and exception are set
+		 */
+		public void complete(Token token);
+	}
 	
 	public Token(String logContext) {
 		log.setResourceName(logContext);
 	}
 	
+	/**
+	 * Samples the delivery of this token's publish, so that when it reaches
+	 * each stage is kept.
+	 * @param submitted when the publish was submitted
+	 */
+	public void sampleStages(long submitted) {
+		stageTimes = new long[MqttDeliveryToken.STAGE_ACKED + 1];
+		stageTimes[MqttDeliveryToken.STAGE_SUBMITTED] = submitted;
+	}
+
+	/**
+	 * Keeps the time a sampled publish reached a stage of its delivery.
+	 */
+	public void stampStage(int stage) {
+		long[] times = stageTimes;
+		if (times != null) {
+			times[stage] = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Returns when the publish reached a stage of its delivery, or 0 if it
+	 * has not or was not sampled.
+	 */
+	public long getStageTime(int stage) {
+		long[] times = stageTimes;
+		return (times == null) ? 0 : times[stage];
+	}
+
+	/**
+	 * Returns whether the delivery of this token's publish is sampled.
+	 */
+	public boolean isSampled() {
+		return stageTimes != null;
+	}
+
 	public int getMessageID() {
 		return messageID;
 	}
@@ -92,6 +146,16 @@ public class Token {
 		this.callback  = listener;
 
 	}
+	/**
+	 * Sets the listener told when the action completes, before waiters are
+	 * woken.
+	 */
+	public void setCompletionListener(CompletionListener listener) {
+		synchronized (responseLock) {
+			this.completionListener = listener;
+		}
+	}
+
 	public IMqttActionListener getActionCallback() {
 		return callback;
 	}
@@ -205,6 +269,11 @@ public class Token {
 				} else {
 					pendingComplete = false;
 				}
+				if (completionListener != null) {
+					CompletionListener listener = completionListener;
+					completionListener = null;
+					listener.complete(this);
+				}
 				
 				responseLock.notifyAll();
 			}
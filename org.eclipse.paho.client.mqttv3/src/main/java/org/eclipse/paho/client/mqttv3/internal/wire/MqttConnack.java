@@ -30,6 +30,7 @@ public class MqttConnack extends MqttAck {
 
 	private int returnCode;
 	private boolean sessionPresent;
+	private MqttProperties properties;
 	
 	public MqttConnack(byte info, byte[] variableHeader) throws IOException {
 		super(MqttWireMessage.MESSAGE_TYPE_CONNACK);
@@ -37,6 +38,12 @@ public class MqttConnack extends MqttAck {
 		DataInputStream dis = new DataInputStream(bais);
 		sessionPresent = (dis.readUnsignedByte() & 0x01) == 0x01;
 		returnCode = dis.readUnsignedByte();
+		// Only an MQTT 5 CONNACK is longer than two bytes
+		if (variableHeader.length > 2) {
+			properties = MqttProperties.decode(dis);
+		} else {
+			properties = new MqttProperties();
+		}
 		dis.close();
 	}
 	
@@ -61,10 +68,22 @@ public class MqttConnack extends MqttAck {
 	}
 	
 	public String toString() {
-		return super.toString() + " session present:" + sessionPresent + " return code: " + returnCode;
+		String rc = super.toString() + " session present:" + sessionPresent + " return code: " + returnCode;
+		if (!properties.isEmpty()) {
+			rc += " properties: " + properties;
+		}
+		return rc;
 	}
 	
 	public boolean getSessionPresent() {
 		return sessionPresent;
 	}
+	
+	/**
+	 * Returns the properties sent by an MQTT 5 server, which are empty for
+	 * earlier versions.
+	 */
+	public MqttProperties getProperties() {
+		return properties;
+	}
 }
@@ -22,6 +22,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
@@ -40,6 +41,7 @@ public class MqttConnect extends MqttWireMessage {
 	private int keepAliveInterval;
 	private String willDestination;
 	private int MqttVersion;
+	private MqttProperties properties = null;
 	
 	/**
 	 * Constructor for an on the wire MQTT connect message
@@ -74,9 +76,24 @@ public class MqttConnect extends MqttWireMessage {
 		this.MqttVersion = MqttVersion;
 	}
 
+	/**
+	 * Constructs an MQTT 5 connect message carrying the given properties.
+	 */
+	public MqttConnect(String clientId, int MqttVersion, boolean cleanSession, int keepAliveInterval, String userName, char[] password, MqttMessage willMessage, String willDestination, MqttProperties properties) {
+		this(clientId, MqttVersion, cleanSession, keepAliveInterval, userName, password, willMessage, willDestination);
+		this.properties = properties;
+	}
+
+	public MqttProperties getProperties() {
+		return properties;
+	}
+
 	public String toString() {
 		String rc = super.toString();
 		rc += " clientId " + clientId + " keepAliveInterval " + keepAliveInterval;
+		if (properties != null) {
+			rc += " properties " + properties;
+		}
 		return rc;
 	}
 	
@@ -96,7 +113,7 @@ public class MqttConnect extends MqttWireMessage {
 			if (MqttVersion == 3) {
 				encodeUTF8(dos,"MQIsdp");			
 			}
-			else if (MqttVersion == 4) {
+			else if (MqttVersion >= 4) {
 				encodeUTF8(dos,"MQTT");			
 			}
 			dos.write(MqttVersion);
@@ -123,6 +140,9 @@ public class MqttConnect extends MqttWireMessage {
 			}
 			dos.write(connectFlags);
 			dos.writeShort(keepAliveInterval);
+			if (MqttVersion == MqttConnectOptions.MQTT_VERSION_5) {
+				(properties == null ? new MqttProperties() : properties).encode(dos);
+			}
 			dos.flush();
 			return baos.toByteArray();
 		} catch(IOException ioe) {
@@ -137,6 +157,10 @@ public class MqttConnect extends MqttWireMessage {
 			encodeUTF8(dos,clientId);
 			
 			if (willMessage != null) {
+				if (MqttVersion == MqttConnectOptions.MQTT_VERSION_5) {
+					// No will properties
+					dos.writeByte(0);
+				}
 				encodeUTF8(dos,willDestination);
 				dos.writeShort(willMessage.getPayload().length);
 				dos.write(willMessage.getPayload());
@@ -20,7 +20,10 @@ import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
+import org.eclipse.paho.client.mqttv3.MqttBufferAllocator;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.internal.ClientState;
 import org.eclipse.paho.client.mqttv3.internal.ExceptionHelper;
@@ -36,8 +39,19 @@ public class MqttInputStream extends InputStream {
 	private static final String CLASS_NAME = MqttInputStream.class.getName();
 	private static final Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
 
+	private static final int CHUNK_SIZE = 8192;
+
 	private ClientState clientState = null;
 	private DataInputStream in;
+	// Reused to copy payloads into buffers that are not backed by an array
+	private byte[] chunk = null;
+	// The number of bytes the last PUBLISH variable header took on the wire
+	private int variableHeaderLength = 0;
+	// The number of bytes the last packet other than a PUBLISH took on the wire
+	private int packetLength = 0;
+	// The topic names of the MQTT 5 topic aliases set by the server on this
+	// connection, by alias
+	private byte[][] topicAliases = null;
 
 	public MqttInputStream(ClientState clientState, InputStream in) {
 		this.clientState = clientState;
@@ -55,6 +69,14 @@ public class MqttInputStream extends InputStream {
 	public void close() throws IOException {
 		in.close();
 	}
+
+	/**
+	 * Returns the encoded size of the last packet read that was not a
+	 * publish.
+	 */
+	public int getPacketLength() {
+		return packetLength;
+	}
 	
 	/**
 	 * Reads an <code>MqttWireMessage</code> from the stream.
@@ -72,21 +94,160 @@ public class MqttInputStream extends InputStream {
 			throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_INVALID_MESSAGE);
 		}
 		long remLen = MqttWireMessage.readMBI(in).getValue();
+		int threshold = clientState.getInboundStreamingThreshold();
+		if (type == MqttWireMessage.MESSAGE_TYPE_PUBLISH && threshold > 0 && remLen > threshold) {
+			MqttWireMessage message = readStreamedPublish((byte) (first & 0x0f), remLen);
+			// @TRACE 501= received {0} 
+			log.fine(CLASS_NAME, methodName, "501",new Object[] {message});
+			return message;
+		}
+		MqttBufferAllocator allocator = clientState.getBufferAllocator();
+		if (type == MqttWireMessage.MESSAGE_TYPE_PUBLISH && allocator != null) {
+			MqttWireMessage message = readBufferedPublish((byte) (first & 0x0f), remLen, allocator);
+			// @TRACE 501= received {0} 
+			log.fine(CLASS_NAME, methodName, "501",new Object[] {message});
+			return message;
+		}
+		if (type == MqttWireMessage.MESSAGE_TYPE_PUBLISH) {
+			// Read straight into the array the publish is decoded from
+			byte[] data;
+			if (clientState.getMqttVersion() == MqttConnectOptions.MQTT_VERSION_5) {
+				byte[] variableHeader = readVariableHeader((byte) (first & 0x0f));
+				long payloadLength = remLen - variableHeaderLength;
+				if (payloadLength < 0) {
+					throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_INVALID_MESSAGE);
+				}
+				data = new byte[variableHeader.length + (int) payloadLength];
+				System.arraycopy(variableHeader, 0, data, 0, variableHeader.length);
+				readFully(data, variableHeader.length, (int) payloadLength);
+			} else {
+				data = new byte[(int) remLen];
+				readFully(data, 0, data.length);
+			}
+			MqttWireMessage message = new MqttPublish((byte) (first & 0x0f), data, clientState.getTopicCache());
+			// @TRACE 501= received {0} 
+			log.fine(CLASS_NAME, methodName, "501",new Object[] {message});
+			return message;
+		}
 		bais.write(first);
 		// bit silly, we decode it then encode it
 		bais.write(MqttWireMessage.encodeMBI(remLen));
 		byte[] packet = new byte[(int)(bais.size()+remLen)];
+		packetLength = packet.length;
 		readFully(packet,bais.size(),packet.length - bais.size());
 		
 		byte[] header = bais.toByteArray();
 		System.arraycopy(header,0,packet,0, header.length);
-		MqttWireMessage message = MqttWireMessage.createWireMessage(packet);
+		MqttWireMessage message = MqttWireMessage.createWireMessage(packet, clientState.getMqttVersion());
 		// @TRACE 501= received {0} 
 		log.fine(CLASS_NAME, methodName, "501",new Object[] {message});
 		return message;
 	}
 
 
+	/**
+	 * Reads the variable header of a large PUBLISH, leaving the payload on
+	 * the stream to be read by the application.
+	 */
+	private MqttPublish readStreamedPublish(byte info, long remLen) throws IOException, MqttException {
+		byte[] variableHeader = readVariableHeader(info);
+		long payloadLength = remLen - variableHeaderLength;
+		if (payloadLength < 0) {
+			throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_INVALID_MESSAGE);
+		}
+		return new MqttPublish(info, variableHeader, new MqttPayloadInputStream(clientState, in, (int) payloadLength), clientState.getTopicCache());
+	}
+
+	/**
+	 * Reads a PUBLISH whose payload is read into a buffer from the allocator.
+	 */
+	private MqttPublish readBufferedPublish(byte info, long remLen, MqttBufferAllocator allocator) throws IOException, MqttException {
+		byte[] variableHeader = readVariableHeader(info);
+		long payloadLength = remLen - variableHeaderLength;
+		if (payloadLength < 0) {
+			throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_INVALID_MESSAGE);
+		}
+		ByteBuffer payload = allocator.allocate((int) payloadLength);
+		payload.limit(payload.position() + (int) payloadLength);
+		if (payload.hasArray()) {
+			readFully(payload.array(), payload.arrayOffset() + payload.position(), (int) payloadLength);
+		} else {
+			if (chunk == null) {
+				chunk = new byte[CHUNK_SIZE];
+			}
+			ByteBuffer target = payload.duplicate();
+			while (target.hasRemaining()) {
+				int count = Math.min(chunk.length, target.remaining());
+				readFully(chunk, 0, count);
+				target.put(chunk, 0, count);
+			}
+		}
+		return new MqttPublish(info, variableHeader, payload, allocator, clientState.getTopicCache());
+	}
+
+	/**
+	 * Reads the topic name and, for QoS 1 and 2, the message id of a PUBLISH.
+	 * Under MQTT 5 the properties are read too, and the variable header is
+	 * returned as it would be under MQTT 3.1.1, with any topic alias
+	 * resolved to its topic name.
+	 */
+	private byte[] readVariableHeader(byte info) throws IOException, MqttException {
+		int qos = (info >> 1) & 0x03;
+		int topicLength = in.readUnsignedShort();
+		clientState.notifyReceivedBytes(2);
+		byte[] variableHeader = new byte[2 + topicLength + (qos > 0 ? 2 : 0)];
+		variableHeader[0] = (byte) (topicLength >>> 8);
+		variableHeader[1] = (byte) topicLength;
+		readFully(variableHeader, 2, variableHeader.length - 2);
+		variableHeaderLength = variableHeader.length;
+		if (clientState.getMqttVersion() == MqttConnectOptions.MQTT_VERSION_5) {
+			variableHeader = readProperties(variableHeader, topicLength);
+		}
+		return variableHeader;
+	}
+
+	/**
+	 * Reads the properties of an MQTT 5 PUBLISH, returning its variable
+	 * header with the topic name of its topic alias.
+	 */
+	private byte[] readProperties(byte[] variableHeader, int topicLength) throws IOException, MqttException {
+		MultiByteInteger length = MqttWireMessage.readMBI(in);
+		clientState.notifyReceivedBytes(length.getEncodedLength());
+		byte[] body = new byte[(int) length.getValue()];
+		readFully(body, 0, body.length);
+		variableHeaderLength += length.getEncodedLength() + body.length;
+
+		int alias = (int) MqttProperties.decode(body).getLong(MqttProperties.TOPIC_ALIAS, 0);
+		if (alias == 0) {
+			if (topicLength == 0) {
+				throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_INVALID_MESSAGE);
+			}
+			return variableHeader;
+		}
+		if (alias > clientState.getTopicAliasMaximum()) {
+			throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_INVALID_MESSAGE);
+		}
+		if (topicAliases == null) {
+			topicAliases = new byte[clientState.getTopicAliasMaximum() + 1][];
+		}
+		if (topicLength > 0) {
+			byte[] topic = new byte[topicLength];
+			System.arraycopy(variableHeader, 2, topic, 0, topicLength);
+			topicAliases[alias] = topic;
+			return variableHeader;
+		}
+		byte[] topic = topicAliases[alias];
+		if (topic == null) {
+			throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_INVALID_MESSAGE);
+		}
+		byte[] resolved = new byte[variableHeader.length + topic.length];
+		resolved[0] = (byte) (topic.length >>> 8);
+		resolved[1] = (byte) topic.length;
+		System.arraycopy(topic, 0, resolved, 2, topic.length);
+		System.arraycopy(variableHeader, 2, resolved, 2 + topic.length, variableHeader.length - 2);
+		return resolved;
+	}
+
     private void readFully(byte b[], int off, int len) throws IOException {
     	if (len < 0)
     		throw new IndexOutOfBoundsException();
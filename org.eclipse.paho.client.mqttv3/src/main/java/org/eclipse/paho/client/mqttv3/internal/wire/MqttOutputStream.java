@@ -18,8 +18,11 @@ package org.eclipse.paho.client.mqttv3.internal.wire;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.internal.ClientState;
 import org.eclipse.paho.client.mqttv3.logging.Logger;
 import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
@@ -33,14 +36,33 @@ public class MqttOutputStream extends OutputStream {
 	private static final String CLASS_NAME = MqttOutputStream.class.getName();
 	private static final Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
 
+	// Smaller payloads are copied through the stream's buffer, which costs
+	// less than flushing the header to the channel separately
+	private static final int TRANSFER_THRESHOLD = 8192;
+
 	private ClientState clientState = null;
 	private BufferedOutputStream out;
+	private WritableByteChannel channel = null;
+	// The MQTT 5 topic aliases given to outbound topics on this connection
+	private MqttTopicAliases topicAliases = null;
+	// The number of bytes the last message written took on the wire
+	private long messageLength = 0;
 	
 	public MqttOutputStream(ClientState clientState, OutputStream out) {
 		this.clientState = clientState;
 		this.out = new BufferedOutputStream(out);
 	}
 	
+	/**
+	 * Constructs a stream that can also transfer streamed payloads straight
+	 * to the channel underlying <code>out</code>.
+	 * @param channel the channel that <code>out</code> writes to, or null
+	 */
+	public MqttOutputStream(ClientState clientState, OutputStream out, WritableByteChannel channel) {
+		this(clientState, out);
+		this.channel = channel;
+	}
+	
 	public void close() throws IOException {
 		out.close();
 	}
@@ -48,6 +70,13 @@ public class MqttOutputStream extends OutputStream {
 	public void flush() throws IOException {
 		out.flush();
 	}
+
+	/**
+	 * Returns the encoded size of the last message written.
+	 */
+	public long getMessageLength() {
+		return messageLength;
+	}
 	
 	public void write(byte[] b) throws IOException {
 		out.write(b);
@@ -68,12 +97,53 @@ public class MqttOutputStream extends OutputStream {
 	 */
 	public void write(MqttWireMessage message) throws IOException, MqttException {
 		final String methodName = "write";
+		prepare(message);
+		try {
+			if (message instanceof MqttPublish && ((MqttPublish) message).isPayloadBuffer()) {
+				writeStreamed((MqttPublish) message);
+			} else {
+				writeBytes(message);
+			}
+		} finally {
+			// Leave the message as it is persisted
+			message.setMqttVersion(0);
+			if (message instanceof MqttPublish) {
+				((MqttPublish) message).setTopicAlias(0, false);
+			}
+		}
+		// @TRACE 500= sent {0}
+		log.fine(CLASS_NAME, methodName, "500", new Object[]{message});
+	}
+
+	/**
+	 * Sets the MQTT version of the connection on a message, and the topic
+	 * alias of a publish when the server accepts them.
+	 */
+	private void prepare(MqttWireMessage message) {
+		int mqttVersion = clientState.getMqttVersion();
+		message.setMqttVersion(mqttVersion);
+		if (message instanceof MqttPublish && mqttVersion == MqttConnectOptions.MQTT_VERSION_5) {
+			int maximum = clientState.getServerTopicAliasMaximum();
+			if (maximum > 0) {
+				if (topicAliases == null) {
+					topicAliases = new MqttTopicAliases(maximum);
+				}
+				topicAliases.apply((MqttPublish) message);
+			}
+		}
+	}
+
+	/**
+	 * Writes a message whose payload is held in a byte array.
+	 */
+	private void writeBytes(MqttWireMessage message) throws IOException, MqttException {
 		byte[] bytes = message.getHeader();
 		byte[] pl = message.getPayload();
 //		out.write(message.getHeader());
 //		out.write(message.getPayload());
 		out.write(bytes,0,bytes.length);
 		clientState.notifySentBytes(bytes.length);
+		messageLength = bytes.length + pl.length;
 		
         int offset = 0;
         int chunckSize = 1024;
@@ -83,9 +153,28 @@ public class MqttOutputStream extends OutputStream {
         	offset += chunckSize;
         	clientState.notifySentBytes(length);
         }		
-		
-		// @TRACE 500= sent {0}
-    	log.fine(CLASS_NAME, methodName, "500", new Object[]{message});
 	}
-}
 
+	/**
+	 * Writes a publish whose payload is read from a buffer or other source as
+	 * it is written, transferring it to the channel when there is one and the
+	 * source allows it.
+	 */
+	private void writeStreamed(MqttPublish message) throws IOException, MqttException {
+		byte[] bytes = message.getHeader();
+		out.write(bytes, 0, bytes.length);
+		clientState.notifySentBytes(bytes.length);
+
+		MqttMessage payload = message.getMessage();
+		messageLength = bytes.length + payload.getPayloadLength();
+		if (channel != null && payload.getPayloadLength() >= TRANSFER_THRESHOLD) {
+			// The header has to reach the channel ahead of the payload
+			out.flush();
+			if (payload.transferPayload(channel)) {
+				clientState.notifySentBytes(payload.getPayloadLength());
+				return;
+			}
+		}
+		payload.writePayload(this);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3.internal.wire;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.eclipse.paho.client.mqttv3.internal.ClientState;
+
+/**
+ * A stream over the payload of an inbound PUBLISH that has been left on the
+ * network for the application to read. It reads no further than the end of
+ * the payload, and closing it skips whatever has not been read, so that the
+ * receiver can go on to read the next message.
+ *
+ * The receiver waits for the stream to be closed once the message has been
+ * claimed for delivery. A message that is not claimed is skipped by the
+ * receiver itself.
+ */
+public class MqttPayloadInputStream extends InputStream {
+
+	private ClientState clientState;
+	private InputStream in;
+	private int length;
+	private int remaining;
+	private boolean claimed = false;
+	private boolean closed = false;
+	private Object closeLock = new Object();
+
+	public MqttPayloadInputStream(ClientState clientState, InputStream in, int length) {
+		this.clientState = clientState;
+		this.in = in;
+		this.length = length;
+		this.remaining = length;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public int read() throws IOException {
+		checkOpen();
+		if (remaining == 0) {
+			return -1;
+		}
+		int b = in.read();
+		if (b < 0) {
+			throw new EOFException();
+		}
+		remaining--;
+		clientState.notifyReceivedBytes(1);
+		return b;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		checkOpen();
+		if (len == 0) {
+			return 0;
+		}
+		if (remaining == 0) {
+			return -1;
+		}
+		int count = in.read(b, off, Math.min(len, remaining));
+		if (count < 0) {
+			throw new EOFException();
+		}
+		remaining -= count;
+		clientState.notifyReceivedBytes(count);
+		return count;
+	}
+
+	public int available() throws IOException {
+		checkOpen();
+		return Math.min(in.available(), remaining);
+	}
+
+	private void checkOpen() throws IOException {
+		synchronized (closeLock) {
+			if (closed) {
+				throw new IOException();
+			}
+		}
+	}
+
+	/**
+	 * Skips the rest of the payload and wakes the receiver. The underlying
+	 * network stream is not closed.
+	 */
+	public void close() throws IOException {
+		synchronized (closeLock) {
+			if (closed) {
+				return;
+			}
+		}
+		try {
+			byte[] skip = new byte[Math.min(8192, Math.max(remaining, 1))];
+			while (remaining > 0) {
+				read(skip, 0, skip.length);
+			}
+		} finally {
+			synchronized (closeLock) {
+				closed = true;
+				closeLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Marks the payload as handed to the application to read.
+	 */
+	public void claim() {
+		synchronized (closeLock) {
+			claimed = true;
+		}
+	}
+
+	public boolean isClaimed() {
+		synchronized (closeLock) {
+			return claimed;
+		}
+	}
+
+	public boolean isClosed() {
+		synchronized (closeLock) {
+			return closed;
+		}
+	}
+
+	/**
+	 * Waits for the stream to be closed.
+	 * @param timeout the longest time to wait in milliseconds
+	 */
+	public void waitForClose(long timeout) {
+		synchronized (closeLock) {
+			if (!closed) {
+				try {
+					closeLock.wait(timeout);
+				} catch (InterruptedException ex) {
+				}
+			}
+		}
+	}
+}
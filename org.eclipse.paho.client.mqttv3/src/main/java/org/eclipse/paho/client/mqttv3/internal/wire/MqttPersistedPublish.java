@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3.internal.wire;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * An index entry for an outbound PUBLISH that has been restored from
+ * persistence. Only the persistence key, message id, QoS and payload size are
+ * held in memory; the payload itself stays in the persistent store until the
+ * message is about to be written to the network, at which point the full
+ * {@link MqttPublish} is read back using {@link #getPersistenceKey()}.
+ *
+ * Instances of this class must never be written to the network.
+ */
+public class MqttPersistedPublish extends MqttPublish {
+
+	private String persistenceKey;
+	private int payloadLength;
+
+	/**
+	 * Creates an index entry from a fully restored publish. The publish
+	 * is not referenced once this constructor returns.
+	 * @param key the persistence key the publish was stored under
+	 * @param publish the publish restored from persistence
+	 */
+	public MqttPersistedPublish(String key, MqttPublish publish) {
+		super(publish.getTopicName(), indexOf(publish.getMessage()));
+		this.persistenceKey = key;
+		this.payloadLength = publish.getPayloadLength();
+		setMessageId(publish.getMessageId());
+		this.duplicate = publish.duplicate;
+	}
+
+	private static MqttMessage indexOf(MqttMessage message) {
+		MqttMessage index = new MqttMessage();
+		index.setQos(message.getQos());
+		index.setRetained(message.isRetained());
+		return index;
+	}
+
+	public String getPersistenceKey() {
+		return persistenceKey;
+	}
+
+	public int getPayloadLength() {
+		return payloadLength;
+	}
+
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("PUBLISH(persisted)");
+		sb.append(" key:").append(persistenceKey);
+		sb.append(" qos:").append(getMessage().getQos());
+		sb.append(" msgId:").append(msgId);
+		sb.append(" dup:").append(duplicate);
+		sb.append(" topic:\"").append(getTopicName()).append("\"");
+		sb.append(" length:").append(payloadLength);
+		return sb.toString();
+	}
+}
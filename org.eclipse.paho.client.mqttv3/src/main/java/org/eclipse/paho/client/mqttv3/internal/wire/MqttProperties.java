@@ -0,0 +1,320 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3.internal.wire;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * The properties carried by an MQTT 5 packet.
+ * <p>
+ * Each property is held against its identifier. Byte, two byte and
+ * variable byte integer properties are held as <code>Integer</code>s, four
+ * byte integers as <code>Long</code>s, strings as <code>String</code>s and
+ * binary data as <code>byte[]</code>. User properties, which can appear
+ * more than once, are held separately as name and value pairs.
+ * </p>
+ */
+public class MqttProperties {
+
+	public static final int PAYLOAD_FORMAT_INDICATOR = 0x01;
+	public static final int MESSAGE_EXPIRY_INTERVAL = 0x02;
+	public static final int CONTENT_TYPE = 0x03;
+	public static final int RESPONSE_TOPIC = 0x08;
+	public static final int CORRELATION_DATA = 0x09;
+	public static final int SUBSCRIPTION_IDENTIFIER = 0x0B;
+	public static final int SESSION_EXPIRY_INTERVAL = 0x11;
+	public static final int ASSIGNED_CLIENT_IDENTIFIER = 0x12;
+	public static final int SERVER_KEEP_ALIVE = 0x13;
+	public static final int AUTHENTICATION_METHOD = 0x15;
+	public static final int AUTHENTICATION_DATA = 0x16;
+	public static final int REQUEST_PROBLEM_INFORMATION = 0x17;
+	public static final int WILL_DELAY_INTERVAL = 0x18;
+	public static final int REQUEST_RESPONSE_INFORMATION = 0x19;
+	public static final int RESPONSE_INFORMATION = 0x1A;
+	public static final int SERVER_REFERENCE = 0x1C;
+	public static final int REASON_STRING = 0x1F;
+	public static final int RECEIVE_MAXIMUM = 0x21;
+	public static final int TOPIC_ALIAS_MAXIMUM = 0x22;
+	public static final int TOPIC_ALIAS = 0x23;
+	public static final int MAXIMUM_QOS = 0x24;
+	public static final int RETAIN_AVAILABLE = 0x25;
+	public static final int USER_PROPERTY = 0x26;
+	public static final int MAXIMUM_PACKET_SIZE = 0x27;
+	public static final int WILDCARD_SUBSCRIPTION_AVAILABLE = 0x28;
+	public static final int SUBSCRIPTION_IDENTIFIER_AVAILABLE = 0x29;
+	public static final int SHARED_SUBSCRIPTION_AVAILABLE = 0x2A;
+
+	private static final int TYPE_BYTE = 1;
+	private static final int TYPE_TWO_BYTE = 2;
+	private static final int TYPE_FOUR_BYTE = 3;
+	private static final int TYPE_VARIABLE = 4;
+	private static final int TYPE_STRING = 5;
+	private static final int TYPE_BINARY = 6;
+	private static final int TYPE_STRING_PAIR = 7;
+
+	private Hashtable values = new Hashtable();
+	private Vector userProperties = new Vector();
+
+	/**
+	 * Returns the type of a property, or 0 if the identifier is not known.
+	 */
+	private static int typeOf(int id) {
+		switch (id) {
+		case PAYLOAD_FORMAT_INDICATOR:
+		case REQUEST_PROBLEM_INFORMATION:
+		case REQUEST_RESPONSE_INFORMATION:
+		case MAXIMUM_QOS:
+		case RETAIN_AVAILABLE:
+		case WILDCARD_SUBSCRIPTION_AVAILABLE:
+		case SUBSCRIPTION_IDENTIFIER_AVAILABLE:
+		case SHARED_SUBSCRIPTION_AVAILABLE:
+			return TYPE_BYTE;
+		case SERVER_KEEP_ALIVE:
+		case RECEIVE_MAXIMUM:
+		case TOPIC_ALIAS_MAXIMUM:
+		case TOPIC_ALIAS:
+			return TYPE_TWO_BYTE;
+		case MESSAGE_EXPIRY_INTERVAL:
+		case SESSION_EXPIRY_INTERVAL:
+		case WILL_DELAY_INTERVAL:
+		case MAXIMUM_PACKET_SIZE:
+			return TYPE_FOUR_BYTE;
+		case SUBSCRIPTION_IDENTIFIER:
+			return TYPE_VARIABLE;
+		case CONTENT_TYPE:
+		case RESPONSE_TOPIC:
+		case ASSIGNED_CLIENT_IDENTIFIER:
+		case AUTHENTICATION_METHOD:
+		case RESPONSE_INFORMATION:
+		case SERVER_REFERENCE:
+		case REASON_STRING:
+			return TYPE_STRING;
+		case CORRELATION_DATA:
+		case AUTHENTICATION_DATA:
+			return TYPE_BINARY;
+		case USER_PROPERTY:
+			return TYPE_STRING_PAIR;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Sets a property, replacing any value it already had.
+	 * @param id the property identifier
+	 * @param value the value, of the type the identifier requires
+	 * @throws IllegalArgumentException if the identifier is not known, is
+	 * the user property identifier, or the value is of the wrong type
+	 */
+	public void put(int id, Object value) {
+		boolean valid;
+		switch (typeOf(id)) {
+		case TYPE_BYTE:
+		case TYPE_TWO_BYTE:
+		case TYPE_VARIABLE:
+			valid = value instanceof Integer;
+			break;
+		case TYPE_FOUR_BYTE:
+			valid = value instanceof Long;
+			break;
+		case TYPE_STRING:
+			valid = value instanceof String;
+			break;
+		case TYPE_BINARY:
+			valid = value instanceof byte[];
+			break;
+		default:
+			valid = false;
+		}
+		if (!valid) {
+			throw new IllegalArgumentException();
+		}
+		values.put(new Integer(id), value);
+	}
+
+	/**
+	 * Returns the value of a property, or null if it is not set.
+	 */
+	public Object get(int id) {
+		return values.get(new Integer(id));
+	}
+
+	/**
+	 * Returns the value of an integer property.
+	 * @param id the property identifier
+	 * @param defaultValue the value to return if the property is not set
+	 */
+	public long getLong(int id, long defaultValue) {
+		Object value = get(id);
+		return (value instanceof Number) ? ((Number) value).longValue() : defaultValue;
+	}
+
+	public Object remove(int id) {
+		return values.remove(new Integer(id));
+	}
+
+	public void addUserProperty(String name, String value) {
+		userProperties.addElement(new String[] { name, value });
+	}
+
+	/**
+	 * Returns the user properties, each as a two element array holding its
+	 * name and value.
+	 */
+	public Vector getUserProperties() {
+		return userProperties;
+	}
+
+	public boolean isEmpty() {
+		return values.isEmpty() && userProperties.isEmpty();
+	}
+
+	/**
+	 * Writes the properties, preceded by their length.
+	 */
+	public void encode(DataOutputStream dos) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream body = new DataOutputStream(baos);
+		Enumeration keys = values.keys();
+		while (keys.hasMoreElements()) {
+			Integer key = (Integer) keys.nextElement();
+			int id = key.intValue();
+			Object value = values.get(key);
+			body.writeByte(id);
+			switch (typeOf(id)) {
+			case TYPE_BYTE:
+				body.writeByte(((Integer) value).intValue());
+				break;
+			case TYPE_TWO_BYTE:
+				body.writeShort(((Integer) value).intValue());
+				break;
+			case TYPE_FOUR_BYTE:
+				body.writeInt((int) ((Long) value).longValue());
+				break;
+			case TYPE_VARIABLE:
+				body.write(MqttWireMessage.encodeMBI(((Integer) value).intValue()));
+				break;
+			case TYPE_STRING:
+				writeString(body, (String) value);
+				break;
+			case TYPE_BINARY:
+				byte[] bytes = (byte[]) value;
+				body.writeShort(bytes.length);
+				body.write(bytes);
+				break;
+			}
+		}
+		for (int i = 0; i < userProperties.size(); i++) {
+			String[] pair = (String[]) userProperties.elementAt(i);
+			body.writeByte(USER_PROPERTY);
+			writeString(body, pair[0]);
+			writeString(body, pair[1]);
+		}
+		body.flush();
+		dos.write(MqttWireMessage.encodeMBI(baos.size()));
+		baos.writeTo(dos);
+	}
+
+	/**
+	 * Reads properties, preceded by their length, from a stream.
+	 */
+	public static MqttProperties decode(DataInputStream in) throws IOException {
+		int length = (int) MqttWireMessage.readMBI(in).getValue();
+		byte[] body = new byte[length];
+		in.readFully(body);
+		return decode(body);
+	}
+
+	/**
+	 * Decodes properties from the bytes that follow their length.
+	 * @throws IOException if the properties are malformed
+	 */
+	public static MqttProperties decode(byte[] body) throws IOException {
+		MqttProperties properties = new MqttProperties();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+		while (in.available() > 0) {
+			int id = (int) MqttWireMessage.readMBI(in).getValue();
+			switch (typeOf(id)) {
+			case TYPE_BYTE:
+				properties.values.put(new Integer(id), new Integer(in.readUnsignedByte()));
+				break;
+			case TYPE_TWO_BYTE:
+				properties.values.put(new Integer(id), new Integer(in.readUnsignedShort()));
+				break;
+			case TYPE_FOUR_BYTE:
+				properties.values.put(new Integer(id), new Long(in.readInt() & 0xffffffffL));
+				break;
+			case TYPE_VARIABLE:
+				properties.values.put(new Integer(id), new Integer((int) MqttWireMessage.readMBI(in).getValue()));
+				break;
+			case TYPE_STRING:
+				properties.values.put(new Integer(id), readString(in));
+				break;
+			case TYPE_BINARY:
+				byte[] bytes = new byte[in.readUnsignedShort()];
+				in.readFully(bytes);
+				properties.values.put(new Integer(id), bytes);
+				break;
+			case TYPE_STRING_PAIR:
+				properties.addUserProperty(readString(in), readString(in));
+				break;
+			default:
+				// The length of an unknown property cannot be known
+				throw new IOException("unknown property " + id);
+			}
+		}
+		return properties;
+	}
+
+	private static void writeString(DataOutputStream dos, String string) throws IOException {
+		byte[] bytes = string.getBytes(MqttWireMessage.STRING_ENCODING);
+		dos.writeShort(bytes.length);
+		dos.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readUnsignedShort()];
+		in.readFully(bytes);
+		return new String(bytes, MqttWireMessage.STRING_ENCODING);
+	}
+
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		Enumeration keys = values.keys();
+		while (keys.hasMoreElements()) {
+			Integer key = (Integer) keys.nextElement();
+			if (sb.length() > 0) {
+				sb.append(" ");
+			}
+			sb.append("0x").append(Integer.toHexString(key.intValue())).append(":").append(values.get(key));
+		}
+		for (int i = 0; i < userProperties.size(); i++) {
+			String[] pair = (String[]) userProperties.elementAt(i);
+			if (sb.length() > 0) {
+				sb.append(" ");
+			}
+			sb.append(pair[0]).append("=").append(pair[1]);
+		}
+		return sb.toString();
+	}
+}
@@ -19,10 +19,19 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
+import org.eclipse.paho.client.mqttv3.MqttBufferAllocator;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttPayloadCodec;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.MqttStreamedMessage;
 
 /**
  * An on-the-wire representation of an MQTT SEND message.
@@ -31,8 +40,23 @@ public class MqttPublish extends MqttPersistableWireMessage {
 	
 	private MqttMessage message;
 	private String topicName;
+	// The topic name, UTF-8 encoded after its length, when it was prepared
+	private byte[] encodedTopicName = null;
 	
 	private byte[] encodedPayload = null;
+	private File spoolFile = null;
+	
+	// The region of an array that the payload is persisted from
+	private byte[] persistedPayload = null;
+	private int persistedOffset = 0;
+	
+	// The buffer an inbound payload was read into, and where to release it
+	private MqttBufferAllocator allocator = null;
+	
+	// The MQTT 5 topic alias the publish is about to be written with, and
+	// whether the topic name is left out
+	private int topicAlias = 0;
+	private boolean topicNameOmitted = false;
 	
 	public MqttPublish(String name, MqttMessage message) {
 		super(MqttWireMessage.MESSAGE_TYPE_PUBLISH);
@@ -40,6 +64,18 @@ public class MqttPublish extends MqttPersistableWireMessage {
 		this.message = message;
 	}
 	
+	/**
+	 * Constructs a publish on a topic whose name has already been validated
+	 * and encoded.
+	 * @param name the topic name
+	 * @param encodedName the topic name as it is written, its length
+	 * followed by its UTF-8 encoding. It is not copied, so must not change.
+	 */
+	public MqttPublish(String name, byte[] encodedName, MqttMessage message) {
+		this(name, message);
+		this.encodedTopicName = encodedName;
+	}
+	
 	/**
 	 * Constructs a new MqttPublish object.
 	 * @param info the message info byte
@@ -69,12 +105,166 @@ public class MqttPublish extends MqttPersistableWireMessage {
 		message.setPayload(payload);
 	}
 
+	/**
+	 * Constructs a new MqttPublish object, taking the topic name from a cache
+	 * of names already received.
+	 * @param info the message info byte
+	 * @param data the variable header and payload bytes
+	 * @param topicCache the cache of topic names, or null
+	 */
+	public MqttPublish(byte info, byte[] data, MqttTopicCache topicCache) throws MqttException, IOException {
+		super(MqttWireMessage.MESSAGE_TYPE_PUBLISH);
+		message = new MqttReceivedMessage();
+		message.setQos((info >> 1) & 0x03);
+		if ((info & 0x01) == 0x01) {
+			message.setRetained(true);
+		}
+		if ((info & 0x08) == 0x08) {
+			((MqttReceivedMessage) message).setDuplicate(true);
+		}
+
+		topicName = decodeTopicName(data, topicCache);
+		int offset = 2 + ((data[0] & 0xff) << 8 | (data[1] & 0xff));
+		if (message.getQos() > 0) {
+			if (offset + 2 > data.length) {
+				throw new EOFException();
+			}
+			msgId = (data[offset] & 0xff) << 8 | (data[offset + 1] & 0xff);
+			offset += 2;
+		}
+		byte[] payload = new byte[data.length - offset];
+		System.arraycopy(data, offset, payload, 0, payload.length);
+		message.setPayload(payload);
+	}
+
+	/**
+	 * Decodes the topic name at the start of a variable header, from the
+	 * cache if one is given.
+	 */
+	private static String decodeTopicName(byte[] variableHeader, MqttTopicCache topicCache) throws IOException {
+		if (variableHeader.length < 2) {
+			throw new EOFException();
+		}
+		int length = (variableHeader[0] & 0xff) << 8 | (variableHeader[1] & 0xff);
+		if (2 + length > variableHeader.length) {
+			throw new EOFException();
+		}
+		if (topicCache == null) {
+			return new String(variableHeader, 2, length, STRING_ENCODING);
+		}
+		return topicCache.lookup(variableHeader, 2, length);
+	}
+
+	/**
+	 * Constructs a publish whose payload has been left on the network, to be
+	 * read by the application from the given stream.
+	 * @param info the message info byte
+	 * @param variableHeader the variable header bytes
+	 * @param payload the stream to read the payload from
+	 * @param topicCache the cache of topic names, or null
+	 */
+	public MqttPublish(byte info, byte[] variableHeader, MqttPayloadInputStream payload, MqttTopicCache topicCache) throws MqttException, IOException {
+		super(MqttWireMessage.MESSAGE_TYPE_PUBLISH);
+		MqttReceivedStreamedMessage streamed = new MqttReceivedStreamedMessage(payload);
+		streamed.setQos((info >> 1) & 0x03);
+		if ((info & 0x01) == 0x01) {
+			streamed.setRetained(true);
+		}
+		if ((info & 0x08) == 0x08) {
+			streamed.setDuplicate(true);
+		}
+		message = streamed;
+
+		topicName = decodeTopicName(variableHeader, topicCache);
+		if (message.getQos() > 0) {
+			msgId = (variableHeader[variableHeader.length - 2] & 0xff) << 8 | (variableHeader[variableHeader.length - 1] & 0xff);
+		}
+	}
+
+	/**
+	 * Constructs a publish whose payload has been read into a buffer from an
+	 * allocator, which the buffer is released to by {@link #releasePayload()}.
+	 * @param info the message info byte
+	 * @param variableHeader the variable header bytes
+	 * @param payload the buffer holding the payload
+	 * @param allocator the allocator the buffer came from
+	 * @param topicCache the cache of topic names, or null
+	 */
+	public MqttPublish(byte info, byte[] variableHeader, ByteBuffer payload, MqttBufferAllocator allocator, MqttTopicCache topicCache) throws MqttException, IOException {
+		super(MqttWireMessage.MESSAGE_TYPE_PUBLISH);
+		message = new MqttReceivedMessage();
+		message.setQos((info >> 1) & 0x03);
+		if ((info & 0x01) == 0x01) {
+			message.setRetained(true);
+		}
+		if ((info & 0x08) == 0x08) {
+			((MqttReceivedMessage) message).setDuplicate(true);
+		}
+
+		topicName = decodeTopicName(variableHeader, topicCache);
+		if (message.getQos() > 0) {
+			msgId = (variableHeader[variableHeader.length - 2] & 0xff) << 8 | (variableHeader[variableHeader.length - 1] & 0xff);
+		}
+		message.setPayload(payload);
+		((MqttReceivedMessage) message).setPooledBuffer(payload, allocator);
+		this.allocator = allocator;
+	}
+
+	/**
+	 * Constructs a publish whose payload is held in a spool file, from the
+	 * reference that was persisted for it: the fixed and variable header
+	 * followed by the UTF-8 encoded path of the spool file.
+	 * @param reference the persisted reference
+	 */
+	public MqttPublish(byte[] reference) throws MqttException, IOException {
+		super(MqttWireMessage.MESSAGE_TYPE_PUBLISH);
+		ByteArrayInputStream bais = new ByteArrayInputStream(reference);
+		CountingInputStream counter = new CountingInputStream(bais);
+		DataInputStream dis = new DataInputStream(counter);
+		byte info = (byte) (dis.readUnsignedByte() & 0x0f);
+		long remLen = readMBI(dis).getValue();
+		int fixedHeaderLength = counter.getCounter();
+		topicName = decodeUTF8(dis);
+		int qos = (info >> 1) & 0x03;
+		if (qos > 0) {
+			msgId = dis.readUnsignedShort();
+		}
+		int headerLength = counter.getCounter();
+		int payloadLength = (int) (remLen - (headerLength - fixedHeaderLength));
+		dis.close();
+		spoolFile = new File(new String(reference, headerLength, reference.length - headerLength, "UTF-8"));
+
+		message = new MqttStreamedMessage(spoolFile, 0, payloadLength);
+		message.setQos(qos);
+		message.setRetained((info & 0x01) == 0x01);
+		duplicate = (info & 0x08) == 0x08;
+	}
+
 	public String toString() {
+		if (isStreamed()) {
+			StringBuffer sb = new StringBuffer();
+			sb.append(super.toString());
+			sb.append(" qos:").append(message.getQos());
+			if (message.getQos() > 0) {
+				sb.append(" msgId:").append(msgId);
+			}
+			sb.append(" retained:").append(message.isRetained());
+			sb.append(" dup:").append(duplicate);
+			sb.append(" topic:\"").append(topicName).append("\"");
+			sb.append(" payload:[streamed");
+			if (spoolFile != null) {
+				sb.append(" spool:").append(spoolFile.getName());
+			}
+			sb.append(" length:").append(getPayloadLength()).append("]");
+			return sb.toString();
+		}
 
 		// Convert the first few bytes of the payload into a hex string
 		StringBuffer hex = new StringBuffer();
-		byte[] payload = message.getPayload();
-		int limit = Math.min(payload.length, 20);
+		ByteBuffer view = message.getPayloadBuffer();
+		int limit = Math.min(view.remaining(), 20);
+		byte[] payload = new byte[limit];
+		view.get(payload);
 		for (int i = 0; i < limit; i++) {
 			byte b = payload[i];
 			String ch = Integer.toHexString(b);
@@ -105,7 +295,7 @@ public class MqttPublish extends MqttPersistableWireMessage {
 		sb.append(" topic:\"").append(topicName).append("\"");
 		sb.append(" payload:[hex:").append(hex);
 		sb.append(" utf8:\"").append(string).append("\"");
-		sb.append(" length:").append(payload.length).append("]");
+		sb.append(" length:").append(message.getPayloadLength()).append("]");
 
 		return sb.toString();
 	}
@@ -141,30 +331,254 @@ public class MqttPublish extends MqttPersistableWireMessage {
 		return encodedPayload;
 	}
 
+	protected int getPayloadSize() throws MqttException {
+		return message.getPayloadLength();
+	}
+
 	public int getPayloadLength() {
-		int length = 0;
-		try {
-			length = getPayload().length;
-		} catch(MqttException me) {
+		return message.getPayloadLength();
+	}
+
+	/**
+	 * Returns the array holding the payload for persistence. A payload held
+	 * in an array, or in a heap buffer, is persisted from that array without
+	 * being copied; any other payload is copied once.
+	 */
+	public byte[] getPayloadBytes() throws MqttPersistenceException {
+		if (persistedPayload == null) {
+			PayloadRegion region = new PayloadRegion(message.getPayloadLength());
+			try {
+				message.writePayload(region);
+			} catch (IOException ex) {
+				throw new MqttPersistenceException(ex);
+			}
+			persistedPayload = region.getBytes();
+			persistedOffset = region.getOffset();
+		}
+		return persistedPayload;
+	}
+
+	public int getPayloadOffset() throws MqttPersistenceException {
+		getPayloadBytes();
+		return persistedOffset;
+	}
+
+	/**
+	 * Returns whether the payload is written from a buffer or a streamed
+	 * source rather than from a byte array.
+	 */
+	public boolean isPayloadBuffer() {
+		return message.isPayloadBuffer() || isStreamed();
+	}
+
+	/**
+	 * Releases the buffer an inbound payload was read into back to its
+	 * allocator, and clears the payload of the message.
+	 */
+	public void releasePayload() {
+		if (allocator != null) {
+			allocator = null;
+			persistedPayload = null;
+			encodedPayload = null;
+			message.release();
 		}
-		return length;
+	}
+
+	/**
+	 * Leaves the buffer an inbound payload was read into with the message,
+	 * for the application to release.
+	 * @return true if the payload is in a buffer from an allocator
+	 */
+	public boolean detachPayload() {
+		if (allocator == null) {
+			return false;
+		}
+		allocator = null;
+		persistedPayload = null;
+		encodedPayload = null;
+		return true;
 	}
 	
+	/**
+	 * Replaces the payload of a publish that is about to be sent with the
+	 * payload as encoded by a codec. The message the application published
+	 * is not changed.
+	 * @return true if the payload was encoded, false if it is sent unchanged
+	 */
+	public boolean encodePayload(MqttPayloadCodec codec) throws MqttException {
+		if (isStreamed()) {
+			return false;
+		}
+		byte[] encoded = codec.encode(getPayloadBytes(), persistedOffset, message.getPayloadLength());
+		if (encoded == null) {
+			return false;
+		}
+		MqttMessage transformed = new MqttMessage(encoded);
+		transformed.setQos(message.getQos());
+		transformed.setRetained(message.isRetained());
+		transformed.setPriority(message.getPriority());
+		message = transformed;
+		persistedPayload = null;
+		encodedPayload = null;
+		return true;
+	}
+
+	/**
+	 * Replaces the payload of a received publish with the payload as
+	 * decoded by a codec, releasing any buffer it was read into.
+	 * @return true if the payload was decoded, false if it was not encoded
+	 */
+	public boolean decodePayload(MqttPayloadCodec codec) throws MqttException {
+		if (isStreamed() || getPayloadInputStream() != null) {
+			return false;
+		}
+		byte[] decoded = codec.decode(getPayloadBytes(), persistedOffset, message.getPayloadLength());
+		persistedPayload = null;
+		if (decoded == null) {
+			return false;
+		}
+		releasePayload();
+		message.setPayload(decoded);
+		return true;
+	}
+
+	/**
+	 * Returns whether the payload is read from a stream, buffer or file as
+	 * it is written, rather than being held in a byte array.
+	 */
+	public boolean isStreamed() {
+		return message instanceof MqttStreamedMessage && ((MqttStreamedMessage) message).isStreamed();
+	}
+
+	/**
+	 * Copies a streamed payload to a spool file, so that it can be sent again
+	 * and survive a restart. The payload is read from the spool file from then on.
+	 * @param file the spool file, which is deleted if the payload cannot be copied
+	 * @throws MqttPersistenceException if the payload cannot be copied
+	 */
+	public void spool(File file) throws MqttPersistenceException {
+		MqttStreamedMessage streamed = (MqttStreamedMessage) message;
+		int length = streamed.getPayloadLength();
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				if (!streamed.transferPayload(out.getChannel())) {
+					streamed.writePayload(out);
+				}
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+		} catch (IOException ex) {
+			file.delete();
+			throw new MqttPersistenceException(ex);
+		}
+		MqttStreamedMessage spooled = new MqttStreamedMessage(file, 0, length);
+		spooled.setQos(message.getQos());
+		spooled.setRetained(message.isRetained());
+		message = spooled;
+		spoolFile = file;
+	}
+
+	/**
+	 * Returns the spool file holding the payload, or null if the payload
+	 * has not been spooled.
+	 */
+	public File getSpoolFile() {
+		return spoolFile;
+	}
+
+	/**
+	 * Returns the stream over a payload left on the network, or null if the
+	 * payload was read with the rest of the message.
+	 */
+	public MqttPayloadInputStream getPayloadInputStream() {
+		if (message instanceof MqttReceivedStreamedMessage) {
+			return ((MqttReceivedStreamedMessage) message).getPayloadInputStream();
+		}
+		return null;
+	}
+
+	/**
+	 * Skips whatever the application has not read of a payload left on the
+	 * network.
+	 */
+	public void discardPayload() throws IOException {
+		MqttPayloadInputStream payload = getPayloadInputStream();
+		if (payload != null) {
+			payload.close();
+		}
+	}
+
+	/**
+	 * Sets the MQTT 5 topic alias to write the publish with.
+	 * @param topicAlias the alias, or 0 for none
+	 * @param topicNameOmitted whether the server already knows the alias,
+	 * so that the topic name is left out
+	 */
+	public void setTopicAlias(int topicAlias, boolean topicNameOmitted) {
+		this.topicAlias = topicAlias;
+		this.topicNameOmitted = topicNameOmitted;
+	}
+
+	public int getTopicAlias() {
+		return topicAlias;
+	}
+
 	public void setMessageId(int msgId) {
 		super.setMessageId(msgId);
 		if (message instanceof MqttReceivedMessage) {
 			((MqttReceivedMessage)message).setMessageId(msgId);
 		}
+		else if (message instanceof MqttReceivedStreamedMessage) {
+			((MqttReceivedStreamedMessage)message).setMessageId(msgId);
+		}
+	}
+	
+	/**
+	 * Returns the fixed and variable headers. When the topic name was
+	 * encoded in advance they are built in one array, without encoding it.
+	 */
+	public byte[] getHeader() throws MqttException {
+		if (encodedTopicName == null || isMqtt5()) {
+			return super.getHeader();
+		}
+		int idLength = (message.getQos() > 0) ? 2 : 0;
+		byte[] remLen = encodeMBI(encodedTopicName.length + idLength + getPayloadSize());
+		byte[] header = new byte[1 + remLen.length + encodedTopicName.length + idLength];
+		header[0] = (byte) (((getType() & 0x0f) << 4) ^ (getMessageInfo() & 0x0f));
+		System.arraycopy(remLen, 0, header, 1, remLen.length);
+		System.arraycopy(encodedTopicName, 0, header, 1 + remLen.length, encodedTopicName.length);
+		if (idLength > 0) {
+			header[header.length - 2] = (byte) ((msgId >>> 8) & 0xFF);
+			header[header.length - 1] = (byte) (msgId & 0xFF);
+		}
+		return header;
 	}
 	
 	protected byte[] getVariableHeader() throws MqttException {
 		try {
 			ByteArrayOutputStream baos = new ByteArrayOutputStream();
 			DataOutputStream dos = new DataOutputStream(baos);
-			encodeUTF8(dos, topicName);
+			if (isMqtt5() && topicNameOmitted) {
+				dos.writeShort(0);
+			} else if (encodedTopicName != null) {
+				dos.write(encodedTopicName);
+			} else {
+				encodeUTF8(dos, topicName);
+			}
 			if (message.getQos() > 0) {
 				dos.writeShort(msgId);
 			}
+			if (isMqtt5()) {
+				if (topicAlias > 0) {
+					dos.writeByte(3);
+					dos.writeByte(MqttProperties.TOPIC_ALIAS);
+					dos.writeShort(topicAlias);
+				} else {
+					dos.writeByte(0);
+				}
+			}
 			dos.flush();
 			return baos.toByteArray();
 		} catch (IOException ex) {
@@ -176,4 +590,54 @@ public class MqttPublish extends MqttPersistableWireMessage {
 		// all publishes require a message ID as it's used as the key to the token store
 		return true;
 	}
+
+	/**
+	 * Captures the array region a payload is written from when it is
+	 * written in a single call, and copies it otherwise.
+	 */
+	private static class PayloadRegion extends OutputStream {
+		private byte[] bytes = null;
+		private int offset = 0;
+		private int count = 0;
+		private ByteArrayOutputStream copy = null;
+
+		PayloadRegion(int length) {
+			this.bytes = (length == 0) ? new byte[0] : null;
+		}
+
+		public void write(int b) {
+			toCopy().write(b);
+		}
+
+		public void write(byte[] b, int off, int len) {
+			if (bytes == null && copy == null) {
+				bytes = b;
+				offset = off;
+				count = len;
+			} else {
+				toCopy().write(b, off, len);
+			}
+		}
+
+		private ByteArrayOutputStream toCopy() {
+			if (copy == null) {
+				copy = new ByteArrayOutputStream();
+				if (bytes != null) {
+					copy.write(bytes, offset, count);
+				}
+			}
+			return copy;
+		}
+
+		byte[] getBytes() {
+			if (copy != null) {
+				return copy.toByteArray();
+			}
+			return bytes;
+		}
+
+		int getOffset() {
+			return (copy != null) ? 0 : offset;
+		}
+	}
 }
\ No newline at end of file
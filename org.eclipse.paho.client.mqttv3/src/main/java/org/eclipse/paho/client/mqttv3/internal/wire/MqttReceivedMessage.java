@@ -15,11 +15,19 @@
  */
 package org.eclipse.paho.client.mqttv3.internal.wire;
 
+import java.nio.ByteBuffer;
+
+import org.eclipse.paho.client.mqttv3.MqttBufferAllocator;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
 public class MqttReceivedMessage extends MqttMessage {
 	
 	private int messageId;
+	// The pooled buffer the payload was read into, and the allocator it goes back to
+	ByteBuffer pooledBuffer = null;
+	MqttBufferAllocator allocator = null;
+	// Reports the message if it is collected without being released
+	PayloadLeakDetector.Tracker tracker = null;
 	
 	public void setMessageId(int msgId) {
 		this.messageId = msgId;
@@ -29,6 +37,35 @@ public class MqttReceivedMessage extends MqttMessage {
 		return messageId;
 	}
 	
+	/**
+	 * Sets the pooled buffer the payload was read into, which is given back
+	 * to the allocator when the message is released.
+	 */
+	public synchronized void setPooledBuffer(ByteBuffer buffer, MqttBufferAllocator allocator) {
+		this.pooledBuffer = buffer;
+		this.allocator = allocator;
+	}
+
+	public void release() {
+		ByteBuffer buffer;
+		MqttBufferAllocator releaseTo;
+		synchronized (this) {
+			if (allocator == null) {
+				return;
+			}
+			buffer = pooledBuffer;
+			releaseTo = allocator;
+			pooledBuffer = null;
+			allocator = null;
+			clearPayload();
+			if (tracker != null) {
+				tracker.released();
+				tracker = null;
+			}
+		}
+		releaseTo.release(buffer);
+	}
+
 	// This method exists here to get around the protected visibility of the
 	// super class method.
 	public void setDuplicate(boolean value) {
@@ -20,6 +20,7 @@ import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 
 
@@ -30,12 +31,23 @@ public class MqttSuback extends MqttAck {
 	private int[] grantedQos;	
 	
 	public MqttSuback(byte info, byte[] data) throws IOException {
+		this(info, data, 0);
+	}
+	
+	/**
+	 * Constructs a SUBACK received on a connection using the given MQTT
+	 * version. Under MQTT 5 the properties ahead of the return codes are skipped.
+	 */
+	public MqttSuback(byte info, byte[] data, int mqttVersion) throws IOException {
 		super(MqttWireMessage.MESSAGE_TYPE_SUBACK);
 		ByteArrayInputStream bais = new ByteArrayInputStream(data);
 		DataInputStream dis = new DataInputStream(bais);
 		msgId = dis.readUnsignedShort();
+		if (mqttVersion == MqttConnectOptions.MQTT_VERSION_5) {
+			MqttProperties.decode(dis);
+		}
 		int index = 0;
-		grantedQos = new int[data.length-2];
+		grantedQos = new int[bais.available()];
 		int qos = dis.read();
 		while (qos != -1) {
 			grantedQos[index] = qos;
@@ -45,6 +57,17 @@ public class MqttSuback extends MqttAck {
 		dis.close();
 	}
 	
+	/**
+	 * Constructs a SUBACK holding the granted QoS of some of the topic
+	 * filters of another SUBACK, for a request that was coalesced with
+	 * others.
+	 */
+	public MqttSuback(int msgId, int[] grantedQos) {
+		super(MqttWireMessage.MESSAGE_TYPE_SUBACK);
+		this.msgId = msgId;
+		this.grantedQos = grantedQos;
+	}
+
 	protected byte[] getVariableHeader() throws MqttException {
 		// Not needed, as the client never encodes a SUBACK
 		return new byte[0];
@@ -113,6 +113,10 @@ public class MqttSubscribe extends MqttWireMessage {
 			ByteArrayOutputStream baos = new ByteArrayOutputStream();
 			DataOutputStream dos = new DataOutputStream(baos);
 			dos.writeShort(msgId);
+			if (isMqtt5()) {
+				// No properties
+				dos.writeByte(0);
+			}
 			dos.flush();
 			return baos.toByteArray();
 		} catch (IOException ex) {
@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3.internal.wire;
+
+import java.util.Hashtable;
+
+/**
+ * Assigns MQTT 5 topic aliases to the topics of outbound publishes, for the
+ * life of one network connection.
+ * <p>
+ * The first publish on a topic carries the topic name and the alias it is
+ * given, and later publishes on the topic carry only the alias. When every
+ * alias the server allows is in use, the alias of the least recently
+ * published topic is given to the new topic.
+ * </p>
+ */
+public class MqttTopicAliases {
+
+	private static class Entry {
+		String topic;
+		int alias;
+		Entry previous;
+		Entry next;
+	}
+
+	private int maximum;
+	private Hashtable entries = new Hashtable();
+	// The most and least recently used topics
+	private Entry head = null;
+	private Entry tail = null;
+
+	private long hits = 0;
+	private long assignments = 0;
+
+	/**
+	 * Constructs the aliases for a connection.
+	 * @param maximum the highest alias the server accepts
+	 * @throws IllegalArgumentException if the maximum is less than 1
+	 */
+	public MqttTopicAliases(int maximum) {
+		if (maximum < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.maximum = maximum;
+	}
+
+	public int getMaximum() {
+		return maximum;
+	}
+
+	/**
+	 * Sets the topic alias of a publish about to be written, omitting the
+	 * topic name if the server already knows the alias.
+	 */
+	public synchronized void apply(MqttPublish publish) {
+		String topic = publish.getTopicName();
+		Entry entry = (Entry) entries.get(topic);
+		if (entry != null) {
+			hits++;
+			unlink(entry);
+			link(entry);
+			publish.setTopicAlias(entry.alias, true);
+			return;
+		}
+
+		assignments++;
+		if (entries.size() < maximum) {
+			entry = new Entry();
+			entry.alias = entries.size() + 1;
+		} else {
+			entry = tail;
+			unlink(entry);
+			entries.remove(entry.topic);
+		}
+		entry.topic = topic;
+		entries.put(topic, entry);
+		link(entry);
+		publish.setTopicAlias(entry.alias, false);
+	}
+
+	private void link(Entry entry) {
+		entry.previous = null;
+		entry.next = head;
+		if (head != null) {
+			head.previous = entry;
+		}
+		head = entry;
+		if (tail == null) {
+			tail = entry;
+		}
+	}
+
+	private void unlink(Entry entry) {
+		if (entry.previous != null) {
+			entry.previous.next = entry.next;
+		} else {
+			head = entry.next;
+		}
+		if (entry.next != null) {
+			entry.next.previous = entry.previous;
+		} else {
+			tail = entry.previous;
+		}
+	}
+
+	/**
+	 * Returns the number of publishes sent with only an alias.
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of times an alias was given to a topic.
+	 */
+	public synchronized long getAssignmentCount() {
+		return assignments;
+	}
+}
@@ -0,0 +1,207 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3.internal.wire;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Properties;
+
+/**
+ * A bounded cache mapping the UTF-8 bytes of inbound topic names to a single
+ * String instance for each name, so that a topic that is received again is
+ * neither decoded nor allocated again.
+ * <p>
+ * A name is looked up by the hash of the bytes where they lie in the packet,
+ * without copying them. Each name can be held in one of a few neighbouring
+ * slots, and when they are all in use one is replaced using the clock
+ * algorithm: a slot that has been hit since the hand last passed it is given
+ * a second chance.
+ * </p>
+ * <p>
+ * Names longer than {@link #MAX_KEY_LENGTH} bytes are decoded every time,
+ * which keeps the memory used by the cache bounded.
+ * </p>
+ */
+public class MqttTopicCache {
+
+	/** The longest name, in bytes, that is cached */
+	public static final int MAX_KEY_LENGTH = 256;
+
+	// The number of neighbouring slots a name can be held in
+	private static final int WAYS = 4;
+
+	private byte[][] keys;
+	private int[] hashes;
+	private String[] names;
+	private boolean[] referenced;
+	private int mask;
+	private int hand = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * Constructs a cache.
+	 * @param capacity the number of names to hold, rounded up to a power of two
+	 * @throws IllegalArgumentException if the capacity is less than 1
+	 */
+	public MqttTopicCache(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException();
+		}
+		int size = WAYS;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		keys = new byte[size][];
+		hashes = new int[size];
+		names = new String[size];
+		referenced = new boolean[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Returns the number of names the cache can hold.
+	 */
+	public int getCapacity() {
+		return names.length;
+	}
+
+	/**
+	 * Returns the name encoded in a region of an array, decoding it only if
+	 * it is not already held.
+	 * @param bytes the array holding the UTF-8 encoded name
+	 * @param offset the position of the name in the array
+	 * @param length the number of bytes in the name
+	 * @return the decoded name
+	 */
+	public synchronized String lookup(byte[] bytes, int offset, int length) throws UnsupportedEncodingException {
+		if (length > MAX_KEY_LENGTH) {
+			misses++;
+			return new String(bytes, offset, length, "UTF-8");
+		}
+		int hash = hash(bytes, offset, length);
+		int base = hash & mask;
+		for (int i = 0; i < WAYS; i++) {
+			int slot = (base + i) & mask;
+			if (hashes[slot] == hash && keys[slot] != null && matches(keys[slot], bytes, offset, length)) {
+				referenced[slot] = true;
+				hits++;
+				return names[slot];
+			}
+		}
+
+		misses++;
+		String name = new String(bytes, offset, length, "UTF-8");
+		int slot = victim(base);
+		if (keys[slot] != null) {
+			evictions++;
+		}
+		byte[] key = new byte[length];
+		System.arraycopy(bytes, offset, key, 0, length);
+		keys[slot] = key;
+		hashes[slot] = hash;
+		names[slot] = name;
+		referenced[slot] = false;
+		return name;
+	}
+
+	/**
+	 * Chooses the slot to hold a new name: an empty slot if there is one,
+	 * otherwise the first slot from the hand that has not been hit since
+	 * the hand last passed it.
+	 */
+	private int victim(int base) {
+		for (int i = 0; i < WAYS; i++) {
+			int slot = (base + i) & mask;
+			if (keys[slot] == null) {
+				return slot;
+			}
+		}
+		for (int i = 0; i < 2 * WAYS; i++) {
+			int slot = (base + ((hand + i) % WAYS)) & mask;
+			if (!referenced[slot]) {
+				hand = (hand + i + 1) % WAYS;
+				return slot;
+			}
+			referenced[slot] = false;
+		}
+		return base;
+	}
+
+	private static int hash(byte[] bytes, int offset, int length) {
+		int hash = 0x811c9dc5;
+		for (int i = offset; i < offset + length; i++) {
+			hash = (hash ^ (bytes[i] & 0xff)) * 0x01000193;
+		}
+		return hash ^ (hash >>> 16);
+	}
+
+	private static boolean matches(byte[] key, byte[] bytes, int offset, int length) {
+		if (key.length != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (key[i] != bytes[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Removes every name from the cache. The counts are kept.
+	 */
+	public synchronized void clear() {
+		for (int i = 0; i < names.length; i++) {
+			keys[i] = null;
+			names[i] = null;
+			hashes[i] = 0;
+			referenced[i] = false;
+		}
+	}
+
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	/**
+	 * Returns the proportion of lookups that found the name already held,
+	 * between 0 and 1.
+	 */
+	public synchronized double getHitRate() {
+		long lookups = hits + misses;
+		return (lookups == 0) ? 0 : (double) hits / lookups;
+	}
+
+	public Properties getDebug() {
+		Properties props = new Properties();
+		props.put("capacity", new Integer(getCapacity()));
+		props.put("hits", new Long(getHitCount()));
+		props.put("misses", new Long(getMissCount()));
+		props.put("evictions", new Long(getEvictionCount()));
+		props.put("hitRate", new Double(getHitRate()));
+		return props;
+	}
+}
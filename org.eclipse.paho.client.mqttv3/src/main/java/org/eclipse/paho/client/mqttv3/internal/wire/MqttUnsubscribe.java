@@ -91,6 +91,10 @@ public class MqttUnsubscribe extends MqttWireMessage {
 			ByteArrayOutputStream baos = new ByteArrayOutputStream();
 			DataOutputStream dos = new DataOutputStream(baos);
 			dos.writeShort(msgId);
+			if (isMqtt5()) {
+				// No properties
+				dos.writeByte(0);
+			}
 			dos.flush();
 			return baos.toByteArray();
 		} catch (IOException ex) {
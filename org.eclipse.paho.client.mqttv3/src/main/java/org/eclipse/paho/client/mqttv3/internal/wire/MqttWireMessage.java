@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttPersistable;
 import org.eclipse.paho.client.mqttv3.internal.ExceptionHelper;
@@ -60,6 +61,10 @@ public abstract class MqttWireMessage {
 	
 	protected boolean duplicate = false;
 	
+	// The MQTT version the message is written for. Messages are persisted
+	// in the 3.1.1 form whatever the version of the connection.
+	protected int mqttVersion = 0;
+	
 	
 	public MqttWireMessage(byte type) {
 		this.type = type;
@@ -81,6 +86,14 @@ public abstract class MqttWireMessage {
 		return new byte[0];
 	}
 	
+	/**
+	 * Returns the number of bytes in the payload. Sub-classes that can tell
+	 * without building the payload should override this.
+	 */
+	protected int getPayloadSize() throws MqttException {
+		return getPayload().length;
+	}
+	
 	/**
 	 * Returns the type of the message.
 	 */
@@ -102,6 +115,25 @@ public abstract class MqttWireMessage {
 		this.msgId = msgId;
 	}
 	
+	/**
+	 * Sets the MQTT version of the connection the message is about to be
+	 * written to. Under MQTT 5 some messages carry properties.
+	 */
+	public void setMqttVersion(int mqttVersion) {
+		this.mqttVersion = mqttVersion;
+	}
+	
+	public int getMqttVersion() {
+		return mqttVersion;
+	}
+	
+	/**
+	 * Returns whether the message is being written for an MQTT 5 connection.
+	 */
+	protected boolean isMqtt5() {
+		return mqttVersion == MqttConnectOptions.MQTT_VERSION_5;
+	}
+	
 	/** 
 	 * Returns a key associated with the message. For most message types
 	 * this will be unique. For connect, disconnect and ping only one 
@@ -116,7 +148,7 @@ public abstract class MqttWireMessage {
 	    try {
 	        int first = ((getType() & 0x0f) << 4) ^ (getMessageInfo() & 0x0f);
 	        byte[] varHeader = getVariableHeader();
-	        int remLen = varHeader.length + getPayload().length;
+	        int remLen = varHeader.length + getPayloadSize();
 
 	        ByteArrayOutputStream baos = new ByteArrayOutputStream();
 	        DataOutputStream dos = new DataOutputStream(baos);
@@ -160,10 +192,22 @@ public abstract class MqttWireMessage {
 	
 	public static MqttWireMessage createWireMessage(byte[] bytes) throws MqttException {
 		ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
-		return createWireMessage(bais);
+		return createWireMessage(bais, 0);
+	}
+
+	/**
+	 * Decodes a message received on a connection using the given MQTT version.
+	 */
+	public static MqttWireMessage createWireMessage(byte[] bytes, int mqttVersion) throws MqttException {
+		ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
+		return createWireMessage(bais, mqttVersion);
 	}
 
 	private static MqttWireMessage createWireMessage(InputStream inputStream) throws MqttException {
+		return createWireMessage(inputStream, 0);
+	}
+
+	private static MqttWireMessage createWireMessage(InputStream inputStream, int mqttVersion) throws MqttException {
 		try {
 			CountingInputStream counter = new CountingInputStream(inputStream);
 			DataInputStream in = new DataInputStream(counter);
@@ -207,7 +251,7 @@ public abstract class MqttWireMessage {
 				result = new MqttSubscribe(info, data);
 			}
 			else if (type == MqttWireMessage.MESSAGE_TYPE_SUBACK) {
-				result = new MqttSuback(info, data);
+				result = new MqttSuback(info, data, mqttVersion);
 			}
 			else if (type == MqttWireMessage.MESSAGE_TYPE_UNSUBSCRIBE) {
 				result = new MqttUnsubscribe(info, data);
@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.client.mqttv3.internal.wire;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Hashtable;
+
+import org.eclipse.paho.client.mqttv3.logging.Logger;
+import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
+
+/**
+ * Finds received messages that the application let go of without releasing
+ * their pooled buffers.
+ * <p>
+ * Each message handed to the application is tracked by a weak reference,
+ * which is queued once the message has been garbage collected. If it had
+ * not been released by then, the leak is counted and logged. The buffer is
+ * not given back to its allocator, as the application may still hold it
+ * through {@link org.eclipse.paho.client.mqttv3.MqttMessage#getPayloadBuffer()}
+ * after letting go of the message, and a pool could then hand it out again
+ * while it is in use. The queue is checked each time a message is tracked,
+ * so a leak is found some time after the collection.
+ * </p>
+ */
+public class PayloadLeakDetector {
+	private static final String CLASS_NAME = PayloadLeakDetector.class.getName();
+	private static final Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
+
+	private ReferenceQueue queue = new ReferenceQueue();
+	// The trackers of messages not yet released, which keeps them reachable
+	private Hashtable tracked = new Hashtable();
+	private int leaks = 0;
+
+	/**
+	 * Tracks a received message whose pooled buffer the application is to
+	 * release.
+	 */
+	public void track(MqttReceivedMessage message) {
+		poll();
+		synchronized (message) {
+			if (message.allocator == null) {
+				// Released already
+				return;
+			}
+			Tracker tracker = new Tracker(message);
+			tracked.put(tracker, tracker);
+			message.tracker = tracker;
+		}
+	}
+
+	/**
+	 * Returns the number of messages found to have been collected without
+	 * being released.
+	 */
+	public synchronized int getLeakCount() {
+		poll();
+		return leaks;
+	}
+
+	private synchronized void poll() {
+		final String methodName = "poll";
+		Tracker tracker;
+		while ((tracker = (Tracker) queue.poll()) != null) {
+			if (tracked.remove(tracker) != null) {
+				leaks++;
+				//@TRACE 674=received payload of {0} bytes was not released
+				log.warning(CLASS_NAME, methodName, "674", new Object[] { new Integer(tracker.size) });
+			}
+		}
+	}
+
+	/**
+	 * Refers to a tracked message, and keeps the size of its payload for
+	 * the log. The buffer itself is not held, so that it can be collected
+	 * with the message.
+	 */
+	class Tracker extends WeakReference {
+		private int size;
+
+		Tracker(MqttReceivedMessage message) {
+			super(message, queue);
+			this.size = message.pooledBuffer.limit();
+		}
+
+		/**
+		 * Stops tracking a message that has been released.
+		 */
+		void released() {
+			tracked.remove(this);
+			clear();
+		}
+	}
+}
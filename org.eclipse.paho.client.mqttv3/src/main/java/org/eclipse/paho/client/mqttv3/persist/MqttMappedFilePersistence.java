@@ -0,0 +1,574 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3.persist;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Enumeration;
+import java.util.Vector;
+import java.util.zip.CRC32;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.FileLock;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+
+/**
+ * An implementation of the {@link MqttClientPersistence} interface that stores
+ * messages in fixed-size slots of a memory-mapped file.
+ *
+ * The client persists messages under keys made from a prefix and a message ID,
+ * where the prefix is one of "s-" (sent publish), "sc-" (sent pubrel),
+ * "r-" (received publish) or "sr-" (reference to the spool file of a sent
+ * streamed publish). The file has a region of 65535 slots for each
+ * prefix, and a message is stored in the slot for its message ID. A put or
+ * remove is therefore an in-place write to the mapping, and opening the
+ * persistence is a scan of the slots in use.
+ *
+ * Each region is mapped in chunks of a number of slots, 256 by default, and
+ * a chunk is only mapped while it holds messages or was the last one written
+ * to in its region. As the client uses message IDs in turn, only a few
+ * chunks are mapped at a time rather than the whole file, which is
+ * 65535 times the slot size for each prefix. The header of the file records
+ * which chunks hold messages, so that only those are scanned when the
+ * persistence is opened.
+ *
+ * By default writes are left to the operating system to write back, which
+ * survives a failure of the JVM but not of the machine unless the page cache
+ * is protected, for example by a battery-backed controller. If
+ * <code>force</code> is set then each put and remove also forces the
+ * chunk it changed to the storage device.
+ *
+ * A message must fit within a slot, which holds the header and payload of a
+ * message after an 8 byte slot header, so with the default slot size of 4096
+ * bytes a message can be at most 4088 bytes, including the topic of a
+ * publish. A put of a larger message throws a {@link MqttPersistenceException}
+ * with the reason code
+ * {@link MqttPersistenceException#REASON_CODE_PERSISTENCE_DATA_TOO_LARGE}.
+ * The file is created sparse, so disk space is only used for the chunks that
+ * have been written.
+ *
+ * A file starts with a format version. A file created by an earlier version
+ * of this class, or with a different slot or chunk size, is not opened, and
+ * {@link #open(String, String)} throws a {@link MqttPersistenceException} with
+ * the reason code {@link MqttPersistenceException#REASON_CODE_PERSISTENCE_INCOMPATIBLE}.
+ *
+ * As with {@link MqttDefaultFilePersistence}, a directory is specified when the
+ * persistence object is created, and the file for a client is named from its
+ * client ID and connection key.
+ */
+public class MqttMappedFilePersistence implements MqttClientPersistence {
+	private static final String MAPPED_FILE_EXTENSION = ".map";
+	private static final String LOCK_FILE_EXTENSION = ".lck";
+
+	private static final String[] PREFIXES = new String[] {"s-", "sc-", "r-", "sr-"};
+	private static final int SLOTS_PER_REGION = 65535;
+
+	// magic, format version, slot size and chunk size, followed by a bitmap
+	// of the chunks in use in each region
+	private static final int FILE_HEADER_FIXED_LENGTH = 16;
+	private static final int FILE_MAGIC = 0x4D515450;
+	// The first format had no version, and the slot size in its place
+	private static final int FORMAT_VERSION = 2;
+	// data length and checksum
+	private static final int SLOT_HEADER_LENGTH = 8;
+
+	public static final int DEFAULT_SLOT_SIZE = 4096;
+	public static final int MAX_SLOT_SIZE = Integer.MAX_VALUE / SLOTS_PER_REGION;
+	public static final int DEFAULT_CHUNK_SLOTS = 256;
+
+	private File dataDir;
+	private int slotSize;
+	private int chunkSlots;
+	private boolean force;
+
+	private RandomAccessFile file = null;
+	private FileChannel channel = null;
+	private int chunksPerRegion;
+	private int fileHeaderLength;
+	private MappedByteBuffer header = null;
+	// The mapped chunks of each region, or null where a chunk is not mapped
+	private MappedByteBuffer[][] chunks = null;
+	// The number of occupied slots in each chunk
+	private int[][] chunkCounts = null;
+	// The chunk last written to in each region, which is kept mapped
+	private int[] lastChunk = null;
+	private boolean[][] occupied = null;
+	private FileLock fileLock = null;
+
+	public MqttMappedFilePersistence() {
+		this(System.getProperty("user.dir"));
+	}
+
+	/**
+	 * Create a memory-mapped persistent data store within the specified directory,
+	 * using the default slot size and without forcing writes.
+	 * @param directory the directory to use.
+	 */
+	public MqttMappedFilePersistence(String directory) {
+		this(directory, DEFAULT_SLOT_SIZE, false);
+	}
+
+	/**
+	 * Create a memory-mapped persistent data store within the specified directory,
+	 * using the default chunk size.
+	 * @param directory the directory to use.
+	 * @param slotSize the size in bytes of each slot, which limits the size
+	 * of a persisted message. A store must always be opened with the same slot size.
+	 * @param force whether each put and remove is forced to the storage device.
+	 */
+	public MqttMappedFilePersistence(String directory, int slotSize, boolean force) {
+		this(directory, slotSize, DEFAULT_CHUNK_SLOTS, force);
+	}
+
+	/**
+	 * Create a memory-mapped persistent data store within the specified directory.
+	 * @param directory the directory to use.
+	 * @param slotSize the size in bytes of each slot, which limits the size
+	 * of a persisted message. A store must always be opened with the same slot size.
+	 * @param chunkSlots the number of slots mapped together, from 1 to 65535.
+	 * Larger chunks are mapped less often, and smaller chunks map less of the
+	 * file and are quicker to force. A store must always be opened with the same
+	 * chunk size.
+	 * @param force whether each put and remove is forced to the storage device.
+	 */
+	public MqttMappedFilePersistence(String directory, int slotSize, int chunkSlots, boolean force) {
+		if (slotSize <= SLOT_HEADER_LENGTH || slotSize > MAX_SLOT_SIZE) {
+			throw new IllegalArgumentException();
+		}
+		if (chunkSlots < 1 || chunkSlots > SLOTS_PER_REGION) {
+			throw new IllegalArgumentException();
+		}
+		this.dataDir = new File(directory);
+		this.slotSize = slotSize;
+		this.chunkSlots = chunkSlots;
+		this.force = force;
+	}
+
+	/**
+	 * Returns the largest message, header and payload together, that fits in
+	 * a slot.
+	 */
+	public int getMaxMessageLength() {
+		return slotSize - SLOT_HEADER_LENGTH;
+	}
+
+	public synchronized void open(String clientId, String theConnection) throws MqttPersistenceException {
+		if (file != null) {
+			return;
+		}
+		if (dataDir.exists() && !dataDir.isDirectory()) {
+			throw new MqttPersistenceException();
+		} else if (!dataDir.exists() ) {
+			if (!dataDir.mkdirs()) {
+				throw new MqttPersistenceException();
+			}
+		}
+		if (!dataDir.canWrite()) {
+			throw new MqttPersistenceException();
+		}
+
+		StringBuffer keyBuffer = new StringBuffer();
+		for (int i=0;i<clientId.length();i++) {
+			char c = clientId.charAt(i);
+			if (isSafeChar(c)) {
+				keyBuffer.append(c);
+			}
+		}
+		keyBuffer.append("-");
+		for (int i=0;i<theConnection.length();i++) {
+			char c = theConnection.charAt(i);
+			if (isSafeChar(c)) {
+				keyBuffer.append(c);
+			}
+		}
+		String key = keyBuffer.toString();
+
+		try {
+			fileLock = new FileLock(dataDir, key+LOCK_FILE_EXTENSION);
+		} catch (Exception e) {
+			throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE);
+		}
+
+		try {
+			File mappedFile = new File(dataDir, key+MAPPED_FILE_EXTENSION);
+			chunksPerRegion = (SLOTS_PER_REGION + chunkSlots - 1) / chunkSlots;
+			fileHeaderLength = FILE_HEADER_FIXED_LENGTH + PREFIXES.length * getBitmapLength();
+			long length = fileHeaderLength + getRegionSize() * PREFIXES.length;
+			file = new RandomAccessFile(mappedFile, "rw");
+			boolean created = (file.length() == 0);
+			if (created) {
+				file.setLength(length);
+			} else if (file.length() < FILE_HEADER_FIXED_LENGTH || file.readInt() != FILE_MAGIC
+					|| file.readInt() != FORMAT_VERSION || file.readInt() != slotSize
+					|| file.readInt() != chunkSlots || file.length() != length) {
+				// An earlier format, a different slot or chunk size, or not a
+				// mapped persistence file
+				throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_INCOMPATIBLE);
+			}
+			channel = file.getChannel();
+			header = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileHeaderLength);
+			if (created) {
+				header.putInt(0, FILE_MAGIC);
+				header.putInt(4, FORMAT_VERSION);
+				header.putInt(8, slotSize);
+				header.putInt(12, chunkSlots);
+				header.force();
+			}
+			chunks = new MappedByteBuffer[PREFIXES.length][chunksPerRegion];
+			chunkCounts = new int[PREFIXES.length][chunksPerRegion];
+			lastChunk = new int[PREFIXES.length];
+			occupied = new boolean[PREFIXES.length][SLOTS_PER_REGION];
+			for (int i = 0; i < PREFIXES.length; i++) {
+				lastChunk[i] = -1;
+				for (int chunk = 0; chunk < chunksPerRegion; chunk++) {
+					if (isChunkInUse(i, chunk)) {
+						scanChunk(i, chunk);
+					}
+				}
+			}
+		} catch (IOException ex) {
+			closeFile();
+			throw new MqttPersistenceException(ex);
+		} catch (MqttPersistenceException ex) {
+			closeFile();
+			throw ex;
+		}
+	}
+
+	private int getBitmapLength() {
+		return (chunksPerRegion + 7) / 8;
+	}
+
+	private long getRegionSize() {
+		return (long) slotSize * SLOTS_PER_REGION;
+	}
+
+	private boolean isChunkInUse(int region, int chunk) {
+		int position = FILE_HEADER_FIXED_LENGTH + region * getBitmapLength() + chunk / 8;
+		return (header.get(position) & (1 << (chunk % 8))) != 0;
+	}
+
+	private void setChunkInUse(int region, int chunk, boolean inUse) {
+		int position = FILE_HEADER_FIXED_LENGTH + region * getBitmapLength() + chunk / 8;
+		int bits = header.get(position);
+		if (inUse) {
+			bits |= 1 << (chunk % 8);
+		} else {
+			bits &= ~(1 << (chunk % 8));
+		}
+		header.put(position, (byte) bits);
+	}
+
+	/**
+	 * Finds the occupied slots in a chunk. A slot whose data does not match its
+	 * checksum was being written when a failure occurred, and is emptied. A
+	 * chunk with no occupied slots is not kept mapped.
+	 */
+	private void scanChunk(int region, int chunk) throws IOException {
+		MappedByteBuffer buffer = mapChunk(region, chunk);
+		int first = chunk * chunkSlots;
+		int last = Math.min(first + chunkSlots, SLOTS_PER_REGION);
+		for (int slot = first; slot < last; slot++) {
+			int position = (slot - first) * slotSize;
+			int length = buffer.getInt(position);
+			if (length == 0) {
+				continue;
+			}
+			if (length > 0 && length <= slotSize - SLOT_HEADER_LENGTH
+					&& buffer.getInt(position + 4) == checksum(readSlot(buffer, position, length))) {
+				occupied[region][slot] = true;
+				chunkCounts[region][chunk]++;
+			} else {
+				buffer.putInt(position, 0);
+			}
+		}
+		releaseChunk(region, chunk);
+	}
+
+	/**
+	 * Maps a chunk of a region, if it is not mapped already.
+	 */
+	private MappedByteBuffer mapChunk(int region, int chunk) throws IOException {
+		MappedByteBuffer buffer = chunks[region][chunk];
+		if (buffer == null) {
+			int first = chunk * chunkSlots;
+			int slots = Math.min(chunkSlots, SLOTS_PER_REGION - first);
+			long position = fileHeaderLength + getRegionSize() * region + (long) first * slotSize;
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, (long) slots * slotSize);
+			chunks[region][chunk] = buffer;
+		}
+		return buffer;
+	}
+
+	/**
+	 * Stops mapping a chunk that holds no messages, unless it is the chunk
+	 * last written to in its region, which is likely to be written to again.
+	 * The mapping is removed once the buffer is garbage collected.
+	 */
+	private void releaseChunk(int region, int chunk) {
+		if (chunkCounts[region][chunk] == 0 && lastChunk[region] != chunk && chunks[region][chunk] != null) {
+			chunks[region][chunk] = null;
+			setChunkInUse(region, chunk, false);
+		}
+	}
+
+	private static byte[] readSlot(MappedByteBuffer buffer, int position, int length) {
+		byte[] data = new byte[length];
+		buffer.position(position + SLOT_HEADER_LENGTH);
+		buffer.get(data);
+		return data;
+	}
+
+	private static int checksum(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return (int) crc.getValue();
+	}
+
+	private boolean isSafeChar(char c) {
+		return Character.isJavaIdentifierPart(c) || c=='-';
+	}
+
+	/**
+	 * Checks whether the persistence has been opened.
+	 * @throws MqttPersistenceException if the persistence has not been opened.
+	 */
+	private void checkIsOpen() throws MqttPersistenceException {
+		if (file == null) {
+			throw new MqttPersistenceException();
+		}
+	}
+
+	/**
+	 * Works out the region for a key.
+	 * @return the region index
+	 * @throws MqttPersistenceException if the key has no region
+	 */
+	private int getRegion(String key) throws MqttPersistenceException {
+		for (int i = 0; i < PREFIXES.length; i++) {
+			if (key.startsWith(PREFIXES[i])) {
+				return i;
+			}
+		}
+		throw new MqttPersistenceException();
+	}
+
+	/**
+	 * Works out the slot for a key from its message ID.
+	 * @return the slot index within the region
+	 * @throws MqttPersistenceException if the key does not contain a valid message ID
+	 */
+	private int getSlot(String key, int region) throws MqttPersistenceException {
+		try {
+			int msgId = Integer.parseInt(key.substring(PREFIXES[region].length()));
+			if (msgId >= 1 && msgId <= SLOTS_PER_REGION) {
+				return msgId - 1;
+			}
+		} catch (NumberFormatException ex) {
+		}
+		throw new MqttPersistenceException();
+	}
+
+	public synchronized void close() throws MqttPersistenceException {
+		if (file == null) {
+			return;
+		}
+		try {
+			for (int region = 0; region < PREFIXES.length; region++) {
+				for (int chunk = 0; chunk < chunksPerRegion; chunk++) {
+					if (chunks[region][chunk] != null) {
+						chunks[region][chunk].force();
+					}
+				}
+			}
+			header.force();
+		} finally {
+			closeFile();
+		}
+	}
+
+	private void closeFile() {
+		header = null;
+		chunks = null;
+		chunkCounts = null;
+		lastChunk = null;
+		occupied = null;
+		channel = null;
+		if (file != null) {
+			try {
+				file.close();
+			} catch (IOException ex) {
+			}
+			file = null;
+		}
+		if (fileLock != null) {
+			fileLock.release();
+			fileLock = null;
+		}
+	}
+
+	/**
+	 * Writes the message into the slot for its key. The slot is marked empty while
+	 * the data is written, so a failure part way through never leaves a partial
+	 * message that looks complete.
+	 * @throws MqttPersistenceException with the reason code
+	 * {@link MqttPersistenceException#REASON_CODE_PERSISTENCE_DATA_TOO_LARGE}
+	 * if the message is longer than {@link #getMaxMessageLength()}
+	 */
+	public synchronized void put(String key, MqttPersistable message) throws MqttPersistenceException {
+		checkIsOpen();
+		int region = getRegion(key);
+		int slot = getSlot(key, region);
+
+		int headerLength = message.getHeaderLength();
+		int payloadLength = message.getPayloadBytes() == null ? 0 : message.getPayloadLength();
+		int length = headerLength + payloadLength;
+		if (length <= 0) {
+			throw new MqttPersistenceException();
+		}
+		if (length > slotSize - SLOT_HEADER_LENGTH) {
+			throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_DATA_TOO_LARGE);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(message.getHeaderBytes(), message.getHeaderOffset(), headerLength);
+		if (payloadLength > 0) {
+			crc.update(message.getPayloadBytes(), message.getPayloadOffset(), payloadLength);
+		}
+
+		int chunk = slot / chunkSlots;
+		MappedByteBuffer buffer;
+		try {
+			buffer = mapChunk(region, chunk);
+		} catch (IOException ex) {
+			throw new MqttPersistenceException(ex);
+		}
+		if (!isChunkInUse(region, chunk)) {
+			// Recorded before the slot is written, so that the slot is scanned
+			// when the persistence is next opened
+			setChunkInUse(region, chunk, true);
+			if (force) {
+				header.force();
+			}
+		}
+		int previous = lastChunk[region];
+		lastChunk[region] = chunk;
+		if (previous >= 0 && previous != chunk) {
+			releaseChunk(region, previous);
+		}
+
+		int position = (slot % chunkSlots) * slotSize;
+		buffer.putInt(position, 0);
+		buffer.position(position + SLOT_HEADER_LENGTH);
+		buffer.put(message.getHeaderBytes(), message.getHeaderOffset(), headerLength);
+		if (payloadLength > 0) {
+			buffer.put(message.getPayloadBytes(), message.getPayloadOffset(), payloadLength);
+		}
+		buffer.putInt(position + 4, (int) crc.getValue());
+		buffer.putInt(position, length);
+		if (!occupied[region][slot]) {
+			occupied[region][slot] = true;
+			chunkCounts[region][chunk]++;
+		}
+		if (force) {
+			buffer.force();
+		}
+	}
+
+	public synchronized MqttPersistable get(String key) throws MqttPersistenceException {
+		checkIsOpen();
+		int region = getRegion(key);
+		int slot = getSlot(key, region);
+		if (!occupied[region][slot]) {
+			throw new MqttPersistenceException();
+		}
+		// A chunk holding a message is always mapped
+		MappedByteBuffer buffer = chunks[region][slot / chunkSlots];
+		int position = (slot % chunkSlots) * slotSize;
+		byte[] data = readSlot(buffer, position, buffer.getInt(position));
+		return new MqttPersistentData(key, data, 0, data.length, null, 0, 0);
+	}
+
+	public synchronized void remove(String key) throws MqttPersistenceException {
+		checkIsOpen();
+		int region = getRegion(key);
+		int slot = getSlot(key, region);
+		if (occupied[region][slot]) {
+			int chunk = slot / chunkSlots;
+			MappedByteBuffer buffer = chunks[region][chunk];
+			buffer.putInt((slot % chunkSlots) * slotSize, 0);
+			occupied[region][slot] = false;
+			chunkCounts[region][chunk]--;
+			if (force) {
+				buffer.force();
+			}
+			releaseChunk(region, chunk);
+		}
+	}
+
+	public synchronized Enumeration keys() throws MqttPersistenceException {
+		checkIsOpen();
+		Vector result = new Vector();
+		for (int region = 0; region < PREFIXES.length; region++) {
+			for (int slot = 0; slot < SLOTS_PER_REGION; slot++) {
+				if (occupied[region][slot]) {
+					result.addElement(PREFIXES[region] + (slot + 1));
+				}
+			}
+		}
+		return result.elements();
+	}
+
+	public synchronized void clear() throws MqttPersistenceException {
+		checkIsOpen();
+		for (int region = 0; region < PREFIXES.length; region++) {
+			lastChunk[region] = -1;
+			for (int chunk = 0; chunk < chunksPerRegion; chunk++) {
+				MappedByteBuffer buffer = chunks[region][chunk];
+				if (buffer == null) {
+					continue;
+				}
+				int first = chunk * chunkSlots;
+				int last = Math.min(first + chunkSlots, SLOTS_PER_REGION);
+				for (int slot = first; slot < last; slot++) {
+					if (occupied[region][slot]) {
+						buffer.putInt((slot - first) * slotSize, 0);
+						occupied[region][slot] = false;
+					}
+				}
+				chunkCounts[region][chunk] = 0;
+				if (force) {
+					buffer.force();
+				}
+				releaseChunk(region, chunk);
+			}
+		}
+		if (force) {
+			header.force();
+		}
+	}
+
+	public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+		checkIsOpen();
+		int region = getRegion(key);
+		return occupied[region][getSlot(key, region)];
+	}
+}
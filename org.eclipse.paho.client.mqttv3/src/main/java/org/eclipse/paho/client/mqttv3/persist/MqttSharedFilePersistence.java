@@ -0,0 +1,726 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3.persist;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+import java.util.zip.CRC32;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.FileLock;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+
+/**
+ * A file based persistent store that is shared by many clients in the same JVM.
+ *
+ * {@link MqttDefaultFilePersistence} creates a directory, a lock file and one file
+ * per message for every client. When thousands of clients run in one JVM this
+ * costs thousands of directories, file descriptors and tiny files. This store instead
+ * keeps the data for all clients in a single append-only log file within the specified
+ * directory, guarded by one lock file and one in-process lock.
+ *
+ * Each client obtains its own {@link MqttClientPersistence} from
+ * {@link #createClientPersistence()}. When that persistence is opened, its data is
+ * placed in a namespace made from the client ID and connection key, in the same way
+ * as the sub-directory name of {@link MqttDefaultFilePersistence}. Clients only ever
+ * see the keys in their own namespace.
+ *
+ * Writes are made durable using group commit: a put appends its record to the log
+ * and then waits for the log to be synced to disk. While one thread is syncing,
+ * others append their records and are then covered by a single further sync,
+ * rather than syncing once each.
+ *
+ * Removed and overwritten records are reclaimed by a single background compaction
+ * thread, which rewrites the log once the dead records outweigh the live ones.
+ *
+ * The store is opened when the first client persistence is opened, and stays open
+ * until {@link #close()} is called.
+ */
+public class MqttSharedFilePersistence {
+	private static final String LOG_FILENAME = "mqtt.log";
+	private static final String COMPACT_FILE_EXTENSION = ".new";
+	private static final String LOCK_FILENAME = ".lck";
+
+	private static final byte RECORD_PUT = 1;
+	private static final byte RECORD_REMOVE = 2;
+	private static final byte RECORD_CLEAR = 3;
+	// record length and checksum
+	private static final int RECORD_HEADER_LENGTH = 8;
+
+	private static final long DEFAULT_COMPACTION_INTERVAL = 60000;
+	private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+
+	private File dataDir;
+	private long compactionInterval;
+
+	// The single lock guarding the log file and the index
+	private Object storeLock = new Object();
+	// Held by the thread syncing the log on behalf of the group
+	private Object commitLock = new Object();
+
+	private FileLock fileLock = null;
+	private RandomAccessFile log = null;
+	private long writePosition = 0;
+	private long syncedPosition = 0;
+	private long deadBytes = 0;
+
+	// namespace -> (key -> Entry)
+	private Hashtable index = new Hashtable();
+	// namespaces currently opened by a client
+	private Hashtable openNamespaces = new Hashtable();
+
+	private Thread compactor = null;
+	private boolean running = false;
+
+	/**
+	 * Create a shared file-based persistent store within the working directory.
+	 */
+	public MqttSharedFilePersistence() {
+		this(System.getProperty("user.dir"));
+	}
+
+	/**
+	 * Create a shared file-based persistent store within the specified directory.
+	 * @param directory the directory to use.
+	 */
+	public MqttSharedFilePersistence(String directory) {
+		this(directory, DEFAULT_COMPACTION_INTERVAL);
+	}
+
+	/**
+	 * Create a shared file-based persistent store within the specified directory.
+	 * @param directory the directory to use.
+	 * @param compactionInterval how often, in milliseconds, the compaction thread
+	 * checks whether the log needs compacting.
+	 */
+	public MqttSharedFilePersistence(String directory, long compactionInterval) {
+		if (compactionInterval <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.dataDir = new File(directory);
+		this.compactionInterval = compactionInterval;
+	}
+
+	/**
+	 * Returns a new persistence for one client, backed by this store.
+	 * Each client must be given its own instance.
+	 * @return a persistence to pass to the client's constructor
+	 */
+	public MqttClientPersistence createClientPersistence() {
+		return new ClientPersistence();
+	}
+
+	/**
+	 * Compacts the log now, discarding removed and overwritten records.
+	 * @throws MqttPersistenceException if the log could not be rewritten
+	 */
+	public void compact() throws MqttPersistenceException {
+		synchronized (commitLock) {
+			synchronized (storeLock) {
+				checkIsOpen();
+				try {
+					rewriteLog();
+				} catch (IOException ex) {
+					throw new MqttPersistenceException(ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes the shared store, stopping the compaction thread and releasing
+	 * the log and lock files. Client persistences that are still open can
+	 * no longer be used.
+	 * @throws MqttPersistenceException if the log could not be closed
+	 */
+	public void close() throws MqttPersistenceException {
+		Thread oldCompactor;
+		synchronized (storeLock) {
+			if (log == null) {
+				return;
+			}
+			running = false;
+			storeLock.notifyAll();
+			oldCompactor = compactor;
+			compactor = null;
+		}
+		if (oldCompactor != null && !Thread.currentThread().equals(oldCompactor)) {
+			try {
+				oldCompactor.join();
+			} catch (InterruptedException ex) {
+			}
+		}
+		synchronized (commitLock) {
+			synchronized (storeLock) {
+				try {
+					log.getFD().sync();
+					log.close();
+				} catch (IOException ex) {
+					throw new MqttPersistenceException(ex);
+				} finally {
+					log = null;
+					index.clear();
+					openNamespaces.clear();
+					fileLock.release();
+					fileLock = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Opens the log, replaying it to build the index. Must be called holding the storeLock.
+	 */
+	private void openStore() throws MqttPersistenceException {
+		if (log != null) {
+			return;
+		}
+		if (dataDir.exists() && !dataDir.isDirectory()) {
+			throw new MqttPersistenceException();
+		} else if (!dataDir.exists() ) {
+			if (!dataDir.mkdirs()) {
+				throw new MqttPersistenceException();
+			}
+		}
+		if (!dataDir.canWrite()) {
+			throw new MqttPersistenceException();
+		}
+
+		try {
+			fileLock = new FileLock(dataDir, LOCK_FILENAME);
+		} catch (Exception e) {
+			throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE);
+		}
+
+		try {
+			File logFile = new File(dataDir, LOG_FILENAME);
+			File compactFile = new File(dataDir, LOG_FILENAME + COMPACT_FILE_EXTENSION);
+			if (compactFile.exists()) {
+				if (logFile.exists()) {
+					// The JVM exited during compaction, the old log is still complete
+					compactFile.delete();
+				} else {
+					// The old log was deleted once the compacted log had been synced,
+					// but the JVM exited before the compacted log was renamed
+					compactFile.renameTo(logFile);
+				}
+			}
+			log = new RandomAccessFile(logFile, "rw");
+			replayLog();
+		} catch (IOException ex) {
+			closeQuietly();
+			throw new MqttPersistenceException(ex);
+		}
+
+		running = true;
+		compactor = new Thread(new Compactor(), "MQTT Persistence Compactor: " + dataDir.getName());
+		compactor.setDaemon(true);
+		compactor.start();
+	}
+
+	private void closeQuietly() {
+		if (log != null) {
+			try {
+				log.close();
+			} catch (IOException e) {
+			}
+			log = null;
+		}
+		index.clear();
+		fileLock.release();
+		fileLock = null;
+	}
+
+	private void checkIsOpen() throws MqttPersistenceException {
+		if (log == null) {
+			throw new MqttPersistenceException();
+		}
+	}
+
+	/**
+	 * Reads the log from the start, applying each record to the index. A record that
+	 * is incomplete or fails its checksum marks the end of the log; it and anything
+	 * following it were not synced before a failure, so they are truncated.
+	 */
+	private void replayLog() throws IOException {
+		long length = log.length();
+		long position = 0;
+		deadBytes = 0;
+		log.seek(0);
+		while (position < length) {
+			byte[] body;
+			try {
+				int bodyLength = log.readInt();
+				long checksum = log.readInt() & 0xFFFFFFFFL;
+				if (bodyLength <= 0 || position + RECORD_HEADER_LENGTH + bodyLength > length) {
+					break;
+				}
+				body = new byte[bodyLength];
+				log.readFully(body);
+				CRC32 crc = new CRC32();
+				crc.update(body);
+				if (crc.getValue() != checksum) {
+					break;
+				}
+			} catch (EOFException ex) {
+				break;
+			}
+			if (!applyRecord(body, position)) {
+				break;
+			}
+			position += RECORD_HEADER_LENGTH + body.length;
+		}
+		if (position < length) {
+			log.setLength(position);
+		}
+		writePosition = position;
+		syncedPosition = position;
+	}
+
+	private boolean applyRecord(byte[] body, long position) throws UnsupportedEncodingException {
+		int[] offset = new int[] {1};
+		byte type = body[0];
+		String namespace = readString(body, offset);
+		String key = readString(body, offset);
+		if (namespace == null || (type != RECORD_CLEAR && key == null)) {
+			return false;
+		}
+		int recordLength = RECORD_HEADER_LENGTH + body.length;
+		switch (type) {
+			case RECORD_PUT:
+				Entry entry = new Entry(position + RECORD_HEADER_LENGTH + offset[0], body.length - offset[0], recordLength);
+				indexPut(namespace, key, entry);
+				break;
+			case RECORD_REMOVE:
+				indexRemove(namespace, key);
+				deadBytes += recordLength;
+				break;
+			case RECORD_CLEAR:
+				indexClear(namespace);
+				deadBytes += recordLength;
+				break;
+			default:
+				return false;
+		}
+		return true;
+	}
+
+	private static String readString(byte[] body, int[] offset) throws UnsupportedEncodingException {
+		if (offset[0] + 2 > body.length) {
+			return null;
+		}
+		int length = ((body[offset[0]] & 0xFF) << 8) | (body[offset[0] + 1] & 0xFF);
+		offset[0] += 2;
+		if (offset[0] + length > body.length) {
+			return null;
+		}
+		String result = new String(body, offset[0], length, "UTF-8");
+		offset[0] += length;
+		return result;
+	}
+
+	private Hashtable getNamespace(String namespace) {
+		Hashtable keys = (Hashtable) index.get(namespace);
+		if (keys == null) {
+			keys = new Hashtable();
+			index.put(namespace, keys);
+		}
+		return keys;
+	}
+
+	private void indexPut(String namespace, String key, Entry entry) {
+		Entry old = (Entry) getNamespace(namespace).put(key, entry);
+		if (old != null) {
+			deadBytes += old.recordLength;
+		}
+	}
+
+	private void indexRemove(String namespace, String key) {
+		Hashtable keys = (Hashtable) index.get(namespace);
+		if (keys != null) {
+			Entry old = (Entry) keys.remove(key);
+			if (old != null) {
+				deadBytes += old.recordLength;
+			}
+			if (keys.isEmpty()) {
+				index.remove(namespace);
+			}
+		}
+	}
+
+	private void indexClear(String namespace) {
+		Hashtable keys = (Hashtable) index.remove(namespace);
+		if (keys != null) {
+			Enumeration entries = keys.elements();
+			while (entries.hasMoreElements()) {
+				deadBytes += ((Entry) entries.nextElement()).recordLength;
+			}
+		}
+	}
+
+	private static byte[] encodeRecord(byte type, String namespace, String key, MqttPersistable data) throws IOException, MqttPersistenceException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(0);
+		dos.writeInt(0);
+		dos.writeByte(type);
+		writeString(dos, namespace);
+		writeString(dos, key == null ? "" : key);
+		if (data != null) {
+			dos.write(data.getHeaderBytes(), data.getHeaderOffset(), data.getHeaderLength());
+			if (data.getPayloadBytes() != null) {
+				dos.write(data.getPayloadBytes(), data.getPayloadOffset(), data.getPayloadLength());
+			}
+		}
+		dos.flush();
+		byte[] record = baos.toByteArray();
+		int bodyLength = record.length - RECORD_HEADER_LENGTH;
+		CRC32 crc = new CRC32();
+		crc.update(record, RECORD_HEADER_LENGTH, bodyLength);
+		putInt(record, 0, bodyLength);
+		putInt(record, 4, (int) crc.getValue());
+		return record;
+	}
+
+	private static void writeString(DataOutputStream dos, String value) throws IOException {
+		byte[] bytes = value.getBytes("UTF-8");
+		dos.writeShort(bytes.length);
+		dos.write(bytes);
+	}
+
+	private static void putInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >>> 24);
+		buffer[offset + 1] = (byte) (value >>> 16);
+		buffer[offset + 2] = (byte) (value >>> 8);
+		buffer[offset + 3] = (byte) value;
+	}
+
+	/**
+	 * Appends a record to the end of the log. Must be called holding the storeLock.
+	 * @return the position of the record in the log
+	 */
+	private long append(byte[] record) throws IOException {
+		long position = writePosition;
+		log.seek(position);
+		log.write(record);
+		writePosition += record.length;
+		return position;
+	}
+
+	/**
+	 * Waits until the log has been synced to disk at least up to the specified
+	 * position. If no other thread has synced that far then this thread syncs on
+	 * behalf of all the records appended so far.
+	 */
+	private void commit(long position) throws MqttPersistenceException {
+		synchronized (commitLock) {
+			if (syncedPosition >= position) {
+				// Synced by another writer while we waited for the commitLock
+				return;
+			}
+			RandomAccessFile syncLog;
+			long target;
+			synchronized (storeLock) {
+				checkIsOpen();
+				syncLog = log;
+				target = writePosition;
+			}
+			try {
+				syncLog.getFD().sync();
+			} catch (IOException ex) {
+				throw new MqttPersistenceException(ex);
+			}
+			syncedPosition = target;
+		}
+	}
+
+	private boolean needsCompaction() {
+		return deadBytes > MIN_COMPACTION_SIZE && deadBytes > writePosition - deadBytes;
+	}
+
+	/**
+	 * Writes the live records to a new log and replaces the old log with it.
+	 * Must be called holding both the commitLock and the storeLock.
+	 */
+	private void rewriteLog() throws IOException, MqttPersistenceException {
+		File logFile = new File(dataDir, LOG_FILENAME);
+		File compactFile = new File(dataDir, LOG_FILENAME + COMPACT_FILE_EXTENSION);
+		RandomAccessFile compacted = new RandomAccessFile(compactFile, "rw");
+		Hashtable newIndex = new Hashtable();
+		long position = 0;
+		try {
+			compacted.setLength(0);
+			Enumeration namespaces = index.keys();
+			while (namespaces.hasMoreElements()) {
+				String namespace = (String) namespaces.nextElement();
+				Hashtable keys = (Hashtable) index.get(namespace);
+				Hashtable newKeys = new Hashtable();
+				Enumeration entries = keys.keys();
+				while (entries.hasMoreElements()) {
+					String key = (String) entries.nextElement();
+					byte[] data = read((Entry) keys.get(key));
+					byte[] record = encodeRecord(RECORD_PUT, namespace, key, new MqttPersistentData(key, data, 0, data.length, null, 0, 0));
+					compacted.write(record);
+					newKeys.put(key, new Entry(position + record.length - data.length, data.length, record.length));
+					position += record.length;
+				}
+				newIndex.put(namespace, newKeys);
+			}
+			compacted.getFD().sync();
+		} finally {
+			compacted.close();
+		}
+
+		log.close();
+		log = null;
+		if (!logFile.delete() || !compactFile.renameTo(logFile)) {
+			throw new MqttPersistenceException();
+		}
+		log = new RandomAccessFile(logFile, "rw");
+		index = newIndex;
+		writePosition = position;
+		syncedPosition = position;
+		deadBytes = 0;
+	}
+
+	/**
+	 * Reads the data for an entry. Must be called holding the storeLock.
+	 */
+	private byte[] read(Entry entry) throws IOException {
+		byte[] data = new byte[entry.length];
+		log.seek(entry.offset);
+		log.readFully(data);
+		return data;
+	}
+
+	/**
+	 * The location of a persisted value within the log.
+	 */
+	private static class Entry {
+		// offset of the data within the log
+		long offset;
+		// length of the data
+		int length;
+		// length of the whole record, reclaimed when the entry is removed
+		int recordLength;
+
+		Entry(long offset, int length, int recordLength) {
+			this.offset = offset;
+			this.length = length;
+			this.recordLength = recordLength;
+		}
+	}
+
+	/**
+	 * Periodically compacts the log when enough of it is dead.
+	 */
+	private class Compactor implements Runnable {
+		public void run() {
+			while (true) {
+				synchronized (storeLock) {
+					if (running) {
+						try {
+							storeLock.wait(compactionInterval);
+						} catch (InterruptedException ex) {
+						}
+					}
+					if (!running) {
+						return;
+					}
+					if (!needsCompaction()) {
+						continue;
+					}
+				}
+				try {
+					compact();
+				} catch (MqttPersistenceException ex) {
+					// Leave the log as it is and try again next interval
+				}
+			}
+		}
+	}
+
+	/**
+	 * The persistence for a single client, holding the client's data in its own
+	 * namespace within the shared store.
+	 */
+	private class ClientPersistence implements MqttClientPersistence {
+		private String namespace = null;
+
+		public void open(String clientId, String theConnection) throws MqttPersistenceException {
+			StringBuffer keyBuffer = new StringBuffer();
+			for (int i=0;i<clientId.length();i++) {
+				char c = clientId.charAt(i);
+				if (isSafeChar(c)) {
+					keyBuffer.append(c);
+				}
+			}
+			keyBuffer.append("-");
+			for (int i=0;i<theConnection.length();i++) {
+				char c = theConnection.charAt(i);
+				if (isSafeChar(c)) {
+					keyBuffer.append(c);
+				}
+			}
+			String key = keyBuffer.toString();
+
+			synchronized (storeLock) {
+				if (key.equals(namespace)) {
+					return;
+				}
+				Object owner = openNamespaces.get(key);
+				if (owner != null && owner != this) {
+					throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE);
+				}
+				openStore();
+				if (namespace != null) {
+					openNamespaces.remove(namespace);
+				}
+				openNamespaces.put(key, this);
+				namespace = key;
+			}
+		}
+
+		private boolean isSafeChar(char c) {
+			return Character.isJavaIdentifierPart(c) || c=='-';
+		}
+
+		/**
+		 * Checks whether the persistence has been opened.
+		 * Must be called holding the storeLock.
+		 */
+		private void checkIsOpen() throws MqttPersistenceException {
+			if (namespace == null || log == null) {
+				throw new MqttPersistenceException();
+			}
+		}
+
+		public void close() throws MqttPersistenceException {
+			synchronized (storeLock) {
+				if (namespace != null) {
+					openNamespaces.remove(namespace);
+					namespace = null;
+				}
+			}
+		}
+
+		public void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+			long position;
+			try {
+				synchronized (storeLock) {
+					checkIsOpen();
+					byte[] record = encodeRecord(RECORD_PUT, namespace, key, persistable);
+					int dataLength = persistable.getHeaderLength();
+					if (persistable.getPayloadBytes() != null) {
+						dataLength += persistable.getPayloadLength();
+					}
+					position = append(record);
+					indexPut(namespace, key, new Entry(position + record.length - dataLength, dataLength, record.length));
+					position += record.length;
+				}
+			} catch (IOException ex) {
+				throw new MqttPersistenceException(ex);
+			}
+			commit(position);
+		}
+
+		public MqttPersistable get(String key) throws MqttPersistenceException {
+			synchronized (storeLock) {
+				checkIsOpen();
+				Hashtable keys = (Hashtable) index.get(namespace);
+				Entry entry = (keys == null) ? null : (Entry) keys.get(key);
+				if (entry == null) {
+					throw new MqttPersistenceException();
+				}
+				try {
+					byte[] data = read(entry);
+					return new MqttPersistentData(key, data, 0, data.length, null, 0, 0);
+				} catch (IOException ex) {
+					throw new MqttPersistenceException(ex);
+				}
+			}
+		}
+
+		public void remove(String key) throws MqttPersistenceException {
+			synchronized (storeLock) {
+				checkIsOpen();
+				Hashtable keys = (Hashtable) index.get(namespace);
+				if (keys == null || !keys.containsKey(key)) {
+					return;
+				}
+				try {
+					byte[] record = encodeRecord(RECORD_REMOVE, namespace, key, null);
+					append(record);
+					deadBytes += record.length;
+				} catch (IOException ex) {
+					throw new MqttPersistenceException(ex);
+				}
+				indexRemove(namespace, key);
+			}
+		}
+
+		public Enumeration keys() throws MqttPersistenceException {
+			synchronized (storeLock) {
+				checkIsOpen();
+				Hashtable keys = (Hashtable) index.get(namespace);
+				if (keys == null) {
+					return new Vector().elements();
+				}
+				Vector result = new Vector(keys.size());
+				Enumeration e = keys.keys();
+				while (e.hasMoreElements()) {
+					result.addElement(e.nextElement());
+				}
+				return result.elements();
+			}
+		}
+
+		public void clear() throws MqttPersistenceException {
+			synchronized (storeLock) {
+				checkIsOpen();
+				if (!index.containsKey(namespace)) {
+					return;
+				}
+				try {
+					byte[] record = encodeRecord(RECORD_CLEAR, namespace, null, null);
+					append(record);
+					deadBytes += record.length;
+				} catch (IOException ex) {
+					throw new MqttPersistenceException(ex);
+				}
+				indexClear(namespace);
+			}
+		}
+
+		public boolean containsKey(String key) throws MqttPersistenceException {
+			synchronized (storeLock) {
+				checkIsOpen();
+				Hashtable keys = (Hashtable) index.get(namespace);
+				return keys != null && keys.containsKey(key);
+			}
+		}
+	}
+}
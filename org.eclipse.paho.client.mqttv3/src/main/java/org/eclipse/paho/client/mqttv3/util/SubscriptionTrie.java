@@ -0,0 +1,308 @@
+/*******************************************************************************
+ * Copyright (c) 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    Dave Locke - initial API and implementation and/or initial documentation
+ */
+package org.eclipse.paho.client.mqttv3.util;
+
+import java.util.Hashtable;
+import java.util.Vector;
+
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+/**
+ * Holds an object, such as a message listener, for each subscribed topic
+ * filter, and finds the objects whose filters match a topic name.
+ * <p>
+ * The filters are held in a tree with one level for each level of the
+ * filter, so that the cost of a match depends on the number of levels in
+ * the topic rather than the number of filters. The result for each topic is
+ * cached until the filters change, so a topic that is received again costs
+ * a single lookup.
+ * </p>
+ * <p>
+ * Matching follows the MQTT rules: <code>+</code> matches a single level,
+ * <code>#</code> matches any number of levels including the parent level,
+ * and neither matches a first level that starts with <code>$</code>.
+ * </p>
+ */
+public class SubscriptionTrie {
+
+	// The number of topics whose match results are cached
+	private static final int MATCH_CACHE_SIZE = 4096;
+
+	private static final Object[] NONE = new Object[0];
+	// Cached for a topic that no filter matches
+	private static final Object NO_MATCH = new Object();
+
+	private Node root = new Node();
+	private Hashtable filters = new Hashtable();
+	private Hashtable matchCache = new Hashtable();
+	private Hashtable bestMatchCache = new Hashtable();
+
+	private static class Node {
+		Hashtable children = null;
+		Object value = null;
+
+		Node child(String level, boolean create) {
+			if (children == null) {
+				if (!create) {
+					return null;
+				}
+				children = new Hashtable();
+			}
+			Node child = (Node) children.get(level);
+			if (child == null && create) {
+				child = new Node();
+				children.put(level, child);
+			}
+			return child;
+		}
+
+		boolean isEmpty() {
+			return value == null && (children == null || children.isEmpty());
+		}
+	}
+
+	/**
+	 * Splits a topic name or filter into its levels. An empty level is kept,
+	 * so "a//b" has three levels and "/a" has two.
+	 */
+	private static String[] split(String topic) {
+		Vector levels = new Vector();
+		int start = 0;
+		int end;
+		while ((end = topic.indexOf('/', start)) >= 0) {
+			levels.addElement(topic.substring(start, end));
+			start = end + 1;
+		}
+		levels.addElement(topic.substring(start));
+		String[] result = new String[levels.size()];
+		levels.copyInto(result);
+		return result;
+	}
+
+	/**
+	 * Sets the object for a filter, replacing any object it already had.
+	 * @param filter a topic filter, which may contain wildcards
+	 * @param value the object to return for topics the filter matches
+	 * @throws IllegalArgumentException if the filter is not valid
+	 */
+	public synchronized void put(String filter, Object value) {
+		if (value == null) {
+			throw new NullPointerException();
+		}
+		MqttTopic.validate(filter, true);
+		String[] levels = split(filter);
+		Node node = root;
+		for (int i = 0; i < levels.length; i++) {
+			node = node.child(levels[i], true);
+		}
+		node.value = value;
+		filters.put(filter, value);
+		matchCache.clear();
+		bestMatchCache.clear();
+	}
+
+	/**
+	 * Removes a filter.
+	 * @param filter the topic filter
+	 * @return the object the filter had, or null if it was not held
+	 */
+	public synchronized Object remove(String filter) {
+		Object value = filters.remove(filter);
+		if (value == null) {
+			return null;
+		}
+		remove(root, split(filter), 0);
+		matchCache.clear();
+		bestMatchCache.clear();
+		return value;
+	}
+
+	/**
+	 * Removes the value at the end of the path, and any nodes left empty.
+	 */
+	private static void remove(Node node, String[] levels, int depth) {
+		if (depth == levels.length) {
+			node.value = null;
+			return;
+		}
+		Node child = node.child(levels[depth], false);
+		if (child != null) {
+			remove(child, levels, depth + 1);
+			if (child.isEmpty()) {
+				node.children.remove(levels[depth]);
+			}
+		}
+	}
+
+	/**
+	 * Returns the object held for a filter.
+	 * @param filter the topic filter
+	 * @return the object, or null if the filter is not held
+	 */
+	public synchronized Object get(String filter) {
+		return filters.get(filter);
+	}
+
+	/**
+	 * Returns the number of filters held.
+	 */
+	public synchronized int size() {
+		return filters.size();
+	}
+
+	public synchronized boolean isEmpty() {
+		return filters.isEmpty();
+	}
+
+	/**
+	 * Removes every filter.
+	 */
+	public synchronized void clear() {
+		root = new Node();
+		filters.clear();
+		matchCache.clear();
+		bestMatchCache.clear();
+	}
+
+	/**
+	 * Returns the objects whose filters match a topic name. The array must
+	 * not be changed, as it is shared by later matches of the same topic.
+	 * @param topic a topic name, without wildcards
+	 * @return the matching objects, which may be none
+	 */
+	public synchronized Object[] match(String topic) {
+		Object[] result = (Object[]) matchCache.get(topic);
+		if (result == null) {
+			Vector matches = new Vector();
+			String[] levels = split(topic);
+			match(root, levels, 0, topic.startsWith("$"), matches);
+			if (matches.isEmpty()) {
+				result = NONE;
+			} else {
+				result = new Object[matches.size()];
+				matches.copyInto(result);
+			}
+			if (matchCache.size() >= MATCH_CACHE_SIZE) {
+				matchCache.clear();
+			}
+			matchCache.put(topic, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the object of the most specific filter that matches a topic
+	 * name. Filters are compared level by level, and at the first level
+	 * where they differ a filter that names the level is more specific than
+	 * one with <code>+</code>, which is more specific than one with
+	 * <code>#</code>. A filter that ends at the last level of the topic is
+	 * more specific than one that goes on with <code>#</code>.
+	 * @param topic a topic name, without wildcards
+	 * @return the object, or null if no filter matches
+	 */
+	public synchronized Object matchMostSpecific(String topic) {
+		Object result = bestMatchCache.get(topic);
+		if (result == null) {
+			result = matchMostSpecific(root, split(topic), 0, topic.startsWith("$"));
+			if (result == null) {
+				result = NO_MATCH;
+			}
+			if (bestMatchCache.size() >= MATCH_CACHE_SIZE) {
+				bestMatchCache.clear();
+			}
+			bestMatchCache.put(topic, result);
+		}
+		return (result == NO_MATCH) ? null : result;
+	}
+
+	/**
+	 * Finds the value of the most specific filter matching the levels of
+	 * the topic from <code>depth</code> onwards, trying the level itself,
+	 * then <code>+</code>, then <code>#</code>.
+	 */
+	private static Object matchMostSpecific(Node node, String[] levels, int depth, boolean system) {
+		boolean wildcards = !(system && depth == 0);
+		if (depth == levels.length && node.value != null) {
+			return node.value;
+		}
+		if (node.children == null) {
+			return null;
+		}
+		if (depth < levels.length) {
+			Node exact = (Node) node.children.get(levels[depth]);
+			if (exact != null) {
+				Object value = matchMostSpecific(exact, levels, depth + 1, system);
+				if (value != null) {
+					return value;
+				}
+			}
+			if (wildcards) {
+				Node single = (Node) node.children.get(MqttTopic.SINGLE_LEVEL_WILDCARD);
+				if (single != null) {
+					Object value = matchMostSpecific(single, levels, depth + 1, system);
+					if (value != null) {
+						return value;
+					}
+				}
+			}
+		}
+		if (wildcards) {
+			Node multi = (Node) node.children.get(MqttTopic.MULTI_LEVEL_WILDCARD);
+			if (multi != null) {
+				return multi.value;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Collects the values of the filters matching the levels of the topic
+	 * from <code>depth</code> onwards.
+	 */
+	private static void match(Node node, String[] levels, int depth, boolean system, Vector matches) {
+		if (node.children == null) {
+			if (depth == levels.length && node.value != null) {
+				matches.addElement(node.value);
+			}
+			return;
+		}
+		// Wildcards do not match a first level starting with $
+		boolean wildcards = !(system && depth == 0);
+		if (wildcards) {
+			// # matches this level and everything below it, including nothing
+			Node multi = (Node) node.children.get(MqttTopic.MULTI_LEVEL_WILDCARD);
+			if (multi != null && multi.value != null) {
+				matches.addElement(multi.value);
+			}
+		}
+		if (depth == levels.length) {
+			if (node.value != null) {
+				matches.addElement(node.value);
+			}
+			return;
+		}
+		Node exact = (Node) node.children.get(levels[depth]);
+		if (exact != null) {
+			match(exact, levels, depth + 1, system, matches);
+		}
+		if (wildcards) {
+			Node single = (Node) node.children.get(MqttTopic.SINGLE_LEVEL_WILDCARD);
+			if (single != null) {
+				match(single, levels, depth + 1, system, matches);
+			}
+		}
+	}
+}